@@ -19,14 +19,19 @@ import com.google.cloud.datastore.Datastore;
 import com.google.cloud.datastore.DatastoreOptions;
 import com.google.cloud.datastore.Entity;
 import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
 import com.google.cloud.datastore.Query;
 import com.google.cloud.datastore.QueryResults;
 import com.google.cloud.datastore.StructuredQuery;
+import com.google.growpod.controllers.GardenCounters;
+import com.google.growpod.controllers.MembershipGuards;
 import com.google.growpod.data.ContainsPlant;
+import com.google.growpod.data.DeleteJob;
 import com.google.growpod.data.Garden;
 import com.google.growpod.data.HasMember;
 import com.google.growpod.data.Plant;
 import com.google.growpod.data.User;
+import com.google.growpod.storage.EmbeddedStorage;
 import java.util.Arrays;
 import java.util.List;
 
@@ -42,76 +47,84 @@ public class LoadTestData {
 
   private static final List<User> TEST_USERS =
       Arrays.asList(
-          new User("1", "ladd@example.com", "David Ladd", "My SSN is: 143-46-6098", "11201"),
-          new User("2", "caroqliu@google.com", "Caroline Liu", "Plants are fun", "11201"),
-          new User("3", "friedj@google.com", "Jake Fried", "Plants are fun too", "11201"),
-          new User("4", "kharwell@google.com", "Kayla Harwell", "I too like plants", "11201"));
+          new User(1, "ladd@example.com", "David Ladd", "My SSN is: 143-46-6098", "11201"),
+          new User(2, "caroqliu@google.com", "Caroline Liu", "Plants are fun", "11201"),
+          new User(3, "friedj@google.com", "Jake Fried", "Plants are fun too", "11201"),
+          new User(4, "kharwell@google.com", "Kayla Harwell", "I too like plants", "11201"));
   private static final List<Garden> TEST_GARDENS =
       Arrays.asList(
-          new Garden(
-              "1", "Flower Garden", "I love flowers!!!", newYorkLat, newYorkLng, "11201", "1"),
-          new Garden("2", "Pea Garden", "I love peas!!!", newYorkLat, newYorkLng, "11201", "2"));
+          new Garden(1, "Flower Garden", "I love flowers!!!", newYorkLat, newYorkLng, "11201", 1),
+          new Garden(2, "Pea Garden", "I love peas!!!", newYorkLat, newYorkLng, "11201", 2));
   private static final List<Plant> TEST_PLANTS =
       Arrays.asList(
-          new Plant("1", "Flower Plant 1", 4, "1"),
-          new Plant("2", "Flower Plant 2", 4, "2"),
-          new Plant("3", "Pea Plant 1", 4, "3"),
-          new Plant("4", "Pea Plant 2", 4, "4"));
+          new Plant(1, "Flower Plant 1", 4, "1"),
+          new Plant(2, "Flower Plant 2", 4, "2"),
+          new Plant(3, "Pea Plant 1", 4, "3"),
+          new Plant(4, "Pea Plant 2", 4, "4"));
   private static final List<HasMember> TEST_HAS_MEMBERS =
-      Arrays.asList(
-          new HasMember("1", "1", "1"), new HasMember("2", "2", "2"), new HasMember("3", "2", "3"));
+      Arrays.asList(new HasMember(1, 1, 1), new HasMember(2, 2, 2), new HasMember(3, 2, 3));
   private static final List<ContainsPlant> TEST_CONTAINS_PLANTS =
       Arrays.asList(
-          new ContainsPlant("1", "1", "1"),
-          new ContainsPlant("2", "1", "2"),
-          new ContainsPlant("3", "2", "3"),
-          new ContainsPlant("4", "2", "4"));
+          new ContainsPlant(1, 1, 1),
+          new ContainsPlant(2, 1, 2),
+          new ContainsPlant(3, 2, 3),
+          new ContainsPlant(4, 2, 4));
 
   private static void loadUsers(DatastoreOptions instance) {
-    Batch batch = instance.getService().newBatch();
+    Datastore datastore = instance.getService();
+    KeyFactory keyFactory = datastore.newKeyFactory().setKind(User.KIND);
+    Batch batch = datastore.newBatch();
 
     for (User user : TEST_USERS) {
-      batch.add(user.toEntity(instance));
+      batch.add(user.toEntity(keyFactory));
     }
 
     batch.submit();
   }
 
   private static void loadGardens(DatastoreOptions instance) {
-    Batch batch = instance.getService().newBatch();
+    Datastore datastore = instance.getService();
+    KeyFactory keyFactory = datastore.newKeyFactory().setKind(Garden.KIND);
+    Batch batch = datastore.newBatch();
 
     for (Garden garden : TEST_GARDENS) {
-      batch.add(garden.toEntity(instance));
+      batch.add(garden.toEntity(keyFactory));
     }
 
     batch.submit();
   }
 
   private static void loadPlants(DatastoreOptions instance) {
-    Batch batch = instance.getService().newBatch();
+    Datastore datastore = instance.getService();
+    KeyFactory keyFactory = datastore.newKeyFactory().setKind(Plant.KIND);
+    Batch batch = datastore.newBatch();
 
     for (Plant plant : TEST_PLANTS) {
-      batch.add(plant.toEntity(instance));
+      batch.add(plant.toEntity(keyFactory));
     }
 
     batch.submit();
   }
 
   private static void loadHasMembers(DatastoreOptions instance) {
-    Batch batch = instance.getService().newBatch();
+    Datastore datastore = instance.getService();
+    KeyFactory keyFactory = datastore.newKeyFactory().setKind(HasMember.KIND);
+    Batch batch = datastore.newBatch();
 
     for (HasMember hasMember : TEST_HAS_MEMBERS) {
-      batch.add(hasMember.toEntity(instance));
+      batch.add(hasMember.toEntity(keyFactory));
     }
 
     batch.submit();
   }
 
   private static void loadContainsPlants(DatastoreOptions instance) {
-    Batch batch = instance.getService().newBatch();
+    Datastore datastore = instance.getService();
+    KeyFactory keyFactory = datastore.newKeyFactory().setKind(ContainsPlant.KIND);
+    Batch batch = datastore.newBatch();
 
     for (ContainsPlant containsPlant : TEST_CONTAINS_PLANTS) {
-      batch.add(containsPlant.toEntity(instance));
+      batch.add(containsPlant.toEntity(keyFactory));
     }
 
     batch.submit();
@@ -128,6 +141,17 @@ public class LoadTestData {
     loadPlants(instance);
     loadHasMembers(instance);
     loadContainsPlants(instance);
+    // Test data is written directly, so its counts are rebuilt afterwards.
+    new GardenCounters(instance).rebuildAll();
+  }
+
+  /**
+   * Replaces everything in embedded storage with the test data.
+   *
+   * @param storage the storage to load.
+   */
+  public static void load(EmbeddedStorage storage) {
+    storage.load(TEST_USERS, TEST_GARDENS, TEST_PLANTS, TEST_HAS_MEMBERS, TEST_CONTAINS_PLANTS);
   }
 
   /**
@@ -138,7 +162,16 @@ public class LoadTestData {
   public static void clear(DatastoreOptions instance) {
     Datastore datastore = instance.getService();
 
-    String[] tables = {"User", "Garden", "Plant", "HasMember", "ContainsPlant"};
+    String[] tables = {
+      User.KIND,
+      Garden.KIND,
+      Plant.KIND,
+      HasMember.KIND,
+      ContainsPlant.KIND,
+      GardenCounters.KIND,
+      MembershipGuards.KIND,
+      DeleteJob.KIND
+    };
 
     Batch batch = datastore.newBatch();
 
@@ -0,0 +1,130 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.backup;
+
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.growpod.data.ContainsPlant;
+import com.google.growpod.data.Garden;
+import com.google.growpod.data.HasMember;
+import com.google.growpod.data.Plant;
+import com.google.growpod.data.User;
+
+/**
+ * Every Datastore kind covered by a backup, along with the data class used to (de)serialize it.
+ * Records are mapped with the data classes' own `from` and `toEntity` methods, so a backup file
+ * holds exactly the JSON the servlets would return for the same entity.
+ */
+public enum BackupKind {
+  USER(User.KIND, User.class) {
+    @Override
+    Object from(Entity entity) {
+      return User.from(entity);
+    }
+
+    @Override
+    Entity toEntity(Object record, KeyFactory keyFactory) {
+      return ((User) record).toEntity(keyFactory);
+    }
+  },
+  GARDEN(Garden.KIND, Garden.class) {
+    @Override
+    Object from(Entity entity) {
+      return Garden.from(entity);
+    }
+
+    @Override
+    Entity toEntity(Object record, KeyFactory keyFactory) {
+      return ((Garden) record).toEntity(keyFactory);
+    }
+  },
+  PLANT(Plant.KIND, Plant.class) {
+    @Override
+    Object from(Entity entity) {
+      return Plant.from(entity);
+    }
+
+    @Override
+    Entity toEntity(Object record, KeyFactory keyFactory) {
+      return ((Plant) record).toEntity(keyFactory);
+    }
+  },
+  HAS_MEMBER(HasMember.KIND, HasMember.class) {
+    @Override
+    Object from(Entity entity) {
+      return HasMember.from(entity);
+    }
+
+    @Override
+    Entity toEntity(Object record, KeyFactory keyFactory) {
+      return ((HasMember) record).toEntity(keyFactory);
+    }
+  },
+  CONTAINS_PLANT(ContainsPlant.KIND, ContainsPlant.class) {
+    @Override
+    Object from(Entity entity) {
+      return ContainsPlant.from(entity);
+    }
+
+    @Override
+    Entity toEntity(Object record, KeyFactory keyFactory) {
+      return ((ContainsPlant) record).toEntity(keyFactory);
+    }
+  };
+
+  private final String kind;
+  private final Class<?> recordClass;
+
+  BackupKind(String kind, Class<?> recordClass) {
+    this.kind = kind;
+    this.recordClass = recordClass;
+  }
+
+  /** The Datastore kind name. */
+  public String getKind() {
+    return kind;
+  }
+
+  /** The data class each NDJSON line is parsed into. */
+  public Class<?> getRecordClass() {
+    return recordClass;
+  }
+
+  /** Maps an entity of this kind to its data class. */
+  abstract Object from(Entity entity);
+
+  /** Maps a data class instance of this kind back to an entity. */
+  abstract Entity toEntity(Object record, KeyFactory keyFactory);
+
+  /**
+   * Finds the kind a backup file belongs to. Files are named `{kind}-{partition}.ndjson[.gz]`.
+   *
+   * @param fileName the backup file's name, without directories.
+   * @return the matching kind, or null if the file is not a backup file.
+   */
+  public static BackupKind forFileName(String fileName) {
+    int dash = fileName.indexOf('-');
+    if (dash < 0 || !(fileName.endsWith(".ndjson") || fileName.endsWith(".ndjson.gz"))) {
+      return null;
+    }
+    String kind = fileName.substring(0, dash);
+    for (BackupKind value : values()) {
+      if (value.kind.equals(kind)) {
+        return value;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,74 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.backup;
+
+import com.google.cloud.datastore.DatastoreOptions;
+import com.google.growpod.controllers.GardenCounters;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Command line entry point for backups. Uses the default Datastore instance, so the target project
+ * is picked the same way as on App Engine (or the emulator, if `DATASTORE_EMULATOR_HOST` is set).
+ *
+ * <pre>
+ * export DIR [--gzip] [--partitions=N] [--threads=N]
+ * import DIR [--threads=N]
+ * </pre>
+ *
+ * <p>Rerunning the same command on the same directory resumes an interrupted run.
+ */
+public class BackupTool {
+
+  private static final int DEFAULT_PARTITIONS = 8;
+  private static final int DEFAULT_THREADS = 8;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2 || !(args[0].equals("export") || args[0].equals("import"))) {
+      System.err.println("Usage: export DIR [--gzip] [--partitions=N] [--threads=N]");
+      System.err.println("       import DIR [--threads=N]");
+      System.exit(2);
+    }
+
+    Path directory = Paths.get(args[1]);
+    boolean gzip = false;
+    int partitions = DEFAULT_PARTITIONS;
+    int threads = DEFAULT_THREADS;
+    for (int i = 2; i < args.length; i++) {
+      if (args[i].equals("--gzip")) {
+        gzip = true;
+      } else if (args[i].startsWith("--partitions=")) {
+        partitions = Integer.parseInt(args[i].substring("--partitions=".length()));
+      } else if (args[i].startsWith("--threads=")) {
+        threads = Integer.parseInt(args[i].substring("--threads=".length()));
+      } else {
+        System.err.println("Unknown option: " + args[i]);
+        System.exit(2);
+      }
+    }
+
+    DatastoreOptions instance = DatastoreOptions.getDefaultInstance();
+    long start = System.nanoTime();
+    if (args[0].equals("export")) {
+      new Exporter(instance, directory, gzip, partitions, threads).run();
+    } else {
+      new Importer(instance, directory, threads).run();
+      // Counters are not backed up; they are derived from the imported relations.
+      int gardens = new GardenCounters(instance).rebuildAll();
+      System.err.printf("rebuilt counts of %d gardens%n", gardens);
+    }
+    System.err.printf("%s finished in %d ms%n", args[0], (System.nanoTime() - start) / 1000000);
+  }
+}
@@ -0,0 +1,73 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.backup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Progress of an export or import run, persisted as a properties file next to the backup files.
+ * Every save replaces the file atomically, so an interrupted run always leaves either the previous
+ * or the new checkpoint behind, never a partial one.
+ */
+class Checkpoint {
+
+  private final Path file;
+  private final Properties values = new Properties();
+
+  /**
+   * Loads the checkpoint stored at file, or starts an empty one if there is none.
+   *
+   * @param file where the checkpoint lives.
+   */
+  Checkpoint(Path file) throws IOException {
+    this.file = file;
+    if (Files.exists(file)) {
+      try (InputStream in = Files.newInputStream(file)) {
+        values.load(in);
+      }
+    }
+  }
+
+  /** Returns the stored value for key, or null. */
+  synchronized String get(String key) {
+    return values.getProperty(key);
+  }
+
+  /** Returns the stored value for key as a long, or defaultValue. */
+  synchronized long getLong(String key, long defaultValue) {
+    String value = values.getProperty(key);
+    return value == null ? defaultValue : Long.parseLong(value);
+  }
+
+  /** Sets a value without saving. */
+  synchronized void set(String key, String value) {
+    values.setProperty(key, value);
+  }
+
+  /** Writes all values to disk, replacing the previous checkpoint. */
+  synchronized void save() throws IOException {
+    Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (OutputStream out = Files.newOutputStream(temp)) {
+      values.store(out, "GrowPod backup checkpoint");
+    }
+    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+}
@@ -0,0 +1,365 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.backup;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.cloud.datastore.Cursor;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.datastore.DatastoreOptions;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.EntityQuery;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.StructuredQuery.CompositeFilter;
+import com.google.cloud.datastore.StructuredQuery.Filter;
+import com.google.cloud.datastore.StructuredQuery.OrderBy;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+import com.google.gson.Gson;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports every GrowPod kind to NDJSON files, one file per key range partition.
+ *
+ * <p>Each kind is split into key ranges using the `__scatter__` sampling property, and partitions
+ * are scanned in parallel, one cursor page at a time. Each page is appended to the partition's file
+ * through a FileChannel, and the cursor and file length are checkpointed afterwards. When
+ * compressing, every page is written as its own gzip member, so truncating a file to its last
+ * checkpointed length always leaves a valid gzip stream to resume appending to.
+ */
+public class Exporter {
+
+  private static final Logger logger = Logger.getLogger(Exporter.class.getName());
+
+  /** Records per query page, and therefore per checkpoint. */
+  private static final int PAGE_SIZE = 500;
+
+  /** Scatter samples taken per requested partition; more samples give more even splits. */
+  private static final int SCATTER_OVERSAMPLING = 32;
+
+  static final String CHECKPOINT_FILE = "export.checkpoint";
+
+  private final Datastore datastore;
+  private final Path directory;
+  private final boolean gzip;
+  private final int partitionsPerKind;
+  private final int threads;
+  private final Gson gson = new Gson();
+
+  /**
+   * Initializes a new exporter.
+   *
+   * @param datastoreInstance the database instance to export from.
+   * @param directory where backup files and the checkpoint are written.
+   * @param gzip whether to gzip the NDJSON files.
+   * @param partitionsPerKind the number of key ranges each kind is split into.
+   * @param threads the number of partitions scanned concurrently.
+   */
+  public Exporter(
+      DatastoreOptions datastoreInstance,
+      Path directory,
+      boolean gzip,
+      int partitionsPerKind,
+      int threads) {
+    this.datastore = datastoreInstance.getService();
+    this.directory = directory;
+    this.gzip = gzip;
+    this.partitionsPerKind = partitionsPerKind;
+    this.threads = threads;
+  }
+
+  /**
+   * Runs the export, resuming from the checkpoint in the output directory if there is one.
+   *
+   * @throws IOException if a file cannot be written or a partition scan fails.
+   */
+  public void run() throws IOException, InterruptedException {
+    Files.createDirectories(directory);
+    Checkpoint checkpoint = new Checkpoint(directory.resolve(CHECKPOINT_FILE));
+
+    List<Partition> partitions = new ArrayList<Partition>();
+    for (BackupKind kind : BackupKind.values()) {
+      partitions.addAll(split(kind, checkpoint));
+    }
+    checkpoint.save();
+
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (Partition partition : partitions) {
+        futures.add(
+            pool.submit(
+                () -> {
+                  exportPartition(partition, checkpoint);
+                  return null;
+                }));
+      }
+      for (Future<Void> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          throw new IOException("Export failed", e.getCause());
+        }
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Splits a kind into key ranges. Split points are stored in the checkpoint, so a resumed export
+   * reuses exactly the same partitions as the run it continues.
+   */
+  private List<Partition> split(BackupKind kind, Checkpoint checkpoint) {
+    String splitKey = kind.getKind() + ".splits";
+    String stored = checkpoint.get(splitKey);
+    List<Long> splits;
+    if (stored != null) {
+      splits = parseSplits(stored);
+    } else {
+      splits = sampleSplits(kind);
+      StringBuilder builder = new StringBuilder();
+      for (Long id : splits) {
+        builder.append(builder.length() == 0 ? "" : ",").append(id);
+      }
+      checkpoint.set(splitKey, builder.toString());
+    }
+
+    List<Partition> partitions = new ArrayList<Partition>();
+    Long start = null;
+    for (int i = 0; i <= splits.size(); i++) {
+      Long end = i < splits.size() ? splits.get(i) : null;
+      partitions.add(new Partition(kind, i, start, end));
+      start = end;
+    }
+    return partitions;
+  }
+
+  /**
+   * Lists what an export in a directory has not finished: kinds it has not split yet, and partition
+   * files it has not marked done. An import of anything else would silently restore part of the
+   * data.
+   *
+   * @param directory the backup directory.
+   * @return the unfinished files' names, or kinds for kinds not split yet; empty once the export is
+   *     complete.
+   * @throws IOException if the checkpoint cannot be read.
+   */
+  static List<String> unfinished(Path directory) throws IOException {
+    List<String> unfinished = new ArrayList<String>();
+    Path file = directory.resolve(CHECKPOINT_FILE);
+    if (!Files.exists(file)) {
+      unfinished.add(CHECKPOINT_FILE);
+      return unfinished;
+    }
+    Checkpoint checkpoint = new Checkpoint(file);
+    for (BackupKind kind : BackupKind.values()) {
+      String stored = checkpoint.get(kind.getKind() + ".splits");
+      if (stored == null) {
+        unfinished.add(kind.getKind());
+        continue;
+      }
+      int partitions = parseSplits(stored).size() + 1;
+      for (int i = 0; i < partitions; i++) {
+        Partition partition = new Partition(kind, i, null, null);
+        if (checkpoint.get(partition.fileName(false) + ".done") == null
+            && checkpoint.get(partition.fileName(true) + ".done") == null) {
+          unfinished.add(partition.fileName(false));
+        }
+      }
+    }
+    return unfinished;
+  }
+
+  /** Parses split ids stored as "id,id,id". */
+  private static List<Long> parseSplits(String stored) {
+    List<Long> splits = new ArrayList<Long>();
+    for (String id : stored.split(",")) {
+      if (!id.isEmpty()) {
+        splits.add(Long.parseLong(id));
+      }
+    }
+    return splits;
+  }
+
+  /**
+   * Picks partitionsPerKind - 1 evenly spaced split ids from a sample of keys ordered by the
+   * `__scatter__` property. Falls back to a single partition where scatter sampling is unavailable
+   * (for example, in the Datastore emulator).
+   */
+  private List<Long> sampleSplits(BackupKind kind) {
+    List<Long> sample = new ArrayList<Long>();
+    if (partitionsPerKind <= 1) {
+      return sample;
+    }
+    try {
+      Query<Key> query =
+          Query.newKeyQueryBuilder()
+              .setKind(kind.getKind())
+              .setOrderBy(OrderBy.asc("__scatter__"))
+              .setLimit(partitionsPerKind * SCATTER_OVERSAMPLING)
+              .build();
+      QueryResults<Key> results = datastore.run(query);
+      while (results.hasNext()) {
+        Key key = results.next();
+        if (key.hasId()) {
+          sample.add(key.getId());
+        }
+      }
+    } catch (DatastoreException e) {
+      logger.warning("Scatter sampling unavailable for " + kind.getKind() + ": " + e.getMessage());
+      return new ArrayList<Long>();
+    }
+
+    Collections.sort(sample);
+    List<Long> splits = new ArrayList<Long>();
+    for (int i = 1; i < partitionsPerKind && !sample.isEmpty(); i++) {
+      long split = sample.get(i * sample.size() / partitionsPerKind);
+      if (splits.isEmpty() || splits.get(splits.size() - 1) < split) {
+        splits.add(split);
+      }
+    }
+    return splits;
+  }
+
+  /** Scans one partition page by page, appending each page to its file and checkpointing. */
+  private void exportPartition(Partition partition, Checkpoint checkpoint) throws IOException {
+    String name = partition.fileName(gzip);
+    if (checkpoint.get(name + ".done") != null) {
+      return;
+    }
+    long records = checkpoint.getLong(name + ".records", 0);
+    long length = checkpoint.getLong(name + ".bytes", 0);
+    String cursor = checkpoint.get(name + ".cursor");
+    Filter filter = partition.filter(datastore.newKeyFactory().setKind(partition.kind.getKind()));
+
+    try (FileChannel channel =
+        FileChannel.open(
+            directory.resolve(name), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+      // Drops anything written after the last checkpoint by an interrupted run.
+      channel.truncate(length);
+      channel.position(length);
+
+      while (true) {
+        EntityQuery.Builder query =
+            Query.newEntityQueryBuilder().setKind(partition.kind.getKind()).setLimit(PAGE_SIZE);
+        if (filter != null) {
+          query.setFilter(filter);
+        }
+        if (cursor != null) {
+          query.setStartCursor(Cursor.fromUrlSafe(cursor));
+        }
+        QueryResults<Entity> results = datastore.run(query.build());
+
+        ByteArrayOutputStream page = new ByteArrayOutputStream();
+        int count = 0;
+        try (Writer writer = new OutputStreamWriter(wrap(page), UTF_8)) {
+          while (results.hasNext()) {
+            gson.toJson(partition.kind.from(results.next()), writer);
+            writer.write('\n');
+            count++;
+          }
+        }
+        if (count == 0) {
+          break;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(page.toByteArray());
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+        channel.force(false);
+
+        cursor = results.getCursorAfter().toUrlSafe();
+        records += count;
+        checkpoint.set(name + ".cursor", cursor);
+        checkpoint.set(name + ".bytes", Long.toString(channel.position()));
+        checkpoint.set(name + ".records", Long.toString(records));
+        checkpoint.save();
+
+        if (count < PAGE_SIZE) {
+          break;
+        }
+      }
+    }
+
+    checkpoint.set(name + ".done", "true");
+    checkpoint.save();
+    logger.info("Exported " + records + " records to " + name);
+  }
+
+  /** Wraps a page buffer in a fresh gzip member when compressing. */
+  private OutputStream wrap(OutputStream out) throws IOException {
+    return gzip ? new GZIPOutputStream(out) : out;
+  }
+
+  /** A key range of one kind. Null bounds are unbounded. */
+  private static class Partition {
+    private final BackupKind kind;
+    private final int index;
+    private final Long startId;
+    private final Long endId;
+
+    Partition(BackupKind kind, int index, Long startId, Long endId) {
+      this.kind = kind;
+      this.index = index;
+      this.startId = startId;
+      this.endId = endId;
+    }
+
+    String fileName(boolean gzip) {
+      return kind.getKind() + "-" + index + (gzip ? ".ndjson.gz" : ".ndjson");
+    }
+
+    /** Builds the `__key__` range filter for this partition, or null if it is unbounded. */
+    Filter filter(KeyFactory keyFactory) {
+      List<Filter> filters = new ArrayList<Filter>();
+      if (startId != null) {
+        filters.add(PropertyFilter.ge("__key__", keyFactory.newKey(startId)));
+      }
+      if (endId != null) {
+        filters.add(PropertyFilter.lt("__key__", keyFactory.newKey(endId)));
+      }
+      if (filters.isEmpty()) {
+        return null;
+      }
+      if (filters.size() == 1) {
+        return filters.get(0);
+      }
+      return CompositeFilter.and(filters.get(0), filters.get(1));
+    }
+  }
+}
@@ -0,0 +1,193 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.backup;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreOptions;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.gson.Gson;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Restores NDJSON files written by {@link Exporter}.
+ *
+ * <p>Files are read in chunks of up to 500 lines, the Datastore limit for a single commit, and each
+ * chunk is written with one batched put. Files are imported in parallel by a fixed pool, so at most
+ * `threads` puts are in flight at once. The number of lines committed per file is checkpointed
+ * after every chunk; since puts of complete keys are idempotent, a resumed import only replays the
+ * chunk that was in flight when the previous run stopped.
+ *
+ * <p>Only complete exports are imported: the import refuses to start unless the export's checkpoint
+ * marks every kind's files done, so a partial or running export is never restored as if it were
+ * whole.
+ */
+public class Importer {
+
+  private static final Logger logger = Logger.getLogger(Importer.class.getName());
+
+  /** Maximum entities per Datastore commit. */
+  private static final int CHUNK_SIZE = 500;
+
+  private static final int READ_BUFFER_SIZE = 1 << 16;
+
+  static final String CHECKPOINT_FILE = "import.checkpoint";
+
+  private final Datastore datastore;
+  private final Path directory;
+  private final int threads;
+  private final Gson gson = new Gson();
+
+  /**
+   * Initializes a new importer.
+   *
+   * @param datastoreInstance the database instance to import into.
+   * @param directory where the backup files and the checkpoint are.
+   * @param threads the maximum number of concurrent batched puts.
+   */
+  public Importer(DatastoreOptions datastoreInstance, Path directory, int threads) {
+    this.datastore = datastoreInstance.getService();
+    this.directory = directory;
+    this.threads = threads;
+  }
+
+  /**
+   * Runs the import, resuming from the checkpoint in the backup directory if there is one.
+   *
+   * @throws IOException if the export is incomplete, a file cannot be read or a put fails.
+   */
+  public void run() throws IOException, InterruptedException {
+    List<String> unfinished = Exporter.unfinished(directory);
+    if (!unfinished.isEmpty()) {
+      throw new IOException(
+          "Export in " + directory + " is incomplete, missing: " + String.join(", ", unfinished));
+    }
+    Checkpoint checkpoint = new Checkpoint(directory.resolve(CHECKPOINT_FILE));
+
+    List<Path> files = new ArrayList<Path>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+      for (Path file : stream) {
+        if (BackupKind.forFileName(file.getFileName().toString()) != null) {
+          files.add(file);
+        }
+      }
+    }
+    Collections.sort(files);
+
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (Path file : files) {
+        futures.add(
+            pool.submit(
+                () -> {
+                  importFile(file, checkpoint);
+                  return null;
+                }));
+      }
+      for (Future<Void> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          throw new IOException("Import failed", e.getCause());
+        }
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /** Imports one file chunk by chunk, skipping lines committed by a previous run. */
+  private void importFile(Path file, Checkpoint checkpoint) throws IOException {
+    String name = file.getFileName().toString();
+    BackupKind kind = BackupKind.forFileName(name);
+    if (checkpoint.get(name + ".done") != null) {
+      return;
+    }
+    long committed = checkpoint.getLong(name + ".lines", 0);
+    KeyFactory keyFactory = datastore.newKeyFactory().setKind(kind.getKind());
+
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        BufferedReader reader = open(channel, name.endsWith(".gz"))) {
+      long lineNumber = 0;
+      List<Entity> chunk = new ArrayList<Entity>(CHUNK_SIZE);
+      String line = reader.readLine();
+      while (line != null) {
+        lineNumber++;
+        if (lineNumber > committed && !line.isEmpty()) {
+          Object record = gson.fromJson(line, kind.getRecordClass());
+          chunk.add(kind.toEntity(record, keyFactory));
+        }
+        if (chunk.size() == CHUNK_SIZE) {
+          commit(chunk);
+          checkpoint.set(name + ".lines", Long.toString(lineNumber));
+          checkpoint.save();
+        }
+        line = reader.readLine();
+      }
+      if (!chunk.isEmpty()) {
+        commit(chunk);
+      }
+      checkpoint.set(name + ".lines", Long.toString(lineNumber));
+    }
+
+    checkpoint.set(name + ".done", "true");
+    checkpoint.save();
+    logger.info("Imported " + name);
+  }
+
+  /**
+   * Writes a chunk with one batched put and clears it. The ids are reserved first so that keys
+   * allocated later by the DAOs can never collide with restored entities.
+   */
+  private void commit(List<Entity> chunk) {
+    Key[] keys = new Key[chunk.size()];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = chunk.get(i).getKey();
+    }
+    datastore.reserveIds(keys);
+    datastore.put(chunk.toArray(new Entity[0]));
+    chunk.clear();
+  }
+
+  private static BufferedReader open(FileChannel channel, boolean gzip) throws IOException {
+    InputStream in = Channels.newInputStream(channel);
+    if (gzip) {
+      in = new GZIPInputStream(in, READ_BUFFER_SIZE);
+    }
+    return new BufferedReader(new InputStreamReader(in, UTF_8), READ_BUFFER_SIZE);
+  }
+}
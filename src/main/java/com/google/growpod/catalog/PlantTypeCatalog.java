@@ -0,0 +1,235 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.catalog;
+
+import com.google.growpod.data.PlantType;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Immutable catalog of plant types, with a case-insensitive prefix index for autocomplete.
+ *
+ * <p>Types are kept in parallel arrays rather than one object each. The index is a sorted array of
+ * lowercase search keys (each word-start of a type's name, and its scientific name) pointing back
+ * into those arrays, so a prefix search is one binary search followed by a scan of the matches.
+ *
+ * <p>The catalog in use is held in a single reference, so a reload builds a complete new catalog
+ * and swaps it in at once; readers see either the old catalog or the new one, never a mix.
+ */
+public final class PlantTypeCatalog {
+
+  /** Classpath resource holding the bundled catalog. */
+  public static final String RESOURCE = "/plant-types.tsv";
+
+  private static final AtomicReference<PlantTypeCatalog> current =
+      new AtomicReference<PlantTypeCatalog>();
+
+  private final String[] ids;
+  private final String[] names;
+  private final String[] scientificNames;
+  private final Map<String, Integer> positions;
+
+  /** Search keys, sorted, and the position of the type each key belongs to. */
+  private final String[] keys;
+
+  private final int[] keyTypes;
+
+  private PlantTypeCatalog(List<String[]> rows) {
+    int size = rows.size();
+    ids = new String[size];
+    names = new String[size];
+    scientificNames = new String[size];
+    positions = new HashMap<String, Integer>(size * 2);
+
+    List<String> unsortedKeys = new ArrayList<String>(size * 3);
+    List<Integer> unsortedKeyTypes = new ArrayList<Integer>(size * 3);
+    for (int i = 0; i < size; i++) {
+      String[] row = rows.get(i);
+      ids[i] = row[0];
+      names[i] = row[1];
+      scientificNames[i] = row[2];
+      if (positions.put(ids[i], i) != null) {
+        throw new IllegalArgumentException("Duplicate plant type id: " + ids[i]);
+      }
+
+      // Every word of the common name starts a key, so "pea" finds "Garden Pea".
+      String name = names[i].toLowerCase(Locale.ROOT);
+      int start = 0;
+      while (start >= 0) {
+        unsortedKeys.add(name.substring(start));
+        unsortedKeyTypes.add(i);
+        int space = name.indexOf(' ', start);
+        start = space < 0 ? -1 : space + 1;
+      }
+      unsortedKeys.add(scientificNames[i].toLowerCase(Locale.ROOT));
+      unsortedKeyTypes.add(i);
+    }
+
+    Integer[] order = new Integer[unsortedKeys.size()];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> unsortedKeys.get(a).compareTo(unsortedKeys.get(b)));
+    keys = new String[order.length];
+    keyTypes = new int[order.length];
+    for (int i = 0; i < order.length; i++) {
+      keys[i] = unsortedKeys.get(order[i]);
+      keyTypes[i] = unsortedKeyTypes.get(order[i]);
+    }
+  }
+
+  /**
+   * Parses a catalog. Each line holds a type's id, name and scientific name separated by tabs.
+   * Blank lines and lines starting with '#' are skipped.
+   *
+   * @param reader the catalog's contents.
+   * @return the catalog.
+   * @throws IOException if reading fails.
+   * @throws IllegalArgumentException if a line is malformed or an id repeats.
+   */
+  public static PlantTypeCatalog parse(Reader reader) throws IOException {
+    List<String[]> rows = new ArrayList<String[]>();
+    BufferedReader lines = new BufferedReader(reader);
+    String line = lines.readLine();
+    for (int number = 1; line != null; number++, line = lines.readLine()) {
+      if (line.trim().isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      String[] row = line.split("\t");
+      if (row.length != 3 || row[0].isEmpty() || row[1].isEmpty()) {
+        throw new IllegalArgumentException("Malformed plant type on line " + number);
+      }
+      rows.add(row);
+    }
+    return new PlantTypeCatalog(rows);
+  }
+
+  /**
+   * Returns the catalog in use, loading the bundled one on first use.
+   *
+   * @return the current catalog.
+   */
+  public static PlantTypeCatalog getInstance() {
+    PlantTypeCatalog catalog = current.get();
+    if (catalog == null) {
+      current.compareAndSet(null, loadBundled());
+      catalog = current.get();
+    }
+    return catalog;
+  }
+
+  /**
+   * Replaces the catalog in use.
+   *
+   * @param catalog the new catalog.
+   */
+  public static void setInstance(PlantTypeCatalog catalog) {
+    current.set(catalog);
+  }
+
+  /**
+   * Rereads the bundled catalog and swaps it in.
+   *
+   * @return the new catalog.
+   */
+  public static PlantTypeCatalog reload() {
+    PlantTypeCatalog catalog = loadBundled();
+    current.set(catalog);
+    return catalog;
+  }
+
+  private static PlantTypeCatalog loadBundled() {
+    InputStream stream = PlantTypeCatalog.class.getResourceAsStream(RESOURCE);
+    if (stream == null) {
+      throw new IllegalStateException("Missing plant type catalog: " + RESOURCE);
+    }
+    try (Reader reader = new InputStreamReader(stream, StandardCharsets.UTF_8)) {
+      return parse(reader);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unreadable plant type catalog: " + RESOURCE, e);
+    }
+  }
+
+  /** Number of plant types in the catalog. */
+  public int size() {
+    return ids.length;
+  }
+
+  /**
+   * Looks up a plant type by id.
+   *
+   * @param id the plant type's id.
+   * @return the plant type, or null if the catalog has no such id.
+   */
+  public PlantType get(String id) {
+    Integer position = id == null ? null : positions.get(id);
+    return position == null ? null : typeAt(position);
+  }
+
+  /**
+   * Finds plant types whose name, any word of their name, or scientific name starts with prefix,
+   * ignoring case. Matches are returned in order of the matching key, each type at most once.
+   *
+   * @param prefix the text typed so far.
+   * @param limit the maximum number of types returned.
+   * @return up to limit matching plant types.
+   */
+  public List<PlantType> search(String prefix, int limit) {
+    String key = prefix.toLowerCase(Locale.ROOT);
+    List<PlantType> matches = new ArrayList<PlantType>(Math.min(limit, ids.length));
+    BitSet seen = new BitSet(ids.length);
+    for (int i = lowerBound(key); i < keys.length && matches.size() < limit; i++) {
+      if (!keys[i].startsWith(key)) {
+        break;
+      }
+      if (!seen.get(keyTypes[i])) {
+        seen.set(keyTypes[i]);
+        matches.add(typeAt(keyTypes[i]));
+      }
+    }
+    return matches;
+  }
+
+  /** Position of the first key not less than key. */
+  private int lowerBound(String key) {
+    int low = 0;
+    int high = keys.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (keys[middle].compareTo(key) < 0) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  private PlantType typeAt(int position) {
+    return new PlantType(ids[position], names[position], scientificNames[position]);
+  }
+}
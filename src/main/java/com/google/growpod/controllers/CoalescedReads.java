@@ -0,0 +1,77 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.controllers;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.ReadOption;
+import com.google.growpod.util.SingleFlight;
+import java.util.function.Supplier;
+
+/**
+ * Hot DAO reads, coalesced across every DAO of this server: concurrent lookups of one entity, or
+ * runs of one relationship query, share a single Datastore call. Keys name only the kind and id,
+ * since every DAO of a server talks to the same Datastore.
+ */
+final class CoalescedReads {
+
+  /** How long a request waits for another's read before making its own. */
+  static final long MAX_WAIT_MILLIS = 2000;
+
+  private static final SingleFlight flights = new SingleFlight("datastore", MAX_WAIT_MILLIS);
+
+  private CoalescedReads() {}
+
+  /**
+   * Looks up an entity, hedged and bounded by the request's deadline. While Datastore is down, the
+   * last good copy is returned instead, and right after startup, the warm start copy.
+   *
+   * @param datastore the Datastore to read from.
+   * @param key the entity's key.
+   * @return the entity, or null if it does not exist.
+   */
+  static Entity get(Datastore datastore, Key key) {
+    String name = key.getKind() + "/" + key.getId();
+    Entity warm = WarmStart.entity(name);
+    if (warm != null) {
+      return warm;
+    }
+    ReadOption[] options = ReadConsistency.options();
+    return DatastoreGuard.read(
+        name,
+        () ->
+            flights.execute(
+                ReadConsistency.flightKey(name, options),
+                () -> HedgedReads.get(datastore, key, options)),
+        () -> datastore.get(key));
+  }
+
+  /**
+   * Runs a query returning ids, or returns the last good ids while Datastore is down. Each caller
+   * gets its own copy of the shared array.
+   *
+   * @param key identifies the query, for example "ContainsPlant?garden-id=1".
+   * @param query runs the query, returning ids or null.
+   * @return the ids, or null.
+   */
+  static long[] ids(String key, Supplier<long[]> query) {
+    long[] ids = WarmStart.ids(key);
+    if (ids == null) {
+      ids = DatastoreGuard.read(key, () -> flights.execute(key, query), query);
+    }
+    return ids == null ? null : ids.clone();
+  }
+}
@@ -0,0 +1,286 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.controllers;
+
+import com.google.cloud.datastore.DatastoreException;
+import com.google.growpod.util.CircuitBreaker;
+import com.google.growpod.util.DeadlineExceededException;
+import com.google.growpod.util.Deadlines;
+import com.google.growpod.util.Metrics;
+import com.google.growpod.util.RequestContext;
+import com.google.growpod.util.ServiceUnavailableException;
+import com.google.growpod.util.StripedLruCache;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Circuit breaker around the DAOs' Datastore calls, with the last good copy of hot reads to serve
+ * while it is open.
+ *
+ * <p>Cached reads (single gardens, users and plants, relationship lists and find-gardens results)
+ * remember their latest result. When Datastore fails, or the breaker is open, they serve that copy
+ * instead and mark the request stale, so the response carries a Warning header. Reads without a
+ * copy, and every write, fail fast with {@link ServiceUnavailableException} while the breaker is
+ * open. When the breaker closes again, copies read before it did are revalidated in the background,
+ * so the next outage starts from fresh data.
+ */
+final class DatastoreGuard {
+
+  /** Consecutive Datastore failures that open the breaker. */
+  static final int FAILURE_THRESHOLD = 5;
+
+  /** How long the breaker stays open before a trial call. */
+  static final long OPEN_MILLIS = 5000;
+
+  /** Most last good copies kept; the least recently used of a stripe are dropped beyond it. */
+  static final int MAX_ENTRIES = 5000;
+
+  /** A last good copy, and how to read it again. */
+  private static final class Entry {
+    final Object value;
+    final long fetchedAtMillis;
+    final Supplier<?> loader;
+
+    Entry(Object value, long fetchedAtMillis, Supplier<?> loader) {
+      this.value = value;
+      this.fetchedAtMillis = fetchedAtMillis;
+      this.loader = loader;
+    }
+  }
+
+  /** Copies by key, striped so concurrent reads of different keys rarely wait on each other. */
+  private static final StripedLruCache<String, Entry> lastGood =
+      new StripedLruCache<String, Entry>(MAX_ENTRIES);
+
+  /** Runs at most one revalidation at a time; closes during one are dropped. */
+  private static final ThreadPoolExecutor revalidator =
+      new ThreadPoolExecutor(
+          0,
+          1,
+          60,
+          TimeUnit.SECONDS,
+          new ArrayBlockingQueue<Runnable>(1),
+          runnable -> {
+            Thread thread = new Thread(runnable, "datastore-revalidate");
+            thread.setDaemon(true);
+            return thread;
+          },
+          new ThreadPoolExecutor.DiscardPolicy());
+
+  private static final CircuitBreaker breaker =
+      new CircuitBreaker(FAILURE_THRESHOLD, OPEN_MILLIS, DatastoreGuard::revalidateLater);
+
+  private static final LongAdder staleServed = Metrics.counter("breaker.stale");
+  private static final LongAdder rejected = Metrics.counter("breaker.rejected");
+  private static final LongAdder failures = Metrics.counter("breaker.failures");
+  private static final LongAdder revalidated = Metrics.counter("breaker.revalidated");
+
+  static {
+    Metrics.register("breaker", DatastoreGuard::report);
+  }
+
+  private DatastoreGuard() {}
+
+  /**
+   * Runs a read, bounded by the request's budget, falling back to the last good copy if Datastore
+   * fails or the breaker is open.
+   *
+   * @param key names the read's copy, for example "Garden/1".
+   * @param call the read.
+   * @param loader reads the same data again outside requests, to revalidate the copy.
+   * @return the read's result, or the last good one.
+   * @throws ServiceUnavailableException if Datastore is unavailable and there is no copy.
+   */
+  @SuppressWarnings("unchecked")
+  static <T> T read(String key, Supplier<T> call, Supplier<T> loader) {
+    RequestContext.checkDeadline();
+    if (!breaker.allowRequest()) {
+      return (T) lastGood(key, null);
+    }
+    T value;
+    try {
+      value = Deadlines.call(call);
+    } catch (DatastoreException | DeadlineExceededException e) {
+      if (!isOutage(e)) {
+        breaker.recordIgnored();
+        throw e;
+      }
+      failed(e);
+      return (T) lastGood(key, e);
+    } catch (RuntimeException | Error e) {
+      breaker.recordIgnored();
+      throw e;
+    }
+    breaker.recordSuccess();
+    remember(key, value, loader);
+    return value;
+  }
+
+  /**
+   * Runs a read whose result the caller can do without, such as garden counts.
+   *
+   * @param call the read.
+   * @return the read's result, or null if Datastore is unavailable.
+   */
+  static <T> T readOptional(Supplier<T> call) {
+    try {
+      return read(null, call, null);
+    } catch (ServiceUnavailableException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Runs a read that has no fallback, bounded by the request's budget.
+   *
+   * @param call the read.
+   * @return the read's result.
+   * @throws ServiceUnavailableException if the breaker is open or the request's budget runs out.
+   */
+  static <T> T readUncached(Supplier<T> call) {
+    beforeRead();
+    return Deadlines.call(call);
+  }
+
+  /**
+   * Fails fast before a read that has no fallback.
+   *
+   * @throws ServiceUnavailableException if the breaker is open or the request's budget is spent.
+   */
+  static void beforeRead() {
+    RequestContext.checkDeadline();
+    if (breaker.isOpen()) {
+      rejected.increment();
+      throw new ServiceUnavailableException("Datastore unavailable, try again later");
+    }
+  }
+
+  /**
+   * Fails fast before a write, so writes never queue up behind an outage.
+   *
+   * @throws ServiceUnavailableException if the breaker is open or the request's budget is spent.
+   */
+  static void beforeWrite() {
+    beforeRead();
+    // Warm copies would hide this write from the rest of the request's reads.
+    WarmStart.retire();
+  }
+
+  /** Whether Datastore calls are currently being refused. */
+  static boolean isOpen() {
+    return breaker.isOpen();
+  }
+
+  /**
+   * Records a Datastore failure seen outside {@link #read}.
+   *
+   * @param e the failure.
+   */
+  static void failed(RuntimeException e) {
+    if (isOutage(e)) {
+      failures.increment();
+      breaker.recordFailure();
+    }
+  }
+
+  /** Whether a failure says Datastore is down or slow, as opposed to a rejected call. */
+  private static boolean isOutage(RuntimeException e) {
+    if (e instanceof DeadlineExceededException) {
+      return true;
+    }
+    // Aborted transactions are contention, not an outage.
+    return e instanceof DatastoreException
+        && ((DatastoreException) e).isRetryable()
+        && !"ABORTED".equals(((DatastoreException) e).getReason());
+  }
+
+  private static Object lastGood(String key, RuntimeException cause) {
+    Entry entry = null;
+    if (key != null) {
+      entry = lastGood.get(key);
+    }
+    if (entry == null) {
+      rejected.increment();
+      throw new ServiceUnavailableException("Datastore unavailable, try again later", cause);
+    }
+    staleServed.increment();
+    RequestContext.markStale(System.currentTimeMillis() - entry.fetchedAtMillis);
+    return entry.value;
+  }
+
+  private static void remember(String key, Object value, Supplier<?> loader) {
+    if (key == null) {
+      return;
+    }
+    if (value == null) {
+      // Deleted data has no last good copy.
+      lastGood.remove(key);
+    } else {
+      lastGood.put(key, new Entry(value, System.currentTimeMillis(), loader));
+    }
+  }
+
+  private static void revalidateLater() {
+    long closedAtMillis = System.currentTimeMillis();
+    revalidator.execute(() -> revalidate(closedAtMillis));
+  }
+
+  /** Reads again every copy read before closedAtMillis, stopping if Datastore fails again. */
+  private static void revalidate(long closedAtMillis) {
+    List<Map.Entry<String, Entry>> stale = new ArrayList<Map.Entry<String, Entry>>();
+    for (Map.Entry<String, Entry> entry : lastGood.entries()) {
+      if (entry.getValue().fetchedAtMillis < closedAtMillis) {
+        stale.add(entry);
+      }
+    }
+    for (Map.Entry<String, Entry> entry : stale) {
+      if (breaker.isOpen()) {
+        return;
+      }
+      Object value;
+      try {
+        value = entry.getValue().loader.get();
+      } catch (RuntimeException e) {
+        failed(e);
+        return;
+      }
+      // Skips copies refreshed by a request meanwhile.
+      if (value == null) {
+        lastGood.remove(entry.getKey(), entry.getValue());
+      } else {
+        lastGood.replace(
+            entry.getKey(),
+            entry.getValue(),
+            new Entry(value, System.currentTimeMillis(), entry.getValue().loader));
+      }
+      revalidated.increment();
+    }
+  }
+
+  /** State of the breaker and its copies. */
+  private static Object report() {
+    Map<String, Object> report = new LinkedHashMap<String, Object>();
+    report.put("state", breaker.getState().name());
+    report.put("entries", lastGood.size());
+    return report;
+  }
+}
@@ -0,0 +1,928 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.controllers;
+
+import com.google.cloud.datastore.BaseEntity;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.datastore.DatastoreOptions;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.IncompleteKey;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.LatLng;
+import com.google.cloud.datastore.ProjectionEntity;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.ReadOption;
+import com.google.cloud.datastore.StructuredQuery;
+import com.google.cloud.datastore.StructuredQuery.CompositeFilter;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+import com.google.growpod.controllers.GardenCounters.Counter;
+import com.google.growpod.data.BatchItemStatus;
+import com.google.growpod.data.BatchItemStatus.Outcome;
+import com.google.growpod.data.ContainsPlant;
+import com.google.growpod.data.DeleteJob;
+import com.google.growpod.data.FieldSet;
+import com.google.growpod.data.Garden;
+import com.google.growpod.data.GardenCounts;
+import com.google.growpod.data.HasMember;
+import com.google.growpod.data.Ids;
+import com.google.growpod.data.Plant;
+import com.google.growpod.data.User;
+import com.google.growpod.storage.Storage;
+import com.google.growpod.util.LongList;
+import com.google.growpod.util.Metrics;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Storage on Cloud Datastore.
+ *
+ * <p>Single-entity reads are coalesced, hedged and, if {@link IdFilters} are on, filtered by id,
+ * and relation queries are coalesced; all of them fall back to the last good copy while Datastore
+ * is down. Member and plant counts are sharded counters, updated in the same transaction as the
+ * relations they count.
+ */
+public class DatastoreStorage implements Storage {
+
+  /** Maximum entities written or deleted by a single Datastore commit. */
+  private static final int MAX_WRITES_PER_COMMIT = 500;
+
+  /** Maximum keys in a single Datastore lookup. */
+  private static final int MAX_KEYS_PER_LOOKUP = 1000;
+
+  /**
+   * Projections of the zip code query with a composite index in datastore-indexes.xml, smallest
+   * first. Requests needing properties none of them covers read whole gardens.
+   */
+  private static final String[][] GARDEN_PROJECTIONS = {
+    {}, {"name"}, {"lat-lng"}, {"name", "lat-lng"}
+  };
+
+  private static final LongAdder projectionFallbacks = Metrics.counter("projection.fallbacks");
+
+  private final Datastore datastore;
+  private final KeyFactory gardenKeyFactory;
+  private final KeyFactory userKeyFactory;
+  private final KeyFactory plantKeyFactory;
+  private final KeyFactory hasMemberKeyFactory;
+  private final KeyFactory containsPlantKeyFactory;
+  private final KeyFactory guardKeyFactory;
+  private final KeyFactory deleteJobKeyFactory;
+  private final GardenCounters counters;
+  private final MembershipIndex memberships;
+
+  /**
+   * Initializes storage on a given Datastore.
+   *
+   * @param datastoreInstance the database instance to run queries on.
+   */
+  public DatastoreStorage(DatastoreOptions datastoreInstance) {
+    this.datastore = datastoreInstance.getService();
+    this.gardenKeyFactory = datastore.newKeyFactory().setKind(Garden.KIND);
+    this.userKeyFactory = datastore.newKeyFactory().setKind(User.KIND);
+    this.plantKeyFactory = datastore.newKeyFactory().setKind(Plant.KIND);
+    this.hasMemberKeyFactory = datastore.newKeyFactory().setKind(HasMember.KIND);
+    this.containsPlantKeyFactory = datastore.newKeyFactory().setKind(ContainsPlant.KIND);
+    this.guardKeyFactory = datastore.newKeyFactory().setKind(MembershipGuards.KIND);
+    this.deleteJobKeyFactory = datastore.newKeyFactory().setKind(DeleteJob.KIND);
+    this.counters = new GardenCounters(datastoreInstance);
+    this.memberships = MembershipIndex.getShared(datastore);
+  }
+
+  @Override
+  public Garden getGarden(long id) {
+    Entity entity = get(gardenKeyFactory.newKey(id));
+    return entity == null ? null : Garden.from(entity);
+  }
+
+  @Override
+  public List<Garden> getGardens(long[] ids) {
+    return DatastoreGuard.readUncached(
+        () -> {
+          List<Key> keys = new ArrayList<Key>(ids.length);
+          for (long id : ids) {
+            keys.add(gardenKeyFactory.newKey(id));
+          }
+          // Lookups return entities in no particular order.
+          Map<Long, Garden> gardens = new HashMap<Long, Garden>();
+          Iterator<Entity> results = datastore.get(keys, ReadConsistency.options());
+          while (results.hasNext()) {
+            Garden garden = Garden.from(results.next());
+            gardens.put(garden.getId(), garden);
+          }
+
+          List<Garden> gardenList = new ArrayList<Garden>(gardens.size());
+          for (long id : ids) {
+            Garden garden = gardens.get(id);
+            if (garden != null) {
+              gardenList.add(garden);
+            }
+          }
+          return gardenList;
+        });
+  }
+
+  @Override
+  public List<Garden> getAllGardens() {
+    return DatastoreGuard.readUncached(
+        () -> {
+          List<Garden> gardenList = new ArrayList<Garden>();
+
+          QueryResults<Entity> results =
+              datastore.run(Query.newEntityQueryBuilder().setKind(Garden.KIND).build());
+          while (results.hasNext()) {
+            gardenList.add(Garden.from(results.next()));
+          }
+
+          return gardenList;
+        });
+  }
+
+  @Override
+  public List<Garden> getSomeGardens(int limit) {
+    return DatastoreGuard.readUncached(
+        () -> {
+          List<Garden> gardenList = new ArrayList<Garden>();
+
+          QueryResults<Entity> results =
+              datastore.run(
+                  Query.newEntityQueryBuilder().setKind(Garden.KIND).setLimit(limit).build());
+          while (results.hasNext()) {
+            gardenList.add(Garden.from(results.next()));
+          }
+
+          return gardenList;
+        });
+  }
+
+  @Override
+  public List<Garden> getGardensByZipCode(String zipCode) {
+    List<Entity> entities =
+        DatastoreGuard.read(
+            "find-gardens?zip-code=" + zipCode,
+            () -> queryGardensByZipCode(zipCode),
+            () -> queryGardensByZipCode(zipCode));
+
+    List<Garden> gardenList = new ArrayList<Garden>();
+    for (Entity entity : entities) {
+      gardenList.add(Garden.from(entity));
+    }
+    return gardenList;
+  }
+
+  @Override
+  public List<Garden> getGardensByZipCode(String zipCode, FieldSet fields) {
+    String[] projection = fields.isAll() ? null : gardenProjection(fields);
+    if (projection == null) {
+      return getGardensByZipCode(zipCode);
+    }
+    String key = "find-gardens?zip-code=" + zipCode + "&fields=" + String.join(",", projection);
+    List<BaseEntity<Key>> entities =
+        DatastoreGuard.read(
+            key,
+            () -> queryGardensByZipCode(zipCode, projection),
+            () -> queryGardensByZipCode(zipCode, projection));
+
+    List<Garden> gardenList = new ArrayList<Garden>();
+    for (BaseEntity<Key> entity : entities) {
+      // The zip code is known from the filter, and unread properties keep their defaults.
+      LatLng latLng = entity.contains("lat-lng") ? entity.getLatLng("lat-lng") : null;
+      gardenList.add(
+          new Garden(
+              entity.getKey().getId(),
+              entity.contains("name") ? entity.getString("name") : null,
+              null,
+              latLng == null ? 0 : latLng.getLatitude(),
+              latLng == null ? 0 : latLng.getLongitude(),
+              zipCode,
+              0));
+    }
+    return gardenList;
+  }
+
+  /**
+   * Finds the smallest indexed projection holding every property behind the requested fields.
+   *
+   * @param fields the requested fields.
+   * @return the projected properties, or null if whole gardens must be read.
+   */
+  private static String[] gardenProjection(FieldSet fields) {
+    Set<String> needed = new HashSet<String>();
+    if (fields.includes("name")) {
+      needed.add("name");
+    }
+    if (fields.includesAny("lat", "lng")) {
+      needed.add("lat-lng");
+    }
+    if (fields.includesAny("description", "adminId")) {
+      return null;
+    }
+    for (String[] projection : GARDEN_PROJECTIONS) {
+      if (projection.length == needed.size() && needed.containsAll(Arrays.asList(projection))) {
+        return projection;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Runs the projection query behind getGardensByZipCode. An empty projection reads keys only. If
+   * the projection's index is missing, for example before datastore-indexes.xml is deployed, whole
+   * gardens are read instead.
+   */
+  private List<BaseEntity<Key>> queryGardensByZipCode(String zipCode, String[] projection) {
+    ReadOption[] options = ReadConsistency.options();
+    List<BaseEntity<Key>> entities = new ArrayList<BaseEntity<Key>>();
+    PropertyFilter filter = PropertyFilter.eq("zip-code", zipCode);
+    if (projection.length == 0) {
+      QueryResults<Key> keys =
+          datastore.run(
+              Query.newKeyQueryBuilder().setKind(Garden.KIND).setFilter(filter).build(), options);
+      while (keys.hasNext()) {
+        entities.add(Entity.newBuilder(keys.next()).build());
+      }
+      return Collections.unmodifiableList(entities);
+    }
+    try {
+      QueryResults<ProjectionEntity> results =
+          datastore.run(
+              Query.newProjectionEntityQueryBuilder()
+                  .setKind(Garden.KIND)
+                  .setProjection(
+                      projection[0], Arrays.copyOfRange(projection, 1, projection.length))
+                  .setFilter(filter)
+                  .build(),
+              options);
+      while (results.hasNext()) {
+        entities.add(results.next());
+      }
+    } catch (DatastoreException e) {
+      if (!"FAILED_PRECONDITION".equals(e.getReason())) {
+        throw e;
+      }
+      projectionFallbacks.increment();
+      entities.clear();
+      entities.addAll(queryGardensByZipCode(zipCode));
+    }
+    return Collections.unmodifiableList(entities);
+  }
+
+  /**
+   * Runs the query behind getGardensByZipCode. Entities are immutable, so the list is kept whole.
+   */
+  private List<Entity> queryGardensByZipCode(String zipCode) {
+    List<Entity> entities = new ArrayList<Entity>();
+    StructuredQuery<Entity> query =
+        Query.newEntityQueryBuilder()
+            .setKind(Garden.KIND)
+            .setFilter(PropertyFilter.eq("zip-code", zipCode))
+            .build();
+    QueryResults<Entity> results = datastore.run(query, ReadConsistency.options());
+    while (results.hasNext()) {
+      entities.add(results.next());
+    }
+    return Collections.unmodifiableList(entities);
+  }
+
+  @Override
+  public long[] getAdminGardenIds(long userId) {
+    return DatastoreGuard.readUncached(
+        () -> {
+          // Only garden ids are needed, so the key is enough.
+          StructuredQuery<Key> query =
+              Query.newKeyQueryBuilder()
+                  .setKind(Garden.KIND)
+                  .setFilter(Ids.eq("admin-id", userId))
+                  .build();
+          QueryResults<Key> results = datastore.run(query);
+          LongList gardenList = new LongList();
+          while (results.hasNext()) {
+            gardenList.add(results.next().getId());
+          }
+
+          return gardenList.toArray();
+        });
+  }
+
+  @Override
+  public User getUser(long id) {
+    Entity entity = get(userKeyFactory.newKey(id));
+    return entity == null ? null : User.from(entity);
+  }
+
+  @Override
+  public Plant getPlant(long id) {
+    Entity entity = get(plantKeyFactory.newKey(id));
+    return entity == null ? null : Plant.from(entity);
+  }
+
+  @Override
+  public List<Plant> getPlants(long[] ids) {
+    return DatastoreGuard.readUncached(
+        () -> {
+          List<Plant> plants = new ArrayList<Plant>(ids.length);
+          for (int start = 0; start < ids.length; start += MAX_KEYS_PER_LOOKUP) {
+            int end = Math.min(ids.length, start + MAX_KEYS_PER_LOOKUP);
+            Key[] keys = new Key[end - start];
+            for (int i = start; i < end; i++) {
+              keys[i - start] = plantKeyFactory.newKey(ids[i]);
+            }
+            Iterator<Entity> results =
+                datastore.get(Arrays.asList(keys), ReadConsistency.options());
+            while (results.hasNext()) {
+              plants.add(Plant.from(results.next()));
+            }
+          }
+          return plants;
+        });
+  }
+
+  @Override
+  public boolean isMember(long gardenId, long userId) {
+    // The guard is read by key, so it is current whichever instance wrote it. The relation query
+    // only runs without one, for memberships written before guards, until /repair-counts.
+    Key guardKey = guardKeyFactory.newKey(MembershipGuards.name(gardenId, userId));
+    Supplier<Boolean> lookup =
+        () -> datastore.get(guardKey) != null || findMembership(gardenId, userId) != null;
+    return DatastoreGuard.read(
+        HasMember.KIND + "?garden-id=" + gardenId + "&user-id=" + userId, lookup, lookup);
+  }
+
+  @Override
+  public long[] getGardenMemberIds(long gardenId) {
+    long[] userIds = memberships.members(gardenId);
+    if (userIds != null) {
+      return userIds;
+    }
+    return CoalescedReads.ids(
+        HasMember.KIND + "?garden-id=" + gardenId,
+        () -> queryIds(HasMember.KIND, "garden-id", gardenId, "user-id"));
+  }
+
+  @Override
+  public long[] getUserGardenIds(long userId) {
+    long[] gardenIds = memberships.gardensOf(userId);
+    if (gardenIds != null) {
+      return gardenIds;
+    }
+    return CoalescedReads.ids(
+        HasMember.KIND + "?user-id=" + userId,
+        () -> queryIds(HasMember.KIND, "user-id", userId, "garden-id"));
+  }
+
+  @Override
+  public long[] getGardenPlantIds(long gardenId) {
+    return CoalescedReads.ids(
+        ContainsPlant.KIND + "?garden-id=" + gardenId,
+        () -> queryIds(ContainsPlant.KIND, "garden-id", gardenId, "plant-id"));
+  }
+
+  /** Runs a relation query, without coalescing, returning the other end of each relation. */
+  private long[] queryIds(String kind, String property, long id, String otherProperty) {
+    StructuredQuery<Entity> query =
+        Query.newEntityQueryBuilder().setKind(kind).setFilter(Ids.eq(property, id)).build();
+    QueryResults<Entity> results = datastore.run(query);
+    LongList ids = new LongList();
+    while (results.hasNext()) {
+      ids.add(Ids.get(results.next(), otherProperty));
+    }
+    return ids.toArray();
+  }
+
+  @Override
+  public GardenCounts getGardenCounts(long gardenId) {
+    return DatastoreGuard.readOptional(() -> counters.get(gardenId));
+  }
+
+  @Override
+  public Map<Long, GardenCounts> getGardenCounts(long[] gardenIds) {
+    return DatastoreGuard.readOptional(() -> counters.get(gardenIds));
+  }
+
+  @Override
+  public int rebuildCounts() {
+    return counters.rebuildAll();
+  }
+
+  @Override
+  public long addGarden(Garden garden) {
+    DatastoreGuard.beforeWrite();
+    long gardenId = datastore.allocateId(gardenKeyFactory.newKey()).getId();
+    garden.setId(gardenId);
+    // Added to the id filter first, so readers never see the garden missing.
+    IdFilters.added(Garden.KIND, gardenId);
+    datastore.add(garden.toEntity(gardenKeyFactory));
+    return gardenId;
+  }
+
+  @Override
+  public long addUser(User user) {
+    DatastoreGuard.beforeWrite();
+    // Generates key
+    Key key = datastore.allocateId(userKeyFactory.newKey());
+    user.setId(key.getId());
+
+    // Puts key into database, after the id filter, so readers never see it missing
+    IdFilters.added(User.KIND, key.getId());
+    datastore.add(user.toEntity(userKeyFactory));
+    return key.getId();
+  }
+
+  @Override
+  public long addPlant(long gardenId, Plant plant) {
+    DatastoreGuard.beforeWrite();
+    // Allocates ids for the plant and its relation in one call.
+    List<Key> keys =
+        datastore.allocateId(plantKeyFactory.newKey(), containsPlantKeyFactory.newKey());
+    long plantId = keys.get(0).getId();
+    plant.setId(plantId);
+    ContainsPlant relation = new ContainsPlant(keys.get(1).getId(), gardenId, plantId);
+
+    IdFilters.added(Plant.KIND, plantId);
+    datastore.runInTransaction(
+        txn -> {
+          txn.add(plant.toEntity(plantKeyFactory), relation.toEntity(containsPlantKeyFactory));
+          counters.adjust(txn, gardenId, Counter.PLANTS, 1);
+          return null;
+        });
+    return plantId;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Ids for every plant and relation are allocated in one call, and the entities are written in
+   * batches of at most 500, the Datastore limit for a single commit.
+   */
+  @Override
+  public List<BatchItemStatus> addPlants(long gardenId, List<Plant> plants) {
+    DatastoreGuard.beforeWrite();
+    List<BatchItemStatus> statuses = new ArrayList<BatchItemStatus>(plants.size());
+    List<IncompleteKey> incompleteKeys = new ArrayList<IncompleteKey>(plants.size() * 2);
+    for (Plant plant : plants) {
+      if (plant != null) {
+        incompleteKeys.add(plantKeyFactory.newKey());
+        incompleteKeys.add(containsPlantKeyFactory.newKey());
+      }
+    }
+    List<Key> keys =
+        incompleteKeys.isEmpty()
+            ? new ArrayList<Key>()
+            : datastore.allocateId(incompleteKeys.toArray(new IncompleteKey[0]));
+
+    // Each plant is written in the same transaction as its relation.
+    List<Entity> pending = new ArrayList<Entity>(MAX_WRITES_PER_COMMIT);
+    List<BatchItemStatus> pendingStatuses = new ArrayList<BatchItemStatus>();
+    int next = 0;
+    for (int i = 0; i < plants.size(); i++) {
+      Plant plant = plants.get(i);
+      if (plant == null) {
+        statuses.add(new BatchItemStatus(i, null, Outcome.INVALID));
+        continue;
+      }
+      long plantId = keys.get(next++).getId();
+      plant.setId(plantId);
+      ContainsPlant relation = new ContainsPlant(keys.get(next++).getId(), gardenId, plantId);
+      pending.add(plant.toEntity(plantKeyFactory));
+      pending.add(relation.toEntity(containsPlantKeyFactory));
+
+      BatchItemStatus status = new BatchItemStatus(i, plantId, Outcome.CREATED);
+      statuses.add(status);
+      pendingStatuses.add(status);
+      // Leaves room for the counter shard in the same commit.
+      if (pending.size() + 3 > MAX_WRITES_PER_COMMIT) {
+        submit(gardenId, pending, pendingStatuses);
+      }
+    }
+    submit(gardenId, pending, pendingStatuses);
+    return statuses;
+  }
+
+  @Override
+  public boolean deletePlant(long gardenId, long plantId) {
+    DatastoreGuard.beforeWrite();
+    // Deletes relation first
+    StructuredQuery<Key> query =
+        Query.newKeyQueryBuilder()
+            .setKind(ContainsPlant.KIND)
+            .setFilter(
+                CompositeFilter.and(Ids.eq("garden-id", gardenId), Ids.eq("plant-id", plantId)))
+            .build();
+    QueryResults<Key> results = datastore.run(query);
+    if (!results.hasNext()) {
+      return false;
+    }
+    Key relationKey = results.next();
+
+    // Deletes relation and plant together
+    return datastore.runInTransaction(
+        txn -> {
+          // Re-reads the relation, so a concurrent delete is not counted twice.
+          if (txn.get(relationKey) == null) {
+            return false;
+          }
+          txn.delete(relationKey, plantKeyFactory.newKey(plantId));
+          counters.adjust(txn, gardenId, Counter.PLANTS, -1);
+          return true;
+        });
+  }
+
+  @Override
+  public List<BatchItemStatus> deletePlants(long gardenId, long[] plantIds) {
+    DatastoreGuard.beforeWrite();
+    // One query finds every relation of this garden, instead of one query per plant.
+    Map<Long, Key> relations = new HashMap<Long, Key>();
+    StructuredQuery<Entity> query =
+        Query.newEntityQueryBuilder()
+            .setKind(ContainsPlant.KIND)
+            .setFilter(Ids.eq("garden-id", gardenId))
+            .build();
+    QueryResults<Entity> results = datastore.run(query);
+    while (results.hasNext()) {
+      Entity entity = results.next();
+      relations.put(ContainsPlant.from(entity).getPlantId(), entity.getKey());
+    }
+
+    List<BatchItemStatus> statuses = new ArrayList<BatchItemStatus>(plantIds.length);
+    List<Key> pending = new ArrayList<Key>();
+    List<BatchItemStatus> pendingStatuses = new ArrayList<BatchItemStatus>();
+    for (int i = 0; i < plantIds.length; i++) {
+      if (plantIds[i] == Ids.INVALID) {
+        statuses.add(new BatchItemStatus(i, null, Outcome.INVALID));
+        continue;
+      }
+      // Removing the relation also reports repeated ids as not found.
+      Key relationKey = relations.remove(plantIds[i]);
+      if (relationKey == null) {
+        statuses.add(new BatchItemStatus(i, plantIds[i], Outcome.NOT_FOUND));
+        continue;
+      }
+      pending.add(relationKey);
+
+      BatchItemStatus status = new BatchItemStatus(i, plantIds[i], Outcome.DELETED);
+      statuses.add(status);
+      pendingStatuses.add(status);
+      // Each relation deletes its plant too, and the counter shard shares the commit.
+      if ((pending.size() + 1) * 2 + 1 > MAX_WRITES_PER_COMMIT) {
+        delete(gardenId, pending, pendingStatuses);
+      }
+    }
+    delete(gardenId, pending, pendingStatuses);
+    return statuses;
+  }
+
+  @Override
+  public void addMember(long gardenId, long userId) {
+    DatastoreGuard.beforeWrite();
+    Key key = datastore.allocateId(hasMemberKeyFactory.newKey());
+    HasMember relation = new HasMember(key.getId(), gardenId, userId);
+    Key guardKey = guardKeyFactory.newKey(MembershipGuards.name(gardenId, userId));
+
+    datastore.runInTransaction(
+        txn -> {
+          if (txn.get(guardKey) != null) {
+            // Already a member.
+            return null;
+          }
+          txn.add(Entity.newBuilder(guardKey).build(), relation.toEntity(hasMemberKeyFactory));
+          counters.adjust(txn, gardenId, Counter.MEMBERS, 1);
+          return null;
+        });
+    memberships.added(gardenId, userId);
+  }
+
+  @Override
+  public boolean removeMember(long gardenId, long userId) {
+    DatastoreGuard.beforeWrite();
+    Key key = findMembership(gardenId, userId);
+    boolean removed = key != null && deleteMembership(key) != null;
+    memberships.removed(gardenId, userId);
+    return removed;
+  }
+
+  /**
+   * Deletes a HasMember relation, its guard and its count, in one transaction.
+   *
+   * @param key the relation's key
+   * @return the relation, or null if it was deleted already.
+   */
+  private HasMember deleteMembership(Key key) {
+    return datastore.runInTransaction(
+        txn -> {
+          // Re-reads the relation, so a concurrent delete is not counted twice.
+          Entity entity = txn.get(key);
+          if (entity == null) {
+            return null;
+          }
+          HasMember relation = HasMember.from(entity);
+          long gardenId = relation.getGardenId();
+          String guardName = MembershipGuards.name(gardenId, relation.getUserId());
+          txn.delete(key, guardKeyFactory.newKey(guardName));
+          counters.adjust(txn, gardenId, Counter.MEMBERS, -1);
+          return relation;
+        });
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Relations are read a page at a time, as entities since the keys of the plants and guards to
+   * delete with them are derived from their properties, and the page is deleted in batches of at
+   * most 500 keys, the Datastore limit for a single commit, run in parallel. Once no relations are
+   * left, the garden's counter shards are deleted.
+   */
+  @Override
+  public int deleteGardenPage(long gardenId, int limit, Executor executor) {
+    DatastoreGuard.beforeWrite();
+    Key gardenKey = gardenKeyFactory.newKey(gardenId);
+    if (datastore.get(gardenKey) != null) {
+      // The garden goes first, so it is gone at once and nothing more is added to it.
+      datastore.delete(gardenKey);
+      return 1;
+    }
+
+    List<Key> keys = new ArrayList<Key>(limit + 1);
+    LongList userIds = new LongList();
+    QueryResults<Entity> members =
+        datastore.run(
+            Query.newEntityQueryBuilder()
+                .setKind(HasMember.KIND)
+                .setFilter(Ids.eq("garden-id", gardenId))
+                .setLimit(Math.max(1, limit / 2))
+                .build());
+    while (members.hasNext()) {
+      Entity entity = members.next();
+      long userId = Ids.get(entity, "user-id");
+      userIds.add(userId);
+      keys.add(entity.getKey());
+      keys.add(guardKeyFactory.newKey(MembershipGuards.name(gardenId, userId)));
+    }
+    if (keys.size() < limit) {
+      QueryResults<Entity> plants =
+          datastore.run(
+              Query.newEntityQueryBuilder()
+                  .setKind(ContainsPlant.KIND)
+                  .setFilter(Ids.eq("garden-id", gardenId))
+                  .setLimit(Math.max(1, (limit - keys.size()) / 2))
+                  .build());
+      while (plants.hasNext()) {
+        Entity entity = plants.next();
+        keys.add(entity.getKey());
+        keys.add(plantKeyFactory.newKey(Ids.get(entity, "plant-id")));
+      }
+    }
+
+    if (keys.isEmpty()) {
+      counters.delete(gardenId);
+      return 0;
+    }
+    deleteInBatches(keys, executor);
+    for (int i = 0; i < userIds.size(); i++) {
+      memberships.removed(gardenId, userIds.get(i));
+    }
+    return keys.size();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Memberships are found with a keys-only query, and each is removed in its own transaction,
+   * run in parallel, which keeps the member counts of the user's gardens right.
+   */
+  @Override
+  public int deleteUserPage(long userId, int limit, Executor executor) {
+    DatastoreGuard.beforeWrite();
+    Key userKey = userKeyFactory.newKey(userId);
+    if (datastore.get(userKey) != null) {
+      datastore.delete(userKey);
+      return 1;
+    }
+
+    QueryResults<Key> keys =
+        datastore.run(
+            Query.newKeyQueryBuilder()
+                .setKind(HasMember.KIND)
+                .setFilter(Ids.eq("user-id", userId))
+                .setLimit(limit)
+                .build());
+    List<CompletableFuture<HasMember>> removals = new ArrayList<CompletableFuture<HasMember>>();
+    while (keys.hasNext()) {
+      Key key = keys.next();
+      removals.add(CompletableFuture.supplyAsync(() -> deleteMembership(key), executor));
+    }
+    for (CompletableFuture<HasMember> removal : removals) {
+      HasMember relation = join(removal);
+      if (relation != null) {
+        memberships.removed(relation.getGardenId(), userId);
+      }
+    }
+    // Relations removed concurrently count too, so the caller pages on until none are found.
+    return removals.size();
+  }
+
+  /** Deletes keys in parallel batches of at most MAX_WRITES_PER_COMMIT. */
+  private void deleteInBatches(List<Key> keys, Executor executor) {
+    List<CompletableFuture<Void>> batches = new ArrayList<CompletableFuture<Void>>();
+    for (int start = 0; start < keys.size(); start += MAX_WRITES_PER_COMMIT) {
+      Key[] batch =
+          keys.subList(start, Math.min(keys.size(), start + MAX_WRITES_PER_COMMIT))
+              .toArray(new Key[0]);
+      batches.add(CompletableFuture.runAsync(() -> datastore.delete(batch), executor));
+    }
+    for (CompletableFuture<Void> batch : batches) {
+      join(batch);
+    }
+  }
+
+  /** Waits for a future, rethrowing its failure as thrown. */
+  private static <T> T join(CompletableFuture<T> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  @Override
+  public long putDeleteJob(DeleteJob job) {
+    DatastoreGuard.beforeWrite();
+    if (job.getId() == 0) {
+      job.setId(datastore.allocateId(deleteJobKeyFactory.newKey()).getId());
+    }
+    datastore.put(job.toEntity(deleteJobKeyFactory));
+    return job.getId();
+  }
+
+  @Override
+  public boolean leaseDeleteJob(DeleteJob job, long nowMillis) {
+    DatastoreGuard.beforeWrite();
+    Key key = deleteJobKeyFactory.newKey(job.getId());
+    return datastore.runInTransaction(
+        txn -> {
+          Entity stored = txn.get(key);
+          if (stored == null) {
+            return false;
+          }
+          DeleteJob storedJob = DeleteJob.from(stored);
+          if (storedJob.isFinished() || !storedJob.isLeaseFree(job.getOwner(), nowMillis)) {
+            return false;
+          }
+          txn.put(job.toEntity(deleteJobKeyFactory));
+          return true;
+        });
+  }
+
+  @Override
+  public DeleteJob getDeleteJob(long id) {
+    return DatastoreGuard.readUncached(
+        () -> {
+          Entity entity = datastore.get(deleteJobKeyFactory.newKey(id));
+          return entity == null ? null : DeleteJob.from(entity);
+        });
+  }
+
+  @Override
+  public List<DeleteJob> getUnfinishedDeleteJobs() {
+    return DatastoreGuard.readUncached(
+        () -> {
+          List<DeleteJob> jobs = new ArrayList<DeleteJob>();
+          for (String state : new String[] {DeleteJob.PENDING, DeleteJob.RUNNING}) {
+            QueryResults<Entity> results =
+                datastore.run(
+                    Query.newEntityQueryBuilder()
+                        .setKind(DeleteJob.KIND)
+                        .setFilter(PropertyFilter.eq("state", state))
+                        .build());
+            while (results.hasNext()) {
+              jobs.add(DeleteJob.from(results.next()));
+            }
+          }
+          return jobs;
+        });
+  }
+
+  /** Returns the key of the HasMember relation of a user and garden, or null if there is none. */
+  private Key findMembership(long gardenId, long userId) {
+    // Match user and garden
+    StructuredQuery<Key> query =
+        Query.newKeyQueryBuilder()
+            .setKind(HasMember.KIND)
+            .setFilter(
+                CompositeFilter.and(Ids.eq("garden-id", gardenId), Ids.eq("user-id", userId)))
+            .build();
+    QueryResults<Key> results = datastore.run(query);
+    return results.hasNext() ? results.next() : null;
+  }
+
+  /**
+   * Looks up an entity. If the id filters are on, ids that definitely do not exist never reach
+   * Datastore. The others are coalesced and hedged.
+   */
+  private Entity get(Key key) {
+    if (!IdFilters.mightExist(datastore, key)) {
+      return null;
+    }
+    Entity entity = CoalescedReads.get(datastore, key);
+    if (entity == null) {
+      IdFilters.missed(key.getKind());
+    }
+    return entity;
+  }
+
+  /**
+   * Writes pending plants and relations in one transaction along with the plant count, marking
+   * their items failed if the write fails.
+   */
+  private void submit(long gardenId, List<Entity> pending, List<BatchItemStatus> pendingStatuses) {
+    if (pending.isEmpty()) {
+      return;
+    }
+    for (BatchItemStatus status : pendingStatuses) {
+      IdFilters.added(Plant.KIND, status.getId());
+    }
+    try {
+      datastore.runInTransaction(
+          txn -> {
+            txn.add(pending.toArray(new Entity[0]));
+            counters.adjust(txn, gardenId, Counter.PLANTS, pendingStatuses.size());
+            return null;
+          });
+    } catch (DatastoreException e) {
+      for (BatchItemStatus status : pendingStatuses) {
+        status.setStatus(Outcome.FAILED);
+      }
+    }
+    pending.clear();
+    pendingStatuses.clear();
+  }
+
+  /**
+   * Deletes pending relations and their plants in one transaction along with the plant count.
+   * Relations removed concurrently since they were queried are reported as not found, and are not
+   * counted twice. Marks the items failed if the delete fails.
+   */
+  private void delete(long gardenId, List<Key> pending, List<BatchItemStatus> pendingStatuses) {
+    if (pending.isEmpty()) {
+      return;
+    }
+    try {
+      datastore.runInTransaction(
+          txn -> {
+            Set<Key> existing = new HashSet<Key>();
+            Iterator<Entity> relations = txn.get(pending.toArray(new Key[0]));
+            while (relations.hasNext()) {
+              existing.add(relations.next().getKey());
+            }
+            List<Key> keys = new ArrayList<Key>(existing.size() * 2);
+            for (int i = 0; i < pending.size(); i++) {
+              BatchItemStatus status = pendingStatuses.get(i);
+              if (existing.contains(pending.get(i))) {
+                keys.add(pending.get(i));
+                keys.add(plantKeyFactory.newKey(status.getId()));
+                status.setStatus(Outcome.DELETED);
+              } else {
+                status.setStatus(Outcome.NOT_FOUND);
+              }
+            }
+            txn.delete(keys.toArray(new Key[0]));
+            counters.adjust(txn, gardenId, Counter.PLANTS, -existing.size());
+            return null;
+          });
+    } catch (DatastoreException e) {
+      for (BatchItemStatus status : pendingStatuses) {
+        status.setStatus(Outcome.FAILED);
+      }
+    }
+    pending.clear();
+    pendingStatuses.clear();
+  }
+}
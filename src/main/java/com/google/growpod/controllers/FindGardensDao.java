@@ -14,22 +14,19 @@
 
 package com.google.growpod.controllers;
 
-import com.google.cloud.datastore.Datastore;
 import com.google.cloud.datastore.DatastoreOptions;
-import com.google.cloud.datastore.Entity;
-import com.google.cloud.datastore.Query;
-import com.google.cloud.datastore.QueryResults;
-import com.google.cloud.datastore.StructuredQuery;
-import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+import com.google.growpod.data.FieldSet;
 import com.google.growpod.data.Garden;
-import java.util.ArrayList;
+import com.google.growpod.data.GardenCounts;
+import com.google.growpod.storage.IdentityMapStorage;
+import com.google.growpod.storage.Storage;
 import java.util.List;
+import java.util.Map;
 
 /** Data access object for searching for nearby gardens. */
 public class FindGardensDao {
 
-  private DatastoreOptions datastoreInstance;
-  private Datastore datastore;
+  private final Storage storage;
 
   /**
    * Initializes a new find gardens dao from a given Datastore.
@@ -37,8 +34,16 @@ public class FindGardensDao {
    * @param datastoreInstance the database instance to run queries on.
    */
   public FindGardensDao(DatastoreOptions datastoreInstance) {
-    this.datastoreInstance = datastoreInstance;
-    this.datastore = datastoreInstance.getService();
+    this(new DatastoreStorage(datastoreInstance));
+  }
+
+  /**
+   * Initializes a new find gardens dao on a given storage backend.
+   *
+   * @param storage the storage to read.
+   */
+  public FindGardensDao(Storage storage) {
+    this.storage = IdentityMapStorage.wrap(storage);
   }
 
   /**
@@ -48,20 +53,57 @@ public class FindGardensDao {
    * @return a list of gardens with zipcodes equal to zipCode.
    */
   public List<Garden> getNearbyGardens(String zipCode) {
-    List<Garden> gardenList = new ArrayList<Garden>();
+    return storage.getGardensByZipCode(zipCode);
+  }
+
+  /**
+   * Retrieves the requested fields of all gardens near a given zip code. Other fields may be left
+   * at their defaults.
+   *
+   * @param zipCode the specified zip code.
+   * @param fields the fields to read.
+   * @return a list of gardens with zipcodes equal to zipCode.
+   */
+  public List<Garden> getNearbyGardens(String zipCode, FieldSet fields) {
+    return storage.getGardensByZipCode(zipCode, fields);
+  }
+
+  /**
+   * Retrieves every garden, for building the search index.
+   *
+   * @return all gardens.
+   */
+  public List<Garden> getAllGardens() {
+    return storage.getAllGardens();
+  }
 
-    StructuredQuery<Entity> query =
-        Query.newEntityQueryBuilder()
-            .setKind("Garden")
-            .setFilter(PropertyFilter.eq("zip-code", zipCode))
-            .build();
-    QueryResults<Entity> results = datastore.run(query);
-    while (results.hasNext()) {
-      Entity entity = results.next();
-      Garden garden = Garden.from(entity);
-      gardenList.add(garden);
-    }
+  /**
+   * Retrieves a few gardens, for warming up.
+   *
+   * @param limit the most gardens to return.
+   * @return at most limit gardens.
+   */
+  public List<Garden> getSomeGardens(int limit) {
+    return storage.getSomeGardens(limit);
+  }
 
-    return gardenList;
+  /**
+   * Retrieves many gardens by id in one lookup. Gardens that no longer exist are skipped.
+   *
+   * @param gardenIds the gardens' ids.
+   * @return the gardens, in the order of gardenIds.
+   */
+  public List<Garden> getGardensById(long[] gardenIds) {
+    return storage.getGardens(gardenIds);
+  }
+
+  /**
+   * Retrieves the number of members and plants of many gardens in one lookup.
+   *
+   * @param gardenIds the gardens' ids.
+   * @return the counts of each garden, keyed by id, or null while they are unavailable.
+   */
+  public Map<Long, GardenCounts> getGardenCounts(long[] gardenIds) {
+    return storage.getGardenCounts(gardenIds);
   }
 }
@@ -0,0 +1,248 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.controllers;
+
+import com.google.cloud.datastore.Batch;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreOptions;
+import com.google.cloud.datastore.DatastoreReaderWriter;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.growpod.data.ContainsPlant;
+import com.google.growpod.data.Garden;
+import com.google.growpod.data.GardenCounts;
+import com.google.growpod.data.HasMember;
+import com.google.growpod.data.Ids;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Sharded member and plant counters for gardens.
+ *
+ * <p>Each counter is split over {@link #SHARDS} entities, and every write increments one shard
+ * chosen at random, so concurrent joins to a popular garden rarely contend on the same entity.
+ * Reads fetch every shard in one lookup and sum them. Adjustments take a transaction, so callers
+ * update a counter atomically with the relation it counts.
+ */
+public class GardenCounters {
+
+  /** Datastore kind of counter shards. */
+  public static final String KIND = "GardenCounterShard";
+
+  /** Shards per counter. */
+  static final int SHARDS = 8;
+
+  /** Maximum keys in a single Datastore lookup. */
+  private static final int MAX_KEYS_PER_LOOKUP = 1000;
+
+  /** Maximum entities written by a single Datastore commit. */
+  private static final int MAX_WRITES_PER_COMMIT = 500;
+
+  /** The counters kept for each garden. */
+  public enum Counter {
+    MEMBERS("members"),
+    PLANTS("plants");
+
+    private final String name;
+
+    Counter(String name) {
+      this.name = name;
+    }
+  }
+
+  private final Datastore datastore;
+  private final KeyFactory shardKeyFactory;
+
+  /**
+   * Initializes garden counters on a given Datastore.
+   *
+   * @param datastoreInstance the database instance holding the counters.
+   */
+  public GardenCounters(DatastoreOptions datastoreInstance) {
+    this.datastore = datastoreInstance.getService();
+    this.shardKeyFactory = datastore.newKeyFactory().setKind(KIND);
+  }
+
+  /**
+   * Adds delta to a random shard of a garden's counter, as part of txn.
+   *
+   * @param txn the transaction writing the counted relations.
+   * @param gardenId the garden's id
+   * @param counter which counter to adjust
+   * @param delta the amount to add, which may be negative
+   */
+  public void adjust(DatastoreReaderWriter txn, long gardenId, Counter counter, long delta) {
+    if (delta == 0) {
+      return;
+    }
+    Key key = shardKey(gardenId, counter, ThreadLocalRandom.current().nextInt(SHARDS));
+    Entity shard = txn.get(key);
+    long count = shard == null ? 0 : shard.getLong("count");
+    txn.put(Entity.newBuilder(key).set("count", count + delta).build());
+  }
+
+  /**
+   * Sums the shards of a garden's counters.
+   *
+   * @param gardenId the garden's id
+   * @return the garden's counts.
+   */
+  public GardenCounts get(long gardenId) {
+    return get(new long[] {gardenId}).get(gardenId);
+  }
+
+  /**
+   * Sums the shards of many gardens' counters, with as few lookups as possible.
+   *
+   * @param gardenIds the gardens' ids
+   * @return the counts of each garden, keyed by id.
+   */
+  public Map<Long, GardenCounts> get(long[] gardenIds) {
+    Map<Long, GardenCounts> counts = new HashMap<Long, GardenCounts>();
+    List<Key> keys = new ArrayList<Key>(gardenIds.length * SHARDS * 2);
+    for (long gardenId : gardenIds) {
+      counts.put(gardenId, new GardenCounts(0, 0));
+      for (int shard = 0; shard < SHARDS; shard++) {
+        keys.add(shardKey(gardenId, Counter.MEMBERS, shard));
+        keys.add(shardKey(gardenId, Counter.PLANTS, shard));
+      }
+    }
+
+    for (int start = 0; start < keys.size(); start += MAX_KEYS_PER_LOOKUP) {
+      List<Key> lookup = keys.subList(start, Math.min(keys.size(), start + MAX_KEYS_PER_LOOKUP));
+      Iterator<Entity> shards = datastore.get(lookup, ReadConsistency.options());
+      while (shards.hasNext()) {
+        Entity shard = shards.next();
+        String[] name = shard.getKey().getName().split("/");
+        GardenCounts gardenCounts = counts.get(Long.parseLong(name[0]));
+        long count = shard.getLong("count");
+        if (name[1].equals(Counter.MEMBERS.name)) {
+          gardenCounts.setMemberCount(gardenCounts.getMemberCount() + count);
+        } else {
+          gardenCounts.setPlantCount(gardenCounts.getPlantCount() + count);
+        }
+      }
+    }
+    return counts;
+  }
+
+  /**
+   * Deletes every shard of a garden's counters, once the garden is gone.
+   *
+   * @param gardenId the garden's id
+   */
+  public void delete(long gardenId) {
+    List<Key> keys = new ArrayList<Key>(SHARDS * 2);
+    for (int shard = 0; shard < SHARDS; shard++) {
+      keys.add(shardKey(gardenId, Counter.MEMBERS, shard));
+      keys.add(shardKey(gardenId, Counter.PLANTS, shard));
+    }
+    datastore.delete(keys.toArray(new Key[0]));
+  }
+
+  /**
+   * Rebuilds every garden's counters from the HasMember and ContainsPlant relations. Each relation
+   * kind is scanned once, and each garden's counts are written to its first shard, with the others
+   * reset to zero. Every membership's guard is rewritten on the way, so memberships loaded without
+   * guards still cannot be duplicated by a later join. Adjustments made while the rebuild runs may
+   * be lost, so run it while writes are quiet, for example right after loading data.
+   *
+   * @return the number of gardens whose counters were rebuilt.
+   */
+  public int rebuildAll() {
+    Map<Long, long[]> counts = new HashMap<Long, long[]>();
+    QueryResults<Key> gardens =
+        datastore.run(Query.newKeyQueryBuilder().setKind(Garden.KIND).build());
+    while (gardens.hasNext()) {
+      counts.put(gardens.next().getId(), new long[2]);
+    }
+    tallyMembers(counts);
+    tally(ContainsPlant.KIND, 1, counts);
+
+    List<Entity> pending = new ArrayList<Entity>(MAX_WRITES_PER_COMMIT);
+    for (Map.Entry<Long, long[]> entry : counts.entrySet()) {
+      for (int shard = 0; shard < SHARDS; shard++) {
+        long members = shard == 0 ? entry.getValue()[0] : 0;
+        long plants = shard == 0 ? entry.getValue()[1] : 0;
+        Key membersKey = shardKey(entry.getKey(), Counter.MEMBERS, shard);
+        Key plantsKey = shardKey(entry.getKey(), Counter.PLANTS, shard);
+        pending.add(Entity.newBuilder(membersKey).set("count", members).build());
+        pending.add(Entity.newBuilder(plantsKey).set("count", plants).build());
+      }
+      if (pending.size() + SHARDS * 2 > MAX_WRITES_PER_COMMIT) {
+        put(pending);
+      }
+    }
+    put(pending);
+    return counts.size();
+  }
+
+  /** Counts memberships per garden into counts[gardenId][0], and writes their guards. */
+  private void tallyMembers(Map<Long, long[]> counts) {
+    KeyFactory guardKeyFactory = datastore.newKeyFactory().setKind(MembershipGuards.KIND);
+    List<Entity> guards = new ArrayList<Entity>(MAX_WRITES_PER_COMMIT);
+    QueryResults<Entity> results =
+        datastore.run(Query.newEntityQueryBuilder().setKind(HasMember.KIND).build());
+    while (results.hasNext()) {
+      Entity relation = results.next();
+      long gardenId = Ids.get(relation, "garden-id");
+      long[] gardenCounts = counts.get(gardenId);
+      if (gardenCounts == null) {
+        continue;
+      }
+      gardenCounts[0]++;
+      String name = MembershipGuards.name(gardenId, Ids.get(relation, "user-id"));
+      guards.add(Entity.newBuilder(guardKeyFactory.newKey(name)).build());
+      if (guards.size() == MAX_WRITES_PER_COMMIT) {
+        put(guards);
+      }
+    }
+    put(guards);
+  }
+
+  /** Counts the relations of kind per garden into counts[gardenId][index]. */
+  private void tally(String kind, int index, Map<Long, long[]> counts) {
+    QueryResults<Entity> results =
+        datastore.run(Query.newEntityQueryBuilder().setKind(kind).build());
+    while (results.hasNext()) {
+      long[] gardenCounts = counts.get(Ids.get(results.next(), "garden-id"));
+      // Relations of deleted gardens are not counted.
+      if (gardenCounts != null) {
+        gardenCounts[index]++;
+      }
+    }
+  }
+
+  private void put(List<Entity> pending) {
+    if (pending.isEmpty()) {
+      return;
+    }
+    Batch batch = datastore.newBatch();
+    batch.put(pending.toArray(new Entity[0]));
+    batch.submit();
+    pending.clear();
+  }
+
+  private Key shardKey(long gardenId, Counter counter, int shard) {
+    return shardKeyFactory.newKey(gardenId + "/" + counter.name + "/" + shard);
+  }
+}
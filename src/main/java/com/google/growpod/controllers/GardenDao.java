@@ -14,29 +14,24 @@
 
 package com.google.growpod.controllers;
 
-import com.google.cloud.datastore.Datastore;
 import com.google.cloud.datastore.DatastoreOptions;
-import com.google.cloud.datastore.Entity;
-import com.google.cloud.datastore.IncompleteKey;
-import com.google.cloud.datastore.Key;
-import com.google.cloud.datastore.KeyFactory;
-import com.google.cloud.datastore.Query;
-import com.google.cloud.datastore.QueryResults;
-import com.google.cloud.datastore.StructuredQuery;
-import com.google.cloud.datastore.StructuredQuery.CompositeFilter;
-import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
-import com.google.growpod.data.ContainsPlant;
+import com.google.growpod.data.BatchItemStatus;
+import com.google.growpod.data.BatchItemStatus.Outcome;
 import com.google.growpod.data.Garden;
-import com.google.growpod.data.HasMember;
+import com.google.growpod.data.GardenCounts;
 import com.google.growpod.data.Plant;
-import java.util.ArrayList;
+import com.google.growpod.search.GardenQuadtree;
+import com.google.growpod.search.GardenSearchIndex;
+import com.google.growpod.storage.IdentityMapStorage;
+import com.google.growpod.storage.Storage;
+import com.google.growpod.util.RecentWrites;
+import com.google.growpod.util.RecentWrites.Relation;
 import java.util.List;
 
 /** Data access object for Garden entities. */
 public class GardenDao {
 
-  private DatastoreOptions datastoreInstance;
-  private Datastore datastore;
+  private final Storage storage;
 
   /**
    * Initializes a new garden controller from a given Datastore.
@@ -44,8 +39,16 @@ public class GardenDao {
    * @param datastoreInstance the database instance to run queries on.
    */
   public GardenDao(DatastoreOptions datastoreInstance) {
-    this.datastoreInstance = datastoreInstance;
-    this.datastore = datastoreInstance.getService();
+    this(new DatastoreStorage(datastoreInstance));
+  }
+
+  /**
+   * Initializes a new garden controller on a given storage backend.
+   *
+   * @param storage the storage to read and write.
+   */
+  public GardenDao(Storage storage) {
+    this.storage = IdentityMapStorage.wrap(storage);
   }
 
   /**
@@ -54,71 +57,78 @@ public class GardenDao {
    * @param id the garden's id
    * @return the garden with id's data or null.
    */
-  public Garden getGardenById(String id) {
-    String projectId = datastoreInstance.getProjectId();
-    Key key = Key.newBuilder(projectId, "Garden", Long.parseLong(id)).build();
-    Entity gardenEntity = datastore.get(key);
-    return gardenEntity == null ? null : Garden.from(gardenEntity);
+  public Garden getGardenById(long id) {
+    return storage.getGarden(id);
   }
 
   /**
-   * Retrieves a list of garden members. Returns null if the garden does not exist.
+   * Retrieves a list of garden members. Returns null if the garden does not exist. The list
+   * includes the requesting user's own recent joins and leaves, even before the query reflects
+   * them.
    *
    * @param id the garden's id
-   * @return a list of user ids in the garden or null.
+   * @return an array of user ids in the garden or null.
    */
-  public List<String> getGardenUserListById(String id) {
-    List<String> userList = new ArrayList<String>();
-
+  public long[] getGardenUserListById(long id) {
     // Existence check
-    Garden garden = getGardenById(id);
-    if (garden == null) {
+    if (getGardenById(id) == null) {
       return null;
     }
+    return RecentWrites.mergedInto(Relation.GARDEN_MEMBERS, id, storage.getGardenMemberIds(id));
+  }
 
-    StructuredQuery<Entity> query =
-        Query.newEntityQueryBuilder()
-            .setKind("HasMember")
-            .setFilter(PropertyFilter.eq("garden-id", id))
-            .build();
-    QueryResults<Entity> results = datastore.run(query);
-    while (results.hasNext()) {
-      Entity entity = results.next();
-      HasMember hasMember = HasMember.from(entity);
-      userList.add(hasMember.getUserId());
-    }
-
-    return userList;
+  /**
+   * Checks whether a user is a member of a garden, for example before letting them act on it.
+   *
+   * @param gardenId the garden's id
+   * @param userId the user's id
+   * @return whether the user is a member.
+   */
+  public boolean isMember(long gardenId, long userId) {
+    return storage.isMember(gardenId, userId);
   }
 
   /**
-   * Retrieves a list of garden plants. Returns null if the garden does not exist.
+   * Retrieves a list of garden plants. Returns null if the garden does not exist. The list includes
+   * the requesting user's own recent plant additions and deletions, even before the query reflects
+   * them.
    *
    * @param id the garden's id
-   * @return a list of plant ids in the garden or null.
+   * @return an array of plant ids in the garden or null.
    */
-  public List<String> getGardenPlantListById(String id) {
-    List<String> plantList = new ArrayList<String>();
-
+  public long[] getGardenPlantListById(long id) {
     // Existence check
-    Garden garden = getGardenById(id);
-    if (garden == null) {
+    if (getGardenById(id) == null) {
       return null;
     }
+    return RecentWrites.mergedInto(Relation.GARDEN_PLANTS, id, storage.getGardenPlantIds(id));
+  }
 
-    StructuredQuery<Entity> query =
-        Query.newEntityQueryBuilder()
-            .setKind("ContainsPlant")
-            .setFilter(PropertyFilter.eq("garden-id", id))
-            .build();
-    QueryResults<Entity> results = datastore.run(query);
-    while (results.hasNext()) {
-      Entity entity = results.next();
-      ContainsPlant containsPlant = ContainsPlant.from(entity);
-      plantList.add(containsPlant.getPlantId());
+  /**
+   * Retrieves every plant of a garden. Returns null if the garden does not exist.
+   *
+   * @param id the garden's id
+   * @return the garden's plants or null.
+   */
+  public List<Plant> getGardenPlantsById(long id) {
+    long[] plantIds = getGardenPlantListById(id);
+    if (plantIds == null) {
+      return null;
     }
+    return storage.getPlants(plantIds);
+  }
 
-    return plantList;
+  /**
+   * Adds a garden, and indexes it for search and for the map.
+   *
+   * @param garden the garden object
+   * @return The garden's key
+   */
+  public long addGarden(Garden garden) {
+    long gardenId = storage.addGarden(garden);
+    GardenSearchIndex.getInstance().put(garden);
+    GardenQuadtree.getInstance().put(garden);
+    return gardenId;
   }
 
   /**
@@ -128,28 +138,42 @@ public class GardenDao {
    * @param plant the plant object
    * @return The plant's key
    */
-  public String addPlant(String gardenId, Plant plant) {
-    // Add plant to plant list first
-    plant.setId("1"); // Dummy key to make .toEntity(datastoreInstance) work.
-    KeyFactory keyFactory = datastore.newKeyFactory().setKind("Plant");
-    IncompleteKey incompleteKey = keyFactory.newKey();
-
-    Key key = datastore.allocateId(incompleteKey);
-
-    Entity newEntity = Entity.newBuilder(key, plant.toEntity(datastoreInstance)).build();
-    datastore.add(newEntity);
-
-    // Then add relation
-    keyFactory = datastore.newKeyFactory().setKind("ContainsPlant");
-    incompleteKey = keyFactory.newKey();
+  public long addPlant(long gardenId, Plant plant) {
+    long plantId = storage.addPlant(gardenId, plant);
+    RecentWrites.recorded(Relation.GARDEN_PLANTS, gardenId, plantId, true);
+    return plantId;
+  }
 
-    String plantId = Long.toString(newEntity.getKey().getId());
-    ContainsPlant relation = new ContainsPlant("1", gardenId, plantId);
-    key = datastore.allocateId(incompleteKey);
+  /**
+   * Adds many plants to a garden's plant list. Null plants are rejected individually.
+   *
+   * @param gardenId the garden to add the plants to
+   * @param plants the plant objects
+   * @return the status of each plant, in request order.
+   */
+  public List<BatchItemStatus> addPlants(long gardenId, List<Plant> plants) {
+    List<BatchItemStatus> statuses = storage.addPlants(gardenId, plants);
+    recordPlants(gardenId, statuses, Outcome.CREATED, true);
+    return statuses;
+  }
 
-    newEntity = Entity.newBuilder(key, relation.toEntity(datastoreInstance)).build();
-    datastore.add(newEntity);
-    return plantId;
+  /**
+   * Deletes many plants, as well as their relations, from a garden's plant list. Returns null if
+   * the garden does not exist. Plants not in the garden are reported as not found, and malformed
+   * ids (Ids.INVALID) as bad requests.
+   *
+   * @param gardenId the garden's id
+   * @param plantIds the plants' ids
+   * @return the status of each plant, in request order, or null.
+   */
+  public List<BatchItemStatus> deletePlants(long gardenId, long[] plantIds) {
+    // Existence check for key
+    if (getGardenById(gardenId) == null) {
+      return null;
+    }
+    List<BatchItemStatus> statuses = storage.deletePlants(gardenId, plantIds);
+    recordPlants(gardenId, statuses, Outcome.DELETED, false);
+    return statuses;
   }
 
   /**
@@ -159,28 +183,15 @@ public class GardenDao {
    * @param userId the user's id
    * @return whether the query was successful.
    */
-  public boolean deleteUser(String gardenId, String userId) {
+  public boolean deleteUser(long gardenId, long userId) {
     // Existence check for key
-    Garden garden = getGardenById(gardenId);
-    if (garden == null) {
+    if (getGardenById(gardenId) == null) {
       return false;
     }
-
-    // Match user and garden
-    StructuredQuery<Entity> query =
-        Query.newEntityQueryBuilder()
-            .setKind("HasMember")
-            .setFilter(
-                CompositeFilter.and(
-                    PropertyFilter.eq("garden-id", gardenId), PropertyFilter.eq("user-id", userId)))
-            .build();
-    QueryResults<Entity> results = datastore.run(query);
-    if (!results.hasNext()) {
+    if (!storage.removeMember(gardenId, userId)) {
       return false;
     }
-    Entity entity = results.next();
-
-    datastore.delete(entity.getKey());
+    UserDao.recordMembership(userId, gardenId, false);
     return true;
   }
 
@@ -191,38 +202,35 @@ public class GardenDao {
    * @param plantId the plant's id
    * @return whether the query was successful.
    */
-  public boolean deletePlant(String gardenId, String plantId) {
+  public boolean deletePlant(long gardenId, long plantId) {
     // Existence check for key
-    Garden garden = getGardenById(gardenId);
-    if (garden == null) {
-      return false;
-    }
-
-    // Deletes relation first
-    StructuredQuery<Entity> query =
-        Query.newEntityQueryBuilder()
-            .setKind("ContainsPlant")
-            .setFilter(
-                CompositeFilter.and(
-                    PropertyFilter.eq("garden-id", gardenId),
-                    PropertyFilter.eq("plant-id", plantId)))
-            .build();
-    QueryResults<Entity> results = datastore.run(query);
-    if (!results.hasNext()) {
+    if (getGardenById(gardenId) == null) {
       return false;
     }
-    Entity entity = results.next();
-    datastore.delete(entity.getKey());
-
-    // Then delete plant
-    String projectId = datastoreInstance.getProjectId();
-    Key key = Key.newBuilder(projectId, "Plant", Long.parseLong(plantId)).build();
-    Entity plantEntity = datastore.get(key);
-    if (plantEntity == null) {
+    if (!storage.deletePlant(gardenId, plantId)) {
       return false;
     }
-    datastore.delete(plantEntity.getKey());
-
+    RecentWrites.recorded(Relation.GARDEN_PLANTS, gardenId, plantId, false);
     return true;
   }
+
+  /**
+   * Retrieves the number of members and plants of a garden, maintained on every write.
+   *
+   * @param id the garden's id
+   * @return the garden's counts, or null while they are unavailable.
+   */
+  public GardenCounts getGardenCounts(long id) {
+    return storage.getGardenCounts(id);
+  }
+
+  /** Records the items of a batch that succeeded in the requesting user's recent writes. */
+  private static void recordPlants(
+      long gardenId, List<BatchItemStatus> statuses, Outcome success, boolean added) {
+    for (BatchItemStatus status : statuses) {
+      if (status.getStatus() == success) {
+        RecentWrites.recorded(Relation.GARDEN_PLANTS, gardenId, status.getId(), added);
+      }
+    }
+  }
 }
@@ -0,0 +1,160 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.controllers;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.ReadOption;
+import com.google.growpod.util.LatencyTracker;
+import com.google.growpod.util.Metrics;
+import com.google.growpod.util.RequestContext;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Single-entity lookups, hedged against slow replicas where the request allows it.
+ *
+ * <p>A lookup runs directly on its thread unless it may be hedged, which needs the request to allow
+ * hedging, the p95 lookup latency to be known, and the budget to outlast it. Either way, {@link
+ * DatastoreGuard#read} runs it through {@link com.google.growpod.util.Deadlines}, so the request
+ * waits for it no longer than its remaining budget. A request whose budget has run out fails before
+ * the lookup. A hedged lookup runs on a small shared pool. If it is still running after the p95, an
+ * identical lookup is sent and whichever answers first wins. Lookups are idempotent, so the loser
+ * is simply ignored. Hedging adds about 5% more lookups, in exchange for cutting off the slowest
+ * ones.
+ */
+final class HedgedReads {
+
+  /**
+   * Most hedged lookups running on the pool at once; beyond it, they run on the caller's thread.
+   */
+  private static final int MAX_THREADS = 32;
+
+  /** Shortest delay before hedging, so fast lookups are never doubled. */
+  private static final long MIN_HEDGE_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
+  private static final LatencyTracker latencies = new LatencyTracker(1024, 0.95, 100);
+
+  private static final ThreadPoolExecutor executor =
+      new ThreadPoolExecutor(
+          0,
+          MAX_THREADS,
+          60,
+          TimeUnit.SECONDS,
+          new SynchronousQueue<Runnable>(),
+          runnable -> {
+            Thread thread = new Thread(runnable, "hedged-reads");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  private static final LongAdder hedged = Metrics.counter("hedge.sent");
+  private static final LongAdder hedgeWins = Metrics.counter("hedge.won");
+
+  private HedgedReads() {}
+
+  /**
+   * Looks up an entity.
+   *
+   * @param datastore the Datastore to read from.
+   * @param key the entity's key.
+   * @param options the lookup's options, such as its consistency.
+   * @return the entity, or null if it does not exist.
+   * @throws com.google.growpod.util.DeadlineExceededException if the request's budget runs out.
+   */
+  static Entity get(Datastore datastore, Key key, ReadOption... options) {
+    RequestContext.checkDeadline();
+    long hedgeDelay = hedgeDelayNanos(RequestContext.current());
+    if (hedgeDelay < 0) {
+      return timedGet(datastore, key, options);
+    }
+    CompletableFuture<Entity> primary = submit(datastore, key, options);
+    if (primary == null) {
+      return timedGet(datastore, key, options);
+    }
+
+    RequestContext context = RequestContext.current();
+    try {
+      try {
+        return primary.get(hedgeDelay, TimeUnit.NANOSECONDS);
+      } catch (TimeoutException e) {
+        // Slower than p95: hedge below.
+      }
+      CompletableFuture<Entity> hedge = submit(datastore, key, options);
+      if (hedge == null) {
+        return primary.get(context.remainingNanos(), TimeUnit.NANOSECONDS);
+      }
+      hedged.increment();
+      Object first =
+          CompletableFuture.anyOf(primary, hedge)
+              .get(context.remainingNanos(), TimeUnit.NANOSECONDS);
+      if (!primary.isDone()) {
+        hedgeWins.increment();
+      }
+      return (Entity) first;
+    } catch (TimeoutException e) {
+      throw context.exceeded();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted looking up " + key, e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * Returns how long a lookup may run before it is hedged, or -1 if it is not to be hedged: outside
+   * requests, in requests that do not allow it, before the p95 is known, or when the request's
+   * budget ends before the delay would.
+   */
+  private static long hedgeDelayNanos(RequestContext context) {
+    if (context == null || !context.isHedgeReads()) {
+      return -1;
+    }
+    long percentile = latencies.getPercentileNanos();
+    if (percentile < 0) {
+      return -1;
+    }
+    long delay = Math.max(MIN_HEDGE_DELAY_NANOS, percentile);
+    return delay < context.remainingNanos() ? delay : -1;
+  }
+
+  /** Starts a lookup on the pool, or returns null if the pool is busy. */
+  private static CompletableFuture<Entity> submit(
+      Datastore datastore, Key key, ReadOption[] options) {
+    try {
+      return CompletableFuture.supplyAsync(() -> timedGet(datastore, key, options), executor);
+    } catch (RejectedExecutionException e) {
+      return null;
+    }
+  }
+
+  private static Entity timedGet(Datastore datastore, Key key, ReadOption[] options) {
+    long start = System.nanoTime();
+    Entity entity = datastore.get(key, options);
+    latencies.record(System.nanoTime() - start);
+    return entity;
+  }
+}
@@ -0,0 +1,262 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.controllers;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.growpod.util.BackgroundRefresher;
+import com.google.growpod.util.BloomFilter;
+import com.google.growpod.util.LongList;
+import com.google.growpod.util.Metrics;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-kind Bloom filters over the ids that exist, so lookups of ids that definitely do not exist
+ * are answered without a Datastore call.
+ *
+ * <p>A filter only knows the ids inserted through this instance and those found by its last scan,
+ * so an id inserted by another instance would look missing until the next rebuild. The filters are
+ * therefore off unless the system property {@value #PROPERTY} is true, which is only safe when this
+ * is the only instance writing, as on a single-instance deployment. While they are off, every
+ * lookup goes to Datastore and no scan runs.
+ *
+ * <p>A kind's filter is built by a keys-only scan started by its first lookup and run by a {@link
+ * BackgroundRefresher}, while requests go to Datastore as usual. Ids inserted through the DAOs are
+ * added as they are written. Deleted ids stay in the filter, costing a Datastore call, until the
+ * filter is rebuilt in the background, every {@link #REBUILD_MILLIS}.
+ *
+ * <p>Ids inserted some other way, such as by the backup tool, are unknown here until the next
+ * rebuild. To bound that, a small sample of negative answers is checked against Datastore; an id
+ * found there is added, counted as stale, and makes the next lookup start a rebuild.
+ *
+ * <p>Checks, negatives, false positives (a positive answer for a missing entity) and stale
+ * negatives are counted under "bloom.{kind}", and each filter's size under the "bloom" section of
+ * /metrics.
+ */
+public final class IdFilters {
+
+  /** System property that turns the filters on. */
+  public static final String PROPERTY = "growpod.idfilters";
+
+  private static final boolean enabled = Boolean.getBoolean(PROPERTY);
+
+  /** Age after which a filter is rebuilt, dropping deleted ids. */
+  static final long REBUILD_MILLIS = 5 * 60 * 1000;
+
+  /** False positive rate a filter is sized for. */
+  private static final double FALSE_POSITIVE_RATE = 0.01;
+
+  /** Room left for inserts, as a multiple of the ids found by the scan. */
+  private static final double GROWTH = 1.5;
+
+  /** Smallest number of ids a filter is sized for. */
+  private static final int MIN_EXPECTED = 1024;
+
+  /** Share of negative answers verified against Datastore. */
+  private static final double VERIFY_RATE = 0.01;
+
+  /** The filter of one kind, and its statistics. */
+  private static final class KindFilter {
+    final String kind;
+    final AtomicBoolean building = new AtomicBoolean();
+    final Queue<Long> addedWhileBuilding = new ConcurrentLinkedQueue<Long>();
+    volatile BloomFilter filter;
+    volatile long builtAtMillis;
+    final LongAdder checks;
+    final LongAdder negatives;
+    final LongAdder falsePositives;
+    final LongAdder stale;
+    final BackgroundRefresher refresher;
+
+    /** Datastore the filter is scanned from, set by lookups. */
+    volatile Datastore datastore;
+
+    KindFilter(String kind) {
+      this.kind = kind;
+      this.refresher =
+          new BackgroundRefresher(
+              "bloom." + kind,
+              REBUILD_MILLIS,
+              () -> System.currentTimeMillis() - builtAtMillis,
+              () -> rebuild(this));
+      this.checks = Metrics.counter("bloom." + kind + ".checks");
+      this.negatives = Metrics.counter("bloom." + kind + ".negatives");
+      this.falsePositives = Metrics.counter("bloom." + kind + ".falsePositives");
+      this.stale = Metrics.counter("bloom." + kind + ".stale");
+    }
+  }
+
+  private static final Map<String, KindFilter> filters =
+      new ConcurrentHashMap<String, KindFilter>();
+
+  static {
+    Metrics.register("bloom", IdFilters::report);
+  }
+
+  private IdFilters() {}
+
+  /**
+   * Whether an entity might exist. False means it definitely does not.
+   *
+   * @param datastore the Datastore to scan when the filter needs building.
+   * @param key the entity's key.
+   * @return whether the entity might exist.
+   */
+  static boolean mightExist(Datastore datastore, Key key) {
+    if (!enabled) {
+      return true;
+    }
+    KindFilter kindFilter = filterFor(key.getKind());
+    kindFilter.datastore = datastore;
+    // While Datastore is down, the old filter keeps answering.
+    boolean available = !DatastoreGuard.isOpen();
+    if (available) {
+      kindFilter.refresher.refresh();
+    }
+    BloomFilter filter = kindFilter.filter;
+    if (filter == null) {
+      // Not built yet; the first build runs in the background.
+      return true;
+    }
+    kindFilter.checks.increment();
+    if (filter.mightContain(key.getId())) {
+      return true;
+    }
+
+    if (available
+        && ThreadLocalRandom.current().nextDouble() < VERIFY_RATE
+        && datastore.get(key) != null) {
+      kindFilter.stale.increment();
+      filter.add(key.getId());
+      kindFilter.builtAtMillis = 0;
+      return true;
+    }
+    kindFilter.negatives.increment();
+    return false;
+  }
+
+  /**
+   * Records an inserted id.
+   *
+   * @param kind the entity's kind.
+   * @param id the entity's id.
+   */
+  static void added(String kind, long id) {
+    if (!enabled) {
+      return;
+    }
+    KindFilter kindFilter = filterFor(kind);
+    BloomFilter filter = kindFilter.filter;
+    if (filter != null) {
+      filter.add(id);
+    }
+    if (kindFilter.building.get()) {
+      kindFilter.addedWhileBuilding.add(id);
+    }
+  }
+
+  /**
+   * Records a positive answer for an entity that turned out not to exist.
+   *
+   * @param kind the entity's kind.
+   */
+  static void missed(String kind) {
+    if (!enabled) {
+      return;
+    }
+    filterFor(kind).falsePositives.increment();
+  }
+
+  /** Makes the next lookup of every filter start a rebuild, for example after data is reloaded. */
+  public static void invalidateAll() {
+    for (KindFilter kindFilter : filters.values()) {
+      kindFilter.builtAtMillis = 0;
+    }
+  }
+
+  private static KindFilter filterFor(String kind) {
+    return filters.computeIfAbsent(kind, KindFilter::new);
+  }
+
+  /** Scans the kind's keys into a new filter and swaps it in. Run by the kind's refresher. */
+  private static void rebuild(KindFilter kindFilter) {
+    kindFilter.building.set(true);
+    try {
+      LongList ids = new LongList();
+      QueryResults<Key> keys =
+          kindFilter.datastore.run(Query.newKeyQueryBuilder().setKind(kindFilter.kind).build());
+      while (keys.hasNext()) {
+        ids.add(keys.next().getId());
+      }
+      long expected = Math.max(MIN_EXPECTED, (long) (ids.size() * GROWTH));
+      BloomFilter filter = BloomFilter.create(expected, FALSE_POSITIVE_RATE);
+      for (int i = 0; i < ids.size(); i++) {
+        filter.add(ids.get(i));
+      }
+
+      // Swaps first, so inserts from here on reach the new filter, then replays earlier ones.
+      kindFilter.filter = filter;
+      Long id = kindFilter.addedWhileBuilding.poll();
+      while (id != null) {
+        filter.add(id);
+        id = kindFilter.addedWhileBuilding.poll();
+      }
+      kindFilter.builtAtMillis = System.currentTimeMillis();
+    } catch (DatastoreException e) {
+      // Keeps the old filter; the refresher retries.
+      DatastoreGuard.failed(e);
+      throw e;
+    } finally {
+      kindFilter.building.set(false);
+    }
+  }
+
+  /** Size and accuracy of each kind's filter. */
+  private static Object report() {
+    Map<String, Map<String, Object>> report = new LinkedHashMap<String, Map<String, Object>>();
+    for (KindFilter kindFilter : filters.values()) {
+      BloomFilter filter = kindFilter.filter;
+      if (filter == null) {
+        continue;
+      }
+      long negatives = kindFilter.negatives.sum();
+      long falsePositives = kindFilter.falsePositives.sum();
+      Map<String, Object> stats = new LinkedHashMap<String, Object>();
+      stats.put("entries", filter.getEntries());
+      stats.put("bytes", filter.getBits() / 8);
+      stats.put("hashes", filter.getHashes());
+      stats.put("expectedFalsePositiveRate", filter.expectedFalsePositiveRate());
+      // Of the lookups of missing ids, the share the filter let through.
+      stats.put(
+          "observedFalsePositiveRate",
+          negatives + falsePositives == 0
+              ? 0.0
+              : (double) falsePositives / (negatives + falsePositives));
+      stats.put("ageMillis", System.currentTimeMillis() - kindFilter.builtAtMillis);
+      report.put(kindFilter.kind, stats);
+    }
+    return report;
+  }
+}
@@ -0,0 +1,34 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.controllers;
+
+/**
+ * Guard entities that make garden memberships unique. HasMember relations have allocated ids, so
+ * two concurrent joins cannot be told apart by key; each membership also writes a guard, named
+ * after its garden and user, in the same transaction. A join that finds the guard already there is
+ * a repeat, even if the first join committed a moment earlier on another request.
+ */
+public final class MembershipGuards {
+
+  /** Datastore kind of guards. */
+  public static final String KIND = "MembershipGuard";
+
+  private MembershipGuards() {}
+
+  /** Key name of the guard of a membership. */
+  static String name(long gardenId, long userId) {
+    return gardenId + "/" + userId;
+  }
+}
@@ -0,0 +1,309 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.controllers;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.ProjectionEntity;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.growpod.data.HasMember;
+import com.google.growpod.data.Ids;
+import com.google.growpod.util.AdjacencyIndex;
+import com.google.growpod.util.BackgroundRefresher;
+import com.google.growpod.util.Metrics;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * Node-local index of every HasMember relation, in both directions, so a garden's members and a
+ * user's gardens are answered from memory instead of by property queries. Each side is kept as
+ * sorted primitive id arrays.
+ *
+ * <p>The index is built by a projection scan of HasMember started by its first use and run by a
+ * {@link BackgroundRefresher}, while requests query Datastore as usual. Memberships added or
+ * removed through the DAOs are applied as they are written. Changes made by another server instance
+ * are unknown here until the index is rebuilt in the background, every {@link #REBUILD_MILLIS}. An
+ * index whose scan started more than {@link #MAX_AGE_MILLIS} ago does not answer, so lists never
+ * lag longer than that behind other instances, and {@code RecentWrites} keeps a user's own writes
+ * for longer still. Membership checks, which guard writes, are not answered from the index. While
+ * Datastore is down, the stale index keeps answering.
+ *
+ * <p>Answers from the index and fallbacks to Datastore are counted under "membership", and the
+ * shared index's size and age are reported in the "membership" section of /metrics.
+ */
+public final class MembershipIndex {
+
+  /** Age after which the shared index is rebuilt, picking up other instances' changes. */
+  static final long REBUILD_MILLIS = 60 * 1000;
+
+  /** Age after which the shared index stops answering until it is rebuilt. */
+  public static final long MAX_AGE_MILLIS = 2 * REBUILD_MILLIS;
+
+  private static final LongAdder hits = Metrics.counter("membership.hits");
+  private static final LongAdder fallbacks = Metrics.counter("membership.fallbacks");
+  private static final LongAdder projectionFallbacks = Metrics.counter("projection.fallbacks");
+
+  private static MembershipIndex shared;
+
+  static {
+    Metrics.register("membership", MembershipIndex::reportShared);
+  }
+
+  private final Supplier<AdjacencyIndex> scanner;
+  private final long maxAgeMillis;
+  private final BackgroundRefresher refresher;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /** Changes written during a scan, as {gardenId, userId, 1 if added or 0 if removed}. */
+  private final Queue<long[]> changedWhileBuilding = new ConcurrentLinkedQueue<long[]>();
+
+  private volatile boolean building;
+
+  /** Memberships, from gardens to users; null until first built. Guarded by lock. */
+  private AdjacencyIndex index;
+
+  /** When the scan behind the index started. */
+  private volatile long builtAtMillis;
+
+  /**
+   * Initializes an index that is not built yet.
+   *
+   * @param scanner reads every membership into a new index.
+   * @param rebuildMillis the age after which the index is rebuilt.
+   * @param maxAgeMillis the age after which the index stops answering until it is rebuilt.
+   */
+  public MembershipIndex(Supplier<AdjacencyIndex> scanner, long rebuildMillis, long maxAgeMillis) {
+    this.scanner = scanner;
+    this.maxAgeMillis = maxAgeMillis;
+    this.refresher =
+        new BackgroundRefresher(
+            "membership",
+            rebuildMillis,
+            () -> System.currentTimeMillis() - builtAtMillis,
+            this::rebuild);
+  }
+
+  /**
+   * Returns the index shared by this server instance, scanning a Datastore.
+   *
+   * @param datastore the Datastore to scan.
+   * @return the shared index.
+   */
+  static synchronized MembershipIndex getShared(Datastore datastore) {
+    if (shared == null) {
+      shared = new MembershipIndex(() -> scan(datastore), REBUILD_MILLIS, MAX_AGE_MILLIS);
+    }
+    return shared;
+  }
+
+  /** Makes the next use of the shared index start a rebuild, for example after data is reloaded. */
+  public static synchronized void invalidateShared() {
+    if (shared != null) {
+      shared.invalidate();
+    }
+  }
+
+  /**
+   * Returns a garden's members, or null if the index is not built yet or too old.
+   *
+   * @param gardenId the garden's id.
+   * @return the users' ids, or null.
+   */
+  public long[] members(long gardenId) {
+    if (!ready()) {
+      return null;
+    }
+    lock.readLock().lock();
+    try {
+      return index.forward(gardenId);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the gardens a user is a member of, or null if the index is not built yet or too old.
+   *
+   * @param userId the user's id.
+   * @return the gardens' ids, or null.
+   */
+  public long[] gardensOf(long userId) {
+    if (!ready()) {
+      return null;
+    }
+    lock.readLock().lock();
+    try {
+      return index.backward(userId);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** Records a membership written by this instance. */
+  public void added(long gardenId, long userId) {
+    changed(gardenId, userId, true);
+  }
+
+  /** Records a membership removed by this instance. */
+  public void removed(long gardenId, long userId) {
+    changed(gardenId, userId, false);
+  }
+
+  /** Makes the next use start a rebuild. */
+  public void invalidate() {
+    builtAtMillis = 0;
+  }
+
+  private void changed(long gardenId, long userId, boolean added) {
+    lock.writeLock().lock();
+    try {
+      if (index != null) {
+        if (added) {
+          index.add(gardenId, userId);
+        } else {
+          index.remove(gardenId, userId);
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+    if (building) {
+      changedWhileBuilding.add(new long[] {gardenId, userId, added ? 1 : 0});
+    }
+  }
+
+  /** Starts a rebuild if the index is old, and returns whether it can answer. */
+  private boolean ready() {
+    // While Datastore is down, the old index keeps answering, however old.
+    boolean datastoreUp = !DatastoreGuard.isOpen();
+    if (datastoreUp) {
+      refresher.refresh();
+    }
+    lock.readLock().lock();
+    try {
+      if (index == null) {
+        // Not built yet; the first build runs in the background.
+        fallbacks.increment();
+        return false;
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    if (datastoreUp && System.currentTimeMillis() - builtAtMillis > maxAgeMillis) {
+      // Too far behind other instances; queried until the rebuild finishes.
+      fallbacks.increment();
+      return false;
+    }
+    hits.increment();
+    return true;
+  }
+
+  /** Scans every membership into a new index and swaps it in. Run by the refresher. */
+  private void rebuild() {
+    building = true;
+    try {
+      // Writes by other instances from here on may be missed, so the index is as old as its scan.
+      long scannedAtMillis = System.currentTimeMillis();
+      AdjacencyIndex scanned = scanner.get();
+
+      // Swaps under the write lock, so changes from here on reach the new index, then replays
+      // the ones the scan may have missed. Adding and removing are idempotent, so replaying a
+      // change the scan already saw is harmless.
+      lock.writeLock().lock();
+      try {
+        index = scanned;
+        long[] change = changedWhileBuilding.poll();
+        while (change != null) {
+          if (change[2] == 1) {
+            scanned.add(change[0], change[1]);
+          } else {
+            scanned.remove(change[0], change[1]);
+          }
+          change = changedWhileBuilding.poll();
+        }
+      } finally {
+        lock.writeLock().unlock();
+      }
+      builtAtMillis = scannedAtMillis;
+    } finally {
+      changedWhileBuilding.clear();
+      building = false;
+    }
+  }
+
+  /**
+   * Reads every HasMember relation into a new index. Only the two ids are projected, with the
+   * composite index in datastore-indexes.xml; until that index is serving, whole relations are
+   * read.
+   */
+  private static AdjacencyIndex scan(Datastore datastore) {
+    AdjacencyIndex scanned = new AdjacencyIndex();
+    try {
+      try {
+        QueryResults<ProjectionEntity> results =
+            datastore.run(
+                Query.newProjectionEntityQueryBuilder()
+                    .setKind(HasMember.KIND)
+                    .setProjection("garden-id", "user-id")
+                    .build());
+        while (results.hasNext()) {
+          ProjectionEntity relation = results.next();
+          scanned.add(Ids.get(relation, "garden-id"), Ids.get(relation, "user-id"));
+        }
+      } catch (DatastoreException e) {
+        if (!"FAILED_PRECONDITION".equals(e.getReason())) {
+          throw e;
+        }
+        projectionFallbacks.increment();
+        scanned.clear();
+        QueryResults<Entity> results =
+            datastore.run(Query.newEntityQueryBuilder().setKind(HasMember.KIND).build());
+        while (results.hasNext()) {
+          Entity relation = results.next();
+          scanned.add(Ids.get(relation, "garden-id"), Ids.get(relation, "user-id"));
+        }
+      }
+    } catch (DatastoreException e) {
+      // Keeps the old index; the refresher retries.
+      DatastoreGuard.failed(e);
+      throw e;
+    }
+    return scanned;
+  }
+
+  /** Size and age of the shared index. */
+  private static synchronized Object reportShared() {
+    Map<String, Object> report = new LinkedHashMap<String, Object>();
+    if (shared == null) {
+      return report;
+    }
+    shared.lock.readLock().lock();
+    try {
+      report.put("memberships", shared.index == null ? 0 : shared.index.size());
+    } finally {
+      shared.lock.readLock().unlock();
+    }
+    report.put("ageMillis", System.currentTimeMillis() - shared.builtAtMillis);
+    return report;
+  }
+}
@@ -14,17 +14,15 @@
 
 package com.google.growpod.controllers;
 
-import com.google.cloud.datastore.Datastore;
 import com.google.cloud.datastore.DatastoreOptions;
-import com.google.cloud.datastore.Entity;
-import com.google.cloud.datastore.Key;
 import com.google.growpod.data.Plant;
+import com.google.growpod.storage.IdentityMapStorage;
+import com.google.growpod.storage.Storage;
 
 /** Data access object for Plant entities. */
 public class PlantDao {
 
-  private DatastoreOptions datastoreInstance;
-  private Datastore datastore;
+  private final Storage storage;
 
   /**
    * Initializes a new plant controller from a given Datastore.
@@ -32,8 +30,16 @@ public class PlantDao {
    * @param datastoreInstance the database instance to run queries on.
    */
   public PlantDao(DatastoreOptions datastoreInstance) {
-    this.datastoreInstance = datastoreInstance;
-    this.datastore = datastoreInstance.getService();
+    this(new DatastoreStorage(datastoreInstance));
+  }
+
+  /**
+   * Initializes a new plant controller on a given storage backend.
+   *
+   * @param storage the storage to read.
+   */
+  public PlantDao(Storage storage) {
+    this.storage = IdentityMapStorage.wrap(storage);
   }
 
   /**
@@ -42,10 +48,7 @@ public class PlantDao {
    * @param id the plant's id
    * @return the plant with id's data or null.
    */
-  public Plant getPlantById(String id) {
-    String projectId = datastoreInstance.getProjectId();
-    Key key = Key.newBuilder(projectId, "Plant", Long.parseLong(id)).build();
-    Entity plantEntity = datastore.get(key);
-    return plantEntity == null ? null : Plant.from(plantEntity);
+  public Plant getPlantById(long id) {
+    return storage.getPlant(id);
   }
 }
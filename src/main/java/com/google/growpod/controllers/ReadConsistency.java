@@ -0,0 +1,61 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.controllers;
+
+import com.google.cloud.datastore.ReadOption;
+import com.google.growpod.util.Metrics;
+import com.google.growpod.util.RequestContext;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read options for the current request's consistency, set per route by the request context filter.
+ * Reads outside requests, such as revalidations and rebuilds, are strong.
+ */
+final class ReadConsistency {
+
+  private static final ReadOption[] STRONG = {};
+
+  private static final ReadOption[] EVENTUAL = {ReadOption.eventualConsistency()};
+
+  private static final LongAdder strongReads = Metrics.counter("reads.strong");
+  private static final LongAdder eventualReads = Metrics.counter("reads.eventual");
+
+  private ReadConsistency() {}
+
+  /**
+   * Returns the options of a read made now, and counts it under its mode.
+   *
+   * @return no options for a strong read, or eventual consistency.
+   */
+  static ReadOption[] options() {
+    if (RequestContext.eventualReads()) {
+      eventualReads.increment();
+      return EVENTUAL;
+    }
+    strongReads.increment();
+    return STRONG;
+  }
+
+  /**
+   * Names a read's flight, so that strong reads never wait on an eventually consistent one.
+   *
+   * @param key the read's key, for example "Garden/1".
+   * @param options the read's options, from {@link #options}.
+   * @return the key of its flight.
+   */
+  static String flightKey(String key, ReadOption[] options) {
+    return options == EVENTUAL ? key + "~eventual" : key;
+  }
+}
@@ -0,0 +1,86 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.controllers;
+
+import com.google.cloud.datastore.DatastoreOptions;
+import com.google.growpod.storage.LogStorage;
+import com.google.growpod.storage.MemoryStorage;
+import com.google.growpod.storage.Storage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Chooses the storage backend of this server. The system property `growpod.storage` selects it:
+ * `datastore` (the default) for Cloud Datastore, `memory` for {@link MemoryStorage}, which needs no
+ * Datastore or emulator and starts empty until /reset-data loads the test data, or `log` for {@link
+ * LogStorage}, which persists to the local directory named by `growpod.storage.dir`.
+ */
+public final class Storages {
+
+  /** System property naming the backend. */
+  public static final String PROPERTY = "growpod.storage";
+
+  /** System property naming the directory of the `log` backend. */
+  public static final String DIRECTORY_PROPERTY = "growpod.storage.dir";
+
+  /** How often the `log` backend checks whether it needs compaction. */
+  private static final long COMPACTION_PERIOD_MILLIS = 10 * 60 * 1000;
+
+  private static Storage instance;
+
+  private Storages() {}
+
+  /**
+   * Returns the backend shared by every DAO of this server.
+   *
+   * @return the shared storage.
+   */
+  public static synchronized Storage getDefault() {
+    if (instance == null) {
+      String backend = System.getProperty(PROPERTY, "datastore");
+      switch (backend) {
+        case "datastore":
+          instance = new DatastoreStorage(DatastoreOptions.getDefaultInstance());
+          break;
+        case "memory":
+          instance = new MemoryStorage();
+          break;
+        case "log":
+          instance = openLog();
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown " + PROPERTY + ": " + backend);
+      }
+    }
+    return instance;
+  }
+
+  private static LogStorage openLog() {
+    Path directory =
+        Paths.get(
+            System.getProperty(
+                DIRECTORY_PROPERTY,
+                Paths.get(System.getProperty("java.io.tmpdir"), "growpod-log").toString()));
+    try {
+      LogStorage log = LogStorage.open(directory);
+      log.compactPeriodically(COMPACTION_PERIOD_MILLIS);
+      return log;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
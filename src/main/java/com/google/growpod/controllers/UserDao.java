@@ -14,28 +14,17 @@
 
 package com.google.growpod.controllers;
 
-import com.google.cloud.datastore.Datastore;
 import com.google.cloud.datastore.DatastoreOptions;
-import com.google.cloud.datastore.Entity;
-import com.google.cloud.datastore.IncompleteKey;
-import com.google.cloud.datastore.Key;
-import com.google.cloud.datastore.KeyFactory;
-import com.google.cloud.datastore.Query;
-import com.google.cloud.datastore.QueryResults;
-import com.google.cloud.datastore.StructuredQuery;
-import com.google.cloud.datastore.StructuredQuery.CompositeFilter;
-import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
-import com.google.growpod.data.Garden;
-import com.google.growpod.data.HasMember;
 import com.google.growpod.data.User;
-import java.util.ArrayList;
-import java.util.List;
+import com.google.growpod.storage.IdentityMapStorage;
+import com.google.growpod.storage.Storage;
+import com.google.growpod.util.RecentWrites;
+import com.google.growpod.util.RecentWrites.Relation;
 
 /** Data access object for User entities. */
 public class UserDao {
 
-  private DatastoreOptions datastoreInstance;
-  private Datastore datastore;
+  private final Storage storage;
 
   /**
    * Initializes a new user controller from a given Datastore.
@@ -43,28 +32,25 @@ public class UserDao {
    * @param datastoreInstance the database instance to run queries on.
    */
   public UserDao(DatastoreOptions datastoreInstance) {
-    this.datastoreInstance = datastoreInstance;
-    this.datastore = datastoreInstance.getService();
+    this(new DatastoreStorage(datastoreInstance));
   }
 
   /**
-   * Creates an Entity thats holds user data and adds it to Datastore.
+   * Initializes a new user controller on a given storage backend.
+   *
+   * @param storage the storage to read and write.
+   */
+  public UserDao(Storage storage) {
+    this.storage = IdentityMapStorage.wrap(storage);
+  }
+
+  /**
+   * Adds a user, giving it a new id.
    *
    * @param user User object holding user data: id,email,name,bio,zip
    */
   public void addToDatastore(User user) {
-    // Generates key
-    KeyFactory keyFactory = datastore.newKeyFactory().setKind("User");
-    IncompleteKey incompleteKey = keyFactory.newKey();
-
-    Key key = datastore.allocateId(incompleteKey);
-
-    // placeholder id
-    user.setId("1");
-
-    // Puts key into database
-    Entity newEntity = Entity.newBuilder(key, user.toEntity(datastoreInstance)).build();
-    datastore.add(newEntity);
+    storage.addUser(user);
   }
 
   /**
@@ -73,42 +59,24 @@ public class UserDao {
    * @param id the user's id
    * @return the user with id's data or null.
    */
-  public User getUserById(String id) {
-    String projectId = datastoreInstance.getProjectId();
-    Key key = Key.newBuilder(projectId, "User", Long.parseLong(id)).build();
-    Entity userEntity = datastore.get(key);
-    return userEntity == null ? null : User.from(userEntity);
+  public User getUserById(long id) {
+    return storage.getUser(id);
   }
 
   /**
    * Retrieves a list of gardens the user with a given id is a member of. Returns an empty list if
-   * the user is a member of no gardens, and null if the user does not exist.
+   * the user is a member of no gardens, and null if the user does not exist. The list includes the
+   * requesting user's own recent joins and leaves, even before the query reflects them.
    *
    * @param id the user's id
-   * @return a list of gardens the user is a part of, or an empty list, or null.
+   * @return an array of gardens the user is a part of, or an empty array, or null.
    */
-  public List<String> getUserGardenListById(String id) {
-    List<String> gardenList = new ArrayList<String>();
-
+  public long[] getUserGardenListById(long id) {
     // Existence check
-    User user = getUserById(id);
-    if (user == null) {
+    if (getUserById(id) == null) {
       return null;
     }
-
-    StructuredQuery<Entity> query =
-        Query.newEntityQueryBuilder()
-            .setKind("HasMember")
-            .setFilter(PropertyFilter.eq("user-id", id))
-            .build();
-    QueryResults<Entity> results = datastore.run(query);
-    while (results.hasNext()) {
-      Entity entity = results.next();
-      HasMember hasMember = HasMember.from(entity);
-      gardenList.add(hasMember.getGardenId());
-    }
-
-    return gardenList;
+    return RecentWrites.mergedInto(Relation.USER_GARDENS, id, storage.getUserGardenIds(id));
   }
 
   /**
@@ -116,62 +84,31 @@ public class UserDao {
    * user administers no gardens, and null if the user does not exist.
    *
    * @param id the user's id
-   * @return a list of gardens the user administers, or an empty list, or null.
+   * @return an array of gardens the user administers, or an empty array, or null.
    */
-  public List<String> getUserGardenAdminListById(String id) {
-    List<String> gardenList = new ArrayList<String>();
-
+  public long[] getUserGardenAdminListById(long id) {
     // Existence check
-    User user = getUserById(id);
-    if (user == null) {
+    if (getUserById(id) == null) {
       return null;
     }
-
-    StructuredQuery<Entity> query =
-        Query.newEntityQueryBuilder()
-            .setKind("Garden")
-            .setFilter(PropertyFilter.eq("admin-id", id))
-            .build();
-    QueryResults<Entity> results = datastore.run(query);
-    while (results.hasNext()) {
-      Entity entity = results.next();
-      Garden garden = Garden.from(entity);
-      gardenList.add(garden.getId());
-    }
-
-    return gardenList;
+    return storage.getAdminGardenIds(id);
   }
 
   /**
-   * Record that a user has joined a garden.
+   * Record that a user has joined a garden. Joining a garden twice, even concurrently, records one
+   * membership.
    *
    * @param userId the user's id
    * @param gardenId the garden's id
-   * @return whether the insert operation was successful.
+   * @return whether the user is now a member; false if either does not exist.
    */
-  public boolean addGarden(String userId, String gardenId) {
+  public boolean addGarden(long userId, long gardenId) {
     // Existence check for both parameters.
-    User user = getUserById(userId);
-    if (user == null) {
+    if (getUserById(userId) == null || storage.getGarden(gardenId) == null) {
       return false;
     }
-
-    String projectId = datastoreInstance.getProjectId();
-    Key key = Key.newBuilder(projectId, "Garden", Long.parseLong(gardenId)).build();
-    Entity gardenEntity = datastore.get(key);
-    if (gardenEntity == null) {
-      return false;
-    }
-
-    // Then add relation
-    KeyFactory keyFactory = datastore.newKeyFactory().setKind("HasMember");
-    IncompleteKey incompleteKey = keyFactory.newKey();
-
-    key = datastore.allocateId(incompleteKey);
-    HasMember relation = new HasMember("1", gardenId, userId);
-
-    Entity newEntity = Entity.newBuilder(key, relation.toEntity(datastoreInstance)).build();
-    datastore.add(newEntity);
+    storage.addMember(gardenId, userId);
+    recordMembership(userId, gardenId, true);
     return true;
   }
 
@@ -182,29 +119,21 @@ public class UserDao {
    * @param gardenId the garden's id
    * @return whether the query was successful.
    */
-  public boolean deleteFromUserGardenList(String userId, String gardenId) {
+  public boolean deleteFromUserGardenList(long userId, long gardenId) {
     // Existence check for key
-    User user = getUserById(userId);
-    if (user == null) {
+    if (getUserById(userId) == null) {
       return false;
     }
-
-    // Match user and garden
-    StructuredQuery<Entity> query =
-        Query.newEntityQueryBuilder()
-            .setKind("HasMember")
-            .setFilter(
-                CompositeFilter.and(
-                    PropertyFilter.eq("garden-id", gardenId), PropertyFilter.eq("user-id", userId)))
-            .build();
-    QueryResults<Entity> results = datastore.run(query);
-    if (!results.hasNext()) {
+    if (!storage.removeMember(gardenId, userId)) {
       return false;
     }
-    Entity entity = results.next();
-    HasMember hasMember = HasMember.from(entity);
-
-    datastore.delete(entity.getKey());
+    recordMembership(userId, gardenId, false);
     return true;
   }
+
+  /** Records a join or leave in the requesting user's recent writes, on both sides. */
+  static void recordMembership(long userId, long gardenId, boolean added) {
+    RecentWrites.recorded(Relation.USER_GARDENS, userId, gardenId, added);
+    RecentWrites.recorded(Relation.GARDEN_MEMBERS, gardenId, userId, added);
+  }
 }
@@ -0,0 +1,287 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.controllers;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreOptions;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.growpod.data.ContainsPlant;
+import com.google.growpod.data.Garden;
+import com.google.growpod.data.HasMember;
+import com.google.growpod.data.Plant;
+import com.google.growpod.data.User;
+import com.google.growpod.snapshot.Snapshot;
+import com.google.growpod.util.LongList;
+import com.google.growpod.util.Metrics;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Warm start of a restarted server from a local {@link Snapshot}.
+ *
+ * <p>When the server stops cleanly, it reads every garden, plant, user and relation from Datastore
+ * and writes them to a snapshot on local disk. When it starts again, it loads that snapshot and
+ * deletes the file, then serves single-entity and relationship reads from it instead of Datastore
+ * for {@link #MAX_WARM_MILLIS}. Any write on this server retires the warm copies at once, so it
+ * always reads its own writes.
+ *
+ * <p>Warm copies are only correct if no other server wrote since the snapshot, so warm starts suit
+ * a single server with persistent disk only, and are off unless {@code WarmStartListener} is given
+ * a snapshot path. A snapshot is used at most once, so a server that crashes after starting never
+ * loads a snapshot missing its later writes, and snapshots older than {@link #MAX_AGE_MILLIS} are
+ * ignored.
+ */
+public final class WarmStart {
+
+  /** Age beyond which a snapshot is too stale to serve. */
+  static final long MAX_AGE_MILLIS = 60 * 60 * 1000;
+
+  /** Longest time warm copies are served. */
+  static final long MAX_WARM_MILLIS = 2 * 60 * 1000;
+
+  /** Most records in a snapshot; larger data sets are not snapshotted. */
+  static final int MAX_RECORDS = 500000;
+
+  private static final Logger logger = Logger.getLogger(WarmStart.class.getName());
+
+  /** Warm copies of entities and relationship lists, keyed like CoalescedReads. */
+  private static final class Warm {
+    final Map<String, Entity> entities = new HashMap<String, Entity>();
+    final Map<String, long[]> ids = new HashMap<String, long[]>();
+    final long loadedAtMillis = System.currentTimeMillis();
+  }
+
+  private static volatile Warm warm;
+
+  /** Where the snapshot is written when stopping, or null until started. */
+  private static Path snapshotFile;
+
+  private static DatastoreOptions snapshotDatastore;
+
+  private static final LongAdder warmHits = Metrics.counter("warmstart.hits");
+
+  private WarmStart() {}
+
+  /**
+   * Loads the snapshot at file, if there is a recent valid one, and deletes it so it is used once.
+   *
+   * @param file the snapshot file, which stop() writes.
+   * @param datastoreInstance the Datastore the snapshot stands in for.
+   */
+  public static synchronized void start(Path file, DatastoreOptions datastoreInstance) {
+    if (snapshotFile != null) {
+      return;
+    }
+    snapshotFile = file;
+    snapshotDatastore = datastoreInstance;
+    if (!Files.exists(file)) {
+      return;
+    }
+    try {
+      load(Snapshot.read(file), datastoreInstance);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Ignoring snapshot", e);
+    }
+    try {
+      Files.delete(file);
+    } catch (IOException e) {
+      // Serving it again after a crash could miss this run's writes.
+      retire();
+      logger.log(Level.WARNING, "Could not delete snapshot, not serving it", e);
+    }
+  }
+
+  /** Retires any warm copies, and writes a fresh snapshot for the next start. */
+  public static synchronized void stop() {
+    retire();
+    if (snapshotFile == null) {
+      return;
+    }
+    try {
+      Snapshot snapshot = capture(snapshotDatastore);
+      if (snapshot != null) {
+        snapshot.write(snapshotFile);
+      }
+    } catch (IOException | RuntimeException e) {
+      logger.log(Level.WARNING, "Could not write snapshot", e);
+    }
+    snapshotFile = null;
+  }
+
+  /**
+   * Serves reads from a snapshot for MAX_WARM_MILLIS, or until the next write. Snapshots older than
+   * MAX_AGE_MILLIS are ignored.
+   *
+   * @param snapshot the snapshot.
+   * @param datastoreInstance the Datastore the snapshot stands in for.
+   * @return whether the snapshot was loaded.
+   */
+  public static boolean load(Snapshot snapshot, DatastoreOptions datastoreInstance) {
+    if (System.currentTimeMillis() - snapshot.getCreatedAtMillis() > MAX_AGE_MILLIS) {
+      return false;
+    }
+    Datastore datastore = datastoreInstance.getService();
+    Warm loaded = new Warm();
+    KeyFactory gardenKeyFactory = datastore.newKeyFactory().setKind(Garden.KIND);
+    for (Garden garden : snapshot.getGardens()) {
+      loaded.entities.put(Garden.KIND + "/" + garden.getId(), garden.toEntity(gardenKeyFactory));
+    }
+    KeyFactory plantKeyFactory = datastore.newKeyFactory().setKind(Plant.KIND);
+    for (Plant plant : snapshot.getPlants()) {
+      loaded.entities.put(Plant.KIND + "/" + plant.getId(), plant.toEntity(plantKeyFactory));
+    }
+    KeyFactory userKeyFactory = datastore.newKeyFactory().setKind(User.KIND);
+    for (User user : snapshot.getUsers()) {
+      loaded.entities.put(User.KIND + "/" + user.getId(), user.toEntity(userKeyFactory));
+    }
+    putLists(loaded, HasMember.KIND + "?garden-id=", snapshot.getGardenMembers());
+    putLists(loaded, ContainsPlant.KIND + "?garden-id=", snapshot.getGardenPlants());
+    putLists(loaded, HasMember.KIND + "?user-id=", snapshot.getUserGardens());
+    warm = loaded;
+    return true;
+  }
+
+  /** Stops serving warm copies. */
+  public static void retire() {
+    warm = null;
+  }
+
+  /**
+   * Reads every garden, plant, user and relation from Datastore into a snapshot. Relations of
+   * deleted gardens or users are left out.
+   *
+   * @param datastoreInstance the Datastore to read.
+   * @return the snapshot, or null if a kind has more than MAX_RECORDS entities.
+   */
+  public static Snapshot capture(DatastoreOptions datastoreInstance) {
+    Datastore datastore = datastoreInstance.getService();
+    long createdAtMillis = System.currentTimeMillis();
+    List<Garden> gardens = scan(datastore, Garden.KIND, Garden::from);
+    List<Plant> plants = scan(datastore, Plant.KIND, Plant::from);
+    List<User> users = scan(datastore, User.KIND, User::from);
+    if (gardens == null || plants == null || users == null) {
+      return null;
+    }
+
+    Map<Long, LongList> members = new HashMap<Long, LongList>();
+    Map<Long, LongList> gardenPlants = new HashMap<Long, LongList>();
+    Map<Long, LongList> userGardens = new HashMap<Long, LongList>();
+    for (Garden garden : gardens) {
+      members.put(garden.getId(), new LongList());
+      gardenPlants.put(garden.getId(), new LongList());
+    }
+    for (User user : users) {
+      userGardens.put(user.getId(), new LongList());
+    }
+    List<HasMember> memberships = scan(datastore, HasMember.KIND, HasMember::from);
+    List<ContainsPlant> contents = scan(datastore, ContainsPlant.KIND, ContainsPlant::from);
+    if (memberships == null || contents == null) {
+      return null;
+    }
+    for (HasMember membership : memberships) {
+      LongList gardenMembers = members.get(membership.getGardenId());
+      LongList gardenList = userGardens.get(membership.getUserId());
+      if (gardenMembers != null) {
+        gardenMembers.add(membership.getUserId());
+      }
+      if (gardenList != null && gardenMembers != null) {
+        gardenList.add(membership.getGardenId());
+      }
+    }
+    for (ContainsPlant content : contents) {
+      LongList plantList = gardenPlants.get(content.getGardenId());
+      if (plantList != null) {
+        plantList.add(content.getPlantId());
+      }
+    }
+    return new Snapshot(
+        createdAtMillis,
+        gardens,
+        plants,
+        users,
+        toArrays(members),
+        toArrays(gardenPlants),
+        toArrays(userGardens));
+  }
+
+  /** Returns the warm copy of an entity, or null if there is none. */
+  static Entity entity(String key) {
+    Warm current = current();
+    Entity entity = current == null ? null : current.entities.get(key);
+    if (entity != null) {
+      warmHits.increment();
+    }
+    return entity;
+  }
+
+  /** Returns the warm copy of a relationship list, or null if there is none. */
+  static long[] ids(String key) {
+    Warm current = current();
+    long[] ids = current == null ? null : current.ids.get(key);
+    if (ids != null) {
+      warmHits.increment();
+    }
+    return ids;
+  }
+
+  private static Warm current() {
+    Warm current = warm;
+    if (current != null && System.currentTimeMillis() - current.loadedAtMillis > MAX_WARM_MILLIS) {
+      warm = null;
+      return null;
+    }
+    return current;
+  }
+
+  private static void putLists(Warm loaded, String prefix, Map<Long, long[]> lists) {
+    for (Map.Entry<Long, long[]> entry : lists.entrySet()) {
+      loaded.ids.put(prefix + entry.getKey(), entry.getValue());
+    }
+  }
+
+  /** Reads every entity of kind, or returns null once there are more than MAX_RECORDS. */
+  private static <T> List<T> scan(Datastore datastore, String kind, Function<Entity, T> from) {
+    List<T> records = new ArrayList<T>();
+    QueryResults<Entity> results =
+        datastore.run(Query.newEntityQueryBuilder().setKind(kind).build());
+    while (results.hasNext()) {
+      if (records.size() == MAX_RECORDS) {
+        return null;
+      }
+      records.add(from.apply(results.next()));
+    }
+    return records;
+  }
+
+  private static Map<Long, long[]> toArrays(Map<Long, LongList> lists) {
+    Map<Long, long[]> arrays = new HashMap<Long, long[]>(lists.size() * 2);
+    for (Map.Entry<Long, LongList> entry : lists.entrySet()) {
+      arrays.put(entry.getKey(), entry.getValue().toArray());
+    }
+    return arrays;
+  }
+}
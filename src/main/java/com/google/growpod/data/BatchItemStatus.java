@@ -0,0 +1,49 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.data;
+
+import com.google.gson.annotations.JsonAdapter;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/** Outcome of one item of a batch request. */
+@Data
+@AllArgsConstructor
+public class BatchItemStatus {
+
+  /** Position of the item in the request. */
+  private int index;
+
+  /** The item's id, or null if it has none (for example, a rejected insert). */
+  @JsonAdapter(Ids.Adapter.class)
+  private Long id;
+
+  /** What happened to this item. */
+  private Outcome status;
+
+  /** Outcomes of a batch item, which servlets map to HTTP status codes. */
+  public enum Outcome {
+    /** The item was added. */
+    CREATED,
+    /** The item was deleted. */
+    DELETED,
+    /** The item was malformed, for example a null plant or an invalid id. */
+    INVALID,
+    /** The item to delete does not exist. */
+    NOT_FOUND,
+    /** Writing the item failed; retrying it may succeed. */
+    FAILED
+  }
+}
@@ -0,0 +1,42 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.data;
+
+import com.google.gson.annotations.JsonAdapter;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/** One due occurrence of a recurring plant care task. */
+@Data
+@AllArgsConstructor
+public class CareTask {
+
+  /** The garden holding the plant. */
+  @JsonAdapter(Ids.Adapter.class)
+  private long gardenId;
+
+  /** The plant to care for. */
+  @JsonAdapter(Ids.Adapter.class)
+  private long plantId;
+
+  /** What to do, for example "water". */
+  private String task;
+
+  /** First day the task is due, as yyyy-mm-dd. */
+  private String dueDate;
+
+  /** Last day the task may be done on time, as yyyy-mm-dd. */
+  private String dueBy;
+}
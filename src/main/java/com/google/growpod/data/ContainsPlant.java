@@ -14,10 +14,11 @@
 
 package com.google.growpod.data;
 
-import com.google.cloud.datastore.DatastoreOptions;
 import com.google.cloud.datastore.Entity;
 import com.google.cloud.datastore.Entity.Builder;
 import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.gson.annotations.JsonAdapter;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 
@@ -26,14 +27,20 @@ import lombok.Data;
 @AllArgsConstructor
 public class ContainsPlant {
 
+  /** Datastore kind. */
+  public static final String KIND = "ContainsPlant";
+
   /** Unique datastore id. */
-  private String id;
+  @JsonAdapter(Ids.Adapter.class)
+  private long id;
 
   /** A garden id. */
-  private String gardenId;
+  @JsonAdapter(Ids.Adapter.class)
+  private long gardenId;
 
   /** A plant id. */
-  private String plantId;
+  @JsonAdapter(Ids.Adapter.class)
+  private long plantId;
 
   /**
    * Generates a ContainsPlant object from an entity.
@@ -42,25 +49,23 @@ public class ContainsPlant {
    * @return the new ContainsPlant object with the entity's information.
    */
   public static ContainsPlant from(Entity entity) {
-    String id = entity.getKey().getId().toString();
-    String gardenId = entity.getString("garden-id");
-    String plantId = entity.getString("plant-id");
+    long id = entity.getKey().getId();
+    long gardenId = Ids.get(entity, "garden-id");
+    long plantId = Ids.get(entity, "plant-id");
     return new ContainsPlant(id, gardenId, plantId);
   }
 
   /**
    * Generates an entity from a ContainsPlant.
    *
-   * @param instance The datastore instance the new entity will be associated with.
+   * @param keyFactory a key factory for the ContainsPlant kind.
    * @return the new entity representing the ContainsPlant relationship.
    */
-  public Entity toEntity(DatastoreOptions instance) {
-    // I use a different API here than in the portfolio
-    String projectId = instance.getProjectId();
-    Key key = Key.newBuilder(projectId, "ContainsPlant", Long.parseLong(id)).build();
+  public Entity toEntity(KeyFactory keyFactory) {
+    Key key = keyFactory.newKey(id);
     Builder builder = Entity.newBuilder(key);
-    builder.set("garden-id", gardenId);
-    builder.set("plant-id", plantId);
+    builder.set("garden-id", Ids.toProperty(gardenId));
+    builder.set("plant-id", Ids.toProperty(plantId));
     return builder.build();
   }
 }
@@ -0,0 +1,152 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.data;
+
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Entity.Builder;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.gson.annotations.JsonAdapter;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/** A background job deleting a garden or user along with everything that belongs to it. */
+@Data
+@AllArgsConstructor
+public class DeleteJob {
+
+  /** Datastore kind. */
+  public static final String KIND = "DeleteJob";
+
+  /** Waiting for a worker. */
+  public static final String PENDING = "pending";
+
+  /** Being run by a worker. */
+  public static final String RUNNING = "running";
+
+  /** Everything is deleted. */
+  public static final String DONE = "done";
+
+  /** Stopped by an error; see error. */
+  public static final String FAILED = "failed";
+
+  /** A unique id. */
+  @JsonAdapter(Ids.Adapter.class)
+  private long id;
+
+  /** Kind of the record being deleted, Garden.KIND or User.KIND. */
+  private String targetKind;
+
+  /** Id of the record being deleted. */
+  @JsonAdapter(Ids.Adapter.class)
+  private long targetId;
+
+  /** One of PENDING, RUNNING, DONE or FAILED. */
+  private String state;
+
+  /** Number of records deleted so far, as of the last checkpoint. */
+  private long deletedCount;
+
+  /** What stopped a failed job, or the last failed run of a job waiting to be retried, or null. */
+  private String error;
+
+  /** When the job was last checkpointed, in milliseconds since the epoch. */
+  private long updatedMillis;
+
+  /** Server instance that holds the job's lease, or null. */
+  private String owner;
+
+  /**
+   * When the owner's lease runs out, in milliseconds since the epoch. Until then, no other instance
+   * runs the job.
+   */
+  private long leaseExpiresMillis;
+
+  /** Number of runs that stopped on an error. */
+  private int failedRuns;
+
+  /**
+   * Whether an instance other than owner may run the job at nowMillis: it has no owner, or its
+   * owner's lease has run out.
+   *
+   * @param owner the instance that would run the job.
+   * @param nowMillis the current time, in milliseconds since the epoch.
+   * @return whether the lease is free.
+   */
+  public boolean isLeaseFree(String owner, long nowMillis) {
+    return this.owner == null || this.owner.equals(owner) || leaseExpiresMillis <= nowMillis;
+  }
+
+  /** Whether the job has stopped, successfully or not. */
+  public boolean isFinished() {
+    return DONE.equals(state) || FAILED.equals(state);
+  }
+
+  /**
+   * Generates a job from an entity.
+   *
+   * @param entity the entity to generate the job from
+   * @return the new job with the entity's information.
+   */
+  public static DeleteJob from(Entity entity) {
+    long id = entity.getKey().getId();
+    String targetKind = entity.getString("target-kind");
+    long targetId = Ids.get(entity, "target-id");
+    String state = entity.getString("state");
+    long deletedCount = entity.getLong("deleted-count");
+    String error = entity.contains("error") ? entity.getString("error") : null;
+    long updatedMillis = entity.getLong("updated-millis");
+    String owner = entity.contains("owner") ? entity.getString("owner") : null;
+    long leaseExpiresMillis =
+        entity.contains("lease-expires-millis") ? entity.getLong("lease-expires-millis") : 0;
+    int failedRuns = entity.contains("failed-runs") ? (int) entity.getLong("failed-runs") : 0;
+    return new DeleteJob(
+        id,
+        targetKind,
+        targetId,
+        state,
+        deletedCount,
+        error,
+        updatedMillis,
+        owner,
+        leaseExpiresMillis,
+        failedRuns);
+  }
+
+  /**
+   * Generates an entity from a job.
+   *
+   * @param keyFactory a key factory for the DeleteJob kind.
+   * @return the new entity representing a job.
+   */
+  public Entity toEntity(KeyFactory keyFactory) {
+    Key key = keyFactory.newKey(id);
+    Builder builder = Entity.newBuilder(key);
+    builder.set("target-kind", targetKind);
+    builder.set("target-id", targetId);
+    builder.set("state", state);
+    builder.set("deleted-count", deletedCount);
+    if (error != null) {
+      builder.set("error", error);
+    }
+    builder.set("updated-millis", updatedMillis);
+    if (owner != null) {
+      builder.set("owner", owner);
+    }
+    builder.set("lease-expires-millis", leaseExpiresMillis);
+    builder.set("failed-runs", failedRuns);
+    return builder.build();
+  }
+}
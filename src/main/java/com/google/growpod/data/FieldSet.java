@@ -0,0 +1,125 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.data;
+
+import com.google.gson.JsonObject;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The fields of a record a client asked for with `?fields=`, for example "id,name,lat,lng". Field
+ * names are the keys of the record's JSON form. Responses leave the other fields out, and reads may
+ * skip fetching them.
+ */
+public final class FieldSet {
+
+  /** Every field, the default when no `fields` parameter is given. */
+  public static final FieldSet ALL = new FieldSet(null);
+
+  /** Fields of a garden, including the counts embedded in garden responses. */
+  public static final List<String> GARDEN =
+      Arrays.asList(
+          "id",
+          "name",
+          "description",
+          "lat",
+          "lng",
+          "zipCode",
+          "adminId",
+          "memberCount",
+          "plantCount");
+
+  /** Fields of a user. */
+  public static final List<String> USER =
+      Arrays.asList("id", "email", "preferredName", "biography", "zipCode");
+
+  /** Fields of a plant. */
+  public static final List<String> PLANT = Arrays.asList("id", "nickname", "count", "plantTypeId");
+
+  /** The included fields, or null for all of them. */
+  private final Set<String> fields;
+
+  private FieldSet(Set<String> fields) {
+    this.fields = fields;
+  }
+
+  /**
+   * Parses a comma separated list of fields.
+   *
+   * @param value the list, or null for every field.
+   * @param known the fields the record has.
+   * @return the field set, or null if the list is empty or names an unknown field.
+   */
+  public static FieldSet parse(String value, Collection<String> known) {
+    if (value == null) {
+      return ALL;
+    }
+    Set<String> fields = new HashSet<String>();
+    for (String field : value.split(",")) {
+      field = field.trim();
+      if (!known.contains(field)) {
+        return null;
+      }
+      fields.add(field);
+    }
+    return new FieldSet(fields);
+  }
+
+  /** Whether every field is included. */
+  public boolean isAll() {
+    return fields == null;
+  }
+
+  /**
+   * Whether a field is included.
+   *
+   * @param field the field's JSON key.
+   * @return true if the field is included.
+   */
+  public boolean includes(String field) {
+    return fields == null || fields.contains(field);
+  }
+
+  /**
+   * Whether any of some fields is included, for example to skip a lookup none of them needs.
+   *
+   * @param candidates the fields' JSON keys.
+   * @return true if at least one is included.
+   */
+  public boolean includesAny(String... candidates) {
+    for (String field : candidates) {
+      if (includes(field)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Removes the fields that are not included from a record's JSON form.
+   *
+   * @param json the record's JSON object, which is modified.
+   * @return json, for chaining.
+   */
+  public JsonObject filter(JsonObject json) {
+    if (fields != null) {
+      json.keySet().retainAll(fields);
+    }
+    return json;
+  }
+}
@@ -14,11 +14,12 @@
 
 package com.google.growpod.data;
 
-import com.google.cloud.datastore.DatastoreOptions;
 import com.google.cloud.datastore.Entity;
 import com.google.cloud.datastore.Entity.Builder;
 import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
 import com.google.cloud.datastore.LatLng;
+import com.google.gson.annotations.JsonAdapter;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 
@@ -27,8 +28,12 @@ import lombok.Data;
 @AllArgsConstructor
 public class Garden {
 
+  /** Datastore kind. */
+  public static final String KIND = "Garden";
+
   /** A unique id. */
-  private String id;
+  @JsonAdapter(Ids.Adapter.class)
+  private long id;
 
   /** The garden's name. */
   private String name;
@@ -46,7 +51,8 @@ public class Garden {
   private String zipCode;
 
   /** Foreign Key to this garden's administrator. Must be a valid user key. */
-  private String adminId;
+  @JsonAdapter(Ids.Adapter.class)
+  private long adminId;
 
   /**
    * Generates a garden from an entity.
@@ -55,12 +61,12 @@ public class Garden {
    * @return the new garden with the entity's information.
    */
   public static Garden from(Entity entity) {
-    String id = entity.getKey().getId().toString();
+    long id = entity.getKey().getId();
     String name = entity.getString("name");
     String description = entity.getString("description");
     LatLng latLng = entity.getLatLng("lat-lng");
     String zipCode = entity.getString("zip-code");
-    String adminId = entity.getString("admin-id");
+    long adminId = Ids.get(entity, "admin-id");
     return new Garden(
         id, name, description, latLng.getLatitude(), latLng.getLongitude(), zipCode, adminId);
   }
@@ -68,19 +74,17 @@ public class Garden {
   /**
    * Generates an entity from a garden.
    *
-   * @param instance The datastore instance the new entity will be associated with.
+   * @param keyFactory a key factory for the Garden kind.
    * @return the new entity representing a garden.
    */
-  public Entity toEntity(DatastoreOptions instance) {
-    // I use a different API here than in the portfolio
-    String projectId = instance.getProjectId();
-    Key key = Key.newBuilder(projectId, "Garden", Long.parseLong(id)).build();
+  public Entity toEntity(KeyFactory keyFactory) {
+    Key key = keyFactory.newKey(id);
     Builder builder = Entity.newBuilder(key);
     builder.set("name", name);
     builder.set("description", description);
     builder.set("lat-lng", LatLng.of(lat, lng));
     builder.set("zip-code", zipCode);
-    builder.set("admin-id", adminId);
+    builder.set("admin-id", Ids.toProperty(adminId));
     return builder.build();
   }
 }
@@ -14,10 +14,11 @@
 
 package com.google.growpod.data;
 
-import com.google.cloud.datastore.DatastoreOptions;
 import com.google.cloud.datastore.Entity;
 import com.google.cloud.datastore.Entity.Builder;
 import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.gson.annotations.JsonAdapter;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 
@@ -26,14 +27,20 @@ import lombok.Data;
 @AllArgsConstructor
 public class HasMember {
 
+  /** Datastore kind. */
+  public static final String KIND = "HasMember";
+
   /** Unique datastore id. */
-  private String id;
+  @JsonAdapter(Ids.Adapter.class)
+  private long id;
 
   /** A garden id. */
-  private String gardenId;
+  @JsonAdapter(Ids.Adapter.class)
+  private long gardenId;
 
   /** A user id. */
-  private String userId;
+  @JsonAdapter(Ids.Adapter.class)
+  private long userId;
 
   /**
    * Generates a HasMember object from an entity.
@@ -42,25 +49,23 @@ public class HasMember {
    * @return the new HasMember object with the entity's information.
    */
   public static HasMember from(Entity entity) {
-    String id = entity.getKey().getId().toString();
-    String gardenId = entity.getString("garden-id");
-    String userId = entity.getString("user-id");
+    long id = entity.getKey().getId();
+    long gardenId = Ids.get(entity, "garden-id");
+    long userId = Ids.get(entity, "user-id");
     return new HasMember(id, gardenId, userId);
   }
 
   /**
    * Generates an entity from a HasMember.
    *
-   * @param instance The datastore instance the new entity will be associated with.
+   * @param keyFactory a key factory for the HasMember kind.
    * @return the new entity representing the HasMember relationship.
    */
-  public Entity toEntity(DatastoreOptions instance) {
-    // I use a different API here than in the portfolio
-    String projectId = instance.getProjectId();
-    Key key = Key.newBuilder(projectId, "HasMember", Long.parseLong(id)).build();
+  public Entity toEntity(KeyFactory keyFactory) {
+    Key key = keyFactory.newKey(id);
     Builder builder = Entity.newBuilder(key);
-    builder.set("garden-id", gardenId);
-    builder.set("user-id", userId);
+    builder.set("garden-id", Ids.toProperty(gardenId));
+    builder.set("user-id", Ids.toProperty(userId));
     return builder.build();
   }
 }
@@ -0,0 +1,140 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.data;
+
+import com.google.cloud.datastore.BaseEntity;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+import com.google.cloud.datastore.Value;
+import com.google.cloud.datastore.ValueType;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+
+/**
+ * Conversions for Datastore ids. Ids are carried as primitive longs everywhere on the server, and
+ * only become strings at the JSON edge, where the frontend models expect them.
+ */
+public final class Ids {
+
+  /** Returned by {@link #parse} for malformed ids. Datastore ids are always positive. */
+  public static final long INVALID = -1;
+
+  private Ids() {}
+
+  /**
+   * Parses an id from a URL segment or request parameter.
+   *
+   * @param value the decimal id.
+   * @return the id, or INVALID if value is null, malformed, or not positive.
+   */
+  public static long parse(String value) {
+    if (value == null || value.isEmpty() || value.length() > 19) {
+      return INVALID;
+    }
+    long id = 0;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c < '0' || c > '9') {
+        return INVALID;
+      }
+      id = id * 10 + (c - '0');
+      if (id < 0) {
+        // Overflow.
+        return INVALID;
+      }
+    }
+    return id == 0 ? INVALID : id;
+  }
+
+  /**
+   * Reads an id-valued property. Ids are stored as strings, but integer values are accepted too.
+   *
+   * @param entity the entity to read from.
+   * @param property the property holding an id.
+   * @return the id.
+   */
+  public static long get(BaseEntity<?> entity, String property) {
+    Value<?> value = entity.getValue(property);
+    if (value.getType() == ValueType.STRING) {
+      return Long.parseLong(entity.getString(property));
+    }
+    return entity.getLong(property);
+  }
+
+  /**
+   * Converts an id to the value id-valued properties (relation ends, admin ids) are stored as.
+   * Existing entities hold them as strings, and Datastore equality filters only match values of the
+   * same type, so they stay strings.
+   *
+   * @param id the id.
+   * @return the stored value.
+   */
+  public static String toProperty(long id) {
+    return Long.toString(id);
+  }
+
+  /**
+   * Builds a filter matching entities whose id-valued property equals an id.
+   *
+   * @param property the property holding an id.
+   * @param id the id.
+   * @return the filter.
+   */
+  public static PropertyFilter eq(String property, long id) {
+    return PropertyFilter.eq(property, toProperty(id));
+  }
+
+  /**
+   * Serializes a list of ids as a JSON array of strings.
+   *
+   * @param ids the ids to serialize.
+   * @return the JSON array.
+   */
+  public static String toJson(long[] ids) {
+    StringBuilder json = new StringBuilder(2 + ids.length * 20);
+    json.append('[');
+    for (int i = 0; i < ids.length; i++) {
+      if (i > 0) {
+        json.append(',');
+      }
+      json.append('"').append(ids[i]).append('"');
+    }
+    return json.append(']').toString();
+  }
+
+  /**
+   * Gson adapter that writes ids as JSON strings and reads either strings or numbers. Both are held
+   * to {@link #parse}, so negative, zero, fractional and exponent ids are rejected either way.
+   */
+  public static final class Adapter extends TypeAdapter<Long> {
+    @Override
+    public void write(JsonWriter out, Long id) throws IOException {
+      out.value(Long.toString(id));
+    }
+
+    @Override
+    public Long read(JsonReader in) throws IOException {
+      // nextString also returns a number token's literal text, so numbers are parsed the same way.
+      String value = in.nextString();
+      long id = parse(value);
+      if (id == INVALID) {
+        throw new JsonSyntaxException("Malformed id: " + value);
+      }
+      return id;
+    }
+  }
+}
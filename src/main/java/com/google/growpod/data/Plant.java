@@ -14,10 +14,11 @@
 
 package com.google.growpod.data;
 
-import com.google.cloud.datastore.DatastoreOptions;
 import com.google.cloud.datastore.Entity;
 import com.google.cloud.datastore.Entity.Builder;
 import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.gson.annotations.JsonAdapter;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 
@@ -26,8 +27,12 @@ import lombok.Data;
 @AllArgsConstructor
 public class Plant {
 
+  /** Datastore kind. */
+  public static final String KIND = "Plant";
+
   /** A unique id. */
-  private String id;
+  @JsonAdapter(Ids.Adapter.class)
+  private long id;
 
   /** A nickname or null. */
   private String nickname;
@@ -45,7 +50,7 @@ public class Plant {
    * @return the new plant with the entity's information.
    */
   public static Plant from(Entity entity) {
-    String id = entity.getKey().getId().toString();
+    long id = entity.getKey().getId();
     String nickname = entity.getString("nickname");
     Long count = entity.getLong("count");
     String plantTypeId = entity.getString("plant-type-id");
@@ -55,13 +60,11 @@ public class Plant {
   /**
    * Generates an entity from a plant.
    *
-   * @param instance The datastore instance the new entity will be associated with.
+   * @param keyFactory a key factory for the Plant kind.
    * @return the new entity representing a plant.
    */
-  public Entity toEntity(DatastoreOptions instance) {
-    // I use a different API here than in the portfolio
-    String projectId = instance.getProjectId();
-    Key key = Key.newBuilder(projectId, "Plant", Long.parseLong(id)).build();
+  public Entity toEntity(KeyFactory keyFactory) {
+    Key key = keyFactory.newKey(id);
     Builder builder = Entity.newBuilder(key);
     builder.set("nickname", nickname);
     builder.set("count", count);
@@ -0,0 +1,33 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.data;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/** Plant type, an entry of the plant type catalog that Plant.plantTypeId refers to. */
+@Data
+@AllArgsConstructor
+public class PlantType {
+
+  /** Catalog id, referenced by Plant.plantTypeId. */
+  private String id;
+
+  /** Common name, for example "Tomato". */
+  private String name;
+
+  /** Scientific name, for example "Solanum lycopersicum". */
+  private String scientificName;
+}
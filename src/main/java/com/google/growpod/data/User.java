@@ -14,10 +14,11 @@
 
 package com.google.growpod.data;
 
-import com.google.cloud.datastore.DatastoreOptions;
 import com.google.cloud.datastore.Entity;
 import com.google.cloud.datastore.Entity.Builder;
 import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.gson.annotations.JsonAdapter;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 
@@ -26,8 +27,12 @@ import lombok.Data;
 @AllArgsConstructor
 public class User {
 
+  /** Datastore kind. */
+  public static final String KIND = "User";
+
   /** A unique id. */
-  private String id;
+  @JsonAdapter(Ids.Adapter.class)
+  private long id;
 
   /** The user's primary email. */
   private String email;
@@ -51,7 +56,7 @@ public class User {
    * @return the new user with the entity's information.
    */
   public static User from(Entity entity) {
-    String id = entity.getKey().getId().toString();
+    long id = entity.getKey().getId();
     String email = entity.getString("email");
     String preferredName = entity.getString("preferred-name");
     String biography = entity.getString("biography");
@@ -62,13 +67,11 @@ public class User {
   /**
    * Generates an entity from a user.
    *
-   * @param instance The datastore instance the new entity will be associated with.
+   * @param keyFactory a key factory for the User kind.
    * @return the new entity representing a user.
    */
-  public Entity toEntity(DatastoreOptions instance) {
-    // I use a different API here than in the portfolio
-    String projectId = instance.getProjectId();
-    Key key = Key.newBuilder(projectId, "User", Long.parseLong(id)).build();
+  public Entity toEntity(KeyFactory keyFactory) {
+    Key key = keyFactory.newKey(id);
     Builder builder = Entity.newBuilder(key);
     builder.set("email", email);
     builder.set("preferred-name", preferredName);
@@ -0,0 +1,235 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.encoding;
+
+import com.google.growpod.data.FieldSet;
+import com.google.growpod.data.Garden;
+import com.google.growpod.data.GardenCounts;
+import com.google.growpod.data.Plant;
+import com.google.growpod.data.User;
+import com.google.growpod.search.GardenQuadtree.Cluster;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * CBOR encodings of the data classes. Each object is a map with the same keys as its JSON form, and
+ * ids are text strings as in JSON, so the client's models read either format unchanged. Null fields
+ * are written as null, where Gson leaves them out.
+ */
+public final class CborEncoders {
+
+  /** Media type of CBOR responses. */
+  public static final String MEDIA_TYPE = "application/cbor";
+
+  private CborEncoders() {}
+
+  /**
+   * Writes a garden, with its member and plant counts if counts is not null.
+   *
+   * @param out the writer to write to.
+   * @param garden the garden to write.
+   * @param counts the garden's counts, or null to leave them out.
+   */
+  public static void writeGarden(CborWriter out, Garden garden, GardenCounts counts)
+      throws IOException {
+    writeGarden(out, garden, counts, FieldSet.ALL);
+  }
+
+  /**
+   * Writes the requested fields of a garden, with its member and plant counts if counts is not
+   * null.
+   *
+   * @param out the writer to write to.
+   * @param garden the garden to write.
+   * @param counts the garden's counts, or null to leave them out.
+   * @param fields the fields to write.
+   */
+  public static void writeGarden(
+      CborWriter out, Garden garden, GardenCounts counts, FieldSet fields) throws IOException {
+    int size = count(fields, "id", "name", "description", "lat", "lng", "zipCode", "adminId");
+    if (counts != null) {
+      size += count(fields, "memberCount", "plantCount");
+    }
+    out.beginMap(size);
+    if (fields.includes("id")) {
+      out.entry("id", Long.toString(garden.getId()));
+    }
+    if (fields.includes("name")) {
+      out.entry("name", garden.getName());
+    }
+    if (fields.includes("description")) {
+      out.entry("description", garden.getDescription());
+    }
+    if (fields.includes("lat")) {
+      out.entry("lat", garden.getLat());
+    }
+    if (fields.includes("lng")) {
+      out.entry("lng", garden.getLng());
+    }
+    if (fields.includes("zipCode")) {
+      out.entry("zipCode", garden.getZipCode());
+    }
+    if (fields.includes("adminId")) {
+      out.entry("adminId", Long.toString(garden.getAdminId()));
+    }
+    if (counts != null && fields.includes("memberCount")) {
+      out.entry("memberCount", counts.getMemberCount());
+    }
+    if (counts != null && fields.includes("plantCount")) {
+      out.entry("plantCount", counts.getPlantCount());
+    }
+  }
+
+  /**
+   * Writes an array of gardens, each with its counts if known.
+   *
+   * @param out the writer to write to.
+   * @param gardens the gardens to write.
+   * @param counts the counts of each garden keyed by id, or null to leave them out.
+   */
+  public static void writeGardens(
+      CborWriter out, List<Garden> gardens, Map<Long, GardenCounts> counts) throws IOException {
+    writeGardens(out, gardens, counts, FieldSet.ALL);
+  }
+
+  /**
+   * Writes the requested fields of an array of gardens, each with its counts if known.
+   *
+   * @param out the writer to write to.
+   * @param gardens the gardens to write.
+   * @param counts the counts of each garden keyed by id, or null to leave them out.
+   * @param fields the fields to write.
+   */
+  public static void writeGardens(
+      CborWriter out, List<Garden> gardens, Map<Long, GardenCounts> counts, FieldSet fields)
+      throws IOException {
+    out.beginArray(gardens.size());
+    for (Garden garden : gardens) {
+      writeGarden(out, garden, counts == null ? null : counts.get(garden.getId()), fields);
+    }
+  }
+
+  /**
+   * Writes a user.
+   *
+   * @param out the writer to write to.
+   * @param user the user to write.
+   */
+  public static void writeUser(CborWriter out, User user) throws IOException {
+    writeUser(out, user, FieldSet.ALL);
+  }
+
+  /**
+   * Writes the requested fields of a user.
+   *
+   * @param out the writer to write to.
+   * @param user the user to write.
+   * @param fields the fields to write.
+   */
+  public static void writeUser(CborWriter out, User user, FieldSet fields) throws IOException {
+    out.beginMap(count(fields, "id", "email", "preferredName", "biography", "zipCode"));
+    if (fields.includes("id")) {
+      out.entry("id", Long.toString(user.getId()));
+    }
+    if (fields.includes("email")) {
+      out.entry("email", user.getEmail());
+    }
+    if (fields.includes("preferredName")) {
+      out.entry("preferredName", user.getPreferredName());
+    }
+    if (fields.includes("biography")) {
+      out.entry("biography", user.getBiography());
+    }
+    if (fields.includes("zipCode")) {
+      out.entry("zipCode", user.getZipCode());
+    }
+  }
+
+  /**
+   * Writes a plant.
+   *
+   * @param out the writer to write to.
+   * @param plant the plant to write.
+   */
+  public static void writePlant(CborWriter out, Plant plant) throws IOException {
+    writePlant(out, plant, FieldSet.ALL);
+  }
+
+  /**
+   * Writes the requested fields of a plant.
+   *
+   * @param out the writer to write to.
+   * @param plant the plant to write.
+   * @param fields the fields to write.
+   */
+  public static void writePlant(CborWriter out, Plant plant, FieldSet fields) throws IOException {
+    out.beginMap(count(fields, "id", "nickname", "count", "plantTypeId"));
+    if (fields.includes("id")) {
+      out.entry("id", Long.toString(plant.getId()));
+    }
+    if (fields.includes("nickname")) {
+      out.entry("nickname", plant.getNickname());
+    }
+    if (fields.includes("count")) {
+      out.entry("count", plant.getCount());
+    }
+    if (fields.includes("plantTypeId")) {
+      out.entry("plantTypeId", plant.getPlantTypeId());
+    }
+  }
+
+  /**
+   * Writes an array of viewport clusters, each with its garden's id if it holds only one.
+   *
+   * @param out the writer to write to.
+   * @param clusters the clusters to write.
+   */
+  public static void writeClusters(CborWriter out, List<Cluster> clusters) throws IOException {
+    out.beginArray(clusters.size());
+    for (Cluster cluster : clusters) {
+      Long gardenId = cluster.getGardenId();
+      out.beginMap(4);
+      out.entry("count", cluster.getCount());
+      out.entry("lat", cluster.getLat());
+      out.entry("lng", cluster.getLng());
+      out.entry("gardenId", gardenId == null ? null : Long.toString(gardenId));
+    }
+  }
+
+  /**
+   * Writes an array of ids, as text strings like Ids.toJson.
+   *
+   * @param out the writer to write to.
+   * @param ids the ids to write.
+   */
+  public static void writeIds(CborWriter out, long[] ids) throws IOException {
+    out.beginArray(ids.length);
+    for (long id : ids) {
+      out.value(Long.toString(id));
+    }
+  }
+
+  /** Number of the given fields that are included, which is the size of the map they make up. */
+  private static int count(FieldSet fields, String... names) {
+    int size = 0;
+    for (String name : names) {
+      if (fields.includes(name)) {
+        size++;
+      }
+    }
+    return size;
+  }
+}
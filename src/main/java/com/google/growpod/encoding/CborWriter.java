@@ -0,0 +1,153 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.encoding;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streaming writer of CBOR (RFC 8949), the binary counterpart of the JSON responses.
+ *
+ * <p>Only the types the API needs are written: definite-length maps and arrays, text strings,
+ * integers, doubles, booleans and null. Items are written straight to the stream as they come, like
+ * Gson's JsonWriter, so the caller must write exactly as many items as each header announces.
+ */
+public final class CborWriter {
+
+  private static final int UNSIGNED = 0;
+  private static final int NEGATIVE = 1 << 5;
+  private static final int TEXT = 3 << 5;
+  private static final int ARRAY = 4 << 5;
+  private static final int MAP = 5 << 5;
+  private static final int FALSE = 0xf4;
+  private static final int TRUE = 0xf5;
+  private static final int NULL = 0xf6;
+  private static final int DOUBLE = 0xfb;
+
+  private final OutputStream out;
+  private final byte[] scratch = new byte[9];
+
+  /**
+   * Creates a writer. Writes are small, so out should be buffered.
+   *
+   * @param out the stream to write to.
+   */
+  public CborWriter(OutputStream out) {
+    this.out = out;
+  }
+
+  /** Begins a map of size key/value pairs. */
+  public CborWriter beginMap(int size) throws IOException {
+    writeHead(MAP, size);
+    return this;
+  }
+
+  /** Begins an array of size items. */
+  public CborWriter beginArray(int size) throws IOException {
+    writeHead(ARRAY, size);
+    return this;
+  }
+
+  /** Writes a text string, or null. */
+  public CborWriter value(String value) throws IOException {
+    if (value == null) {
+      return nullValue();
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    writeHead(TEXT, bytes.length);
+    out.write(bytes);
+    return this;
+  }
+
+  /** Writes an integer, in as few bytes as it fits. */
+  public CborWriter value(long value) throws IOException {
+    if (value >= 0) {
+      writeHead(UNSIGNED, value);
+    } else {
+      // -1 - n encodes n; the complement never overflows.
+      writeHead(NEGATIVE, ~value);
+    }
+    return this;
+  }
+
+  /** Writes a double. */
+  public CborWriter value(double value) throws IOException {
+    long bits = Double.doubleToLongBits(value);
+    scratch[0] = (byte) DOUBLE;
+    for (int i = 0; i < 8; i++) {
+      scratch[1 + i] = (byte) (bits >>> (56 - 8 * i));
+    }
+    out.write(scratch, 0, 9);
+    return this;
+  }
+
+  /** Writes a boolean. */
+  public CborWriter value(boolean value) throws IOException {
+    out.write(value ? TRUE : FALSE);
+    return this;
+  }
+
+  /** Writes null. */
+  public CborWriter nullValue() throws IOException {
+    out.write(NULL);
+    return this;
+  }
+
+  /** Writes a map entry whose value is a string. */
+  public CborWriter entry(String key, String value) throws IOException {
+    return value(key).value(value);
+  }
+
+  /** Writes a map entry whose value is an integer. */
+  public CborWriter entry(String key, long value) throws IOException {
+    return value(key).value(value);
+  }
+
+  /** Writes a map entry whose value is a double. */
+  public CborWriter entry(String key, double value) throws IOException {
+    return value(key).value(value);
+  }
+
+  /** Flushes the underlying stream. */
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  /** Writes an item's initial byte, with its argument in the shortest form. */
+  private void writeHead(int major, long argument) throws IOException {
+    int length;
+    if (argument < 24) {
+      scratch[0] = (byte) (major | argument);
+      length = 1;
+    } else if (argument < 1L << 8) {
+      scratch[0] = (byte) (major | 24);
+      length = 2;
+    } else if (argument < 1L << 16) {
+      scratch[0] = (byte) (major | 25);
+      length = 3;
+    } else if (argument < 1L << 32) {
+      scratch[0] = (byte) (major | 26);
+      length = 5;
+    } else {
+      scratch[0] = (byte) (major | 27);
+      length = 9;
+    }
+    for (int i = 1; i < length; i++) {
+      scratch[i] = (byte) (argument >>> (8 * (length - 1 - i)));
+    }
+    out.write(scratch, 0, length);
+  }
+}
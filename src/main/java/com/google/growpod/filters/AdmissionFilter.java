@@ -0,0 +1,191 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.filters;
+
+import com.google.growpod.util.Metrics;
+import com.google.growpod.util.TokenBucket;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Admission control for the data routes, so one client cannot exhaust the Datastore quota and an
+ * overloaded instance sheds load instead of queueing without bound.
+ *
+ * <p>Each client IP, and each user session, has a token bucket; requests beyond their rate get 429
+ * TOO MANY REQUESTS with a Retry-After header. Requests that pass are limited to `maxInFlight` at
+ * once; up to `maxQueued` more wait at most `maxQueueMillis` for a slot, and the rest get 503
+ * SERVICE UNAVAILABLE immediately. Every threshold can be overridden by a filter init parameter.
+ */
+public class AdmissionFilter implements Filter {
+
+  /** Most buckets kept before idle ones are dropped. */
+  private static final int MAX_BUCKETS = 100000;
+
+  private double ipPerSecond = 20;
+  private int ipBurst = 40;
+  private double userPerSecond = 10;
+  private int userBurst = 20;
+  private int maxInFlight = 64;
+  private int maxQueued = 64;
+  private long maxQueueMillis = 500;
+
+  private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<String, TokenBucket>();
+  private final AtomicBoolean sweeping = new AtomicBoolean();
+  private final AtomicInteger queued = new AtomicInteger();
+  private Semaphore slots;
+
+  private final LongAdder rejectedIp = Metrics.counter("admission.rejected.ip");
+  private final LongAdder rejectedUser = Metrics.counter("admission.rejected.user");
+  private final LongAdder shedQueueFull = Metrics.counter("admission.shed.queueFull");
+  private final LongAdder shedQueueTimeout = Metrics.counter("admission.shed.queueTimeout");
+  private final LongAdder queuedTotal = Metrics.counter("admission.queued");
+
+  @Override
+  public void init(FilterConfig config) throws ServletException {
+    ipPerSecond = doubleParameter(config, "ipPerSecond", ipPerSecond);
+    ipBurst = (int) doubleParameter(config, "ipBurst", ipBurst);
+    userPerSecond = doubleParameter(config, "userPerSecond", userPerSecond);
+    userBurst = (int) doubleParameter(config, "userBurst", userBurst);
+    maxInFlight = (int) doubleParameter(config, "maxInFlight", maxInFlight);
+    maxQueued = (int) doubleParameter(config, "maxQueued", maxQueued);
+    maxQueueMillis = (long) doubleParameter(config, "maxQueueMillis", maxQueueMillis);
+    slots = new Semaphore(maxInFlight);
+    Metrics.register("admission", this::report);
+  }
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+      throws IOException, ServletException {
+    HttpServletRequest httpRequest = (HttpServletRequest) request;
+    HttpServletResponse httpResponse = (HttpServletResponse) response;
+    long now = System.nanoTime();
+
+    // TODO(Issue #34): Limit by user id once oauth works; sessions stand in for users until then.
+    HttpSession session = httpRequest.getSession(false);
+    if (session != null) {
+      long wait = bucket("user:" + session.getId(), userPerSecond, userBurst, now).tryAcquire(now);
+      if (wait > 0) {
+        rejectedUser.increment();
+        tooManyRequests(httpResponse, wait);
+        return;
+      }
+    }
+    long wait = bucket("ip:" + request.getRemoteAddr(), ipPerSecond, ipBurst, now).tryAcquire(now);
+    if (wait > 0) {
+      rejectedIp.increment();
+      tooManyRequests(httpResponse, wait);
+      return;
+    }
+
+    if (!slots.tryAcquire()) {
+      // Waits for a slot only while the queue is short.
+      if (queued.incrementAndGet() > maxQueued) {
+        queued.decrementAndGet();
+        shedQueueFull.increment();
+        unavailable(httpResponse);
+        return;
+      }
+      queuedTotal.increment();
+      boolean admitted;
+      try {
+        admitted = slots.tryAcquire(maxQueueMillis, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        admitted = false;
+      } finally {
+        queued.decrementAndGet();
+      }
+      if (!admitted) {
+        shedQueueTimeout.increment();
+        unavailable(httpResponse);
+        return;
+      }
+    }
+    try {
+      chain.doFilter(request, response);
+    } finally {
+      slots.release();
+    }
+  }
+
+  @Override
+  public void destroy() {}
+
+  /** Returns the bucket of a client, creating it full on first use. */
+  private TokenBucket bucket(String client, double perSecond, int burst, long now) {
+    TokenBucket bucket = buckets.get(client);
+    if (bucket != null) {
+      return bucket;
+    }
+    if (buckets.size() >= MAX_BUCKETS && sweeping.compareAndSet(false, true)) {
+      try {
+        // Full buckets are indistinguishable from new ones, so dropping them is free.
+        buckets.values().removeIf(idle -> idle.isFull(now));
+      } finally {
+        sweeping.set(false);
+      }
+    }
+    return buckets.computeIfAbsent(client, created -> new TokenBucket(perSecond, burst, now));
+  }
+
+  private void tooManyRequests(HttpServletResponse response, long waitNanos) throws IOException {
+    long seconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos + 999999999));
+    response.setHeader("Retry-After", Long.toString(seconds));
+    response.sendError(429, "Too many requests");
+  }
+
+  private void unavailable(HttpServletResponse response) throws IOException {
+    response.setHeader("Retry-After", "1");
+    response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Server overloaded");
+  }
+
+  private static double doubleParameter(FilterConfig config, String name, double defaultValue)
+      throws ServletException {
+    String value = config.getInitParameter(name);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      throw new ServletException("Malformed filter parameter " + name + ": " + value, e);
+    }
+  }
+
+  /** Current load of this filter. */
+  private Object report() {
+    Map<String, Object> report = new LinkedHashMap<String, Object>();
+    report.put("inFlight", maxInFlight - slots.availablePermits());
+    report.put("queued", queued.get());
+    report.put("buckets", buckets.size());
+    return report;
+  }
+}
@@ -0,0 +1,230 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.filters;
+
+import com.google.growpod.util.Metrics;
+import com.google.growpod.util.RecentWrites;
+import com.google.growpod.util.RequestContext;
+import com.google.growpod.util.ServiceUnavailableException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Sets up the {@link RequestContext} of each request on the data routes.
+ *
+ * <p>Each request gets a latency budget, which DAOs check before every Datastore call. Once it runs
+ * out, or while Datastore is unavailable, the request fails fast with 503 SERVICE UNAVAILABLE
+ * rather than waiting on client library retries. Responses built partly from stale copies of data
+ * get a `Warning: 110` header, and an `Age` header giving the oldest copy's age in seconds.
+ *
+ * <p>Budgets are set per route, by servlet path. `defaultBudgetMillis` sets the budget of routes
+ * without one, and `routeBudgets` overrides the table of route budgets, for example
+ * "/find-gardens=3000,/search-gardens=3000". `hedgeReads` turns hedging of single-entity reads on
+ * or off.
+ *
+ * <p>Consistency is also set per route. GET requests on routes mapped to "eventual" read with
+ * eventual consistency; everything else reads strongly. `routeConsistency` overrides the table,
+ * which maps request paths to "strong" or "eventual", for example
+ * "/user/current=strong,/user/*=eventual". The first matching path wins, and `*` matches one path
+ * segment. Paths that must read their own writes, such as the current user's garden list, stay
+ * strong. The table and the reads made in each mode are reported in the metrics.
+ *
+ * <p>Relation lists are queried, and Datastore queries may miss writes made just before them, so
+ * each session keeps a {@link RecentWrites} overlay of its own membership and plant writes, merged
+ * into the lists it reads. Writes start a session if there is none; the overlay is saved back to
+ * the session only when it changed.
+ */
+public class RequestContextFilter implements Filter {
+
+  /** Session attribute holding the session's {@link RecentWrites}. */
+  static final String RECENT_WRITES_ATTRIBUTE = "recentWrites";
+
+  private long defaultBudgetMillis = 10000;
+  private boolean hedgeReads = true;
+  private Map<String, Long> routeBudgets = parseBudgets("/find-gardens=5000,/search-gardens=5000");
+  private Map<String, Boolean> routeConsistency =
+      parseConsistency(
+          "/user/current=strong,/user/*=eventual,/find-gardens=eventual,/search-gardens=eventual");
+
+  @Override
+  public void init(FilterConfig config) throws ServletException {
+    try {
+      String value = config.getInitParameter("defaultBudgetMillis");
+      if (value != null) {
+        defaultBudgetMillis = Long.parseLong(value);
+      }
+      value = config.getInitParameter("routeBudgets");
+      if (value != null) {
+        routeBudgets = parseBudgets(value);
+      }
+      value = config.getInitParameter("routeConsistency");
+      if (value != null) {
+        routeConsistency = parseConsistency(value);
+      }
+    } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+      throw new ServletException("Malformed filter parameter: " + e.getMessage(), e);
+    }
+    String value = config.getInitParameter("hedgeReads");
+    if (value != null) {
+      hedgeReads = Boolean.parseBoolean(value);
+    }
+    Metrics.register("consistency", this::report);
+  }
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+      throws IOException, ServletException {
+    HttpServletRequest httpRequest = (HttpServletRequest) request;
+    String route = httpRequest.getServletPath();
+    long budgetMillis = routeBudgets.getOrDefault(route, defaultBudgetMillis);
+    boolean eventualReads = "GET".equals(httpRequest.getMethod()) && isEventual(httpRequest);
+    RequestContext context = RequestContext.begin(route, budgetMillis, hedgeReads, eventualReads);
+    // TODO(Issue #34): Keep overlays per user once oauth works; sessions stand in for users.
+    HttpSession session = httpRequest.getSession(!"GET".equals(httpRequest.getMethod()));
+    if (session != null) {
+      RecentWrites recentWrites = (RecentWrites) session.getAttribute(RECENT_WRITES_ATTRIBUTE);
+      context.setRecentWrites(recentWrites == null ? new RecentWrites() : recentWrites);
+    }
+    try {
+      chain.doFilter(request, new StaleWarningResponse((HttpServletResponse) response, context));
+    } catch (ServiceUnavailableException e) {
+      HttpServletResponse httpResponse = (HttpServletResponse) response;
+      if (!httpResponse.isCommitted()) {
+        httpResponse.setHeader("Retry-After", "1");
+        httpResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+      }
+    } finally {
+      RequestContext.end();
+      if (session != null && context.getRecentWrites().isDirty()) {
+        // Setting the attribute again is what makes App Engine save the changed overlay.
+        session.setAttribute(RECENT_WRITES_ATTRIBUTE, context.getRecentWrites());
+        context.getRecentWrites().markSaved();
+      }
+    }
+  }
+
+  @Override
+  public void destroy() {}
+
+  /** Adds the stale data headers, if the request needs them, before the body is written. */
+  private static final class StaleWarningResponse extends HttpServletResponseWrapper {
+
+    private final RequestContext context;
+
+    StaleWarningResponse(HttpServletResponse response, RequestContext context) {
+      super(response);
+      this.context = context;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+      addStaleHeaders();
+      return super.getWriter();
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+      addStaleHeaders();
+      return super.getOutputStream();
+    }
+
+    private void addStaleHeaders() {
+      long ageMillis = context.getStaleAgeMillis();
+      if (ageMillis >= 0 && !isCommitted()) {
+        setHeader("Warning", "110 - \"Response is Stale\"");
+        setHeader("Age", Long.toString(ageMillis / 1000));
+      }
+    }
+  }
+
+  /** Whether the request's path is mapped to eventual reads, by its first matching path. */
+  private boolean isEventual(HttpServletRequest request) {
+    String pathInfo = request.getPathInfo();
+    String[] path = (request.getServletPath() + (pathInfo == null ? "" : pathInfo)).split("/");
+    for (Map.Entry<String, Boolean> entry : routeConsistency.entrySet()) {
+      if (matches(entry.getKey().split("/"), path)) {
+        return entry.getValue();
+      }
+    }
+    return false;
+  }
+
+  /** Whether a path matches a pattern segment by segment, with `*` matching any one segment. */
+  private static boolean matches(String[] pattern, String[] path) {
+    if (pattern.length != path.length) {
+      return false;
+    }
+    for (int i = 0; i < pattern.length; i++) {
+      if (!pattern[i].equals("*") && !pattern[i].equals(path[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Reports the consistency of each path, in matching order. */
+  private Object report() {
+    Map<String, String> report = new LinkedHashMap<String, String>();
+    for (Map.Entry<String, Boolean> entry : routeConsistency.entrySet()) {
+      report.put(entry.getKey(), entry.getValue() ? "eventual" : "strong");
+    }
+    report.put("default", "strong");
+    return report;
+  }
+
+  /** Parses "path=strong,path=eventual", keeping the order. */
+  private static Map<String, Boolean> parseConsistency(String value) {
+    Map<String, Boolean> consistency = new LinkedHashMap<String, Boolean>();
+    for (String entry : value.split(",")) {
+      if (entry.trim().isEmpty()) {
+        continue;
+      }
+      String[] parts = entry.split("=");
+      String mode = parts[1].trim();
+      if (!mode.equals("strong") && !mode.equals("eventual")) {
+        throw new IllegalArgumentException("Unknown consistency: " + mode);
+      }
+      consistency.put(parts[0].trim(), mode.equals("eventual"));
+    }
+    return consistency;
+  }
+
+  /** Parses "route=millis,route=millis". */
+  private static Map<String, Long> parseBudgets(String value) {
+    Map<String, Long> budgets = new HashMap<String, Long>();
+    for (String entry : value.split(",")) {
+      if (entry.trim().isEmpty()) {
+        continue;
+      }
+      String[] parts = entry.split("=");
+      budgets.put(parts[0].trim(), Long.parseLong(parts[1].trim()));
+    }
+    return budgets;
+  }
+}
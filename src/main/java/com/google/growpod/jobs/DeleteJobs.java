@@ -0,0 +1,331 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.jobs;
+
+import com.google.growpod.controllers.Storages;
+import com.google.growpod.data.DeleteJob;
+import com.google.growpod.data.Garden;
+import com.google.growpod.data.User;
+import com.google.growpod.schedule.CareScheduler;
+import com.google.growpod.search.GardenQuadtree;
+import com.google.growpod.search.GardenSearchIndex;
+import com.google.growpod.storage.Storage;
+import com.google.growpod.util.Metrics;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs cascading deletes of gardens and users as background jobs, so the DELETE request returns at
+ * once however many relations and plants have to go with the record.
+ *
+ * <p>A job is stored before it is scheduled, then deletes a page of records at a time on a worker
+ * pool, each page split into batches deleted in parallel by the storage. The job is checkpointed
+ * after every page with its progress. Pages pick up whatever is left, so resuming, or running a
+ * page twice, is safe. A page that fails is retried with backoff, up to {@link #MAX_ATTEMPTS} times
+ * in a row, after which the run stops. The job is then run again after a delay doubled on every
+ * failed run, and only marked failed after {@link #MAX_RUNS} runs.
+ *
+ * <p>Every server instance runs its own workers, so a job is leased to the instance running it for
+ * {@link #LEASE_MILLIS}, and the lease is renewed at every checkpoint. Instances look for
+ * unfinished jobs every {@link #LEASE_MILLIS}, and claim those whose lease ran out in a
+ * transaction, so a job whose instance stopped, or was frozen between requests as App Engine does
+ * with background threads, is taken over by another one. An instance that loses the lease stops at
+ * its next checkpoint.
+ *
+ * <p>Deleting a user starts a job of its own for every garden they administer, stored before the
+ * user is deleted, so none is left behind if the user's job is interrupted.
+ *
+ * <p>Jobs started, finished, failed and records deleted are counted under "deletejobs".
+ */
+public class DeleteJobs {
+
+  /** Records deleted per page, split by the storage into batches of at most 500. */
+  static final int PAGE_SIZE = 2000;
+
+  /** Failed pages in a row before a job is marked failed. */
+  static final int MAX_ATTEMPTS = 5;
+
+  /** Delay before the first retry of a failed page, doubled on every further retry. */
+  private static final long RETRY_DELAY_MILLIS = 1000;
+
+  /** How long a job stays leased to its instance after each checkpoint. */
+  static final long LEASE_MILLIS = 60 * 1000;
+
+  /** Runs stopped by errors before a job is marked failed. */
+  static final int MAX_RUNS = 5;
+
+  /** Delay before the first rerun of a job whose run failed, doubled on every further rerun. */
+  private static final long RERUN_DELAY_MILLIS = 60 * 1000;
+
+  private static final Logger logger = Logger.getLogger(DeleteJobs.class.getName());
+
+  private static final LongAdder started = Metrics.counter("deletejobs.started");
+  private static final LongAdder done = Metrics.counter("deletejobs.done");
+  private static final LongAdder failed = Metrics.counter("deletejobs.failed");
+  private static final LongAdder deleted = Metrics.counter("deletejobs.deleted");
+
+  private static DeleteJobs instance;
+
+  private final Storage storage;
+  private final ScheduledExecutorService workers;
+  private final ExecutorService batches;
+
+  /** Scheduler whose schedules of deleted gardens are dropped, if any. */
+  private CareScheduler scheduler;
+
+  /** Ids of this instance's unfinished jobs, by "{kind}/{id}" of what they delete. */
+  private final Map<String, Long> active = new ConcurrentHashMap<String, Long>();
+
+  /** Owner of this instance's leases. */
+  private final String owner = UUID.randomUUID().toString();
+
+  private long retryDelayMillis = RETRY_DELAY_MILLIS;
+
+  /**
+   * Initializes delete jobs on a storage.
+   *
+   * @param storage the storage to delete from, which also holds the jobs.
+   * @param workerCount how many jobs run at once.
+   * @param batchThreads how many batches of a page are deleted at once.
+   */
+  public DeleteJobs(Storage storage, int workerCount, int batchThreads) {
+    this.storage = storage;
+    this.workers = Executors.newScheduledThreadPool(workerCount, daemonThreads("delete-job"));
+    this.batches = Executors.newFixedThreadPool(batchThreads, daemonThreads("delete-batch"));
+  }
+
+  /**
+   * Returns the jobs of this server instance, on the default storage, taking over unfinished jobs
+   * whose lease runs out from now on.
+   *
+   * @return the shared jobs.
+   */
+  public static synchronized DeleteJobs getInstance() {
+    if (instance == null) {
+      instance = new DeleteJobs(Storages.getDefault(), 2, 4);
+      instance.setScheduler(CareScheduler.getInstance());
+      instance.workers.scheduleWithFixedDelay(
+          () -> {
+            try {
+              instance.resume();
+            } catch (RuntimeException e) {
+              logger.log(Level.WARNING, "Could not resume delete jobs", e);
+            }
+          },
+          0,
+          LEASE_MILLIS,
+          TimeUnit.MILLISECONDS);
+    }
+    return instance;
+  }
+
+  /**
+   * Starts deleting a garden, along with its memberships and its plants.
+   *
+   * @param gardenId the garden's id.
+   * @return the job, as stored.
+   */
+  public DeleteJob deleteGarden(long gardenId) {
+    return submit(Garden.KIND, gardenId);
+  }
+
+  /**
+   * Starts deleting a user, along with their memberships and the gardens they administer.
+   *
+   * @param userId the user's id.
+   * @return the job, as stored.
+   */
+  public DeleteJob deleteUser(long userId) {
+    return submit(User.KIND, userId);
+  }
+
+  /**
+   * Retrieves a job as of its latest checkpoint.
+   *
+   * @param jobId the job's id.
+   * @return the job, or null if it does not exist.
+   */
+  public DeleteJob getJob(long jobId) {
+    return storage.getDeleteJob(jobId);
+  }
+
+  /** Claims and schedules every stored job that has not finished and whose lease is free. */
+  public void resume() {
+    long now = System.currentTimeMillis();
+    for (DeleteJob job : storage.getUnfinishedDeleteJobs()) {
+      // Leased to a live instance, or waiting to be rerun.
+      if (job.getOwner() != null && job.getLeaseExpiresMillis() > now) {
+        continue;
+      }
+      String target = job.getTargetKind() + "/" + job.getTargetId();
+      if (active.putIfAbsent(target, job.getId()) != null) {
+        continue;
+      }
+      job.setOwner(owner);
+      job.setLeaseExpiresMillis(now + LEASE_MILLIS);
+      if (storage.leaseDeleteJob(job, now)) {
+        schedule(job, 0, 0);
+      } else {
+        active.remove(target, job.getId());
+      }
+    }
+  }
+
+  /**
+   * Stops the workers. Unfinished jobs are taken over by another instance once their leases run
+   * out.
+   */
+  public void shutdown() {
+    workers.shutdownNow();
+    batches.shutdownNow();
+  }
+
+  /** Stores a new job and schedules it, unless the same record is being deleted already. */
+  private synchronized DeleteJob submit(String kind, long targetId) {
+    Long activeId = active.get(kind + "/" + targetId);
+    if (activeId != null) {
+      DeleteJob job = storage.getDeleteJob(activeId);
+      if (job != null) {
+        return job;
+      }
+    }
+    long now = System.currentTimeMillis();
+    DeleteJob job =
+        new DeleteJob(
+            0, kind, targetId, DeleteJob.PENDING, 0, null, now, owner, now + LEASE_MILLIS, 0);
+    storage.putDeleteJob(job);
+    active.put(kind + "/" + targetId, job.getId());
+    started.increment();
+    schedule(job, 0, 0);
+    return job;
+  }
+
+  private void schedule(DeleteJob job, int attempt, long delayMillis) {
+    workers.schedule(() -> run(job, attempt), delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /** Deletes pages until none is left, checkpointing after each. */
+  private void run(DeleteJob job, int attempt) {
+    try {
+      if (!DeleteJob.RUNNING.equals(job.getState())) {
+        job.setState(DeleteJob.RUNNING);
+        if (!checkpoint(job)) {
+          release(job);
+          return;
+        }
+      }
+      if (Garden.KIND.equals(job.getTargetKind())) {
+        GardenSearchIndex.getInstance().remove(job.getTargetId());
+        GardenQuadtree.getInstance().remove(job.getTargetId());
+        if (scheduler != null) {
+          scheduler.invalidate(job.getTargetId());
+        }
+      } else {
+        for (long gardenId : storage.getAdminGardenIds(job.getTargetId())) {
+          submit(Garden.KIND, gardenId);
+        }
+      }
+
+      int pageCount;
+      do {
+        pageCount =
+            Garden.KIND.equals(job.getTargetKind())
+                ? storage.deleteGardenPage(job.getTargetId(), PAGE_SIZE, batches)
+                : storage.deleteUserPage(job.getTargetId(), PAGE_SIZE, batches);
+        deleted.add(pageCount);
+        job.setDeletedCount(job.getDeletedCount() + pageCount);
+        if (!checkpoint(job)) {
+          release(job);
+          return;
+        }
+        // A page that succeeds resets the retries.
+        attempt = 0;
+      } while (pageCount > 0);
+
+      job.setState(DeleteJob.DONE);
+      checkpoint(job);
+      active.remove(job.getTargetKind() + "/" + job.getTargetId(), job.getId());
+      done.increment();
+    } catch (RuntimeException e) {
+      if (attempt + 1 < MAX_ATTEMPTS) {
+        logger.log(Level.INFO, "Retrying delete job " + job.getId(), e);
+        schedule(job, attempt + 1, retryDelayMillis << attempt);
+        return;
+      }
+      logger.log(Level.WARNING, "Delete job " + job.getId() + " failed", e);
+      long now = System.currentTimeMillis();
+      job.setFailedRuns(job.getFailedRuns() + 1);
+      job.setError(String.valueOf(e.getMessage()));
+      job.setUpdatedMillis(now);
+      if (job.getFailedRuns() < MAX_RUNS) {
+        // The lease is kept until the rerun is due, then claimed by whichever instance looks first.
+        job.setState(DeleteJob.PENDING);
+        job.setLeaseExpiresMillis(now + (RERUN_DELAY_MILLIS << (job.getFailedRuns() - 1)));
+      } else {
+        job.setState(DeleteJob.FAILED);
+        failed.increment();
+      }
+      try {
+        storage.leaseDeleteJob(job, now);
+      } catch (RuntimeException checkpointFailure) {
+        // Left running in storage, so it is taken over once its lease runs out.
+        logger.log(
+            Level.WARNING, "Could not record the failure of " + job.getId(), checkpointFailure);
+      }
+      active.remove(job.getTargetKind() + "/" + job.getTargetId(), job.getId());
+    }
+  }
+
+  /** Stores the job's progress and renews its lease, or returns false if the lease is lost. */
+  private boolean checkpoint(DeleteJob job) {
+    long now = System.currentTimeMillis();
+    job.setUpdatedMillis(now);
+    job.setLeaseExpiresMillis(now + LEASE_MILLIS);
+    return storage.leaseDeleteJob(job, now);
+  }
+
+  /** Stops running a job that another instance took over, or that finished elsewhere. */
+  private void release(DeleteJob job) {
+    logger.info("Delete job " + job.getId() + " is leased to another instance");
+    active.remove(job.getTargetKind() + "/" + job.getTargetId(), job.getId());
+  }
+
+  public void setScheduler(CareScheduler scheduler) {
+    this.scheduler = scheduler;
+  }
+
+  public void setRetryDelayMillis(long retryDelayMillis) {
+    this.retryDelayMillis = retryDelayMillis;
+  }
+
+  private static ThreadFactory daemonThreads(String name) {
+    AtomicInteger count = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+}
@@ -0,0 +1,139 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.schedule;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Recurring care rules for each plant type, for example "water every 2 days". Rules are loaded from
+ * a bundled file; plant types without rules of their own use the default ones.
+ */
+public final class CareRules {
+
+  /** Classpath resource holding the bundled rules. */
+  public static final String RESOURCE = "/care-rules.tsv";
+
+  /** Plant type id of the default rules. */
+  private static final String DEFAULT_TYPE = "*";
+
+  /** A task repeated every `everyDays` days, which may be done for `windowDays` days. */
+  static final class Rule {
+    final String task;
+    final int everyDays;
+    final int windowDays;
+
+    Rule(String task, int everyDays, int windowDays) {
+      this.task = task;
+      this.everyDays = everyDays;
+      this.windowDays = windowDays;
+    }
+  }
+
+  private final Map<String, Rule[]> rulesByType;
+  private final Rule[] defaultRules;
+  private final int maxWindowDays;
+
+  private CareRules(Map<String, Rule[]> rulesByType) {
+    this.rulesByType = rulesByType;
+    Rule[] defaults = rulesByType.get(DEFAULT_TYPE);
+    this.defaultRules = defaults == null ? new Rule[0] : defaults;
+    int maxWindow = 1;
+    for (Rule[] rules : rulesByType.values()) {
+      for (Rule rule : rules) {
+        maxWindow = Math.max(maxWindow, rule.windowDays);
+      }
+    }
+    this.maxWindowDays = maxWindow;
+  }
+
+  /**
+   * Parses rules. Each line holds a plant type id, a task, its period and its window in days,
+   * separated by tabs. Blank lines and lines starting with '#' are skipped.
+   *
+   * @param reader the rules' contents.
+   * @return the rules.
+   * @throws IOException if reading fails.
+   * @throws IllegalArgumentException if a line is malformed.
+   */
+  public static CareRules parse(Reader reader) throws IOException {
+    Map<String, List<Rule>> rules = new HashMap<String, List<Rule>>();
+    BufferedReader lines = new BufferedReader(reader);
+    String line = lines.readLine();
+    for (int number = 1; line != null; number++, line = lines.readLine()) {
+      if (line.trim().isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      String[] row = line.split("\t");
+      int everyDays;
+      int windowDays;
+      try {
+        everyDays = row.length == 4 ? Integer.parseInt(row[2]) : 0;
+        windowDays = row.length == 4 ? Integer.parseInt(row[3]) : 0;
+      } catch (NumberFormatException e) {
+        everyDays = 0;
+        windowDays = 0;
+      }
+      if (everyDays < 1 || windowDays < 1) {
+        throw new IllegalArgumentException("Malformed care rule on line " + number);
+      }
+      rules
+          .computeIfAbsent(row[0], type -> new ArrayList<Rule>())
+          .add(new Rule(row[1], everyDays, windowDays));
+    }
+
+    Map<String, Rule[]> rulesByType = new HashMap<String, Rule[]>();
+    for (Map.Entry<String, List<Rule>> entry : rules.entrySet()) {
+      rulesByType.put(entry.getKey(), entry.getValue().toArray(new Rule[0]));
+    }
+    return new CareRules(rulesByType);
+  }
+
+  /**
+   * Loads the bundled rules.
+   *
+   * @return the rules.
+   */
+  public static CareRules loadBundled() {
+    InputStream stream = CareRules.class.getResourceAsStream(RESOURCE);
+    if (stream == null) {
+      throw new IllegalStateException("Missing care rules: " + RESOURCE);
+    }
+    try (Reader reader = new InputStreamReader(stream, StandardCharsets.UTF_8)) {
+      return parse(reader);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unreadable care rules: " + RESOURCE, e);
+    }
+  }
+
+  /** The rules of a plant type, or the default rules if it has none. */
+  Rule[] forType(String plantTypeId) {
+    Rule[] rules = plantTypeId == null ? null : rulesByType.get(plantTypeId);
+    return rules == null ? defaultRules : rules;
+  }
+
+  /** The longest window of any rule, bounding how long an occurrence stays due. */
+  int getMaxWindowDays() {
+    return maxWindowDays;
+  }
+}
@@ -0,0 +1,181 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.schedule;
+
+import com.google.growpod.data.CareTask;
+import com.google.growpod.data.Plant;
+import com.google.growpod.schedule.CareRules.Rule;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Care tasks of one garden's plants, materialized lazily in time order.
+ *
+ * <p>Every (plant, rule) pair is a stream of occurrences. A min-heap orders the streams by their
+ * next due day; extending the schedule pops the earliest stream, appends its occurrence and pushes
+ * it back, so occurrences are generated already sorted and only once. They are kept in primitive
+ * arrays sorted by due day, and since no occurrence stays due longer than the longest rule window,
+ * a range query is a binary search on due days followed by a scan of the overlapping ones.
+ *
+ * <p>Plants have no planting date yet, so each plant's recurrences are anchored at a day derived
+ * from its id, which also spreads the garden's work over each cycle.
+ */
+final class CareSchedule {
+
+  private final long gardenId;
+  private final int maxWindowDays;
+
+  /** First day covered; earlier occurrences were never generated. */
+  private final long originDay;
+
+  // Streams: one per plant and rule.
+  private final long[] streamPlantIds;
+  private final Rule[] streamRules;
+  private final long[] nextDueDays;
+
+  /** Stream indexes, as a binary min-heap on nextDueDays. */
+  private final int[] heap;
+
+  // Occurrences, sorted by due day.
+  private long[] dueDays = new long[64];
+  private int[] streams = new int[64];
+  private int size;
+
+  /** Day up to which every occurrence has been generated, exclusive. */
+  private long materializedUntil;
+
+  CareSchedule(long gardenId, List<Plant> plants, CareRules rules, long originDay) {
+    this.gardenId = gardenId;
+    this.maxWindowDays = rules.getMaxWindowDays();
+    this.originDay = originDay;
+
+    List<Long> plantIds = new ArrayList<Long>();
+    List<Rule> plantRules = new ArrayList<Rule>();
+    for (Plant plant : plants) {
+      for (Rule rule : rules.forType(plant.getPlantTypeId())) {
+        plantIds.add(plant.getId());
+        plantRules.add(rule);
+      }
+    }
+    int count = plantIds.size();
+    streamPlantIds = new long[count];
+    streamRules = plantRules.toArray(new Rule[0]);
+    nextDueDays = new long[count];
+    heap = new int[count];
+    for (int i = 0; i < count; i++) {
+      streamPlantIds[i] = plantIds.get(i);
+      long phase = Math.floorMod(streamPlantIds[i], (long) streamRules[i].everyDays);
+      // Starts early enough to catch occurrences still due on originDay.
+      long start = originDay - streamRules[i].windowDays + 1;
+      nextDueDays[i] = start + Math.floorMod(phase - start, (long) streamRules[i].everyDays);
+      heap[i] = i;
+    }
+    for (int i = count / 2 - 1; i >= 0; i--) {
+      siftDown(i);
+    }
+    materializedUntil = originDay - maxWindowDays + 1;
+  }
+
+  /** First day this schedule can answer queries for. */
+  long getOriginDay() {
+    return originDay;
+  }
+
+  /**
+   * Finds the occurrences due at any time during [fromDay, toDay].
+   *
+   * @param fromDay the first day, as an epoch day, at least getOriginDay().
+   * @param toDay the last day, as an epoch day.
+   * @return the tasks, ordered by due day.
+   */
+  synchronized List<CareTask> query(long fromDay, long toDay) {
+    materialize(toDay + 1);
+
+    // Occurrences overlapping fromDay are due at most maxWindowDays earlier.
+    int first = lowerBound(fromDay - maxWindowDays + 1);
+    List<CareTask> tasks = new ArrayList<CareTask>();
+    for (int i = first; i < size && dueDays[i] <= toDay; i++) {
+      Rule rule = streamRules[streams[i]];
+      long lastDay = dueDays[i] + rule.windowDays - 1;
+      if (lastDay < fromDay) {
+        continue;
+      }
+      tasks.add(
+          new CareTask(
+              gardenId,
+              streamPlantIds[streams[i]],
+              rule.task,
+              LocalDate.ofEpochDay(dueDays[i]).toString(),
+              LocalDate.ofEpochDay(lastDay).toString()));
+    }
+    return tasks;
+  }
+
+  /** Generates every occurrence due before untilDay. */
+  private void materialize(long untilDay) {
+    if (untilDay <= materializedUntil) {
+      return;
+    }
+    while (heap.length > 0 && nextDueDays[heap[0]] < untilDay) {
+      int stream = heap[0];
+      if (size == dueDays.length) {
+        dueDays = Arrays.copyOf(dueDays, size * 2);
+        streams = Arrays.copyOf(streams, size * 2);
+      }
+      dueDays[size] = nextDueDays[stream];
+      streams[size] = stream;
+      size++;
+      nextDueDays[stream] += streamRules[stream].everyDays;
+      siftDown(0);
+    }
+    materializedUntil = untilDay;
+  }
+
+  /** Position of the first occurrence due on or after day. */
+  private int lowerBound(long day) {
+    int low = 0;
+    int high = size;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (dueDays[middle] < day) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  private void siftDown(int position) {
+    int stream = heap[position];
+    while (true) {
+      int child = position * 2 + 1;
+      if (child >= heap.length) {
+        break;
+      }
+      if (child + 1 < heap.length && nextDueDays[heap[child + 1]] < nextDueDays[heap[child]]) {
+        child++;
+      }
+      if (nextDueDays[heap[child]] >= nextDueDays[stream]) {
+        break;
+      }
+      heap[position] = heap[child];
+      position = child;
+    }
+    heap[position] = stream;
+  }
+}
@@ -0,0 +1,189 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.schedule;
+
+import com.google.growpod.controllers.GardenDao;
+import com.google.growpod.controllers.Storages;
+import com.google.growpod.data.CareTask;
+import com.google.growpod.data.Plant;
+import com.google.growpod.util.StripedLruCache;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.LongFunction;
+
+/**
+ * Answers care task range queries for gardens, from schedules cached per garden.
+ *
+ * <p>A garden's schedule is built from its plants on first use and extended as later days are asked
+ * for. It is dropped when the garden's plants change or the garden is deleted, and rebuilt after
+ * {@link #MAX_AGE_MILLIS} so that changes made through other server instances show up. At most
+ * {@link #MAX_SCHEDULES} are cached, the least recently used dropped first.
+ *
+ * <p>Only ranges near today are answered from the cached schedule, which therefore never covers
+ * more than {@link #LOOKBACK_DAYS} before today to {@link #CACHED_DAYS_AHEAD} after. Ranges further
+ * out get a schedule of their own, generated for the range and then dropped, and no range may reach
+ * beyond {@link #HORIZON_DAYS} of today.
+ */
+public class CareScheduler {
+
+  /** Longest range of days a query may cover. */
+  public static final int MAX_RANGE_DAYS = 366;
+
+  /** Age after which a garden's schedule is rebuilt. */
+  static final long MAX_AGE_MILLIS = 10 * 60 * 1000;
+
+  /** Days before or after today beyond which no range may reach. */
+  public static final int HORIZON_DAYS = 2 * 366;
+
+  /** Days before today a cached schedule covers, so recent history needs no rebuild. */
+  static final int LOOKBACK_DAYS = 31;
+
+  /** Days after today a cached schedule covers at most. */
+  static final int CACHED_DAYS_AHEAD = 92;
+
+  /** Most gardens whose schedules are cached. */
+  static final int MAX_SCHEDULES = 1024;
+
+  private static CareScheduler instance;
+
+  /** A schedule and when it was built. */
+  private static final class Entry {
+    final CareSchedule schedule;
+    final long builtAtMillis;
+
+    Entry(CareSchedule schedule, long builtAtMillis) {
+      this.schedule = schedule;
+      this.builtAtMillis = builtAtMillis;
+    }
+  }
+
+  private final LongFunction<List<Plant>> plantLoader;
+  private final CareRules rules;
+  private final StripedLruCache<Long, Entry> schedules =
+      new StripedLruCache<Long, Entry>(MAX_SCHEDULES);
+
+  /**
+   * Initializes a scheduler.
+   *
+   * @param plantLoader returns a garden's plants, or null if the garden does not exist.
+   * @param rules the care rules of each plant type.
+   */
+  public CareScheduler(LongFunction<List<Plant>> plantLoader, CareRules rules) {
+    this.plantLoader = plantLoader;
+    this.rules = rules;
+  }
+
+  /**
+   * Returns the scheduler shared by this server instance, reading plants from the default storage.
+   *
+   * @return the shared scheduler.
+   */
+  public static synchronized CareScheduler getInstance() {
+    if (instance == null) {
+      GardenDao dao = new GardenDao(Storages.getDefault());
+      instance = new CareScheduler(dao::getGardenPlantsById, CareRules.loadBundled());
+    }
+    return instance;
+  }
+
+  /**
+   * Returns whether a range lies within HORIZON_DAYS of today, the only days tasks are found for.
+   *
+   * @param from the first day.
+   * @param to the last day.
+   * @return whether both days are within the horizon.
+   */
+  public static boolean isWithinHorizon(LocalDate from, LocalDate to) {
+    long today = LocalDate.now(ZoneOffset.UTC).toEpochDay();
+    return from.toEpochDay() >= today - HORIZON_DAYS && to.toEpochDay() <= today + HORIZON_DAYS;
+  }
+
+  /**
+   * Finds a garden's tasks due at any time during [from, to].
+   *
+   * @param gardenId the garden's id.
+   * @param from the first day.
+   * @param to the last day, at most MAX_RANGE_DAYS after from.
+   * @return the tasks ordered by due day, or null if the garden does not exist.
+   * @throws IllegalArgumentException if the range is too long or beyond the horizon.
+   */
+  public List<CareTask> getGardenTasks(long gardenId, LocalDate from, LocalDate to) {
+    long fromDay = from.toEpochDay();
+    long toDay = to.toEpochDay();
+    if (toDay < fromDay || toDay - fromDay > MAX_RANGE_DAYS || !isWithinHorizon(from, to)) {
+      throw new IllegalArgumentException("Range " + from + " to " + to + " is out of bounds");
+    }
+    long today = LocalDate.now(ZoneOffset.UTC).toEpochDay();
+    if (fromDay < today - LOOKBACK_DAYS || toDay > today + CACHED_DAYS_AHEAD) {
+      List<Plant> plants = plantLoader.apply(gardenId);
+      if (plants == null) {
+        return null;
+      }
+      return new CareSchedule(gardenId, plants, rules, fromDay).query(fromDay, toDay);
+    }
+
+    Entry entry = schedules.get(gardenId);
+    if (entry == null
+        || System.currentTimeMillis() - entry.builtAtMillis > MAX_AGE_MILLIS
+        || fromDay < entry.schedule.getOriginDay()) {
+      List<Plant> plants = plantLoader.apply(gardenId);
+      if (plants == null) {
+        schedules.remove(gardenId);
+        return null;
+      }
+      entry =
+          new Entry(
+              new CareSchedule(gardenId, plants, rules, today - LOOKBACK_DAYS),
+              System.currentTimeMillis());
+      schedules.put(gardenId, entry);
+    }
+    return entry.schedule.query(fromDay, toDay);
+  }
+
+  /**
+   * Finds the tasks of several gardens due at any time during [from, to]. Gardens that do not exist
+   * are skipped.
+   *
+   * @param gardenIds the gardens' ids.
+   * @param from the first day.
+   * @param to the last day, at most MAX_RANGE_DAYS after from.
+   * @return the tasks ordered by due day.
+   * @throws IllegalArgumentException if the range is too long or beyond the horizon.
+   */
+  public List<CareTask> getTasks(long[] gardenIds, LocalDate from, LocalDate to) {
+    List<CareTask> tasks = new ArrayList<CareTask>();
+    for (long gardenId : gardenIds) {
+      List<CareTask> gardenTasks = getGardenTasks(gardenId, from, to);
+      if (gardenTasks != null) {
+        tasks.addAll(gardenTasks);
+      }
+    }
+    // Each garden's tasks are sorted already; the stable sort merges them.
+    tasks.sort(Comparator.comparing(CareTask::getDueDate));
+    return tasks;
+  }
+
+  /**
+   * Drops a garden's schedule, after its plants changed or it was deleted.
+   *
+   * @param gardenId the garden's id.
+   */
+  public void invalidate(long gardenId) {
+    schedules.remove(gardenId);
+  }
+}
@@ -0,0 +1,519 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.search;
+
+import com.google.growpod.data.Garden;
+import com.google.growpod.data.Ids;
+import com.google.gson.annotations.JsonAdapter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * In-process quadtree over garden locations, for clustering the gardens in a map viewport.
+ *
+ * <p>The world is split into four quadrants, each split again once it holds more than {@link
+ * #LEAF_CAPACITY} gardens, down to {@link #MAX_DEPTH}. Every node keeps the number of gardens below
+ * it and the sums of their coordinates, so a cell's count and centroid are read without visiting
+ * its gardens. A viewport is answered from the cells at one depth, chosen so that it spans a
+ * bounded number of them: the response has the same size however many gardens are in view.
+ *
+ * <p>Like {@link GardenSearchIndex}, the tree lives in each server instance: it is built from every
+ * garden on first use and updated as gardens are written through {@link #put} and {@link #remove}.
+ */
+public final class GardenQuadtree {
+
+  /** Gardens held by a leaf before it is split. */
+  static final int LEAF_CAPACITY = 16;
+
+  /** Depth of the smallest cells, about 2 meters of latitude. */
+  public static final int MAX_DEPTH = 24;
+
+  private static final GardenQuadtree instance = new GardenQuadtree();
+
+  /** Gardens in one cell of a viewport: how many, and their centroid. */
+  @Data
+  @AllArgsConstructor
+  public static class Cluster {
+    private long count;
+    private double lat;
+    private double lng;
+
+    /** The garden's id when the cluster is a single garden, otherwise null. */
+    @JsonAdapter(Ids.Adapter.class)
+    private Long gardenId;
+  }
+
+  /** A cell of the tree. Leaves hold their gardens; inner nodes hold four children. */
+  private static final class Node {
+    final double minLat;
+    final double minLng;
+    final double maxLat;
+    final double maxLng;
+    final int depth;
+    int count;
+    double sumLat;
+    double sumLng;
+
+    /** Children ordered south-west, south-east, north-west, north-east; null for a leaf. */
+    Node[] children;
+
+    long[] ids = new long[4];
+    double[] lats = new double[4];
+    double[] lngs = new double[4];
+
+    Node(double minLat, double minLng, double maxLat, double maxLng, int depth) {
+      this.minLat = minLat;
+      this.minLng = minLng;
+      this.maxLat = maxLat;
+      this.maxLng = maxLng;
+      this.depth = depth;
+    }
+
+    /** Which child covers a point, 0 to 3. */
+    int quadrant(double lat, double lng) {
+      int north = lat >= (minLat + maxLat) / 2 ? 2 : 0;
+      int east = lng >= (minLng + maxLng) / 2 ? 1 : 0;
+      return north + east;
+    }
+
+    boolean intersects(double south, double west, double north, double east) {
+      return minLat <= north && maxLat >= south && minLng <= east && maxLng >= west;
+    }
+
+    /** Like intersects, but a cell only touching the box's edge does not overlap it. */
+    boolean overlaps(double south, double west, double north, double east) {
+      return minLat < north && maxLat > south && minLng < east && maxLng > west;
+    }
+  }
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  // All state below is guarded by lock.
+  private Node root = newRoot();
+  private Map<Long, double[]> locations = new HashMap<Long, double[]>();
+  private long builtAtMillis;
+  private boolean built;
+
+  /** Creates an empty tree. Servlets share {@link #getInstance}; tests build their own. */
+  public GardenQuadtree() {}
+
+  /**
+   * Returns the tree shared by this server instance.
+   *
+   * @return the shared tree.
+   */
+  public static GardenQuadtree getInstance() {
+    return instance;
+  }
+
+  /** Whether the tree has been built since startup. */
+  public boolean isBuilt() {
+    lock.readLock().lock();
+    try {
+      return built;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** Milliseconds since the tree was last built, or Long.MAX_VALUE if it never was. */
+  public long getAgeMillis() {
+    lock.readLock().lock();
+    try {
+      return built ? System.currentTimeMillis() - builtAtMillis : Long.MAX_VALUE;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** Number of gardens in the tree. */
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return root.count;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Replaces the whole tree with the given gardens. The new tree is built aside and swapped in, so
+   * queries never see a partial tree.
+   *
+   * @param gardens every garden.
+   */
+  public void rebuild(List<Garden> gardens) {
+    GardenQuadtree fresh = new GardenQuadtree();
+    for (Garden garden : gardens) {
+      fresh.add(garden.getId(), garden.getLat(), garden.getLng());
+    }
+
+    lock.writeLock().lock();
+    try {
+      root = fresh.root;
+      locations = fresh.locations;
+      builtAtMillis = System.currentTimeMillis();
+      built = true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Adds a garden, moving it if it was already in the tree.
+   *
+   * @param garden the garden that was written.
+   */
+  public void put(Garden garden) {
+    lock.writeLock().lock();
+    try {
+      delete(garden.getId());
+      add(garden.getId(), garden.getLat(), garden.getLng());
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Removes a garden from the tree.
+   *
+   * @param gardenId the deleted garden's id.
+   */
+  public void remove(long gardenId) {
+    lock.writeLock().lock();
+    try {
+      delete(gardenId);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Aggregates the gardens in a box into the cells of the tree at depth. A cell partly in the box
+   * is still counted whole, so clusters do not change as the viewport pans. A box whose west edge
+   * is east of its east edge crosses the antimeridian.
+   *
+   * @param south the box's minimum latitude.
+   * @param west the box's minimum longitude.
+   * @param north the box's maximum latitude.
+   * @param east the box's maximum longitude.
+   * @param depth the depth of the cells, at most MAX_DEPTH.
+   * @return one cluster per non-empty cell; a cell holding one garden names it.
+   */
+  public List<Cluster> clusters(double south, double west, double north, double east, int depth) {
+    // Snaps the box outwards to cell edges, so a cell is either wholly in it or not at all.
+    boolean crossesAntimeridian = west > east;
+    double cellHeight = 180.0 / (1L << depth);
+    double cellWidth = 360.0 / (1L << depth);
+    south = Math.max(-90, Math.floor((south + 90) / cellHeight) * cellHeight - 90);
+    north = Math.min(90, Math.ceil((north + 90) / cellHeight) * cellHeight - 90);
+    west = Math.max(-180, Math.floor((west + 180) / cellWidth) * cellWidth - 180);
+    east = Math.min(180, Math.ceil((east + 180) / cellWidth) * cellWidth - 180);
+
+    List<Cluster> clusters = new ArrayList<Cluster>();
+    lock.readLock().lock();
+    try {
+      if (crossesAntimeridian && west <= east) {
+        // Snapping made the two halves meet.
+        collect(root, south, -180, north, 180, depth, clusters);
+      } else if (crossesAntimeridian) {
+        collect(root, south, west, north, 180, depth, clusters);
+        collect(root, south, -180, north, east, depth, clusters);
+      } else {
+        collect(root, south, west, north, east, depth, clusters);
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return clusters;
+  }
+
+  /**
+   * Finds the gardens in a box, up to limit of them.
+   *
+   * @param south the box's minimum latitude.
+   * @param west the box's minimum longitude.
+   * @param north the box's maximum latitude.
+   * @param east the box's maximum longitude.
+   * @param limit the maximum number of ids returned.
+   * @return the ids, or null if the box holds more than limit gardens.
+   */
+  public long[] gardens(double south, double west, double north, double east, int limit) {
+    long[] ids = new long[limit];
+    int size;
+    lock.readLock().lock();
+    try {
+      if (west > east) {
+        size = find(root, south, west, north, 180, ids, 0);
+        size = size < 0 ? size : find(root, south, -180, north, east, ids, size);
+      } else {
+        size = find(root, south, west, north, east, ids, 0);
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return size < 0 ? null : Arrays.copyOf(ids, size);
+  }
+
+  /**
+   * Number of cells of the tree at depth that a box spans along its longer side.
+   *
+   * @param south the box's minimum latitude.
+   * @param west the box's minimum longitude.
+   * @param north the box's maximum latitude.
+   * @param east the box's maximum longitude.
+   * @param depth the depth of the cells.
+   * @return the number of cells.
+   */
+  public static double cellsAcross(
+      double south, double west, double north, double east, int depth) {
+    double width = west > east ? 360 - west + east : east - west;
+    double cells = 1L << depth;
+    return Math.max((north - south) / 180 * cells, width / 360 * cells);
+  }
+
+  private static Node newRoot() {
+    return new Node(-90, -180, 90, 180, 0);
+  }
+
+  /** Adds a garden's point. Callers hold the write lock, or own the tree. */
+  private void add(long gardenId, double lat, double lng) {
+    locations.put(gardenId, new double[] {lat, lng});
+    Node node = root;
+    while (true) {
+      node.count++;
+      node.sumLat += lat;
+      node.sumLng += lng;
+      if (node.children == null) {
+        break;
+      }
+      node = node.children[node.quadrant(lat, lng)];
+    }
+    int size = node.count - 1;
+    if (size == node.ids.length) {
+      node.ids = Arrays.copyOf(node.ids, size * 2);
+      node.lats = Arrays.copyOf(node.lats, size * 2);
+      node.lngs = Arrays.copyOf(node.lngs, size * 2);
+    }
+    node.ids[size] = gardenId;
+    node.lats[size] = lat;
+    node.lngs[size] = lng;
+    if (node.count > LEAF_CAPACITY && node.depth < MAX_DEPTH) {
+      split(node);
+    }
+  }
+
+  /** Turns a full leaf into an inner node, moving its gardens to new children. */
+  private static void split(Node node) {
+    double midLat = (node.minLat + node.maxLat) / 2;
+    double midLng = (node.minLng + node.maxLng) / 2;
+    int depth = node.depth + 1;
+    node.children =
+        new Node[] {
+          new Node(node.minLat, node.minLng, midLat, midLng, depth),
+          new Node(node.minLat, midLng, midLat, node.maxLng, depth),
+          new Node(midLat, node.minLng, node.maxLat, midLng, depth),
+          new Node(midLat, midLng, node.maxLat, node.maxLng, depth)
+        };
+    for (int i = 0; i < node.count; i++) {
+      Node child = node.children[node.quadrant(node.lats[i], node.lngs[i])];
+      child.count++;
+      child.sumLat += node.lats[i];
+      child.sumLng += node.lngs[i];
+      int size = child.count - 1;
+      if (size == child.ids.length) {
+        child.ids = Arrays.copyOf(child.ids, size * 2);
+        child.lats = Arrays.copyOf(child.lats, size * 2);
+        child.lngs = Arrays.copyOf(child.lngs, size * 2);
+      }
+      child.ids[size] = node.ids[i];
+      child.lats[size] = node.lats[i];
+      child.lngs[size] = node.lngs[i];
+    }
+    // All gardens landing in one child splits it again, down to MAX_DEPTH.
+    for (Node child : node.children) {
+      if (child.count > LEAF_CAPACITY && child.depth < MAX_DEPTH) {
+        split(child);
+      }
+    }
+    node.ids = null;
+    node.lats = null;
+    node.lngs = null;
+  }
+
+  /**
+   * Removes a garden's point, if any. A node left with few enough gardens becomes a leaf again.
+   * Callers hold the write lock.
+   */
+  private void delete(long gardenId) {
+    double[] location = locations.remove(gardenId);
+    if (location == null) {
+      return;
+    }
+    double lat = location[0];
+    double lng = location[1];
+    Node node = root;
+    while (true) {
+      node.count--;
+      node.sumLat -= lat;
+      node.sumLng -= lng;
+      if (node.children == null) {
+        break;
+      }
+      if (node.count <= LEAF_CAPACITY) {
+        merge(node, gardenId);
+        return;
+      }
+      node = node.children[node.quadrant(lat, lng)];
+    }
+    int size = node.count + 1;
+    for (int i = 0; i < size; i++) {
+      if (node.ids[i] == gardenId) {
+        node.ids[i] = node.ids[size - 1];
+        node.lats[i] = node.lats[size - 1];
+        node.lngs[i] = node.lngs[size - 1];
+        return;
+      }
+    }
+  }
+
+  /** Turns an inner node back into a leaf holding its remaining gardens, all but skipped. */
+  private static void merge(Node node, long skipped) {
+    long[] ids = new long[Math.max(4, node.count)];
+    double[] lats = new double[ids.length];
+    double[] lngs = new double[ids.length];
+    int size = gather(node, skipped, ids, lats, lngs, 0);
+    node.children = null;
+    node.ids = ids;
+    node.lats = lats;
+    node.lngs = lngs;
+    // Recomputed rather than adjusted, so rounding from many removals does not accumulate.
+    node.sumLat = 0;
+    node.sumLng = 0;
+    for (int i = 0; i < size; i++) {
+      node.sumLat += lats[i];
+      node.sumLng += lngs[i];
+    }
+  }
+
+  /** Copies the gardens below node, all but skipped, from offset on. Returns the new offset. */
+  private static int gather(
+      Node node, long skipped, long[] ids, double[] lats, double[] lngs, int offset) {
+    if (node.children != null) {
+      for (Node child : node.children) {
+        offset = gather(child, skipped, ids, lats, lngs, offset);
+      }
+      return offset;
+    }
+    for (int i = 0; i < node.count; i++) {
+      if (node.ids[i] != skipped) {
+        ids[offset] = node.ids[i];
+        lats[offset] = node.lats[i];
+        lngs[offset] = node.lngs[i];
+        offset++;
+      }
+    }
+    return offset;
+  }
+
+  /** Adds a cluster for each non-empty cell at depth below node that intersects the box. */
+  private static void collect(
+      Node node,
+      double south,
+      double west,
+      double north,
+      double east,
+      int depth,
+      List<Cluster> clusters) {
+    if (node.count == 0 || !node.overlaps(south, west, north, east)) {
+      return;
+    }
+    if (node.children != null && node.depth < depth) {
+      for (Node child : node.children) {
+        collect(child, south, west, north, east, depth, clusters);
+      }
+      return;
+    }
+    if (node.depth >= depth) {
+      Long gardenId = node.children == null && node.count == 1 ? node.ids[0] : null;
+      clusters.add(
+          new Cluster(node.count, node.sumLat / node.count, node.sumLng / node.count, gardenId));
+      return;
+    }
+
+    // A leaf above depth is bigger than a cell, so its gardens are grouped by cell.
+    long cells = 1L << depth;
+    Map<Long, double[]> groups = new LinkedHashMap<Long, double[]>();
+    for (int i = 0; i < node.count; i++) {
+      double lat = node.lats[i];
+      double lng = node.lngs[i];
+      if (lat < south || lat > north || lng < west || lng > east) {
+        continue;
+      }
+      long row = Math.min(cells - 1, (long) ((lat + 90) / 180 * cells));
+      long column = Math.min(cells - 1, (long) ((lng + 180) / 360 * cells));
+      double[] group = groups.computeIfAbsent(row * cells + column, cell -> new double[4]);
+      group[0]++;
+      group[1] += lat;
+      group[2] += lng;
+      group[3] = i;
+    }
+    for (double[] group : groups.values()) {
+      long count = (long) group[0];
+      Long gardenId = count == 1 ? node.ids[(int) group[3]] : null;
+      clusters.add(new Cluster(count, group[1] / count, group[2] / count, gardenId));
+    }
+  }
+
+  /**
+   * Copies the ids of gardens below node in the box into ids from offset on.
+   *
+   * @return the new offset, or -1 once ids is full.
+   */
+  private static int find(
+      Node node, double south, double west, double north, double east, long[] ids, int offset) {
+    if (node.count == 0 || !node.intersects(south, west, north, east)) {
+      return offset;
+    }
+    if (node.children != null) {
+      for (Node child : node.children) {
+        offset = find(child, south, west, north, east, ids, offset);
+        if (offset < 0) {
+          return offset;
+        }
+      }
+      return offset;
+    }
+    for (int i = 0; i < node.count; i++) {
+      double lat = node.lats[i];
+      double lng = node.lngs[i];
+      if (lat >= south && lat <= north && lng >= west && lng <= east) {
+        if (offset == ids.length) {
+          return -1;
+        }
+        ids[offset++] = node.ids[i];
+      }
+    }
+    return offset;
+  }
+}
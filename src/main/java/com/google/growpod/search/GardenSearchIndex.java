@@ -0,0 +1,372 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.search;
+
+import com.google.growpod.data.Garden;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * In-process inverted index over garden names and descriptions, ranked with BM25.
+ *
+ * <p>Each garden is a document numbered by a small int. Every term keeps a posting list of the
+ * documents containing it and how often, in primitive arrays. Name terms are counted twice, so a
+ * match in the name outranks the same match in a long description.
+ *
+ * <p>Datastore has no text search, so the index lives in each server instance: it is built from
+ * every garden on first use and updated as gardens are written through {@link #put} and {@link
+ * #remove}. Writes made by other instances are picked up when the index is rebuilt.
+ */
+public final class GardenSearchIndex {
+
+  /** BM25 term frequency saturation. */
+  private static final double K1 = 1.2;
+
+  /** BM25 document length normalization. */
+  private static final double B = 0.75;
+
+  private static final GardenSearchIndex instance = new GardenSearchIndex();
+
+  /** One match of a search: a garden's id and its relevance. */
+  @Data
+  @AllArgsConstructor
+  public static class Hit {
+    private long gardenId;
+    private double score;
+  }
+
+  /** A page of search results, and the total number of matches. */
+  @Data
+  @AllArgsConstructor
+  public static class Results {
+    private List<Hit> hits;
+    private int total;
+  }
+
+  /** Documents containing a term, with the term's frequency in each. */
+  private static final class Postings {
+    int[] docs = new int[4];
+    int[] freqs = new int[4];
+    int size;
+
+    void add(int doc, int freq) {
+      if (size == docs.length) {
+        docs = Arrays.copyOf(docs, size * 2);
+        freqs = Arrays.copyOf(freqs, size * 2);
+      }
+      docs[size] = doc;
+      freqs[size] = freq;
+      size++;
+    }
+
+    /** Removes doc by moving the last posting into its place; order is not significant. */
+    void remove(int doc) {
+      for (int i = 0; i < size; i++) {
+        if (docs[i] == doc) {
+          size--;
+          docs[i] = docs[size];
+          freqs[i] = freqs[size];
+          return;
+        }
+      }
+    }
+  }
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  // All state below is guarded by lock.
+  private Map<String, Postings> postings = new HashMap<String, Postings>();
+  private Map<Long, Integer> docsByGardenId = new HashMap<Long, Integer>();
+  private long[] gardenIds = new long[16];
+  private String[] zipCodes = new String[16];
+  private int[] lengths = new int[16];
+  private String[][] docTerms = new String[16][];
+  private int[] freeDocs = new int[16];
+  private int freeCount;
+  private int docCount;
+  private long totalLength;
+  private long builtAtMillis;
+  private boolean built;
+
+  /** Creates an empty index. Servlets share {@link #getInstance}; tests build their own. */
+  public GardenSearchIndex() {}
+
+  /**
+   * Returns the index shared by this server instance.
+   *
+   * @return the shared index.
+   */
+  public static GardenSearchIndex getInstance() {
+    return instance;
+  }
+
+  /** Whether the index has been built since startup. */
+  public boolean isBuilt() {
+    lock.readLock().lock();
+    try {
+      return built;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** Milliseconds since the index was last built, or Long.MAX_VALUE if it never was. */
+  public long getAgeMillis() {
+    lock.readLock().lock();
+    try {
+      return built ? System.currentTimeMillis() - builtAtMillis : Long.MAX_VALUE;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Replaces the whole index with the given gardens. The new index is built aside and swapped in,
+   * so searches never see a partial index.
+   *
+   * @param gardens every garden.
+   */
+  public void rebuild(List<Garden> gardens) {
+    GardenSearchIndex fresh = new GardenSearchIndex();
+    for (Garden garden : gardens) {
+      fresh.add(garden);
+    }
+
+    lock.writeLock().lock();
+    try {
+      postings = fresh.postings;
+      docsByGardenId = fresh.docsByGardenId;
+      gardenIds = fresh.gardenIds;
+      zipCodes = fresh.zipCodes;
+      lengths = fresh.lengths;
+      docTerms = fresh.docTerms;
+      freeDocs = fresh.freeDocs;
+      freeCount = fresh.freeCount;
+      docCount = fresh.docCount;
+      totalLength = fresh.totalLength;
+      builtAtMillis = System.currentTimeMillis();
+      built = true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Indexes a garden, replacing its previous version if it was already indexed.
+   *
+   * @param garden the garden that was written.
+   */
+  public void put(Garden garden) {
+    lock.writeLock().lock();
+    try {
+      removeDoc(garden.getId());
+      add(garden);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Removes a garden from the index.
+   *
+   * @param gardenId the deleted garden's id.
+   */
+  public void remove(long gardenId) {
+    lock.writeLock().lock();
+    try {
+      removeDoc(gardenId);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Ranks gardens matching any term of query, optionally only those in one zip code.
+   *
+   * @param query the text to search for.
+   * @param zipCode the zip code to restrict results to, or null for any.
+   * @param offset the number of top hits to skip.
+   * @param limit the maximum number of hits returned.
+   * @return the hits ranked offset to offset + limit, best first, and the number of matches.
+   */
+  public Results search(String query, String zipCode, int offset, int limit) {
+    List<String> terms = new ArrayList<String>(tokenize(query).keySet());
+
+    lock.readLock().lock();
+    try {
+      int live = docCount - freeCount;
+      if (live == 0 || terms.isEmpty()) {
+        return new Results(new ArrayList<Hit>(), 0);
+      }
+      double averageLength = (double) totalLength / live;
+
+      // Accumulates scores term at a time, over each term's postings.
+      double[] scores = new double[docCount];
+      for (String term : terms) {
+        Postings list = postings.get(term);
+        if (list == null) {
+          continue;
+        }
+        double idf = Math.log(1 + (live - list.size + 0.5) / (list.size + 0.5));
+        for (int i = 0; i < list.size; i++) {
+          int doc = list.docs[i];
+          if (zipCode != null && !zipCode.equals(zipCodes[doc])) {
+            continue;
+          }
+          double freq = list.freqs[i];
+          double norm = K1 * (1 - B + B * lengths[doc] / averageLength);
+          scores[doc] += idf * freq * (K1 + 1) / (freq + norm);
+        }
+      }
+
+      // Keeps the best offset + limit matches in a min-heap.
+      int keep = offset + limit;
+      PriorityQueue<Integer> best =
+          new PriorityQueue<Integer>(
+              Math.max(1, Math.min(keep, docCount)), (a, b) -> compare(scores, a, b));
+      int total = 0;
+      for (int doc = 0; doc < docCount; doc++) {
+        if (scores[doc] <= 0) {
+          continue;
+        }
+        total++;
+        if (best.size() < keep) {
+          best.add(doc);
+        } else if (keep > 0 && compare(scores, doc, best.peek()) > 0) {
+          best.poll();
+          best.add(doc);
+        }
+      }
+
+      Hit[] ranked = new Hit[best.size()];
+      for (int i = ranked.length - 1; i >= 0; i--) {
+        int doc = best.poll();
+        ranked[i] = new Hit(gardenIds[doc], scores[doc]);
+      }
+      List<Hit> page = new ArrayList<Hit>(limit);
+      for (int i = offset; i < ranked.length; i++) {
+        page.add(ranked[i]);
+      }
+      return new Results(page, total);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** Orders documents by score, breaking ties by lower garden id first. */
+  private int compare(double[] scores, int a, int b) {
+    int byScore = Double.compare(scores[a], scores[b]);
+    return byScore != 0 ? byScore : Long.compare(gardenIds[b], gardenIds[a]);
+  }
+
+  /** Adds a garden as a new document. Callers hold the write lock, or own the index. */
+  private void add(Garden garden) {
+    Map<String, Integer> freqs = tokenize(garden.getName());
+    // Name terms count twice.
+    for (Map.Entry<String, Integer> entry : freqs.entrySet()) {
+      entry.setValue(entry.getValue() * 2);
+    }
+    for (Map.Entry<String, Integer> entry : tokenize(garden.getDescription()).entrySet()) {
+      freqs.merge(entry.getKey(), entry.getValue(), Integer::sum);
+    }
+
+    int doc;
+    if (freeCount > 0) {
+      doc = freeDocs[--freeCount];
+    } else {
+      doc = docCount++;
+      if (doc == gardenIds.length) {
+        int capacity = doc * 2;
+        gardenIds = Arrays.copyOf(gardenIds, capacity);
+        zipCodes = Arrays.copyOf(zipCodes, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        docTerms = Arrays.copyOf(docTerms, capacity);
+      }
+    }
+
+    int length = 0;
+    String[] terms = new String[freqs.size()];
+    int next = 0;
+    for (Map.Entry<String, Integer> entry : freqs.entrySet()) {
+      postings.computeIfAbsent(entry.getKey(), term -> new Postings()).add(doc, entry.getValue());
+      terms[next++] = entry.getKey();
+      length += entry.getValue();
+    }
+    gardenIds[doc] = garden.getId();
+    zipCodes[doc] = garden.getZipCode();
+    lengths[doc] = length;
+    docTerms[doc] = terms;
+    totalLength += length;
+    docsByGardenId.put(garden.getId(), doc);
+  }
+
+  /** Removes a garden's document, if any, freeing its number. Callers hold the write lock. */
+  private void removeDoc(long gardenId) {
+    Integer doc = docsByGardenId.remove(gardenId);
+    if (doc == null) {
+      return;
+    }
+    for (String term : docTerms[doc]) {
+      Postings list = postings.get(term);
+      list.remove(doc);
+      if (list.size == 0) {
+        postings.remove(term);
+      }
+    }
+    totalLength -= lengths[doc];
+    gardenIds[doc] = 0;
+    zipCodes[doc] = null;
+    lengths[doc] = 0;
+    docTerms[doc] = null;
+    if (freeCount == freeDocs.length) {
+      freeDocs = Arrays.copyOf(freeDocs, freeCount * 2);
+    }
+    freeDocs[freeCount++] = doc;
+  }
+
+  /**
+   * Splits text into lowercase runs of letters and digits, counting each.
+   *
+   * @param text the text to split, or null.
+   * @return each distinct term and its frequency.
+   */
+  static Map<String, Integer> tokenize(String text) {
+    Map<String, Integer> freqs = new HashMap<String, Integer>();
+    if (text == null) {
+      return freqs;
+    }
+    String lower = text.toLowerCase(Locale.ROOT);
+    int start = -1;
+    for (int i = 0; i <= lower.length(); i++) {
+      boolean inTerm = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+      if (inTerm && start < 0) {
+        start = i;
+      } else if (!inTerm && start >= 0) {
+        freqs.merge(lower.substring(start, i), 1, Integer::sum);
+        start = -1;
+      }
+    }
+    return freqs;
+  }
+}
@@ -0,0 +1,85 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.servlets;
+
+import com.google.growpod.data.DeleteJob;
+import com.google.growpod.data.Ids;
+import com.google.growpod.jobs.DeleteJobs;
+import com.google.gson.Gson;
+import java.io.IOException;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet reporting the status of the background jobs started by DELETE /garden/{id} and DELETE
+ * /user/{id}.
+ *
+ * <p>API DOCUMENTATION: /delete-job/{id} {id} -- A job id, as given in the Location header of the
+ * DELETE response. GET: Retrieves the job, with its state (pending, running, done or failed) and
+ * the number of records deleted so far, in JSON format along with (200 OK), otherwise (404 NOT
+ * FOUND)
+ */
+@WebServlet("/delete-job/*")
+public class DeleteJobServlet extends HttpServlet {
+
+  static final long serialVersionUID = 1L;
+
+  private DeleteJobs deleteJobs;
+
+  /** Initializes the servlet. Connects it to the jobs of this server instance. */
+  @Override
+  public void init() throws ServletException {
+    this.deleteJobs = DeleteJobs.getInstance();
+  }
+
+  /**
+   * Processes HTTP GET requests for the /delete-job servlet.
+   *
+   * @param request Information about the GET Request
+   * @param response Information about the servlet's response
+   */
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    /* uriList will have "" as element 0 */
+    String[] uriList = request.getRequestURI().split("/");
+    assert (uriList.length >= 2 && uriList[1].equals("delete-job"));
+
+    // /delete-job/{id}
+    if (uriList.length == 3) {
+      long jobId = ServletHelpers.parseId(uriList[2], response);
+      if (jobId == Ids.INVALID) {
+        return;
+      }
+      DeleteJob job = deleteJobs.getJob(jobId);
+      if (job == null) {
+        response.sendError(HttpServletResponse.SC_NOT_FOUND, "Invalid job id: " + jobId);
+        return;
+      }
+      response.setContentType("application/json;");
+      response.getWriter().println(new Gson().toJson(job));
+      return;
+    }
+
+    response.sendError(
+        HttpServletResponse.SC_METHOD_NOT_ALLOWED, "Unimplemented: " + request.getRequestURI());
+  }
+
+  public void setDeleteJobs(DeleteJobs deleteJobs) {
+    this.deleteJobs = deleteJobs;
+  }
+}
@@ -14,12 +14,23 @@
 
 package com.google.growpod.servlets;
 
-import com.google.cloud.datastore.DatastoreOptions;
 import com.google.growpod.controllers.FindGardensDao;
+import com.google.growpod.controllers.Storages;
+import com.google.growpod.data.FieldSet;
 import com.google.growpod.data.Garden;
+import com.google.growpod.data.GardenCounts;
+import com.google.growpod.encoding.CborEncoders;
+import com.google.growpod.encoding.CborWriter;
+import com.google.growpod.search.GardenQuadtree;
+import com.google.growpod.search.GardenQuadtree.Cluster;
+import com.google.growpod.storage.Storage;
+import com.google.growpod.util.BackgroundRefresher;
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
@@ -28,20 +39,56 @@ import javax.servlet.http.HttpServletResponse;
 
 /**
  * Servlet that returns gardens close to either a given ZIP code or the logged-in user's ZIP code,
- * upon a GET request.
+ * upon a GET request. With ?fields=id,name,lat,lng,... only the listed fields of each garden are
+ * returned, and only those are read where the storage allows it.
+ *
+ * <p>API DOCUMENTATION: GET /find-gardens?bbox={south},{west},{north},{east}&zoom={0-22} returns
+ * the gardens in a map viewport, in the format of Google Maps' LatLngBounds.toUrlValue. Up to zoom
+ * 14, or when the viewport holds more than 200 gardens, it returns {"clusters": [{"count", "lat",
+ * "lng", "gardenId"}]}: the number and centroid of the gardens in each cell of a grid over the
+ * viewport, with gardenId set on cells holding a single garden. From zoom 15, it returns
+ * {"gardens": [...]}. A viewport with a west edge east of its east edge crosses the antimeridian.
  */
 @WebServlet({"/find-gardens"})
 public class FindGardensServlet extends HttpServlet {
 
   static final long serialVersionUID = 1L;
 
+  /** Largest zoom level of the map. */
+  private static final int MAX_ZOOM = 22;
+
+  /** Zoom from which individual gardens are returned rather than clusters. */
+  private static final int INDIVIDUAL_ZOOM = 15;
+
+  /** Maximum number of individual gardens returned. */
+  private static final int MAX_GARDENS = 200;
+
+  /** Cells per map tile side are 2^CELL_DEPTH_OFFSET, so clusters are about 32 pixels apart. */
+  private static final int CELL_DEPTH_OFFSET = 3;
+
+  /** Maximum number of cells across a viewport, which bounds the number of clusters returned. */
+  private static final int MAX_CELLS_ACROSS = 32;
+
+  /** Age after which the quadtree is rebuilt, to pick up gardens written by other instances. */
+  private static final long REFRESH_MILLIS = 10 * 60 * 1000;
+
   private FindGardensDao dao;
 
-  /** Initializes the servlet. Connects it to Datastore. */
+  private GardenQuadtree quadtree = GardenQuadtree.getInstance();
+
+  /** Rebuilds the quadtree in the background; requests wait for the first build only. */
+  private final BackgroundRefresher refresher =
+      new BackgroundRefresher(
+          "quadtree",
+          REFRESH_MILLIS,
+          () -> quadtree.getAgeMillis(),
+          () -> quadtree.rebuild(dao.getAllGardens()));
+
+  /** Initializes the servlet. Connects it to the default storage. */
   @Override
   public void init() throws ServletException {
-    DatastoreOptions datastoreInstance = DatastoreOptions.getDefaultInstance();
-    this.dao = new FindGardensDao(datastoreInstance);
+    Storage storage = Storages.getDefault();
+    this.dao = new FindGardensDao(storage);
   }
 
   /**
@@ -53,18 +100,171 @@ public class FindGardensServlet extends HttpServlet {
    */
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    FieldSet fields = ServletHelpers.parseFields(request, response, FieldSet.GARDEN);
+    if (fields == null) {
+      return;
+    }
+    if (request.getParameter("bbox") != null) {
+      getViewport(request, response, fields);
+      return;
+    }
+
     String zipCode = request.getParameter("zip-code");
     if (zipCode == null) {
       zipCode = "11201"; // TODO(Issue #34): Replace value once oauth works
     }
 
-    List<Garden> nearbyGardens = dao.getNearbyGardens(zipCode);
+    List<Garden> nearbyGardens = dao.getNearbyGardens(zipCode, fields);
+
+    // Counts of every garden are fetched in one lookup, if asked for.
+    long[] gardenIds = new long[nearbyGardens.size()];
+    for (int i = 0; i < gardenIds.length; i++) {
+      gardenIds[i] = nearbyGardens.get(i).getId();
+    }
+    Map<Long, GardenCounts> counts = getCounts(gardenIds, fields);
+
+    if (ServletHelpers.acceptsCbor(request, response)) {
+      CborWriter out = ServletHelpers.startCbor(response);
+      CborEncoders.writeGardens(out, nearbyGardens, counts, fields);
+      out.flush();
+      return;
+    }
+
+    Gson gson = new Gson();
+    JsonArray json = new JsonArray();
+    for (Garden garden : nearbyGardens) {
+      GardenCounts gardenCounts = counts == null ? null : counts.get(garden.getId());
+      json.add(ServletHelpers.gardenWithCounts(gson, garden, gardenCounts, fields));
+    }
 
     response.setContentType("application/json;");
-    response.getWriter().println(new Gson().toJson(nearbyGardens));
+    response.getWriter().println(json);
   }
 
-  /** Getters and Setters for data access object. */
+  /** Returns the gardens of a viewport, clustered unless zoomed in closely. */
+  private void getViewport(
+      HttpServletRequest request, HttpServletResponse response, FieldSet fields)
+      throws IOException {
+    double[] box = parseBox(request.getParameter("bbox"));
+    int zoom = parseZoom(request.getParameter("zoom"));
+    if (box == null || zoom < 0) {
+      response.sendError(
+          HttpServletResponse.SC_BAD_REQUEST,
+          "Expected bbox={south},{west},{north},{east} and zoom between 0 and " + MAX_ZOOM);
+      return;
+    }
+    double south = box[0];
+    double west = box[1];
+    double north = box[2];
+    double east = box[3];
+
+    refresher.ensureBuilt();
+    long[] gardenIds =
+        zoom < INDIVIDUAL_ZOOM ? null : quadtree.gardens(south, west, north, east, MAX_GARDENS);
+    if (gardenIds != null) {
+      List<Garden> gardens = dao.getGardensById(gardenIds);
+      Map<Long, GardenCounts> counts = getCounts(gardenIds, fields);
+      if (ServletHelpers.acceptsCbor(request, response)) {
+        CborWriter out = ServletHelpers.startCbor(response);
+        out.beginMap(1);
+        out.value("gardens");
+        CborEncoders.writeGardens(out, gardens, counts, fields);
+        out.flush();
+        return;
+      }
+      Gson gson = new Gson();
+      JsonArray gardenList = new JsonArray();
+      for (Garden garden : gardens) {
+        GardenCounts gardenCounts = counts == null ? null : counts.get(garden.getId());
+        gardenList.add(ServletHelpers.gardenWithCounts(gson, garden, gardenCounts, fields));
+      }
+      JsonObject json = new JsonObject();
+      json.add("gardens", gardenList);
+      response.setContentType("application/json;");
+      response.getWriter().println(json);
+      return;
+    }
+
+    // Coarsens the grid until the viewport spans a bounded number of cells.
+    int depth = Math.min(zoom + CELL_DEPTH_OFFSET, GardenQuadtree.MAX_DEPTH);
+    while (depth > 0
+        && GardenQuadtree.cellsAcross(south, west, north, east, depth) > MAX_CELLS_ACROSS) {
+      depth--;
+    }
+    List<Cluster> clusters = quadtree.clusters(south, west, north, east, depth);
+
+    if (ServletHelpers.acceptsCbor(request, response)) {
+      CborWriter out = ServletHelpers.startCbor(response);
+      out.beginMap(1);
+      out.value("clusters");
+      CborEncoders.writeClusters(out, clusters);
+      out.flush();
+      return;
+    }
+    JsonObject json = new JsonObject();
+    json.add("clusters", new Gson().toJsonTree(clusters));
+    response.setContentType("application/json;");
+    response.getWriter().println(json);
+  }
+
+  /**
+   * Looks up the counts of many gardens, unless there are none or no count field is requested.
+   *
+   * @param gardenIds the gardens' ids.
+   * @param fields the requested fields.
+   * @return the counts of each garden keyed by id, or null.
+   */
+  private Map<Long, GardenCounts> getCounts(long[] gardenIds, FieldSet fields) {
+    if (gardenIds.length == 0 || !fields.includesAny("memberCount", "plantCount")) {
+      return null;
+    }
+    return dao.getGardenCounts(gardenIds);
+  }
+
+  /**
+   * Parses a bounding box.
+   *
+   * @param value the box as "south,west,north,east", in degrees.
+   * @return the four bounds, or null if the box is malformed or out of range.
+   */
+  private static double[] parseBox(String value) {
+    String[] parts = value.split(",");
+    if (parts.length != 4) {
+      return null;
+    }
+    double[] box = new double[4];
+    try {
+      for (int i = 0; i < 4; i++) {
+        box[i] = Double.parseDouble(parts[i].trim());
+      }
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    boolean validLats = box[0] >= -90 && box[0] <= box[2] && box[2] <= 90;
+    boolean validLngs = Math.abs(box[1]) <= 180 && Math.abs(box[3]) <= 180;
+    return validLats && validLngs ? box : null;
+  }
+
+  /**
+   * Parses a zoom level.
+   *
+   * @param value the parameter, or null if absent.
+   * @return the zoom, or -1 if it is absent, malformed or out of range.
+   */
+  private static int parseZoom(String value) {
+    if (value == null) {
+      return -1;
+    }
+    int zoom;
+    try {
+      zoom = Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+    return zoom < 0 || zoom > MAX_ZOOM ? -1 : zoom;
+  }
+
+  /** Getters and Setters for data access object and quadtree. */
   public FindGardensDao getDao() {
     return dao;
   }
@@ -72,4 +272,8 @@ public class FindGardensServlet extends HttpServlet {
   public void setDao(FindGardensDao dao) {
     this.dao = dao;
   }
+
+  public void setQuadtree(GardenQuadtree quadtree) {
+    this.quadtree = quadtree;
+  }
 }
@@ -14,13 +14,29 @@
 
 package com.google.growpod.servlets;
 
-import com.google.cloud.datastore.DatastoreOptions;
 import com.google.growpod.controllers.GardenDao;
+import com.google.growpod.controllers.Storages;
+import com.google.growpod.data.BatchItemStatus;
+import com.google.growpod.data.CareTask;
+import com.google.growpod.data.FieldSet;
 import com.google.growpod.data.Garden;
+import com.google.growpod.data.GardenCounts;
+import com.google.growpod.data.Ids;
 import com.google.growpod.data.Plant;
+import com.google.growpod.encoding.CborEncoders;
+import com.google.growpod.encoding.CborWriter;
+import com.google.growpod.jobs.DeleteJobs;
+import com.google.growpod.schedule.CareScheduler;
+import com.google.growpod.storage.Storage;
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.time.LocalDate;
+import java.util.Arrays;
 import java.util.List;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
@@ -36,14 +52,28 @@ public class GardenServlet extends HttpServlet {
 
   private GardenDao dao;
 
+  private CareScheduler scheduler;
+
+  private DeleteJobs deleteJobs;
+
+  private static final long CURRENT_USER_KEY = 1; // TODO(Issue #34): Replace value once oauth works
+
   private static final String USER_LIST_ARG = "user-list";
   private static final String PLANT_LIST_ARG = "plant-list";
+  private static final String PLANT_LIST_BATCH_ARG = "plant-list:batch";
+  private static final String PLANT_LIST_BATCH_DELETE_ARG = "plant-list:batchDelete";
+  private static final String TASKS_ARG = "tasks";
 
-  /** Initializes the servlet. Connects it to Datastore. */
+  /** Maximum number of plants in one batch request. */
+  private static final int MAX_BATCH_SIZE = 1000;
+
+  /** Initializes the servlet. Connects it to the default storage. */
   @Override
   public void init() throws ServletException {
-    DatastoreOptions datastoreInstance = DatastoreOptions.getDefaultInstance();
-    this.dao = new GardenDao(datastoreInstance);
+    Storage storage = Storages.getDefault();
+    this.dao = new GardenDao(storage);
+    this.scheduler = CareScheduler.getInstance();
+    this.deleteJobs = DeleteJobs.getInstance();
   }
 
   /**
@@ -62,40 +92,92 @@ public class GardenServlet extends HttpServlet {
     // Dispatch based on method specified.
     // /garden/{id}
     if (uriList.length == 3) {
-      Garden garden = dao.getGardenById(uriList[2]);
+      long gardenId = ServletHelpers.parseId(uriList[2], response);
+      if (gardenId == Ids.INVALID) {
+        return;
+      }
+      FieldSet fields = ServletHelpers.parseFields(request, response, FieldSet.GARDEN);
+      if (fields == null) {
+        return;
+      }
+      Garden garden = dao.getGardenById(gardenId);
       if (garden == null) {
-        response.sendError(HttpServletResponse.SC_NOT_FOUND, "Invalid garden id: " + uriList[2]);
+        response.sendError(HttpServletResponse.SC_NOT_FOUND, "Invalid garden id: " + gardenId);
+        return;
+      }
+      // Counts are only looked up if asked for.
+      GardenCounts counts =
+          fields.includesAny("memberCount", "plantCount") ? dao.getGardenCounts(gardenId) : null;
+      if (ServletHelpers.acceptsCbor(request, response)) {
+        CborWriter out = ServletHelpers.startCbor(response);
+        CborEncoders.writeGarden(out, garden, counts, fields);
+        out.flush();
         return;
       }
       response.setContentType("application/json;");
-      response.getWriter().println(new Gson().toJson(garden));
+      response
+          .getWriter()
+          .println(ServletHelpers.gardenWithCounts(new Gson(), garden, counts, fields));
       return;
     }
 
     if (uriList.length == 4) {
-      String gardenId = uriList[2];
       if (uriList[3].equals(USER_LIST_ARG)) {
         // /garden/{id}/user-list
-        List<String> list = dao.getGardenUserListById(gardenId);
+        long gardenId = ServletHelpers.parseId(uriList[2], response);
+        if (gardenId == Ids.INVALID) {
+          return;
+        }
+        long[] list = dao.getGardenUserListById(gardenId);
         if (list == null) {
           response.sendError(HttpServletResponse.SC_NOT_FOUND, "Invalid garden id: " + gardenId);
           return;
         }
+        if (ServletHelpers.acceptsCbor(request, response)) {
+          ServletHelpers.writeCborIds(response, list);
+          return;
+        }
         response.setContentType("application/json;");
-        response.getWriter().println(new Gson().toJson(list));
+        response.getWriter().println(Ids.toJson(list));
         return;
       } else if (uriList[3].equals(PLANT_LIST_ARG)) {
         // /garden/{id}/plant-list
-        List<String> list = dao.getGardenPlantListById(gardenId);
+        long gardenId = ServletHelpers.parseId(uriList[2], response);
+        if (gardenId == Ids.INVALID) {
+          return;
+        }
+        long[] list = dao.getGardenPlantListById(gardenId);
         if (list == null) {
           response.sendError(HttpServletResponse.SC_NOT_FOUND, "Invalid garden id: " + gardenId);
           return;
         }
+        if (ServletHelpers.acceptsCbor(request, response)) {
+          ServletHelpers.writeCborIds(response, list);
+          return;
+        }
+        response.setContentType("application/json;");
+        response.getWriter().println(Ids.toJson(list));
+        return;
+      } else if (uriList[3].equals(TASKS_ARG)) {
+        // /garden/{id}/tasks?from={day}&to={day}
+        long gardenId = ServletHelpers.parseId(uriList[2], response);
+        if (gardenId == Ids.INVALID) {
+          return;
+        }
+        LocalDate[] range = ServletHelpers.parseDateRange(request, response);
+        if (range == null) {
+          return;
+        }
+        List<CareTask> tasks = scheduler.getGardenTasks(gardenId, range[0], range[1]);
+        if (tasks == null) {
+          response.sendError(HttpServletResponse.SC_NOT_FOUND, "Invalid garden id: " + gardenId);
+          return;
+        }
         response.setContentType("application/json;");
-        response.getWriter().println(new Gson().toJson(list));
+        response.getWriter().println(new Gson().toJson(tasks));
         return;
       }
-      // If the uriList does not match the above two methods, fall through.
+      // If the uriList does not match the above methods, fall through.
     }
     response.sendError(
         HttpServletResponse.SC_METHOD_NOT_ALLOWED, "Unimplemented: " + request.getRequestURI());
@@ -117,7 +199,22 @@ public class GardenServlet extends HttpServlet {
     // Dispatch based on method specified.
     // /garden
     if (uriList.length == 2) {
-      // TODO Add garden provided adminId = logged in user.
+      Garden garden;
+      try {
+        garden = new Gson().fromJson(getBody(request), Garden.class);
+      } catch (JsonParseException e) {
+        garden = null;
+      }
+      if (garden == null || garden.getName() == null || garden.getName().trim().isEmpty()) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid garden body");
+        return;
+      }
+      garden.setAdminId(CURRENT_USER_KEY);
+      long key = dao.addGarden(garden);
+
+      response.setStatus(HttpServletResponse.SC_CREATED);
+      response.setContentType("application/json;");
+      response.getWriter().println("{\"id\":" + key + "}");
       return;
     }
 
@@ -125,26 +222,86 @@ public class GardenServlet extends HttpServlet {
       if (uriList[3].equals(PLANT_LIST_ARG)) {
         // /garden/{gid}/plant-list
         // TODO (Issue #34) Verify user
-        String gardenId = uriList[2];
-        String json = getBody(request);
-        Plant plant = new Gson().fromJson(json, Plant.class);
-        Garden garden = dao.getGardenById(gardenId);
-        if (garden == null) {
-          response.sendError(HttpServletResponse.SC_NOT_FOUND, "Invalid garden id: " + gardenId);
+        long gardenId = ServletHelpers.parseId(uriList[2], response);
+        if (gardenId == Ids.INVALID) {
           return;
         }
-        String key = dao.addPlant(gardenId, plant);
-        if (key == null) {
+        Plant plant;
+        try {
+          plant = new Gson().fromJson(getBody(request), Plant.class);
+        } catch (JsonParseException e) {
+          plant = null;
+        }
+        if (plant == null) {
           response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid plant body");
           return;
         }
+        Garden garden = dao.getGardenById(gardenId);
+        if (garden == null) {
+          response.sendError(HttpServletResponse.SC_NOT_FOUND, "Invalid garden id: " + gardenId);
+          return;
+        }
+        long key = dao.addPlant(gardenId, plant);
+        scheduler.invalidate(gardenId);
 
         response.setStatus(HttpServletResponse.SC_CREATED);
         response.setContentType("application/json;");
         response.getWriter().println("{\"id\":" + key + "}");
         return;
+      } else if (uriList[3].equals(PLANT_LIST_BATCH_ARG)) {
+        // /garden/{gid}/plant-list:batch
+        // TODO (Issue #34) Verify user
+        long gardenId = ServletHelpers.parseId(uriList[2], response);
+        if (gardenId == Ids.INVALID) {
+          return;
+        }
+        Plant[] plants;
+        try {
+          plants = new Gson().fromJson(getBody(request), Plant[].class);
+        } catch (JsonParseException e) {
+          plants = null;
+        }
+        if (plants == null || plants.length > MAX_BATCH_SIZE) {
+          response.sendError(
+              HttpServletResponse.SC_BAD_REQUEST,
+              "Expected a JSON array of at most " + MAX_BATCH_SIZE + " plants");
+          return;
+        }
+        Garden garden = dao.getGardenById(gardenId);
+        if (garden == null) {
+          response.sendError(HttpServletResponse.SC_NOT_FOUND, "Invalid garden id: " + gardenId);
+          return;
+        }
+        List<BatchItemStatus> statuses = dao.addPlants(gardenId, Arrays.asList(plants));
+        scheduler.invalidate(gardenId);
+
+        ServletHelpers.writeBatchStatuses(response, statuses);
+        return;
+      } else if (uriList[3].equals(PLANT_LIST_BATCH_DELETE_ARG)) {
+        // /garden/{gid}/plant-list:batchDelete
+        // TODO (Issue #34) Verify user
+        long gardenId = ServletHelpers.parseId(uriList[2], response);
+        if (gardenId == Ids.INVALID) {
+          return;
+        }
+        long[] plantIds = parseIdArray(getBody(request));
+        if (plantIds == null || plantIds.length > MAX_BATCH_SIZE) {
+          response.sendError(
+              HttpServletResponse.SC_BAD_REQUEST,
+              "Expected a JSON array of at most " + MAX_BATCH_SIZE + " plant ids");
+          return;
+        }
+        List<BatchItemStatus> statuses = dao.deletePlants(gardenId, plantIds);
+        if (statuses == null) {
+          response.sendError(HttpServletResponse.SC_NOT_FOUND, "Invalid garden id: " + gardenId);
+          return;
+        }
+        scheduler.invalidate(gardenId);
+
+        ServletHelpers.writeBatchStatuses(response, statuses);
+        return;
       }
-      // If the uriList does not match the above two methods, fall through.
+      // If the uriList does not match the above methods, fall through.
     }
     response.sendError(
         HttpServletResponse.SC_METHOD_NOT_ALLOWED, "Unimplemented: " + request.getRequestURI());
@@ -167,16 +324,38 @@ public class GardenServlet extends HttpServlet {
     // Dispatch based on method specified.
     // /garden/{id}
     if (uriList.length == 3) {
-      // TODO Delete garden provided owner is current user.
+      long gardenId = ServletHelpers.parseId(uriList[2], response);
+      if (gardenId == Ids.INVALID) {
+        return;
+      }
+      Garden garden = dao.getGardenById(gardenId);
+      if (garden == null) {
+        response.sendError(HttpServletResponse.SC_NOT_FOUND, "Invalid garden id: " + gardenId);
+        return;
+      }
+      // TODO (Issue #34) Compare with the authenticated user.
+      if (garden.getAdminId() != CURRENT_USER_KEY) {
+        response.sendError(
+            HttpServletResponse.SC_FORBIDDEN, "Only the garden's admin may delete it");
+        return;
+      }
+      // Relations and plants go in the background; the job's status is at the Location.
+      ServletHelpers.writeAccepted(response, deleteJobs.deleteGarden(gardenId));
       return;
     }
 
     if (uriList.length == 5) {
-      String gardenId = uriList[2];
       if (uriList[3].equals(USER_LIST_ARG)) {
         // /garden/{gid}/user-list/{uid}
         // TODO (Issue #34) Verify user
-        String userId = uriList[4];
+        long gardenId = ServletHelpers.parseId(uriList[2], response);
+        if (gardenId == Ids.INVALID) {
+          return;
+        }
+        long userId = ServletHelpers.parseId(uriList[4], response);
+        if (userId == Ids.INVALID) {
+          return;
+        }
         boolean status = dao.deleteUser(gardenId, userId);
         if (!status) {
           // Nothing to delete
@@ -190,14 +369,22 @@ public class GardenServlet extends HttpServlet {
         return;
       } else if (uriList[3].equals(PLANT_LIST_ARG)) {
         // /garden/{gid}/plant-list/{pid}
-        String plantId = uriList[4];
+        long gardenId = ServletHelpers.parseId(uriList[2], response);
+        if (gardenId == Ids.INVALID) {
+          return;
+        }
+        long plantId = ServletHelpers.parseId(uriList[4], response);
+        if (plantId == Ids.INVALID) {
+          return;
+        }
         boolean status = dao.deletePlant(gardenId, plantId);
         if (!status) {
           response.sendError(
               HttpServletResponse.SC_NOT_FOUND,
-              "Invalid plant: " + gardenId + " of garden: " + plantId);
+              "Invalid plant: " + plantId + " of garden: " + gardenId);
           return;
         }
+        scheduler.invalidate(gardenId);
         response.setContentType("application/json;");
         response.getWriter().println("{\"id\":" + plantId + "}");
         return;
@@ -217,6 +404,14 @@ public class GardenServlet extends HttpServlet {
     this.dao = dao;
   }
 
+  public void setScheduler(CareScheduler scheduler) {
+    this.scheduler = scheduler;
+  }
+
+  public void setDeleteJobs(DeleteJobs deleteJobs) {
+    this.deleteJobs = deleteJobs;
+  }
+
   /**
    * Reads POST request body into string.
    *
@@ -235,4 +430,30 @@ public class GardenServlet extends HttpServlet {
     }
     return body.toString();
   }
+
+  /**
+   * Parses a JSON array of ids, given either as strings or numbers. Malformed elements become
+   * Ids.INVALID, so they can be reported individually.
+   *
+   * @param json the request body.
+   * @return the ids, or null if the body is not a JSON array.
+   */
+  private static long[] parseIdArray(String json) {
+    JsonElement element;
+    try {
+      element = JsonParser.parseString(json);
+    } catch (JsonParseException e) {
+      return null;
+    }
+    if (!element.isJsonArray()) {
+      return null;
+    }
+    JsonArray array = element.getAsJsonArray();
+    long[] ids = new long[array.size()];
+    for (int i = 0; i < ids.length; i++) {
+      JsonElement id = array.get(i);
+      ids[i] = id.isJsonPrimitive() ? Ids.parse(id.getAsString()) : Ids.INVALID;
+    }
+    return ids;
+  }
 }
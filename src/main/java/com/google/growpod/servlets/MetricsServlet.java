@@ -0,0 +1,47 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.servlets;
+
+import com.google.growpod.util.Metrics;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet that reports this server instance's metrics.
+ *
+ * <p>API DOCUMENTATION: GET /metrics returns {"counters": {name: value}, "sections": {name:
+ * stats}}.
+ */
+@WebServlet("/metrics")
+public class MetricsServlet extends HttpServlet {
+
+  static final long serialVersionUID = 1L;
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    Gson gson = new Gson();
+    JsonObject json = new JsonObject();
+    json.add("counters", gson.toJsonTree(Metrics.counters()));
+    json.add("sections", gson.toJsonTree(Metrics.sections()));
+
+    response.setContentType("application/json;");
+    response.getWriter().println(json);
+  }
+}
@@ -14,11 +14,21 @@
 
 package com.google.growpod.servlets;
 
-import com.google.cloud.datastore.DatastoreOptions;
+import com.google.growpod.catalog.PlantTypeCatalog;
 import com.google.growpod.controllers.PlantDao;
+import com.google.growpod.controllers.Storages;
+import com.google.growpod.data.FieldSet;
+import com.google.growpod.data.Ids;
 import com.google.growpod.data.Plant;
+import com.google.growpod.data.PlantType;
+import com.google.growpod.encoding.CborEncoders;
+import com.google.growpod.encoding.CborWriter;
+import com.google.growpod.storage.Storage;
 import com.google.gson.Gson;
+import com.google.gson.JsonObject;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
@@ -30,6 +40,8 @@ import javax.servlet.http.HttpServletResponse;
  *
  * <p>API DOCUMENTATION: /plant/{id} {id} -- A plant UUID GET: Retrieves the plant data structure
  * for {id} No parameters Returns data in JSON format along with (200 OK), otherwise (404 NOT FOUND)
+ * With ?expand=plant-type, the plant's catalog entry is included as `plantType`. With
+ * ?fields=id,nickname,... only the listed fields are returned.
  */
 @WebServlet({"/plant", "/plant/*"})
 public class PlantServlet extends HttpServlet {
@@ -38,11 +50,20 @@ public class PlantServlet extends HttpServlet {
 
   private PlantDao dao;
 
-  /** Initializes the servlet. Connects it to Datastore. */
+  private static final String EXPAND_PLANT_TYPE = "plant-type";
+
+  /** Fields of an expanded plant. */
+  private static final List<String> EXPANDED_FIELDS = new ArrayList<String>(FieldSet.PLANT);
+
+  static {
+    EXPANDED_FIELDS.add("plantType");
+  }
+
+  /** Initializes the servlet. Connects it to the default storage. */
   @Override
   public void init() throws ServletException {
-    DatastoreOptions datastoreInstance = DatastoreOptions.getDefaultInstance();
-    this.dao = new PlantDao(datastoreInstance);
+    Storage storage = Storages.getDefault();
+    this.dao = new PlantDao(storage);
   }
 
   /**
@@ -61,14 +82,39 @@ public class PlantServlet extends HttpServlet {
     // Dispatch based on method specified.
     // /plant/{id}
     if (uriList.length == 3) {
-      String plantId = uriList[2];
+      long plantId = ServletHelpers.parseId(uriList[2], response);
+      if (plantId == Ids.INVALID) {
+        return;
+      }
+      // Expanded plant types are only served as JSON.
+      boolean expand = EXPAND_PLANT_TYPE.equals(request.getParameter("expand"));
+      FieldSet fields =
+          ServletHelpers.parseFields(request, response, expand ? EXPANDED_FIELDS : FieldSet.PLANT);
+      if (fields == null) {
+        return;
+      }
       Plant plant = dao.getPlantById(plantId);
       if (plant == null) {
         response.sendError(HttpServletResponse.SC_NOT_FOUND, "Invalid plant id: " + plantId);
         return;
       }
+      if (!expand && ServletHelpers.acceptsCbor(request, response)) {
+        CborWriter out = ServletHelpers.startCbor(response);
+        CborEncoders.writePlant(out, plant, fields);
+        out.flush();
+        return;
+      }
+      Gson gson = new Gson();
+      JsonObject json = gson.toJsonTree(plant).getAsJsonObject();
+      if (expand) {
+        // Unknown types are left out rather than failing the request.
+        PlantType plantType = PlantTypeCatalog.getInstance().get(plant.getPlantTypeId());
+        if (plantType != null) {
+          json.add("plantType", gson.toJsonTree(plantType));
+        }
+      }
       response.setContentType("application/json;");
-      response.getWriter().println(new Gson().toJson(plant));
+      response.getWriter().println(fields.filter(json));
       return;
     }
 
@@ -0,0 +1,149 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.servlets;
+
+import com.google.growpod.catalog.PlantTypeCatalog;
+import com.google.growpod.data.PlantType;
+import com.google.gson.Gson;
+import java.io.IOException;
+import java.util.List;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet that serves the plant type catalog.
+ *
+ * <p>API DOCUMENTATION: GET /plant-types?prefix={text}&limit={n} returns up to n (default 10, at
+ * most 50) plant types matching a name prefix, for autocomplete. GET /plant-types/{id} returns one
+ * plant type, otherwise (404 NOT FOUND). POST /plant-types/reload rereads the bundled catalog.
+ */
+@WebServlet(
+    urlPatterns = {"/plant-types", "/plant-types/*"},
+    loadOnStartup = 1)
+public class PlantTypesServlet extends HttpServlet {
+
+  static final long serialVersionUID = 1L;
+
+  private static final String RELOAD_ARG = "reload";
+
+  /** Number of matches returned when no limit is given. */
+  private static final int DEFAULT_LIMIT = 10;
+
+  /** Maximum number of matches returned. */
+  private static final int MAX_LIMIT = 50;
+
+  /** Initializes the servlet. Loads the catalog, so the first search does not pay for it. */
+  @Override
+  public void init() throws ServletException {
+    PlantTypeCatalog.getInstance();
+  }
+
+  /**
+   * Processes HTTP GET requests for the /plant-types servlet. Dispatches functionality based on
+   * structure of GET request.
+   *
+   * @param request Information about the GET Request
+   * @param response Information about the servlet's response
+   */
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    /* uriList will have "" as element 0 */
+    String[] uriList = request.getRequestURI().split("/");
+    assert (uriList.length >= 2 && uriList[1].equals("plant-types"));
+
+    // Dispatch based on method specified.
+    // /plant-types
+    if (uriList.length == 2) {
+      String prefix = request.getParameter("prefix");
+      int limit = parseLimit(request.getParameter("limit"));
+      if (limit < 0) {
+        response.sendError(
+            HttpServletResponse.SC_BAD_REQUEST, "Limit must be between 1 and " + MAX_LIMIT);
+        return;
+      }
+      List<PlantType> matches =
+          PlantTypeCatalog.getInstance().search(prefix == null ? "" : prefix, limit);
+
+      response.setContentType("application/json;");
+      response.getWriter().println(new Gson().toJson(matches));
+      return;
+    }
+
+    // /plant-types/{id}
+    if (uriList.length == 3) {
+      PlantType plantType = PlantTypeCatalog.getInstance().get(uriList[2]);
+      if (plantType == null) {
+        response.sendError(HttpServletResponse.SC_NOT_FOUND, "Invalid plant type: " + uriList[2]);
+        return;
+      }
+      response.setContentType("application/json;");
+      response.getWriter().println(new Gson().toJson(plantType));
+      return;
+    }
+
+    response.sendError(
+        HttpServletResponse.SC_METHOD_NOT_ALLOWED, "Unimplemented: " + request.getRequestURI());
+  }
+
+  /**
+   * Processes HTTP POST requests for the /plant-types servlet. Dispatches functionality based on
+   * structure of POST request.
+   *
+   * @param request Information about the POST Request
+   * @param response Information about the servlet's response
+   */
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    /* uriList will have "" as element 0 */
+    String[] uriList = request.getRequestURI().split("/");
+    assert (uriList.length >= 2 && uriList[1].equals("plant-types"));
+
+    // Dispatch based on method specified.
+    // /plant-types/reload
+    if (uriList.length == 3 && uriList[2].equals(RELOAD_ARG)) {
+      // TODO (Issue #34) Verify user
+      PlantTypeCatalog catalog = PlantTypeCatalog.reload();
+
+      response.setContentType("application/json;");
+      response.getWriter().println("{\"size\":" + catalog.size() + "}");
+      return;
+    }
+
+    response.sendError(
+        HttpServletResponse.SC_METHOD_NOT_ALLOWED, "Unimplemented: " + request.getRequestURI());
+  }
+
+  /**
+   * Parses the limit parameter.
+   *
+   * @param value the parameter, or null if absent.
+   * @return the limit, or -1 if it is malformed or out of range.
+   */
+  private static int parseLimit(String value) {
+    if (value == null) {
+      return DEFAULT_LIMIT;
+    }
+    int limit;
+    try {
+      limit = Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+    return limit < 1 || limit > MAX_LIMIT ? -1 : limit;
+  }
+}
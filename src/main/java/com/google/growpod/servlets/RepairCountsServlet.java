@@ -0,0 +1,69 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.servlets;
+
+import com.google.growpod.controllers.Storages;
+import com.google.growpod.storage.Storage;
+import java.io.IOException;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet that rebuilds every garden's member and plant counts, and its membership guards, from its
+ * relations. Needed after relations are written without going through the DAOs, for example by a
+ * backup import, and once on data written before membership guards. Runs on the configured storage
+ * backend.
+ *
+ * <p>The rebuild scans every relation and rewrites every counter and guard, and can lose writes
+ * made while it runs, so only a POST from an administrator of the app starts it. web.xml restricts
+ * the path to administrators as well.
+ */
+@WebServlet("/repair-counts")
+public class RepairCountsServlet extends HttpServlet {
+
+  static final long serialVersionUID = 1L;
+
+  /** Role App Engine gives administrators of the app. */
+  static final String ADMIN_ROLE = "admin";
+
+  private Storage storage;
+
+  /** Initializes the servlet. Connects it to the default storage. */
+  @Override
+  public void init() throws ServletException {
+    this.storage = Storages.getDefault();
+  }
+
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response)
+      throws ServletException, IOException {
+    if (!request.isUserInRole(ADMIN_ROLE)) {
+      response.sendError(
+          HttpServletResponse.SC_FORBIDDEN, "Only administrators may rebuild the counts");
+      return;
+    }
+    int gardens = storage.rebuildCounts();
+
+    response.setContentType("application/json;");
+    response.getWriter().println("{\"gardens\":" + gardens + "}");
+  }
+
+  public void setStorage(Storage storage) {
+    this.storage = storage;
+  }
+}
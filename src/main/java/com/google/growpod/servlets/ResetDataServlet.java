@@ -16,7 +16,18 @@ package com.google.growpod.servlets;
 
 import com.google.cloud.datastore.DatastoreOptions;
 import com.google.growpod.LoadTestData;
+import com.google.growpod.controllers.FindGardensDao;
+import com.google.growpod.controllers.IdFilters;
+import com.google.growpod.controllers.MembershipIndex;
+import com.google.growpod.controllers.Storages;
+import com.google.growpod.controllers.WarmStart;
+import com.google.growpod.data.Garden;
+import com.google.growpod.search.GardenQuadtree;
+import com.google.growpod.search.GardenSearchIndex;
+import com.google.growpod.storage.EmbeddedStorage;
+import com.google.growpod.storage.Storage;
 import java.io.IOException;
+import java.util.List;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
@@ -32,11 +43,22 @@ public class ResetDataServlet extends HttpServlet {
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response)
       throws ServletException, IOException {
-    DatastoreOptions instance = DatastoreOptions.getDefaultInstance();
+    Storage storage = Storages.getDefault();
 
     // Deletes and repopulates everything.
-    LoadTestData.clear(instance);
-    LoadTestData.load(instance);
+    if (storage instanceof EmbeddedStorage) {
+      LoadTestData.load((EmbeddedStorage) storage);
+    } else {
+      DatastoreOptions instance = DatastoreOptions.getDefaultInstance();
+      LoadTestData.clear(instance);
+      LoadTestData.load(instance);
+      IdFilters.invalidateAll();
+      MembershipIndex.invalidateShared();
+      WarmStart.retire();
+    }
+    List<Garden> gardens = new FindGardensDao(storage).getAllGardens();
+    GardenSearchIndex.getInstance().rebuild(gardens);
+    GardenQuadtree.getInstance().rebuild(gardens);
 
     response.setContentType("application/json;");
     response.getWriter().println("{}");
@@ -0,0 +1,184 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.servlets;
+
+import com.google.growpod.controllers.FindGardensDao;
+import com.google.growpod.controllers.Storages;
+import com.google.growpod.data.FieldSet;
+import com.google.growpod.data.Garden;
+import com.google.growpod.search.GardenSearchIndex;
+import com.google.growpod.search.GardenSearchIndex.Hit;
+import com.google.growpod.search.GardenSearchIndex.Results;
+import com.google.growpod.storage.Storage;
+import com.google.growpod.util.BackgroundRefresher;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet that searches garden names and descriptions, upon a GET request.
+ *
+ * <p>API DOCUMENTATION: GET /search-gardens?q={text}&zip={zip code}&offset={n}&limit={n} returns
+ * {"total": matches, "gardens": [...]}, the gardens ranked offset to offset + limit (default 10, at
+ * most 50) by relevance to q, each with its `score`. With zip, only gardens in that zip code match.
+ * With fields, only the listed fields of each garden are returned.
+ */
+@WebServlet(
+    urlPatterns = {"/search-gardens"},
+    loadOnStartup = 1)
+public class SearchGardensServlet extends HttpServlet {
+
+  static final long serialVersionUID = 1L;
+
+  /** Number of results returned when no limit is given. */
+  private static final int DEFAULT_LIMIT = 10;
+
+  /** Maximum number of results returned. */
+  private static final int MAX_LIMIT = 50;
+
+  /** Maximum number of results skipped. */
+  private static final int MAX_OFFSET = 1000;
+
+  /** Fields of a search result. */
+  private static final List<String> SEARCH_FIELDS = new ArrayList<String>(FieldSet.GARDEN);
+
+  static {
+    SEARCH_FIELDS.add("score");
+  }
+
+  /** Age after which the index is rebuilt, to pick up gardens written by other instances. */
+  private static final long REFRESH_MILLIS = 10 * 60 * 1000;
+
+  private FindGardensDao dao;
+
+  private GardenSearchIndex index = GardenSearchIndex.getInstance();
+
+  /** Rebuilds the index in the background; requests wait for the first build only. */
+  private final BackgroundRefresher refresher =
+      new BackgroundRefresher(
+          "search-index",
+          REFRESH_MILLIS,
+          () -> index.getAgeMillis(),
+          () -> index.rebuild(dao.getAllGardens()));
+
+  /** Initializes the servlet. Connects it to the default storage and starts building the index. */
+  @Override
+  public void init() throws ServletException {
+    Storage storage = Storages.getDefault();
+    this.dao = new FindGardensDao(storage);
+    refresher.refresh();
+  }
+
+  /**
+   * Processes HTTP GET requests for the /search-gardens servlet.
+   *
+   * @param request Information about the GET Request
+   * @param response Information about the servlet's response
+   */
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    String query = request.getParameter("q");
+    if (query == null || query.trim().isEmpty()) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Missing query");
+      return;
+    }
+    FieldSet fields = ServletHelpers.parseFields(request, response, SEARCH_FIELDS);
+    if (fields == null) {
+      return;
+    }
+    int offset = parseRange(request.getParameter("offset"), 0, 0, MAX_OFFSET);
+    int limit = parseRange(request.getParameter("limit"), DEFAULT_LIMIT, 1, MAX_LIMIT);
+    if (offset < 0 || limit < 0) {
+      response.sendError(
+          HttpServletResponse.SC_BAD_REQUEST,
+          "Offset must be at most " + MAX_OFFSET + " and limit between 1 and " + MAX_LIMIT);
+      return;
+    }
+
+    refresher.ensureBuilt();
+    Results results = index.search(query, request.getParameter("zip"), offset, limit);
+
+    // Gardens of a page are fetched in one lookup.
+    List<Hit> hits = results.getHits();
+    long[] gardenIds = new long[hits.size()];
+    Map<Long, Double> scores = new HashMap<Long, Double>();
+    for (int i = 0; i < gardenIds.length; i++) {
+      gardenIds[i] = hits.get(i).getGardenId();
+      scores.put(gardenIds[i], hits.get(i).getScore());
+    }
+    List<Garden> gardens = gardenIds.length == 0 ? null : dao.getGardensById(gardenIds);
+
+    Gson gson = new Gson();
+    JsonArray gardenList = new JsonArray();
+    if (gardens != null) {
+      for (Garden garden : gardens) {
+        JsonObject json = gson.toJsonTree(garden).getAsJsonObject();
+        json.addProperty("score", scores.get(garden.getId()));
+        gardenList.add(fields.filter(json));
+      }
+    }
+    JsonObject json = new JsonObject();
+    json.addProperty("total", results.getTotal());
+    json.add("gardens", gardenList);
+
+    response.setContentType("application/json;");
+    response.getWriter().println(json);
+  }
+
+  /**
+   * Parses an integer parameter.
+   *
+   * @param value the parameter, or null if absent.
+   * @param defaultValue the value when absent.
+   * @param min the smallest accepted value.
+   * @param max the largest accepted value.
+   * @return the value, or -1 if it is malformed or out of range.
+   */
+  private static int parseRange(String value, int defaultValue, int min, int max) {
+    if (value == null) {
+      return defaultValue;
+    }
+    int parsed;
+    try {
+      parsed = Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+    return parsed < min || parsed > max ? -1 : parsed;
+  }
+
+  /** Getters and Setters for data access object and index. */
+  public FindGardensDao getDao() {
+    return dao;
+  }
+
+  public void setDao(FindGardensDao dao) {
+    this.dao = dao;
+  }
+
+  public void setIndex(GardenSearchIndex index) {
+    this.index = index;
+  }
+}
@@ -0,0 +1,247 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.servlets;
+
+import com.google.growpod.data.BatchItemStatus;
+import com.google.growpod.data.BatchItemStatus.Outcome;
+import com.google.growpod.data.DeleteJob;
+import com.google.growpod.data.FieldSet;
+import com.google.growpod.data.Garden;
+import com.google.growpod.data.GardenCounts;
+import com.google.growpod.data.Ids;
+import com.google.growpod.encoding.CborEncoders;
+import com.google.growpod.encoding.CborWriter;
+import com.google.growpod.schedule.CareScheduler;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSerializer;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.Collection;
+import java.util.List;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** Request handling helpers shared by the servlets. */
+final class ServletHelpers {
+
+  private ServletHelpers() {}
+
+  /**
+   * Parses an id from a request URI segment, replying with 400 BAD REQUEST if it is malformed.
+   *
+   * @param value the URI segment.
+   * @param response the response to send the error on.
+   * @return the id, or Ids.INVALID if an error was sent.
+   */
+  static long parseId(String value, HttpServletResponse response) throws IOException {
+    long id = Ids.parse(value);
+    if (id == Ids.INVALID) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Malformed id: " + value);
+    }
+    return id;
+  }
+
+  /**
+   * Parses the `fields` parameter of a GET request, replying with 400 BAD REQUEST if it names a
+   * field the record does not have.
+   *
+   * @param request the request holding the parameter.
+   * @param response the response to send the error on.
+   * @param known the fields of the record, such as FieldSet.GARDEN.
+   * @return the requested fields, FieldSet.ALL if there is no parameter, or null if an error was
+   *     sent.
+   */
+  static FieldSet parseFields(
+      HttpServletRequest request, HttpServletResponse response, Collection<String> known)
+      throws IOException {
+    FieldSet fields = FieldSet.parse(request.getParameter("fields"), known);
+    if (fields == null) {
+      response.sendError(
+          HttpServletResponse.SC_BAD_REQUEST,
+          "Fields must be a list of: " + String.join(",", known));
+    }
+    return fields;
+  }
+
+  /**
+   * Serializes a garden along with its member and plant counts.
+   *
+   * @param gson the serializer.
+   * @param garden the garden to serialize.
+   * @param counts the garden's counts, or null to leave them out.
+   * @return the garden's JSON object.
+   */
+  static JsonObject gardenWithCounts(Gson gson, Garden garden, GardenCounts counts) {
+    return gardenWithCounts(gson, garden, counts, FieldSet.ALL);
+  }
+
+  /**
+   * Serializes the requested fields of a garden along with its member and plant counts.
+   *
+   * @param gson the serializer.
+   * @param garden the garden to serialize.
+   * @param counts the garden's counts, or null to leave them out.
+   * @param fields the fields to serialize.
+   * @return the garden's JSON object.
+   */
+  static JsonObject gardenWithCounts(
+      Gson gson, Garden garden, GardenCounts counts, FieldSet fields) {
+    JsonObject json = gson.toJsonTree(garden).getAsJsonObject();
+    if (counts != null) {
+      json.addProperty("memberCount", counts.getMemberCount());
+      json.addProperty("plantCount", counts.getPlantCount());
+    }
+    return fields.filter(json);
+  }
+
+  /**
+   * Whether the client asked for CBOR rather than JSON. Clients opt in by listing application/cbor
+   * in their Accept header; anything else gets JSON. Either way the response is marked as varying
+   * by Accept, so caches keep the two apart.
+   *
+   * @param request the request to negotiate.
+   * @param response the response to mark.
+   * @return true if the response should be CBOR.
+   */
+  static boolean acceptsCbor(HttpServletRequest request, HttpServletResponse response) {
+    response.addHeader("Vary", "Accept");
+    String accept = request.getHeader("Accept");
+    return accept != null && accept.contains(CborEncoders.MEDIA_TYPE);
+  }
+
+  /**
+   * Starts a CBOR response. The caller writes one item and then flushes the writer.
+   *
+   * @param response the response to write to.
+   * @return a writer over the response body.
+   */
+  static CborWriter startCbor(HttpServletResponse response) throws IOException {
+    response.setContentType(CborEncoders.MEDIA_TYPE);
+    return new CborWriter(new BufferedOutputStream(response.getOutputStream()));
+  }
+
+  /**
+   * Writes a CBOR response holding an array of ids.
+   *
+   * @param response the response to write to.
+   * @param ids the ids to write.
+   */
+  static void writeCborIds(HttpServletResponse response, long[] ids) throws IOException {
+    CborWriter out = startCbor(response);
+    CborEncoders.writeIds(out, ids);
+    out.flush();
+  }
+
+  /**
+   * Replies 202 ACCEPTED to a delete carried out by a background job, with the job in the body and
+   * its status URI in the Location header.
+   *
+   * @param response the response to write to.
+   * @param job the job, as stored.
+   */
+  static void writeAccepted(HttpServletResponse response, DeleteJob job) throws IOException {
+    response.setStatus(HttpServletResponse.SC_ACCEPTED);
+    response.setHeader("Location", "/delete-job/" + job.getId());
+    response.setContentType("application/json;");
+    response.getWriter().println(new Gson().toJson(job));
+  }
+
+  /**
+   * Writes the statuses of a batch request as JSON, with each item's outcome as an HTTP status
+   * code.
+   *
+   * @param response the response to write to.
+   * @param statuses the status of each item, in request order.
+   */
+  static void writeBatchStatuses(HttpServletResponse response, List<BatchItemStatus> statuses)
+      throws IOException {
+    Gson gson =
+        new GsonBuilder()
+            .registerTypeAdapter(
+                Outcome.class,
+                (JsonSerializer<Outcome>)
+                    (outcome, type, context) -> new JsonPrimitive(httpStatus(outcome)))
+            .create();
+    response.setContentType("application/json;");
+    response.getWriter().println(gson.toJson(statuses));
+  }
+
+  /**
+   * Maps the outcome of a batch item to the HTTP status code reported for it.
+   *
+   * @param outcome the outcome.
+   * @return the status code.
+   */
+  static int httpStatus(Outcome outcome) {
+    switch (outcome) {
+      case CREATED:
+        return HttpServletResponse.SC_CREATED;
+      case DELETED:
+        return HttpServletResponse.SC_OK;
+      case INVALID:
+        return HttpServletResponse.SC_BAD_REQUEST;
+      case NOT_FOUND:
+        return HttpServletResponse.SC_NOT_FOUND;
+      default:
+        return HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+    }
+  }
+
+  /**
+   * Parses the `from` and `to` parameters of a task query, as yyyy-mm-dd days. They default to
+   * today (UTC) and six days after `from`. Replies with 400 BAD REQUEST if either is malformed, if
+   * `to` precedes `from`, if the range is longer than CareScheduler.MAX_RANGE_DAYS, or if it
+   * reaches more than CareScheduler.HORIZON_DAYS from today.
+   *
+   * @param request the request holding the parameters.
+   * @param response the response to send the error on.
+   * @return the first and last day, or null if an error was sent.
+   */
+  static LocalDate[] parseDateRange(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    LocalDate from;
+    LocalDate to;
+    try {
+      String fromValue = request.getParameter("from");
+      String toValue = request.getParameter("to");
+      from = fromValue == null ? LocalDate.now(ZoneOffset.UTC) : LocalDate.parse(fromValue);
+      to = toValue == null ? from.plusDays(6) : LocalDate.parse(toValue);
+    } catch (DateTimeParseException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Dates must be yyyy-mm-dd");
+      return null;
+    }
+    if (to.isBefore(from) || from.plusDays(CareScheduler.MAX_RANGE_DAYS).isBefore(to)) {
+      response.sendError(
+          HttpServletResponse.SC_BAD_REQUEST,
+          "Range must end after it starts and span at most "
+              + CareScheduler.MAX_RANGE_DAYS
+              + " days");
+      return null;
+    }
+    if (!CareScheduler.isWithinHorizon(from, to)) {
+      response.sendError(
+          HttpServletResponse.SC_BAD_REQUEST,
+          "Dates must be within " + CareScheduler.HORIZON_DAYS + " days of today");
+      return null;
+    }
+    return new LocalDate[] {from, to};
+  }
+}
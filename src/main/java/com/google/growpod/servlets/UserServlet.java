@@ -14,11 +14,21 @@
 
 package com.google.growpod.servlets;
 
-import com.google.cloud.datastore.DatastoreOptions;
+import com.google.growpod.controllers.Storages;
 import com.google.growpod.controllers.UserDao;
+import com.google.growpod.data.CareTask;
+import com.google.growpod.data.FieldSet;
+import com.google.growpod.data.Ids;
 import com.google.growpod.data.User;
+import com.google.growpod.encoding.CborEncoders;
+import com.google.growpod.encoding.CborWriter;
+import com.google.growpod.jobs.DeleteJobs;
+import com.google.growpod.schedule.CareScheduler;
+import com.google.growpod.storage.Storage;
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
 import java.io.IOException;
+import java.time.LocalDate;
 import java.util.List;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
@@ -34,17 +44,23 @@ public class UserServlet extends HttpServlet {
 
   private UserDao dao;
 
+  private CareScheduler scheduler;
+
+  private DeleteJobs deleteJobs;
+
   private static final String CURRENT_USER_ARG = "current";
   private static final String GARDEN_LIST_ARG = "garden-list";
   private static final String GARDEN_ADMIN_LIST_ARG = "garden-admin-list";
-  private static final String CURRENT_USER_KEY =
-      "1"; // TODO(Issue #34): Replace value once oauth works
+  private static final String TASKS_ARG = "tasks";
+  private static final long CURRENT_USER_KEY = 1; // TODO(Issue #34): Replace value once oauth works
 
-  /** Initializes the servlet. Connects it to Datastore. */
+  /** Initializes the servlet. Connects it to the default storage. */
   @Override
   public void init() throws ServletException {
-    DatastoreOptions datastoreInstance = DatastoreOptions.getDefaultInstance();
-    this.dao = new UserDao(datastoreInstance);
+    Storage storage = Storages.getDefault();
+    this.dao = new UserDao(storage);
+    this.scheduler = CareScheduler.getInstance();
+    this.deleteJobs = DeleteJobs.getInstance();
   }
 
   /**
@@ -66,47 +82,90 @@ public class UserServlet extends HttpServlet {
       return;
     }
 
-    // Replace 'current' user with logged-in user.
-    String userId = uriList[2];
-    if (userId.equals(CURRENT_USER_ARG)) {
-      userId = CURRENT_USER_KEY;
-    }
-
     // Dispatch based on method specified.
     // /user/{id}
     if (uriList.length == 3) {
+      long userId = parseUserId(uriList[2], response);
+      if (userId == Ids.INVALID) {
+        return;
+      }
+      FieldSet fields = ServletHelpers.parseFields(request, response, FieldSet.USER);
+      if (fields == null) {
+        return;
+      }
       User user = dao.getUserById(userId);
       if (user == null) {
         response.sendError(HttpServletResponse.SC_NOT_FOUND, "Invalid user id: " + userId);
         return;
       }
+      if (ServletHelpers.acceptsCbor(request, response)) {
+        CborWriter out = ServletHelpers.startCbor(response);
+        CborEncoders.writeUser(out, user, fields);
+        out.flush();
+        return;
+      }
       response.setContentType("application/json;");
-      response.getWriter().println(new Gson().toJson(user));
+      response.getWriter().println(fields.filter(new Gson().toJsonTree(user).getAsJsonObject()));
       return;
     }
 
     if (uriList.length == 4) {
       if (uriList[3].equals(GARDEN_LIST_ARG)) {
         // /user/{id}/garden-list
-        List<String> list = dao.getUserGardenListById(userId);
+        long userId = parseUserId(uriList[2], response);
+        if (userId == Ids.INVALID) {
+          return;
+        }
+        long[] list = dao.getUserGardenListById(userId);
 
         if (list == null) {
           response.sendError(HttpServletResponse.SC_NOT_FOUND, "Invalid user id: " + userId);
           return;
         }
+        if (ServletHelpers.acceptsCbor(request, response)) {
+          ServletHelpers.writeCborIds(response, list);
+          return;
+        }
+        response.setContentType("application/json;");
+        response.getWriter().println(Ids.toJson(list));
+        return;
+      } else if (uriList[3].equals(TASKS_ARG)) {
+        // /user/{id}/tasks?from={day}&to={day}
+        long userId = parseUserId(uriList[2], response);
+        if (userId == Ids.INVALID) {
+          return;
+        }
+        LocalDate[] range = ServletHelpers.parseDateRange(request, response);
+        if (range == null) {
+          return;
+        }
+        long[] gardenIds = dao.getUserGardenListById(userId);
+        if (gardenIds == null) {
+          response.sendError(HttpServletResponse.SC_NOT_FOUND, "Invalid user id: " + userId);
+          return;
+        }
+        List<CareTask> tasks = scheduler.getTasks(gardenIds, range[0], range[1]);
         response.setContentType("application/json;");
-        response.getWriter().println(new Gson().toJson(list));
+        response.getWriter().println(new Gson().toJson(tasks));
         return;
       } else if (uriList[3].equals(GARDEN_ADMIN_LIST_ARG)) {
         // /user/{id}/garden-admin-list
-        List<String> list = dao.getUserGardenAdminListById(userId);
+        long userId = parseUserId(uriList[2], response);
+        if (userId == Ids.INVALID) {
+          return;
+        }
+        long[] list = dao.getUserGardenAdminListById(userId);
 
         if (list == null) {
           response.sendError(HttpServletResponse.SC_NOT_FOUND, "Invalid user id: " + userId);
           return;
         }
+        if (ServletHelpers.acceptsCbor(request, response)) {
+          ServletHelpers.writeCborIds(response, list);
+          return;
+        }
         response.setContentType("application/json;");
-        response.getWriter().println(new Gson().toJson(list));
+        response.getWriter().println(Ids.toJson(list));
         return;
       }
 
@@ -132,7 +191,16 @@ public class UserServlet extends HttpServlet {
       // /user
       response.setContentType("application/json");
       String json = request.getParameter("userData");
-      User userData = new Gson().fromJson(json, User.class);
+      User userData;
+      try {
+        userData = new Gson().fromJson(json, User.class);
+      } catch (JsonParseException e) {
+        userData = null;
+      }
+      if (userData == null) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid user body");
+        return;
+      }
       dao.addToDatastore(userData);
       return;
     }
@@ -143,27 +211,29 @@ public class UserServlet extends HttpServlet {
       return;
     }
 
-    // Replace 'current' user with logged-in user.
-    String userKey = uriList[2];
-    if (userKey.equals(CURRENT_USER_ARG)) {
-      userKey = CURRENT_USER_KEY;
-    }
-
     // Dispatch based on method specified.
     if (uriList.length == 5) {
       if (uriList[3].equals(GARDEN_LIST_ARG)) {
         // /user/{uid}/garden-list/{gid}
         // TODO (Issue #34) Authenticate user.
-        boolean result = dao.addGarden(userKey, uriList[4]);
+        long userKey = parseUserId(uriList[2], response);
+        if (userKey == Ids.INVALID) {
+          return;
+        }
+        long gardenId = ServletHelpers.parseId(uriList[4], response);
+        if (gardenId == Ids.INVALID) {
+          return;
+        }
+        boolean result = dao.addGarden(userKey, gardenId);
         if (!result) {
           response.sendError(
               HttpServletResponse.SC_NOT_FOUND,
-              "Not found - user: " + userKey + " garden: " + uriList[4]);
+              "Not found - user: " + userKey + " garden: " + gardenId);
           return;
         }
         response.setStatus(HttpServletResponse.SC_CREATED);
         response.setContentType("application/json;");
-        response.getWriter().println("{\"id\":" + uriList[4] + "}");
+        response.getWriter().println("{\"id\":" + gardenId + "}");
         return;
       }
     }
@@ -191,16 +261,24 @@ public class UserServlet extends HttpServlet {
       return;
     }
 
-    // Replace 'current' user with logged-in user.
-    String userKey = uriList[2];
-    if (userKey.equals(CURRENT_USER_ARG)) {
-      userKey = CURRENT_USER_KEY;
-    }
-
     // Dispatch based on method specified.
     // /user/{id}
     if (uriList.length == 3) {
-      // TODO Delete user provided owner is current user.
+      long userId = parseUserId(uriList[2], response);
+      if (userId == Ids.INVALID) {
+        return;
+      }
+      // TODO (Issue #34) Compare with the authenticated user.
+      if (userId != CURRENT_USER_KEY) {
+        response.sendError(HttpServletResponse.SC_FORBIDDEN, "Users may only delete themselves");
+        return;
+      }
+      if (dao.getUserById(userId) == null) {
+        response.sendError(HttpServletResponse.SC_NOT_FOUND, "Invalid user id: " + userId);
+        return;
+      }
+      // Relations and plants go in the background; the job's status is at the Location.
+      ServletHelpers.writeAccepted(response, deleteJobs.deleteUser(userId));
       return;
     }
 
@@ -208,16 +286,24 @@ public class UserServlet extends HttpServlet {
       if (uriList[3].equals(GARDEN_LIST_ARG)) {
         // /user/{uid}/garden-list/{gid}
         // TODO (Issue #34) Verify user
-        boolean status = dao.deleteFromUserGardenList(userKey, uriList[4]);
+        long userKey = parseUserId(uriList[2], response);
+        if (userKey == Ids.INVALID) {
+          return;
+        }
+        long gardenId = ServletHelpers.parseId(uriList[4], response);
+        if (gardenId == Ids.INVALID) {
+          return;
+        }
+        boolean status = dao.deleteFromUserGardenList(userKey, gardenId);
         if (!status) {
           // Nothing to delete
           response.sendError(
               HttpServletResponse.SC_NOT_FOUND,
-              "Invalid garden: " + uriList[4] + " of user: " + userKey);
+              "Invalid garden: " + gardenId + " of user: " + userKey);
           return;
         }
         response.setContentType("application/json;");
-        response.getWriter().println("{\"id\":" + uriList[4] + "}");
+        response.getWriter().println("{\"id\":" + gardenId + "}");
         return;
       }
       // If the uriList does not match the above two methods, fall through.
@@ -226,6 +312,21 @@ public class UserServlet extends HttpServlet {
         HttpServletResponse.SC_METHOD_NOT_ALLOWED, "Unimplemented: " + request.getRequestURI());
   }
 
+  /**
+   * Parses a user id from a request URI segment, replacing 'current' with the logged-in user.
+   * Replies with 400 BAD REQUEST if the id is malformed.
+   *
+   * @param value the URI segment.
+   * @param response the response to send the error on.
+   * @return the user id, or Ids.INVALID if an error was sent.
+   */
+  private long parseUserId(String value, HttpServletResponse response) throws IOException {
+    if (value.equals(CURRENT_USER_ARG)) {
+      return CURRENT_USER_KEY;
+    }
+    return ServletHelpers.parseId(value, response);
+  }
+
   /** Getters and Setters for data access object. */
   public UserDao getDao() {
     return dao;
@@ -234,4 +335,12 @@ public class UserServlet extends HttpServlet {
   public void setDao(UserDao dao) {
     this.dao = dao;
   }
+
+  public void setScheduler(CareScheduler scheduler) {
+    this.scheduler = scheduler;
+  }
+
+  public void setDeleteJobs(DeleteJobs deleteJobs) {
+    this.deleteJobs = deleteJobs;
+  }
 }
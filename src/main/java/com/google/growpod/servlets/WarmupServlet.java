@@ -0,0 +1,343 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.servlets;
+
+import com.google.growpod.controllers.FindGardensDao;
+import com.google.growpod.controllers.GardenDao;
+import com.google.growpod.controllers.Storages;
+import com.google.growpod.data.Garden;
+import com.google.growpod.data.GardenCounts;
+import com.google.growpod.storage.Storage;
+import com.google.gson.JsonObject;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Servlet that warms up a new instance before App Engine sends it traffic.
+ *
+ * <p>API DOCUMENTATION: GET /_ah/warmup connects to Datastore, then dispatches synthetic GET
+ * requests to the garden, user, plant and find-gardens servlets for the most joined of a small
+ * sample of gardens and their zip codes, which primes the DAOs' caches and id filters. The busiest
+ * garden's requests then repeat until the JIT stops compiling, for at most {@link #MAX_ROUNDS}
+ * rounds, so the work is bounded whatever the size of the data. Returns {"millis", "gardens",
+ * "zipCodes", "dispatches", "rounds", "compileMillis"}, where compileMillis is -1 if the JVM does
+ * not report compilation time.
+ */
+@WebServlet("/_ah/warmup")
+public class WarmupServlet extends HttpServlet {
+
+  static final long serialVersionUID = 1L;
+
+  /** Gardens read to pick the primed ones from. */
+  private static final int SAMPLED_GARDENS = 100;
+
+  /** Most joined gardens of the sample primed. */
+  private static final int PRIMED_GARDENS = 20;
+
+  /** Zip codes primed, those of the most joined gardens first. */
+  private static final int PRIMED_ZIP_CODES = 10;
+
+  /** Most rounds of JIT warming. */
+  private static final int MAX_ROUNDS = 200;
+
+  /** Rounds always run, and the only rounds run when compilation time is not reported. */
+  private static final int MIN_ROUNDS = 50;
+
+  /** Consecutive rounds without compilation after which the hot paths count as compiled. */
+  private static final int QUIET_ROUNDS = 5;
+
+  /** Servlet names, which default to class names, by route. */
+  private static final Map<String, String> SERVLETS = new HashMap<String, String>();
+
+  static {
+    SERVLETS.put("/garden", GardenServlet.class.getName());
+    SERVLETS.put("/user", UserServlet.class.getName());
+    SERVLETS.put("/plant", PlantServlet.class.getName());
+    SERVLETS.put("/find-gardens", FindGardensServlet.class.getName());
+  }
+
+  private static final Logger logger = Logger.getLogger(WarmupServlet.class.getName());
+
+  private FindGardensDao findGardensDao;
+  private GardenDao gardenDao;
+
+  /** Initializes the servlet. Connects it to the default storage. */
+  @Override
+  public void init() throws ServletException {
+    Storage storage = Storages.getDefault();
+    this.findGardensDao = new FindGardensDao(storage);
+    this.gardenDao = new GardenDao(storage);
+  }
+
+  /**
+   * Processes HTTP GET requests for the /_ah/warmup servlet.
+   *
+   * @param request Information about the GET Request
+   * @param response Information about the servlet's response
+   */
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws IOException, ServletException {
+    long start = System.nanoTime();
+
+    // The first query sets up the Datastore channel.
+    List<Garden> gardens = mostJoined(findGardensDao.getSomeGardens(SAMPLED_GARDENS));
+    Set<String> zipCodes = new LinkedHashSet<String>();
+    for (Garden garden : gardens) {
+      if (garden.getZipCode() != null && zipCodes.size() < PRIMED_ZIP_CODES) {
+        zipCodes.add(garden.getZipCode());
+      }
+    }
+
+    List<String[]> primed = new ArrayList<String[]>();
+    for (Garden garden : gardens) {
+      primed.addAll(gardenRequests(garden));
+    }
+    for (String zipCode : zipCodes) {
+      primed.add(new String[] {"/find-gardens", zipCode});
+    }
+    int dispatches = dispatchAll(request, response, primed);
+
+    List<String[]> hot = new ArrayList<String[]>();
+    if (!gardens.isEmpty()) {
+      hot.addAll(gardenRequests(gardens.get(0)));
+    }
+    if (!zipCodes.isEmpty()) {
+      hot.add(new String[] {"/find-gardens", zipCodes.iterator().next()});
+    }
+    CompilationMXBean compiler = compiler();
+    long compileStart = compiler == null ? -1 : compiler.getTotalCompilationTime();
+    long compileTime = compileStart;
+    int rounds = 0;
+    int quietRounds = 0;
+    while (!hot.isEmpty() && rounds < MAX_ROUNDS) {
+      dispatches += dispatchAll(request, response, hot);
+      rounds++;
+      if (compiler != null) {
+        long lastCompileTime = compileTime;
+        compileTime = compiler.getTotalCompilationTime();
+        quietRounds = compileTime == lastCompileTime ? quietRounds + 1 : 0;
+      }
+      if (rounds >= MIN_ROUNDS && (compiler == null || quietRounds >= QUIET_ROUNDS)) {
+        break;
+      }
+    }
+
+    JsonObject json = new JsonObject();
+    json.addProperty("millis", (System.nanoTime() - start) / 1000000);
+    json.addProperty("gardens", gardens.size());
+    json.addProperty("zipCodes", zipCodes.size());
+    json.addProperty("dispatches", dispatches);
+    json.addProperty("rounds", rounds);
+    json.addProperty("compileMillis", compiler == null ? -1 : compileTime - compileStart);
+    logger.info("Warmup: " + json);
+
+    response.setContentType("application/json;");
+    response.getWriter().println(json);
+  }
+
+  /** The gardens with the most members, most first. */
+  private List<Garden> mostJoined(List<Garden> gardens) {
+    if (gardens.isEmpty()) {
+      return gardens;
+    }
+    long[] gardenIds = new long[gardens.size()];
+    for (int i = 0; i < gardenIds.length; i++) {
+      gardenIds[i] = gardens.get(i).getId();
+    }
+    Map<Long, GardenCounts> counts = findGardensDao.getGardenCounts(gardenIds);
+    Map<Long, Long> members = new HashMap<Long, Long>();
+    for (Garden garden : gardens) {
+      GardenCounts gardenCounts = counts == null ? null : counts.get(garden.getId());
+      members.put(garden.getId(), gardenCounts == null ? 0 : gardenCounts.getMemberCount());
+    }
+    List<Garden> sorted = new ArrayList<Garden>(gardens);
+    Collections.sort(
+        sorted, Comparator.comparingLong((Garden garden) -> -members.get(garden.getId())));
+    return sorted.subList(0, Math.min(PRIMED_GARDENS, sorted.size()));
+  }
+
+  /** The reads of a garden, its admin and its first plant, each as {uri, zip code}. */
+  private List<String[]> gardenRequests(Garden garden) {
+    List<String[]> requests = new ArrayList<String[]>();
+    String gardenUri = "/garden/" + garden.getId();
+    requests.add(new String[] {gardenUri, null});
+    requests.add(new String[] {gardenUri + "/user-list", null});
+    requests.add(new String[] {gardenUri + "/plant-list", null});
+    requests.add(new String[] {"/user/" + garden.getAdminId(), null});
+    requests.add(new String[] {"/user/" + garden.getAdminId() + "/garden-list", null});
+    long[] plantIds = gardenDao.getGardenPlantListById(garden.getId());
+    if (plantIds != null && plantIds.length > 0) {
+      requests.add(new String[] {"/plant/" + plantIds[0], null});
+    }
+    return requests;
+  }
+
+  /** Dispatches synthetic GET requests to their servlets, and returns how many there were. */
+  private int dispatchAll(
+      HttpServletRequest request, HttpServletResponse response, List<String[]> requests)
+      throws IOException, ServletException {
+    for (String[] synthetic : requests) {
+      String uri = synthetic[0];
+      int slash = uri.indexOf('/', 1);
+      String route = slash < 0 ? uri : uri.substring(0, slash);
+      RequestDispatcher dispatcher = getServletContext().getNamedDispatcher(SERVLETS.get(route));
+      dispatcher.include(
+          new SyntheticRequest(request, route, uri, synthetic[1]), new DiscardedResponse(response));
+    }
+    return requests.size();
+  }
+
+  /** Compilation statistics of this JVM, or null if it does not report them. */
+  private static CompilationMXBean compiler() {
+    try {
+      CompilationMXBean compiler = ManagementFactory.getCompilationMXBean();
+      return compiler != null && compiler.isCompilationTimeMonitoringSupported() ? compiler : null;
+    } catch (SecurityException | UnsupportedOperationException e) {
+      return null;
+    }
+  }
+
+  public void setDaos(FindGardensDao findGardensDao, GardenDao gardenDao) {
+    this.findGardensDao = findGardensDao;
+    this.gardenDao = gardenDao;
+  }
+
+  /** A GET request for uri, with an optional zip-code parameter. */
+  private static final class SyntheticRequest extends HttpServletRequestWrapper {
+
+    private final String route;
+    private final String uri;
+    private final String zipCode;
+
+    SyntheticRequest(HttpServletRequest request, String route, String uri, String zipCode) {
+      super(request);
+      this.route = route;
+      this.uri = uri;
+      this.zipCode = zipCode;
+    }
+
+    @Override
+    public String getMethod() {
+      return "GET";
+    }
+
+    @Override
+    public String getRequestURI() {
+      return uri;
+    }
+
+    @Override
+    public String getServletPath() {
+      return route;
+    }
+
+    @Override
+    public String getPathInfo() {
+      return uri.length() > route.length() ? uri.substring(route.length()) : null;
+    }
+
+    @Override
+    public String getQueryString() {
+      return zipCode == null ? null : "zip-code=" + zipCode;
+    }
+
+    @Override
+    public String getParameter(String name) {
+      return "zip-code".equals(name) ? zipCode : null;
+    }
+  }
+
+  /** A response whose status, headers and body are all thrown away. */
+  private static final class DiscardedResponse extends HttpServletResponseWrapper {
+
+    private static final OutputStream DISCARD =
+        new OutputStream() {
+          @Override
+          public void write(int b) {}
+
+          @Override
+          public void write(byte[] b, int off, int len) {}
+        };
+
+    DiscardedResponse(HttpServletResponse response) {
+      super(response);
+    }
+
+    @Override
+    public PrintWriter getWriter() {
+      return new PrintWriter(DISCARD);
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() {
+      return new ServletOutputStream() {
+        @Override
+        public void write(int b) {}
+
+        @Override
+        public boolean isReady() {
+          return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener listener) {}
+      };
+    }
+
+    @Override
+    public void sendError(int status) {}
+
+    @Override
+    public void sendError(int status, String message) {}
+
+    @Override
+    public void setStatus(int status) {}
+
+    @Override
+    public void setContentType(String type) {}
+
+    @Override
+    public void setCharacterEncoding(String charset) {}
+
+    @Override
+    public void setHeader(String name, String value) {}
+
+    @Override
+    public void addHeader(String name, String value) {}
+  }
+}
@@ -0,0 +1,306 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.snapshot;
+
+import com.google.growpod.data.Garden;
+import com.google.growpod.data.Plant;
+import com.google.growpod.data.User;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary snapshot of the read-mostly data: gardens, plants, users, and the relation lists of each
+ * garden and user. Snapshots are written to local disk and memory-mapped back by a restarted
+ * server, so it can serve reads before it has talked to Datastore.
+ *
+ * <p>Format, big-endian: the magic number {@link #MAGIC}, the format {@link #VERSION}, and the
+ * creation time in epoch milliseconds; then gardens, plants and users, each a count followed by
+ * that many records; then the member, plant and garden lists, each a count followed by that many
+ * (owner id, id count, ids) entries; and finally the CRC32 of everything before it. Records hold
+ * their fields in declaration order, with strings as a byte length (-1 for null) and UTF-8 bytes.
+ */
+public final class Snapshot {
+
+  /** "GPSN", identifying snapshot files. */
+  static final int MAGIC = 0x4750534e;
+
+  /** Format version; snapshots of any other version are rejected. */
+  static final int VERSION = 1;
+
+  private final long createdAtMillis;
+  private final List<Garden> gardens;
+  private final List<Plant> plants;
+  private final List<User> users;
+  private final Map<Long, long[]> gardenMembers;
+  private final Map<Long, long[]> gardenPlants;
+  private final Map<Long, long[]> userGardens;
+
+  /**
+   * Creates a snapshot.
+   *
+   * @param createdAtMillis when its data was read from Datastore.
+   * @param gardens every garden.
+   * @param plants every plant.
+   * @param users every user.
+   * @param gardenMembers the user ids of each garden.
+   * @param gardenPlants the plant ids of each garden.
+   * @param userGardens the garden ids of each user.
+   */
+  public Snapshot(
+      long createdAtMillis,
+      List<Garden> gardens,
+      List<Plant> plants,
+      List<User> users,
+      Map<Long, long[]> gardenMembers,
+      Map<Long, long[]> gardenPlants,
+      Map<Long, long[]> userGardens) {
+    this.createdAtMillis = createdAtMillis;
+    this.gardens = Collections.unmodifiableList(gardens);
+    this.plants = Collections.unmodifiableList(plants);
+    this.users = Collections.unmodifiableList(users);
+    this.gardenMembers = Collections.unmodifiableMap(gardenMembers);
+    this.gardenPlants = Collections.unmodifiableMap(gardenPlants);
+    this.userGardens = Collections.unmodifiableMap(userGardens);
+  }
+
+  /**
+   * Writes the snapshot to file, replacing it atomically, so readers never see a partial snapshot.
+   *
+   * @param file the snapshot file.
+   */
+  public void write(Path file) throws IOException {
+    Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+    CRC32 checksum = new CRC32();
+    try (OutputStream fileStream = Files.newOutputStream(temp)) {
+      DataOutputStream out =
+          new DataOutputStream(
+              new CheckedOutputStream(new BufferedOutputStream(fileStream), checksum));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(createdAtMillis);
+
+      out.writeInt(gardens.size());
+      for (Garden garden : gardens) {
+        out.writeLong(garden.getId());
+        writeString(out, garden.getName());
+        writeString(out, garden.getDescription());
+        out.writeDouble(garden.getLat());
+        out.writeDouble(garden.getLng());
+        writeString(out, garden.getZipCode());
+        out.writeLong(garden.getAdminId());
+      }
+      out.writeInt(plants.size());
+      for (Plant plant : plants) {
+        out.writeLong(plant.getId());
+        writeString(out, plant.getNickname());
+        out.writeLong(plant.getCount());
+        writeString(out, plant.getPlantTypeId());
+      }
+      out.writeInt(users.size());
+      for (User user : users) {
+        out.writeLong(user.getId());
+        writeString(out, user.getEmail());
+        writeString(out, user.getPreferredName());
+        writeString(out, user.getBiography());
+        writeString(out, user.getZipCode());
+      }
+      writeLists(out, gardenMembers);
+      writeLists(out, gardenPlants);
+      writeLists(out, userGardens);
+
+      // The checksum covers everything written so far, but not itself.
+      out.flush();
+      long crc = checksum.getValue();
+      out.writeLong(crc);
+      out.flush();
+    }
+    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Reads a snapshot through a memory mapping of file.
+   *
+   * @param file the snapshot file.
+   * @return the snapshot.
+   * @throws IOException if the file cannot be read, or is not a valid snapshot of this version.
+   */
+  public static Snapshot read(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size < 24 || size > Integer.MAX_VALUE) {
+        throw new IOException("Not a snapshot: " + file);
+      }
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+      ByteBuffer content = buffer.duplicate();
+      content.limit((int) size - 8);
+      CRC32 checksum = new CRC32();
+      checksum.update(content);
+      if (checksum.getValue() != buffer.getLong((int) size - 8)) {
+        throw new IOException("Checksum mismatch: " + file);
+      }
+      if (buffer.getInt() != MAGIC) {
+        throw new IOException("Not a snapshot: " + file);
+      }
+      int version = buffer.getInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported snapshot version " + version + ": " + file);
+      }
+      buffer.limit((int) size - 8);
+      return parse(buffer);
+    } catch (BufferUnderflowException | IllegalArgumentException e) {
+      throw new IOException("Malformed snapshot: " + file, e);
+    }
+  }
+
+  private static Snapshot parse(ByteBuffer in) {
+    long createdAtMillis = in.getLong();
+
+    int count = count(in);
+    List<Garden> gardens = new ArrayList<Garden>(count);
+    for (int i = 0; i < count; i++) {
+      gardens.add(
+          new Garden(
+              in.getLong(),
+              readString(in),
+              readString(in),
+              in.getDouble(),
+              in.getDouble(),
+              readString(in),
+              in.getLong()));
+    }
+    count = count(in);
+    List<Plant> plants = new ArrayList<Plant>(count);
+    for (int i = 0; i < count; i++) {
+      plants.add(new Plant(in.getLong(), readString(in), in.getLong(), readString(in)));
+    }
+    count = count(in);
+    List<User> users = new ArrayList<User>(count);
+    for (int i = 0; i < count; i++) {
+      users.add(
+          new User(in.getLong(), readString(in), readString(in), readString(in), readString(in)));
+    }
+    Map<Long, long[]> gardenMembers = readLists(in);
+    Map<Long, long[]> gardenPlants = readLists(in);
+    Map<Long, long[]> userGardens = readLists(in);
+    if (in.hasRemaining()) {
+      throw new IllegalArgumentException("Trailing bytes");
+    }
+    return new Snapshot(
+        createdAtMillis, gardens, plants, users, gardenMembers, gardenPlants, userGardens);
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(ByteBuffer in) {
+    int length = in.getInt();
+    if (length < 0) {
+      return null;
+    }
+    if (length > in.remaining()) {
+      throw new BufferUnderflowException();
+    }
+    byte[] bytes = new byte[length];
+    in.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void writeLists(DataOutputStream out, Map<Long, long[]> lists) throws IOException {
+    out.writeInt(lists.size());
+    for (Map.Entry<Long, long[]> entry : lists.entrySet()) {
+      out.writeLong(entry.getKey());
+      out.writeInt(entry.getValue().length);
+      for (long id : entry.getValue()) {
+        out.writeLong(id);
+      }
+    }
+  }
+
+  private static Map<Long, long[]> readLists(ByteBuffer in) {
+    int count = count(in);
+    Map<Long, long[]> lists = new HashMap<Long, long[]>(count * 2);
+    for (int i = 0; i < count; i++) {
+      long owner = in.getLong();
+      long[] ids = new long[count(in)];
+      in.asLongBuffer().get(ids);
+      in.position(in.position() + ids.length * 8);
+      lists.put(owner, ids);
+    }
+    return lists;
+  }
+
+  /** Reads a count, rejecting ones larger than the bytes left could hold. */
+  private static int count(ByteBuffer in) {
+    int count = in.getInt();
+    if (count < 0 || count > in.remaining()) {
+      throw new IllegalArgumentException("Bad count " + count);
+    }
+    return count;
+  }
+
+  public long getCreatedAtMillis() {
+    return createdAtMillis;
+  }
+
+  public List<Garden> getGardens() {
+    return gardens;
+  }
+
+  public List<Plant> getPlants() {
+    return plants;
+  }
+
+  public List<User> getUsers() {
+    return users;
+  }
+
+  public Map<Long, long[]> getGardenMembers() {
+    return gardenMembers;
+  }
+
+  public Map<Long, long[]> getGardenPlants() {
+    return gardenPlants;
+  }
+
+  public Map<Long, long[]> getUserGardens() {
+    return userGardens;
+  }
+}
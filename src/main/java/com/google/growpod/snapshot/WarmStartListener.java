@@ -0,0 +1,54 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.snapshot;
+
+import com.google.cloud.datastore.DatastoreOptions;
+import com.google.growpod.controllers.DatastoreStorage;
+import com.google.growpod.controllers.Storages;
+import com.google.growpod.controllers.WarmStart;
+import java.nio.file.Paths;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+/**
+ * Warm starts this server from the snapshot its last clean shutdown wrote, before any servlet is
+ * initialized, and writes the next one when it stops. Warm starts are off unless the
+ * `growpod.snapshot` system property names the snapshot's path, which must be on disk that outlives
+ * the server. Only set it on a single server: a snapshot cannot show other servers' writes, and App
+ * Engine instances neither share nor keep local disk. Memory storage starts empty, so it has
+ * nothing to warm.
+ */
+@WebListener
+public class WarmStartListener implements ServletContextListener {
+
+  /** System property naming the snapshot's path. */
+  public static final String PATH_PROPERTY = "growpod.snapshot";
+
+  @Override
+  public void contextInitialized(ServletContextEvent event) {
+    // Checked first, so a server without warm starts builds its storage only when first used.
+    String path = System.getProperty(PATH_PROPERTY);
+    if (path == null || !(Storages.getDefault() instanceof DatastoreStorage)) {
+      return;
+    }
+    WarmStart.start(Paths.get(path), DatastoreOptions.getDefaultInstance());
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent event) {
+    WarmStart.stop();
+  }
+}
@@ -0,0 +1,82 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.storage;
+
+import com.google.growpod.data.DeleteJob;
+import com.google.growpod.util.LongObjectMap;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Delete jobs of the embedded backends, kept in memory. Their deletes are atomic, so a job is done
+ * in one step and there is no progress to resume after a restart. Thread-safe.
+ */
+final class DeleteJobTable {
+
+  private final LongObjectMap<DeleteJob> jobs = new LongObjectMap<DeleteJob>();
+  private long lastId;
+
+  synchronized long put(DeleteJob job) {
+    if (job.getId() == 0) {
+      job.setId(++lastId);
+    }
+    jobs.put(job.getId(), copy(job));
+    return job.getId();
+  }
+
+  synchronized boolean lease(DeleteJob job, long nowMillis) {
+    DeleteJob stored = jobs.get(job.getId());
+    if (stored == null || stored.isFinished() || !stored.isLeaseFree(job.getOwner(), nowMillis)) {
+      return false;
+    }
+    jobs.put(job.getId(), copy(job));
+    return true;
+  }
+
+  synchronized DeleteJob get(long id) {
+    return copy(jobs.get(id));
+  }
+
+  synchronized List<DeleteJob> unfinished() {
+    List<DeleteJob> unfinished = new ArrayList<DeleteJob>();
+    for (DeleteJob job : jobs.values()) {
+      if (!job.isFinished()) {
+        unfinished.add(copy(job));
+      }
+    }
+    return unfinished;
+  }
+
+  synchronized void clear() {
+    jobs.clear();
+  }
+
+  private static DeleteJob copy(DeleteJob job) {
+    if (job == null) {
+      return null;
+    }
+    return new DeleteJob(
+        job.getId(),
+        job.getTargetKind(),
+        job.getTargetId(),
+        job.getState(),
+        job.getDeletedCount(),
+        job.getError(),
+        job.getUpdatedMillis(),
+        job.getOwner(),
+        job.getLeaseExpiresMillis(),
+        job.getFailedRuns());
+  }
+}
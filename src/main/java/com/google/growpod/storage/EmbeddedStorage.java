@@ -0,0 +1,43 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.storage;
+
+import com.google.growpod.data.ContainsPlant;
+import com.google.growpod.data.Garden;
+import com.google.growpod.data.HasMember;
+import com.google.growpod.data.Plant;
+import com.google.growpod.data.User;
+import java.util.List;
+
+/** Storage embedded in this server, rather than a remote database. */
+public interface EmbeddedStorage extends Storage {
+
+  /**
+   * Replaces everything with the given records, keeping their ids. Later ids are allocated above
+   * the largest one loaded.
+   *
+   * @param users the users.
+   * @param gardens the gardens.
+   * @param plants the plants.
+   * @param hasMembers the memberships.
+   * @param containsPlants the plants' relations to their gardens; plants without one are skipped.
+   */
+  void load(
+      List<User> users,
+      List<Garden> gardens,
+      List<Plant> plants,
+      List<HasMember> hasMembers,
+      List<ContainsPlant> containsPlants);
+}
@@ -0,0 +1,396 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.storage;
+
+import com.google.growpod.data.BatchItemStatus;
+import com.google.growpod.data.BatchItemStatus.Outcome;
+import com.google.growpod.data.ContainsPlant;
+import com.google.growpod.data.DeleteJob;
+import com.google.growpod.data.FieldSet;
+import com.google.growpod.data.Garden;
+import com.google.growpod.data.GardenCounts;
+import com.google.growpod.data.HasMember;
+import com.google.growpod.data.Plant;
+import com.google.growpod.data.User;
+import com.google.growpod.util.IdentityMap;
+import com.google.growpod.util.LongList;
+import com.google.growpod.util.RequestContext;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.function.LongFunction;
+
+/**
+ * Storage that reads through the current request's {@link IdentityMap}, so gardens, users, plants
+ * and relation lists are loaded at most once per request, however many DAOs ask for them, and reads
+ * see the request's earlier writes. Outside requests, every call goes to the backend.
+ *
+ * <p>As the Storage contract requires, every caller gets its own copy of a record, so a caller that
+ * modifies one changes no other reader's. Records are copied again as they are written, so later
+ * changes to the written instance do not reach the map either. Counts are not cached, since they
+ * are maintained by the backend on every write.
+ */
+public final class IdentityMapStorage implements Storage {
+
+  /** Kinds under which relation lists are cached, by the id they are listed for. */
+  private static final String GARDEN_MEMBERS = HasMember.KIND + "?garden-id";
+
+  private static final String USER_GARDENS = HasMember.KIND + "?user-id";
+  private static final String GARDEN_PLANTS = ContainsPlant.KIND + "?garden-id";
+  private static final String ADMIN_GARDENS = Garden.KIND + "?admin-id";
+
+  private final Storage backend;
+
+  private IdentityMapStorage(Storage backend) {
+    this.backend = backend;
+  }
+
+  /**
+   * Wraps a backend, unless it is already wrapped.
+   *
+   * @param backend the storage to read and write.
+   * @return the wrapped storage.
+   */
+  public static Storage wrap(Storage backend) {
+    return backend instanceof IdentityMapStorage ? backend : new IdentityMapStorage(backend);
+  }
+
+  @Override
+  public Garden getGarden(long id) {
+    IdentityMap map = RequestContext.identityMap();
+    return map == null
+        ? backend.getGarden(id)
+        : Records.copy(map.get(Garden.KIND, id, backend::getGarden));
+  }
+
+  @Override
+  public List<Garden> getGardens(long[] ids) {
+    IdentityMap map = RequestContext.identityMap();
+    if (map == null) {
+      return backend.getGardens(ids);
+    }
+    LongList missing = new LongList();
+    for (long id : ids) {
+      if (!map.contains(Garden.KIND, id)) {
+        missing.add(id);
+      }
+    }
+    if (missing.size() > 0) {
+      long[] missingIds = missing.toArray();
+      for (Garden garden : backend.getGardens(missingIds)) {
+        map.put(Garden.KIND, garden.getId(), Records.copy(garden));
+      }
+      for (long id : missingIds) {
+        // Not returned, so it does not exist.
+        if (!map.contains(Garden.KIND, id)) {
+          map.put(Garden.KIND, id, null);
+        }
+      }
+    }
+    List<Garden> gardens = new ArrayList<Garden>(ids.length);
+    for (long id : ids) {
+      Garden garden = map.get(Garden.KIND, id, backend::getGarden);
+      if (garden != null) {
+        gardens.add(Records.copy(garden));
+      }
+    }
+    return gardens;
+  }
+
+  @Override
+  public List<Garden> getAllGardens() {
+    return remember(backend.getAllGardens());
+  }
+
+  @Override
+  public List<Garden> getSomeGardens(int limit) {
+    return remember(backend.getSomeGardens(limit));
+  }
+
+  @Override
+  public List<Garden> getGardensByZipCode(String zipCode) {
+    return remember(backend.getGardensByZipCode(zipCode));
+  }
+
+  @Override
+  public List<Garden> getGardensByZipCode(String zipCode, FieldSet fields) {
+    if (fields.isAll()) {
+      return getGardensByZipCode(zipCode);
+    }
+    // Partial gardens are not remembered, so later reads still see whole ones.
+    return backend.getGardensByZipCode(zipCode, fields);
+  }
+
+  @Override
+  public long[] getAdminGardenIds(long userId) {
+    return ids(ADMIN_GARDENS, userId, backend::getAdminGardenIds);
+  }
+
+  @Override
+  public User getUser(long id) {
+    IdentityMap map = RequestContext.identityMap();
+    return map == null
+        ? backend.getUser(id)
+        : Records.copy(map.get(User.KIND, id, backend::getUser));
+  }
+
+  @Override
+  public Plant getPlant(long id) {
+    IdentityMap map = RequestContext.identityMap();
+    return map == null
+        ? backend.getPlant(id)
+        : Records.copy(map.get(Plant.KIND, id, backend::getPlant));
+  }
+
+  @Override
+  public List<Plant> getPlants(long[] ids) {
+    IdentityMap map = RequestContext.identityMap();
+    if (map == null) {
+      return backend.getPlants(ids);
+    }
+    LongList missing = new LongList();
+    for (long id : ids) {
+      if (!map.contains(Plant.KIND, id)) {
+        missing.add(id);
+      }
+    }
+    if (missing.size() > 0) {
+      long[] missingIds = missing.toArray();
+      for (Plant plant : backend.getPlants(missingIds)) {
+        map.put(Plant.KIND, plant.getId(), Records.copy(plant));
+      }
+      for (long id : missingIds) {
+        // Not returned, so it does not exist.
+        if (!map.contains(Plant.KIND, id)) {
+          map.put(Plant.KIND, id, null);
+        }
+      }
+    }
+    List<Plant> plants = new ArrayList<Plant>(ids.length);
+    for (long id : ids) {
+      Plant plant = map.get(Plant.KIND, id, backend::getPlant);
+      if (plant != null) {
+        plants.add(Records.copy(plant));
+      }
+    }
+    return plants;
+  }
+
+  @Override
+  public boolean isMember(long gardenId, long userId) {
+    IdentityMap map = RequestContext.identityMap();
+    if (map != null && map.contains(GARDEN_MEMBERS, gardenId)) {
+      for (long memberId : getGardenMemberIds(gardenId)) {
+        if (memberId == userId) {
+          return true;
+        }
+      }
+      return false;
+    }
+    return backend.isMember(gardenId, userId);
+  }
+
+  @Override
+  public long[] getGardenMemberIds(long gardenId) {
+    return ids(GARDEN_MEMBERS, gardenId, backend::getGardenMemberIds);
+  }
+
+  @Override
+  public long[] getUserGardenIds(long userId) {
+    return ids(USER_GARDENS, userId, backend::getUserGardenIds);
+  }
+
+  @Override
+  public long[] getGardenPlantIds(long gardenId) {
+    return ids(GARDEN_PLANTS, gardenId, backend::getGardenPlantIds);
+  }
+
+  @Override
+  public GardenCounts getGardenCounts(long gardenId) {
+    return backend.getGardenCounts(gardenId);
+  }
+
+  @Override
+  public Map<Long, GardenCounts> getGardenCounts(long[] gardenIds) {
+    return backend.getGardenCounts(gardenIds);
+  }
+
+  @Override
+  public int rebuildCounts() {
+    return backend.rebuildCounts();
+  }
+
+  @Override
+  public long addGarden(Garden garden) {
+    long gardenId = backend.addGarden(garden);
+    IdentityMap map = RequestContext.identityMap();
+    if (map != null) {
+      map.put(Garden.KIND, gardenId, Records.copy(garden));
+      map.evict(ADMIN_GARDENS, garden.getAdminId());
+    }
+    return gardenId;
+  }
+
+  @Override
+  public long addUser(User user) {
+    long userId = backend.addUser(user);
+    IdentityMap map = RequestContext.identityMap();
+    if (map != null) {
+      map.put(User.KIND, userId, Records.copy(user));
+    }
+    return userId;
+  }
+
+  @Override
+  public long addPlant(long gardenId, Plant plant) {
+    long plantId = backend.addPlant(gardenId, plant);
+    IdentityMap map = RequestContext.identityMap();
+    if (map != null) {
+      map.put(Plant.KIND, plantId, Records.copy(plant));
+      map.evict(GARDEN_PLANTS, gardenId);
+    }
+    return plantId;
+  }
+
+  @Override
+  public List<BatchItemStatus> addPlants(long gardenId, List<Plant> plants) {
+    List<BatchItemStatus> statuses = backend.addPlants(gardenId, plants);
+    IdentityMap map = RequestContext.identityMap();
+    if (map != null) {
+      for (BatchItemStatus status : statuses) {
+        if (status.getStatus() == Outcome.CREATED) {
+          map.put(Plant.KIND, status.getId(), Records.copy(plants.get(status.getIndex())));
+        }
+      }
+      map.evict(GARDEN_PLANTS, gardenId);
+    }
+    return statuses;
+  }
+
+  @Override
+  public boolean deletePlant(long gardenId, long plantId) {
+    boolean deleted = backend.deletePlant(gardenId, plantId);
+    IdentityMap map = RequestContext.identityMap();
+    if (map != null && deleted) {
+      map.put(Plant.KIND, plantId, null);
+      map.evict(GARDEN_PLANTS, gardenId);
+    }
+    return deleted;
+  }
+
+  @Override
+  public List<BatchItemStatus> deletePlants(long gardenId, long[] plantIds) {
+    List<BatchItemStatus> statuses = backend.deletePlants(gardenId, plantIds);
+    IdentityMap map = RequestContext.identityMap();
+    if (map != null) {
+      for (BatchItemStatus status : statuses) {
+        if (status.getStatus() == Outcome.DELETED) {
+          map.put(Plant.KIND, status.getId(), null);
+        }
+      }
+      map.evict(GARDEN_PLANTS, gardenId);
+    }
+    return statuses;
+  }
+
+  @Override
+  public void addMember(long gardenId, long userId) {
+    backend.addMember(gardenId, userId);
+    membershipChanged(gardenId, userId);
+  }
+
+  @Override
+  public boolean removeMember(long gardenId, long userId) {
+    boolean removed = backend.removeMember(gardenId, userId);
+    membershipChanged(gardenId, userId);
+    return removed;
+  }
+
+  @Override
+  public int deleteGardenPage(long gardenId, int limit, Executor executor) {
+    int deleted = backend.deleteGardenPage(gardenId, limit, executor);
+    IdentityMap map = RequestContext.identityMap();
+    if (map != null) {
+      map.put(Garden.KIND, gardenId, null);
+      map.evict(GARDEN_MEMBERS, gardenId);
+      map.evict(GARDEN_PLANTS, gardenId);
+    }
+    return deleted;
+  }
+
+  @Override
+  public int deleteUserPage(long userId, int limit, Executor executor) {
+    int deleted = backend.deleteUserPage(userId, limit, executor);
+    IdentityMap map = RequestContext.identityMap();
+    if (map != null) {
+      map.put(User.KIND, userId, null);
+      map.evict(USER_GARDENS, userId);
+    }
+    return deleted;
+  }
+
+  @Override
+  public long putDeleteJob(DeleteJob job) {
+    return backend.putDeleteJob(job);
+  }
+
+  @Override
+  public boolean leaseDeleteJob(DeleteJob job, long nowMillis) {
+    return backend.leaseDeleteJob(job, nowMillis);
+  }
+
+  @Override
+  public DeleteJob getDeleteJob(long id) {
+    return backend.getDeleteJob(id);
+  }
+
+  @Override
+  public List<DeleteJob> getUnfinishedDeleteJobs() {
+    return backend.getUnfinishedDeleteJobs();
+  }
+
+  /** Forgets both sides' lists, so the next reads see the change. */
+  private static void membershipChanged(long gardenId, long userId) {
+    IdentityMap map = RequestContext.identityMap();
+    if (map != null) {
+      map.evict(GARDEN_MEMBERS, gardenId);
+      map.evict(USER_GARDENS, userId);
+    }
+  }
+
+  /** Remembers copies of gardens loaded by a query, so later reads by id need not load them. */
+  private static List<Garden> remember(List<Garden> gardens) {
+    IdentityMap map = RequestContext.identityMap();
+    if (map != null) {
+      for (Garden garden : gardens) {
+        if (!map.contains(Garden.KIND, garden.getId())) {
+          map.put(Garden.KIND, garden.getId(), Records.copy(garden));
+        }
+      }
+    }
+    return gardens;
+  }
+
+  /** Reads a relation list through the identity map. Each caller gets its own copy. */
+  private static long[] ids(String kind, long id, LongFunction<long[]> query) {
+    IdentityMap map = RequestContext.identityMap();
+    if (map == null) {
+      return query.apply(id);
+    }
+    long[] ids = map.get(kind, id, query);
+    return ids == null ? null : ids.clone();
+  }
+}
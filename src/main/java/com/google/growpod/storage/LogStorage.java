@@ -0,0 +1,1111 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.storage;
+
+import com.google.growpod.data.BatchItemStatus;
+import com.google.growpod.data.BatchItemStatus.Outcome;
+import com.google.growpod.data.ContainsPlant;
+import com.google.growpod.data.DeleteJob;
+import com.google.growpod.data.FieldSet;
+import com.google.growpod.data.Garden;
+import com.google.growpod.data.GardenCounts;
+import com.google.growpod.data.HasMember;
+import com.google.growpod.data.Ids;
+import com.google.growpod.data.Plant;
+import com.google.growpod.data.User;
+import com.google.growpod.util.LongLongMap;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Storage in an append-only log on local disk, for deployments that cannot reach Cloud Datastore.
+ *
+ * <p>The log is a sequence of segment files, `segment-{n}.log`. Each write appends one record, an
+ * int length, the CRC32 of the payload, and the payload, which holds one or more operations. A
+ * record is applied whole or not at all, which makes multi-record writes such as a plant and its
+ * relation atomic, and it is forced to disk before the write returns. A zero length marks the end
+ * of a segment. On startup, segments are replayed in order; a torn or corrupt record, left by a
+ * crash in the middle of a write, ends its segment.
+ *
+ * <p>Segments are memory-mapped. Gardens, users and plants are read straight from the mapped
+ * segments, found through in-memory hash indexes from id to location, and relations are kept in
+ * {@link RelationIndexes}. Both are rebuilt by the replay.
+ *
+ * <p>Records that were deleted or superseded stay in the log as garbage until compaction rewrites
+ * the live records into new segments and deletes the old ones, oldest first. A crash during
+ * compaction loses nothing: replaying what is left of the old log, always a suffix of it, followed
+ * by the compacted segments gives the same state. Compaction runs when garbage outnumbers live
+ * records, checked periodically once {@link #compactPeriodically} is called, or on demand.
+ */
+public class LogStorage implements EmbeddedStorage, Closeable {
+
+  /** Default capacity of a segment. Unwritten parts of a segment take no disk space. */
+  public static final int DEFAULT_SEGMENT_BYTES = 64 << 20;
+
+  static final int MAGIC = 0x47504c47;
+  static final int VERSION = 1;
+
+  /** Magic and version. */
+  private static final int SEGMENT_HEADER_BYTES = 8;
+
+  /** Length and checksum. */
+  private static final int RECORD_HEADER_BYTES = 8;
+
+  /** Garbage records tolerated however small the live data is. */
+  private static final long MIN_GARBAGE = 10000;
+
+  /** Operations per record written by compaction. */
+  private static final int OPERATIONS_PER_COMPACTED_RECORD = 1000;
+
+  private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.log");
+
+  private static final Logger logger = Logger.getLogger(LogStorage.class.getName());
+
+  /** Operation types. */
+  private static final byte GARDEN = 1;
+
+  private static final byte USER = 2;
+  private static final byte PLANT = 3;
+  private static final byte DELETE_PLANT = 4;
+  private static final byte ADD_MEMBER = 5;
+  private static final byte REMOVE_MEMBER = 6;
+  private static final byte CLEAR = 7;
+  private static final byte LAST_ID = 8;
+  private static final byte DELETE_GARDEN = 9;
+  private static final byte DELETE_USER = 10;
+
+  /** A mapped segment file. */
+  private static final class Segment {
+    final long number;
+    final Path path;
+    final MappedByteBuffer buffer;
+
+    /** End of the valid records, where the next one is appended. */
+    int end = SEGMENT_HEADER_BYTES;
+
+    Segment(long number, Path path, MappedByteBuffer buffer) {
+      this.number = number;
+      this.path = path;
+      this.buffer = buffer;
+    }
+  }
+
+  private final Path directory;
+  private final int segmentBytes;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private List<Segment> segments = new ArrayList<Segment>();
+
+  /** Locations of records: the segment's index in segments, shifted left 32, or the offset. */
+  private final LongLongMap gardens = new LongLongMap();
+
+  private final LongLongMap users = new LongLongMap();
+  private final LongLongMap plants = new LongLongMap();
+  private final RelationIndexes indexes = new RelationIndexes();
+
+  /** Delete jobs, which are not logged: each delete is a single record, so there is no progress. */
+  private final DeleteJobTable deleteJobs = new DeleteJobTable();
+
+  /** Last id given out, shared by every kind. */
+  private long lastId;
+
+  /** Operations in the log, live or not. */
+  private long operations;
+
+  private ScheduledExecutorService compactor;
+
+  private LogStorage(Path directory, int segmentBytes) {
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+  }
+
+  /**
+   * Opens the log in a directory, creating it if needed, and replays it.
+   *
+   * @param directory the directory holding the segments.
+   * @return the storage.
+   * @throws IOException if the log cannot be read.
+   */
+  public static LogStorage open(Path directory) throws IOException {
+    return open(directory, DEFAULT_SEGMENT_BYTES);
+  }
+
+  /**
+   * Opens the log in a directory, creating it if needed, and replays it.
+   *
+   * @param directory the directory holding the segments.
+   * @param segmentBytes capacity of new segments.
+   * @return the storage.
+   * @throws IOException if the log cannot be read.
+   */
+  public static LogStorage open(Path directory, int segmentBytes) throws IOException {
+    Files.createDirectories(directory);
+    LogStorage storage = new LogStorage(directory, segmentBytes);
+    storage.replayAll();
+    return storage;
+  }
+
+  /**
+   * Checks every periodMillis whether the log is worth compacting, on a background thread.
+   *
+   * @param periodMillis time between checks.
+   */
+  public synchronized void compactPeriodically(long periodMillis) {
+    if (compactor != null) {
+      return;
+    }
+    compactor =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "log-compaction");
+              thread.setDaemon(true);
+              return thread;
+            });
+    compactor.scheduleWithFixedDelay(
+        () -> {
+          try {
+            compactIfWasteful();
+          } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Could not compact " + directory, e);
+          }
+        },
+        periodMillis,
+        periodMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Compacts the log if garbage outnumbers live records.
+   *
+   * @return whether it was compacted.
+   */
+  public boolean compactIfWasteful() {
+    return write(
+        () -> {
+          long live = liveOperations();
+          if (operations - live <= Math.max(live, MIN_GARBAGE)) {
+            return false;
+          }
+          compactLocked();
+          return true;
+        });
+  }
+
+  /** Rewrites the live records into new segments, and deletes the old ones. */
+  public void compact() {
+    write(
+        () -> {
+          compactLocked();
+          return null;
+        });
+  }
+
+  /** Stops background compaction. Writes are already on disk. */
+  @Override
+  public synchronized void close() {
+    if (compactor != null) {
+      compactor.shutdownNow();
+      compactor = null;
+    }
+  }
+
+  @Override
+  public Garden getGarden(long id) {
+    return read(() -> garden(gardens.get(id)));
+  }
+
+  @Override
+  public List<Garden> getGardens(long[] ids) {
+    return read(() -> gardens(ids));
+  }
+
+  @Override
+  public List<Garden> getAllGardens() {
+    return read(
+        () -> {
+          List<Garden> gardenList = new ArrayList<Garden>(gardens.size());
+          for (long id : gardens.keys()) {
+            gardenList.add(garden(gardens.get(id)));
+          }
+          return gardenList;
+        });
+  }
+
+  @Override
+  public List<Garden> getSomeGardens(int limit) {
+    return read(
+        () -> {
+          List<Garden> gardenList = new ArrayList<Garden>(Math.min(limit, gardens.size()));
+          for (long id : gardens.keys()) {
+            if (gardenList.size() == limit) {
+              break;
+            }
+            gardenList.add(garden(gardens.get(id)));
+          }
+          return gardenList;
+        });
+  }
+
+  @Override
+  public List<Garden> getGardensByZipCode(String zipCode) {
+    return read(() -> gardens(indexes.gardensIn(zipCode)));
+  }
+
+  @Override
+  public List<Garden> getGardensByZipCode(String zipCode, FieldSet fields) {
+    // Gardens are in memory, so whole ones cost nothing more to read.
+    return getGardensByZipCode(zipCode);
+  }
+
+  @Override
+  public long[] getAdminGardenIds(long userId) {
+    return read(() -> indexes.administeredBy(userId));
+  }
+
+  @Override
+  public User getUser(long id) {
+    return read(() -> user(users.get(id)));
+  }
+
+  @Override
+  public Plant getPlant(long id) {
+    return read(() -> plant(plants.get(id)));
+  }
+
+  @Override
+  public List<Plant> getPlants(long[] ids) {
+    return read(
+        () -> {
+          List<Plant> plantList = new ArrayList<Plant>(ids.length);
+          for (long id : ids) {
+            Plant plant = plant(plants.get(id));
+            if (plant != null) {
+              plantList.add(plant);
+            }
+          }
+          return plantList;
+        });
+  }
+
+  @Override
+  public boolean isMember(long gardenId, long userId) {
+    return read(() -> indexes.isMember(gardenId, userId));
+  }
+
+  @Override
+  public long[] getGardenMemberIds(long gardenId) {
+    return read(() -> indexes.members(gardenId));
+  }
+
+  @Override
+  public long[] getUserGardenIds(long userId) {
+    return read(() -> indexes.gardensOf(userId));
+  }
+
+  @Override
+  public long[] getGardenPlantIds(long gardenId) {
+    return read(() -> indexes.plants(gardenId));
+  }
+
+  @Override
+  public GardenCounts getGardenCounts(long gardenId) {
+    return read(() -> indexes.counts(gardenId));
+  }
+
+  @Override
+  public Map<Long, GardenCounts> getGardenCounts(long[] gardenIds) {
+    return read(
+        () -> {
+          Map<Long, GardenCounts> counts = new HashMap<Long, GardenCounts>();
+          for (long gardenId : gardenIds) {
+            counts.put(gardenId, indexes.counts(gardenId));
+          }
+          return counts;
+        });
+  }
+
+  /** {@inheritDoc} Counts are read from the relation indexes, so there is nothing to rebuild. */
+  @Override
+  public int rebuildCounts() {
+    return read(() -> gardens.size());
+  }
+
+  @Override
+  public long addGarden(Garden garden) {
+    return write(
+        () -> {
+          garden.setId(++lastId);
+          append(new Batch().garden(garden));
+          return garden.getId();
+        });
+  }
+
+  @Override
+  public long addUser(User user) {
+    return write(
+        () -> {
+          user.setId(++lastId);
+          append(new Batch().user(user));
+          return user.getId();
+        });
+  }
+
+  @Override
+  public long addPlant(long gardenId, Plant plant) {
+    return write(
+        () -> {
+          plant.setId(++lastId);
+          append(new Batch().plant(gardenId, plant));
+          return plant.getId();
+        });
+  }
+
+  @Override
+  public List<BatchItemStatus> addPlants(long gardenId, List<Plant> plantList) {
+    return write(
+        () -> {
+          List<BatchItemStatus> statuses = new ArrayList<BatchItemStatus>(plantList.size());
+          Batch batch = new Batch();
+          for (int i = 0; i < plantList.size(); i++) {
+            Plant plant = plantList.get(i);
+            if (plant == null) {
+              statuses.add(new BatchItemStatus(i, null, Outcome.INVALID));
+              continue;
+            }
+            plant.setId(++lastId);
+            batch.plant(gardenId, plant);
+            statuses.add(new BatchItemStatus(i, plant.getId(), Outcome.CREATED));
+          }
+          appendAll(batch, statuses);
+          return statuses;
+        });
+  }
+
+  @Override
+  public boolean deletePlant(long gardenId, long plantId) {
+    return write(
+        () -> {
+          if (!indexes.containsPlant(gardenId, plantId)) {
+            return false;
+          }
+          append(new Batch().deletePlant(gardenId, plantId));
+          return true;
+        });
+  }
+
+  @Override
+  public List<BatchItemStatus> deletePlants(long gardenId, long[] plantIds) {
+    return write(
+        () -> {
+          List<BatchItemStatus> statuses = new ArrayList<BatchItemStatus>(plantIds.length);
+          Set<Long> deleted = new HashSet<Long>();
+          Batch batch = new Batch();
+          for (int i = 0; i < plantIds.length; i++) {
+            long plantId = plantIds[i];
+            if (plantId == Ids.INVALID) {
+              statuses.add(new BatchItemStatus(i, null, Outcome.INVALID));
+            } else if (indexes.containsPlant(gardenId, plantId) && deleted.add(plantId)) {
+              batch.deletePlant(gardenId, plantId);
+              statuses.add(new BatchItemStatus(i, plantId, Outcome.DELETED));
+            } else {
+              statuses.add(new BatchItemStatus(i, plantId, Outcome.NOT_FOUND));
+            }
+          }
+          appendAll(batch, statuses);
+          return statuses;
+        });
+  }
+
+  @Override
+  public void addMember(long gardenId, long userId) {
+    write(
+        () -> {
+          if (!indexes.isMember(gardenId, userId)) {
+            append(new Batch().addMember(gardenId, userId));
+          }
+          return null;
+        });
+  }
+
+  @Override
+  public boolean removeMember(long gardenId, long userId) {
+    return write(
+        () -> {
+          if (!indexes.isMember(gardenId, userId)) {
+            return false;
+          }
+          append(new Batch().removeMember(gardenId, userId));
+          return true;
+        });
+  }
+
+  /** {@inheritDoc} The garden and everything belonging to it are deleted by one record. */
+  @Override
+  public int deleteGardenPage(long gardenId, int limit, Executor executor) {
+    return write(
+        () -> {
+          if (gardens.get(gardenId) == LongLongMap.MISSING) {
+            return 0;
+          }
+          int deleted = 1 + indexes.members(gardenId).length + indexes.plants(gardenId).length * 2;
+          append(new Batch().deleteGarden(gardenId));
+          return deleted;
+        });
+  }
+
+  /** {@inheritDoc} The user and their memberships are deleted by one record. */
+  @Override
+  public int deleteUserPage(long userId, int limit, Executor executor) {
+    return write(
+        () -> {
+          if (users.get(userId) == LongLongMap.MISSING) {
+            return 0;
+          }
+          int deleted = 1 + indexes.gardensOf(userId).length;
+          append(new Batch().deleteUser(userId));
+          return deleted;
+        });
+  }
+
+  @Override
+  public long putDeleteJob(DeleteJob job) {
+    return deleteJobs.put(job);
+  }
+
+  @Override
+  public boolean leaseDeleteJob(DeleteJob job, long nowMillis) {
+    return deleteJobs.lease(job, nowMillis);
+  }
+
+  @Override
+  public DeleteJob getDeleteJob(long id) {
+    return deleteJobs.get(id);
+  }
+
+  @Override
+  public List<DeleteJob> getUnfinishedDeleteJobs() {
+    return deleteJobs.unfinished();
+  }
+
+  /** {@inheritDoc} The records are appended as one record, and the log is then compacted. */
+  @Override
+  public void load(
+      List<User> userList,
+      List<Garden> gardenList,
+      List<Plant> plantList,
+      List<HasMember> hasMembers,
+      List<ContainsPlant> containsPlants) {
+    write(
+        () -> {
+          Batch batch = new Batch().clear();
+          for (User user : userList) {
+            batch.user(user);
+          }
+          for (Garden garden : gardenList) {
+            batch.garden(garden);
+          }
+          Map<Long, Plant> plantsById = new HashMap<Long, Plant>();
+          for (Plant plant : plantList) {
+            plantsById.put(plant.getId(), plant);
+          }
+          for (ContainsPlant relation : containsPlants) {
+            Plant plant = plantsById.get(relation.getPlantId());
+            if (plant != null) {
+              batch.plant(relation.getGardenId(), plant);
+            }
+          }
+          for (HasMember relation : hasMembers) {
+            batch.addMember(relation.getGardenId(), relation.getUserId());
+          }
+          append(batch);
+          compactLocked();
+          return null;
+        });
+  }
+
+  /** Returns the number of segment files. */
+  public int segmentCount() {
+    return read(() -> segments.size());
+  }
+
+  private long liveOperations() {
+    return gardens.size() + users.size() + plants.size() + indexes.memberships();
+  }
+
+  /** Appends a batch of items, marking the written ones failed if the append fails. */
+  private void appendAll(Batch batch, List<BatchItemStatus> statuses) {
+    if (batch.isEmpty()) {
+      return;
+    }
+    try {
+      append(batch);
+    } catch (UncheckedIOException e) {
+      logger.log(Level.WARNING, "Could not append to " + directory, e);
+      for (BatchItemStatus status : statuses) {
+        if (status.getStatus() != Outcome.INVALID && status.getStatus() != Outcome.NOT_FOUND) {
+          status.setStatus(Outcome.FAILED);
+        }
+      }
+    }
+  }
+
+  /** Appends a batch as one record to the active segment, and applies it. */
+  private void append(Batch batch) {
+    byte[] payload = batch.toByteArray();
+    Segment segment = segments.get(segments.size() - 1);
+    try {
+      if (!writeRecord(segment, payload)) {
+        segment = newSegment(segment.number + 1, payload.length);
+        segments.add(segment);
+        writeRecord(segment, payload);
+      }
+      apply(segments.size() - 1, segment.buffer, segment.end - payload.length, payload.length);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Writes a record at the end of a segment and forces it to disk.
+   *
+   * @return false if the segment has no room for it.
+   */
+  private static boolean writeRecord(Segment segment, byte[] payload) {
+    MappedByteBuffer buffer = segment.buffer;
+    int start = segment.end;
+    int next = start + RECORD_HEADER_BYTES + payload.length;
+    // Leaves room for the end marker.
+    if (next + 4 > buffer.capacity()) {
+      return false;
+    }
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    ByteBuffer out = buffer.duplicate();
+    out.position(start + RECORD_HEADER_BYTES);
+    out.put(payload);
+    buffer.putInt(next, 0);
+    buffer.putInt(start + 4, (int) crc.getValue());
+    buffer.putInt(start, payload.length);
+    buffer.force();
+    segment.end = next;
+    return true;
+  }
+
+  /** Creates and maps a new, empty segment with room for at least one record of payloadBytes. */
+  private Segment newSegment(long number, int payloadBytes) throws IOException {
+    Path path = directory.resolve(String.format("segment-%08d.log", number));
+    int capacity =
+        Math.max(segmentBytes, SEGMENT_HEADER_BYTES + RECORD_HEADER_BYTES + payloadBytes + 4);
+    Segment segment;
+    try (FileChannel channel =
+        FileChannel.open(
+            path,
+            StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE)) {
+      segment = new Segment(number, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+    }
+    segment.buffer.putInt(0, MAGIC);
+    segment.buffer.putInt(4, VERSION);
+    segment.buffer.putInt(SEGMENT_HEADER_BYTES, 0);
+    segment.buffer.force();
+    return segment;
+  }
+
+  private static MappedByteBuffer map(Path path, long capacity) throws IOException {
+    try (FileChannel channel =
+        FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(capacity, channel.size()));
+    }
+  }
+
+  /** Maps every segment in the directory, and replays them in order. */
+  private void replayAll() throws IOException {
+    List<Path> paths = new ArrayList<Path>();
+    try (Stream<Path> files = Files.list(directory)) {
+      files
+          .filter(path -> SEGMENT_NAME.matcher(path.getFileName().toString()).matches())
+          .forEach(paths::add);
+    }
+    paths.sort((a, b) -> Long.compare(segmentNumber(a), segmentNumber(b)));
+
+    segments = new ArrayList<Segment>();
+    for (int i = 0; i < paths.size(); i++) {
+      Path path = paths.get(i);
+      // Only the last segment is appended to, so only it is mapped beyond its current size.
+      long capacity = i == paths.size() - 1 ? segmentBytes : 0;
+      Segment segment = new Segment(segmentNumber(path), path, map(path, capacity));
+      if (segment.buffer.capacity() < SEGMENT_HEADER_BYTES) {
+        // Created by a write that never got further.
+        Files.delete(path);
+        continue;
+      }
+      if (segment.buffer.getInt(0) == 0 && i == paths.size() - 1) {
+        // Created, but the header never reached the disk.
+        segment.buffer.putInt(0, MAGIC);
+        segment.buffer.putInt(4, VERSION);
+      }
+      if (segment.buffer.getInt(0) != MAGIC || segment.buffer.getInt(4) != VERSION) {
+        throw new IOException("Not a version " + VERSION + " log segment: " + path);
+      }
+      segments.add(segment);
+    }
+    if (segments.isEmpty()) {
+      segments.add(newSegment(1, 0));
+    }
+
+    clearIndexes();
+    for (int i = 0; i < segments.size(); i++) {
+      replay(i);
+    }
+  }
+
+  /** Applies every valid record of a segment, and finds its end. */
+  private void replay(int index) throws IOException {
+    Segment segment = segments.get(index);
+    MappedByteBuffer buffer = segment.buffer;
+    int offset = SEGMENT_HEADER_BYTES;
+    while (offset + RECORD_HEADER_BYTES <= buffer.capacity()) {
+      int length = buffer.getInt(offset);
+      int start = offset + RECORD_HEADER_BYTES;
+      if (length <= 0 || length > buffer.capacity() - start) {
+        break;
+      }
+      ByteBuffer payload = buffer.duplicate();
+      payload.position(start);
+      payload.limit(start + length);
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+      if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+        logger.warning("Dropping corrupt record at " + segment.path + ":" + offset);
+        break;
+      }
+      apply(index, buffer, start, length);
+      offset = start + length;
+    }
+    segment.end = offset;
+  }
+
+  /** Applies the operations of a record to the indexes. */
+  private void apply(int index, ByteBuffer buffer, int start, int length) throws IOException {
+    ByteBuffer in = buffer.duplicate();
+    in.position(start);
+    in.limit(start + length);
+    int count = in.getInt();
+    for (int i = 0; i < count; i++) {
+      long location = ((long) index << 32) | in.position();
+      byte type = in.get();
+      switch (type) {
+        case GARDEN:
+          {
+            Garden garden = readGarden(in);
+            gardens.put(garden.getId(), location);
+            indexes.addGarden(garden.getId(), garden.getAdminId(), garden.getZipCode());
+            lastId = Math.max(lastId, garden.getId());
+            break;
+          }
+        case USER:
+          {
+            User user = readUser(in);
+            users.put(user.getId(), location);
+            lastId = Math.max(lastId, user.getId());
+            break;
+          }
+        case PLANT:
+          {
+            long gardenId = in.getLong();
+            Plant plant = readPlant(in);
+            plants.put(plant.getId(), location);
+            indexes.addPlant(gardenId, plant.getId());
+            lastId = Math.max(lastId, plant.getId());
+            break;
+          }
+        case DELETE_PLANT:
+          {
+            long gardenId = in.getLong();
+            long plantId = in.getLong();
+            indexes.removePlant(gardenId, plantId);
+            plants.remove(plantId);
+            break;
+          }
+        case ADD_MEMBER:
+          indexes.addMember(in.getLong(), in.getLong());
+          break;
+        case REMOVE_MEMBER:
+          indexes.removeMember(in.getLong(), in.getLong());
+          break;
+        case CLEAR:
+          clearIndexes();
+          break;
+        case LAST_ID:
+          lastId = Math.max(lastId, in.getLong());
+          break;
+        case DELETE_GARDEN:
+          {
+            long gardenId = in.getLong();
+            Garden garden = garden(gardens.remove(gardenId));
+            if (garden != null) {
+              for (long plantId :
+                  indexes.removeGarden(gardenId, garden.getAdminId(), garden.getZipCode())) {
+                plants.remove(plantId);
+              }
+            }
+            break;
+          }
+        case DELETE_USER:
+          {
+            long userId = in.getLong();
+            users.remove(userId);
+            indexes.removeUser(userId);
+            break;
+          }
+        default:
+          throw new IOException("Unknown operation " + type + " in log " + directory);
+      }
+      operations++;
+    }
+  }
+
+  private void clearIndexes() {
+    gardens.clear();
+    users.clear();
+    plants.clear();
+    indexes.clear();
+    lastId = 0;
+    operations = 0;
+  }
+
+  /**
+   * Writes the live records into new segments, then deletes the old segments oldest first, so a
+   * failure leaves a suffix of the old log, and replays the new ones.
+   */
+  private void compactLocked() {
+    List<Segment> old = segments;
+    List<Segment> compacted = new ArrayList<Segment>();
+    try {
+      long number = old.get(old.size() - 1).number + 1;
+      Segment segment = newSegment(number, 0);
+      compacted.add(segment);
+
+      List<Batch> batches = new ArrayList<Batch>();
+      Batch batch = new Batch().lastId(lastId);
+      for (long id : users.keys()) {
+        batch = flushIfFull(batch, batches).user(user(users.get(id)));
+      }
+      for (long id : gardens.keys()) {
+        batch = flushIfFull(batch, batches).garden(garden(gardens.get(id)));
+      }
+      for (long gardenId : indexes.gardensWithPlants()) {
+        for (long plantId : indexes.plants(gardenId)) {
+          batch = flushIfFull(batch, batches).plant(gardenId, plant(plants.get(plantId)));
+        }
+      }
+      for (long gardenId : indexes.gardensWithMembers()) {
+        for (long userId : indexes.members(gardenId)) {
+          batch = flushIfFull(batch, batches).addMember(gardenId, userId);
+        }
+      }
+      batches.add(batch);
+
+      for (Batch full : batches) {
+        byte[] payload = full.toByteArray();
+        if (!writeRecord(segment, payload)) {
+          segment = newSegment(segment.number + 1, payload.length);
+          compacted.add(segment);
+          writeRecord(segment, payload);
+        }
+      }
+
+      segments = compacted;
+      clearIndexes();
+      for (int i = 0; i < segments.size(); i++) {
+        replay(i);
+      }
+    } catch (IOException e) {
+      // The old log is still whole, so the partial copy is dropped.
+      for (Segment segment : compacted) {
+        try {
+          Files.deleteIfExists(segment.path);
+        } catch (IOException suppressed) {
+          e.addSuppressed(suppressed);
+        }
+      }
+      throw new UncheckedIOException(e);
+    }
+    try {
+      for (Segment oldSegment : old) {
+        Files.delete(oldSegment.path);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** Adds batch to batches and starts a new one once it holds enough operations. */
+  private static Batch flushIfFull(Batch batch, List<Batch> batches) {
+    if (batch.count < OPERATIONS_PER_COMPACTED_RECORD) {
+      return batch;
+    }
+    batches.add(batch);
+    return new Batch();
+  }
+
+  private List<Garden> gardens(long[] ids) {
+    List<Garden> gardenList = new ArrayList<Garden>(ids.length);
+    for (long id : ids) {
+      Garden garden = garden(gardens.get(id));
+      if (garden != null) {
+        gardenList.add(garden);
+      }
+    }
+    return gardenList;
+  }
+
+  private Garden garden(long location) {
+    return location == LongLongMap.MISSING ? null : readGarden(at(location));
+  }
+
+  private User user(long location) {
+    return location == LongLongMap.MISSING ? null : readUser(at(location));
+  }
+
+  private Plant plant(long location) {
+    if (location == LongLongMap.MISSING) {
+      return null;
+    }
+    ByteBuffer in = at(location);
+    // Skips the garden id.
+    in.getLong();
+    return readPlant(in);
+  }
+
+  /** Returns a buffer positioned after the type of the operation at location. */
+  private ByteBuffer at(long location) {
+    ByteBuffer in = segments.get((int) (location >>> 32)).buffer.duplicate();
+    in.position((int) location + 1);
+    return in;
+  }
+
+  private static Garden readGarden(ByteBuffer in) {
+    return new Garden(
+        in.getLong(),
+        readString(in),
+        readString(in),
+        in.getDouble(),
+        in.getDouble(),
+        readString(in),
+        in.getLong());
+  }
+
+  private static User readUser(ByteBuffer in) {
+    return new User(in.getLong(), readString(in), readString(in), readString(in), readString(in));
+  }
+
+  private static Plant readPlant(ByteBuffer in) {
+    return new Plant(in.getLong(), readString(in), in.getLong(), readString(in));
+  }
+
+  private static String readString(ByteBuffer in) {
+    int length = in.getInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static long segmentNumber(Path path) {
+    Matcher matcher = SEGMENT_NAME.matcher(path.getFileName().toString());
+    matcher.matches();
+    return Long.parseLong(matcher.group(1));
+  }
+
+  private <T> T read(Supplier<T> call) {
+    lock.readLock().lock();
+    try {
+      return call.get();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private <T> T write(Supplier<T> call) {
+    lock.writeLock().lock();
+    try {
+      return call.get();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** The operations of one record, encoded as they are appended. */
+  private static final class Batch {
+    private ByteBuffer out = ByteBuffer.allocate(256);
+    private int count;
+
+    Batch garden(Garden garden) {
+      op(GARDEN);
+      putLong(garden.getId());
+      putString(garden.getName());
+      putString(garden.getDescription());
+      putDouble(garden.getLat());
+      putDouble(garden.getLng());
+      putString(garden.getZipCode());
+      putLong(garden.getAdminId());
+      return this;
+    }
+
+    Batch user(User user) {
+      op(USER);
+      putLong(user.getId());
+      putString(user.getEmail());
+      putString(user.getPreferredName());
+      putString(user.getBiography());
+      putString(user.getZipCode());
+      return this;
+    }
+
+    Batch plant(long gardenId, Plant plant) {
+      op(PLANT);
+      putLong(gardenId);
+      putLong(plant.getId());
+      putString(plant.getNickname());
+      putLong(plant.getCount());
+      putString(plant.getPlantTypeId());
+      return this;
+    }
+
+    Batch deletePlant(long gardenId, long plantId) {
+      op(DELETE_PLANT);
+      putLong(gardenId);
+      putLong(plantId);
+      return this;
+    }
+
+    Batch addMember(long gardenId, long userId) {
+      op(ADD_MEMBER);
+      putLong(gardenId);
+      putLong(userId);
+      return this;
+    }
+
+    Batch removeMember(long gardenId, long userId) {
+      op(REMOVE_MEMBER);
+      putLong(gardenId);
+      putLong(userId);
+      return this;
+    }
+
+    Batch deleteGarden(long gardenId) {
+      op(DELETE_GARDEN);
+      putLong(gardenId);
+      return this;
+    }
+
+    Batch deleteUser(long userId) {
+      op(DELETE_USER);
+      putLong(userId);
+      return this;
+    }
+
+    Batch clear() {
+      op(CLEAR);
+      return this;
+    }
+
+    Batch lastId(long id) {
+      op(LAST_ID);
+      putLong(id);
+      return this;
+    }
+
+    boolean isEmpty() {
+      return count == 0;
+    }
+
+    /** Returns the payload: the number of operations, then the operations. */
+    byte[] toByteArray() {
+      byte[] payload = new byte[4 + out.position()];
+      ByteBuffer.wrap(payload).putInt(count).put(out.array(), 0, out.position());
+      return payload;
+    }
+
+    private void op(byte type) {
+      ensure(1);
+      out.put(type);
+      count++;
+    }
+
+    private void putLong(long value) {
+      ensure(8);
+      out.putLong(value);
+    }
+
+    private void putDouble(double value) {
+      ensure(8);
+      out.putDouble(value);
+    }
+
+    private void putString(String value) {
+      if (value == null) {
+        ensure(4);
+        out.putInt(-1);
+        return;
+      }
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      ensure(4 + bytes.length);
+      out.putInt(bytes.length);
+      out.put(bytes);
+    }
+
+    private void ensure(int bytes) {
+      if (out.remaining() < bytes) {
+        ByteBuffer grown =
+            ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + bytes));
+        out.flip();
+        grown.put(out);
+        out = grown;
+      }
+    }
+  }
+}
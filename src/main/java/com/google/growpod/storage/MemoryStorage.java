@@ -0,0 +1,425 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.storage;
+
+import com.google.growpod.data.BatchItemStatus;
+import com.google.growpod.data.BatchItemStatus.Outcome;
+import com.google.growpod.data.ContainsPlant;
+import com.google.growpod.data.DeleteJob;
+import com.google.growpod.data.FieldSet;
+import com.google.growpod.data.Garden;
+import com.google.growpod.data.GardenCounts;
+import com.google.growpod.data.HasMember;
+import com.google.growpod.data.Ids;
+import com.google.growpod.data.Plant;
+import com.google.growpod.data.User;
+import com.google.growpod.util.LongObjectMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * Storage held entirely in memory, for local development, tests and benchmarks without Datastore or
+ * its emulator. Nothing is persisted.
+ *
+ * <p>Records are kept in primitive-keyed hash maps, and relations in {@link RelationIndexes}. Reads
+ * share a read lock and writes take the write lock, so every write, including a plant and its
+ * relation, is atomic.
+ */
+public class MemoryStorage implements EmbeddedStorage {
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private final LongObjectMap<Garden> gardens = new LongObjectMap<Garden>();
+  private final LongObjectMap<User> users = new LongObjectMap<User>();
+  private final LongObjectMap<Plant> plants = new LongObjectMap<Plant>();
+
+  private final RelationIndexes indexes = new RelationIndexes();
+  private final DeleteJobTable deleteJobs = new DeleteJobTable();
+
+  /** Last id given out, shared by every kind like Datastore's allocator. */
+  private long lastId;
+
+  @Override
+  public Garden getGarden(long id) {
+    return read(() -> Records.copy(gardens.get(id)));
+  }
+
+  @Override
+  public List<Garden> getGardens(long[] ids) {
+    return read(
+        () -> {
+          List<Garden> gardenList = new ArrayList<Garden>(ids.length);
+          for (long id : ids) {
+            Garden garden = gardens.get(id);
+            if (garden != null) {
+              gardenList.add(Records.copy(garden));
+            }
+          }
+          return gardenList;
+        });
+  }
+
+  @Override
+  public List<Garden> getGardensByZipCode(String zipCode, FieldSet fields) {
+    // Gardens are in memory, so whole ones cost nothing more to read.
+    return getGardensByZipCode(zipCode);
+  }
+
+  @Override
+  public List<Garden> getAllGardens() {
+    return read(
+        () -> {
+          List<Garden> gardenList = new ArrayList<Garden>(gardens.size());
+          for (Garden garden : gardens.values()) {
+            gardenList.add(Records.copy(garden));
+          }
+          return gardenList;
+        });
+  }
+
+  @Override
+  public List<Garden> getSomeGardens(int limit) {
+    return read(
+        () -> {
+          List<Garden> gardenList = new ArrayList<Garden>(Math.min(limit, gardens.size()));
+          for (Garden garden : gardens.values()) {
+            if (gardenList.size() == limit) {
+              break;
+            }
+            gardenList.add(Records.copy(garden));
+          }
+          return gardenList;
+        });
+  }
+
+  @Override
+  public List<Garden> getGardensByZipCode(String zipCode) {
+    return read(
+        () -> {
+          long[] ids = indexes.gardensIn(zipCode);
+          List<Garden> gardenList = new ArrayList<Garden>(ids.length);
+          for (long id : ids) {
+            gardenList.add(Records.copy(gardens.get(id)));
+          }
+          return gardenList;
+        });
+  }
+
+  @Override
+  public long[] getAdminGardenIds(long userId) {
+    return read(() -> indexes.administeredBy(userId));
+  }
+
+  @Override
+  public User getUser(long id) {
+    return read(() -> Records.copy(users.get(id)));
+  }
+
+  @Override
+  public Plant getPlant(long id) {
+    return read(() -> Records.copy(plants.get(id)));
+  }
+
+  @Override
+  public List<Plant> getPlants(long[] ids) {
+    return read(
+        () -> {
+          List<Plant> plantList = new ArrayList<Plant>(ids.length);
+          for (long id : ids) {
+            Plant plant = plants.get(id);
+            if (plant != null) {
+              plantList.add(Records.copy(plant));
+            }
+          }
+          return plantList;
+        });
+  }
+
+  @Override
+  public boolean isMember(long gardenId, long userId) {
+    return read(() -> indexes.isMember(gardenId, userId));
+  }
+
+  @Override
+  public long[] getGardenMemberIds(long gardenId) {
+    return read(() -> indexes.members(gardenId));
+  }
+
+  @Override
+  public long[] getUserGardenIds(long userId) {
+    return read(() -> indexes.gardensOf(userId));
+  }
+
+  @Override
+  public long[] getGardenPlantIds(long gardenId) {
+    return read(() -> indexes.plants(gardenId));
+  }
+
+  @Override
+  public GardenCounts getGardenCounts(long gardenId) {
+    return read(() -> indexes.counts(gardenId));
+  }
+
+  @Override
+  public Map<Long, GardenCounts> getGardenCounts(long[] gardenIds) {
+    return read(
+        () -> {
+          Map<Long, GardenCounts> counts = new HashMap<Long, GardenCounts>();
+          for (long gardenId : gardenIds) {
+            counts.put(gardenId, indexes.counts(gardenId));
+          }
+          return counts;
+        });
+  }
+
+  /** {@inheritDoc} Counts are read from the relation indexes, so there is nothing to rebuild. */
+  @Override
+  public int rebuildCounts() {
+    return read(() -> gardens.size());
+  }
+
+  @Override
+  public long addGarden(Garden garden) {
+    return write(
+        () -> {
+          garden.setId(++lastId);
+          putGarden(Records.copy(garden));
+          return garden.getId();
+        });
+  }
+
+  @Override
+  public long addUser(User user) {
+    return write(
+        () -> {
+          user.setId(++lastId);
+          users.put(user.getId(), Records.copy(user));
+          return user.getId();
+        });
+  }
+
+  @Override
+  public long addPlant(long gardenId, Plant plant) {
+    return write(
+        () -> {
+          plant.setId(++lastId);
+          putPlant(gardenId, Records.copy(plant));
+          return plant.getId();
+        });
+  }
+
+  @Override
+  public List<BatchItemStatus> addPlants(long gardenId, List<Plant> plantList) {
+    return write(
+        () -> {
+          List<BatchItemStatus> statuses = new ArrayList<BatchItemStatus>(plantList.size());
+          for (int i = 0; i < plantList.size(); i++) {
+            Plant plant = plantList.get(i);
+            if (plant == null) {
+              statuses.add(new BatchItemStatus(i, null, Outcome.INVALID));
+              continue;
+            }
+            plant.setId(++lastId);
+            putPlant(gardenId, Records.copy(plant));
+            statuses.add(new BatchItemStatus(i, plant.getId(), Outcome.CREATED));
+          }
+          return statuses;
+        });
+  }
+
+  @Override
+  public boolean deletePlant(long gardenId, long plantId) {
+    return write(() -> removePlant(gardenId, plantId));
+  }
+
+  @Override
+  public List<BatchItemStatus> deletePlants(long gardenId, long[] plantIds) {
+    return write(
+        () -> {
+          List<BatchItemStatus> statuses = new ArrayList<BatchItemStatus>(plantIds.length);
+          for (int i = 0; i < plantIds.length; i++) {
+            if (plantIds[i] == Ids.INVALID) {
+              statuses.add(new BatchItemStatus(i, null, Outcome.INVALID));
+            } else if (removePlant(gardenId, plantIds[i])) {
+              statuses.add(new BatchItemStatus(i, plantIds[i], Outcome.DELETED));
+            } else {
+              statuses.add(new BatchItemStatus(i, plantIds[i], Outcome.NOT_FOUND));
+            }
+          }
+          return statuses;
+        });
+  }
+
+  @Override
+  public void addMember(long gardenId, long userId) {
+    write(
+        () -> {
+          indexes.addMember(gardenId, userId);
+          return null;
+        });
+  }
+
+  @Override
+  public boolean removeMember(long gardenId, long userId) {
+    return write(() -> indexes.removeMember(gardenId, userId));
+  }
+
+  /** {@inheritDoc} The garden and everything belonging to it are deleted in one step. */
+  @Override
+  public int deleteGardenPage(long gardenId, int limit, Executor executor) {
+    return write(
+        () -> {
+          Garden garden = gardens.remove(gardenId);
+          if (garden == null) {
+            return 0;
+          }
+          int memberCount = indexes.members(gardenId).length;
+          long[] plantIds =
+              indexes.removeGarden(gardenId, garden.getAdminId(), garden.getZipCode());
+          for (long plantId : plantIds) {
+            plants.remove(plantId);
+          }
+          return 1 + memberCount + plantIds.length * 2;
+        });
+  }
+
+  /** {@inheritDoc} The user and their memberships are deleted in one step. */
+  @Override
+  public int deleteUserPage(long userId, int limit, Executor executor) {
+    return write(
+        () -> {
+          if (users.remove(userId) == null) {
+            return 0;
+          }
+          return 1 + indexes.removeUser(userId).length;
+        });
+  }
+
+  @Override
+  public long putDeleteJob(DeleteJob job) {
+    return deleteJobs.put(job);
+  }
+
+  @Override
+  public boolean leaseDeleteJob(DeleteJob job, long nowMillis) {
+    return deleteJobs.lease(job, nowMillis);
+  }
+
+  @Override
+  public DeleteJob getDeleteJob(long id) {
+    return deleteJobs.get(id);
+  }
+
+  @Override
+  public List<DeleteJob> getUnfinishedDeleteJobs() {
+    return deleteJobs.unfinished();
+  }
+
+  @Override
+  public void load(
+      List<User> userList,
+      List<Garden> gardenList,
+      List<Plant> plantList,
+      List<HasMember> hasMembers,
+      List<ContainsPlant> containsPlants) {
+    write(
+        () -> {
+          clearLocked();
+          for (User user : userList) {
+            users.put(user.getId(), Records.copy(user));
+            lastId = Math.max(lastId, user.getId());
+          }
+          for (Garden garden : gardenList) {
+            putGarden(Records.copy(garden));
+            lastId = Math.max(lastId, garden.getId());
+          }
+          Map<Long, Plant> plantsById = new HashMap<Long, Plant>();
+          for (Plant plant : plantList) {
+            plantsById.put(plant.getId(), plant);
+          }
+          // Plants belong to a garden here, so they are stored through their relations.
+          for (ContainsPlant relation : containsPlants) {
+            Plant plant = plantsById.get(relation.getPlantId());
+            if (plant != null) {
+              putPlant(relation.getGardenId(), Records.copy(plant));
+              lastId = Math.max(lastId, plant.getId());
+            }
+          }
+          for (HasMember relation : hasMembers) {
+            indexes.addMember(relation.getGardenId(), relation.getUserId());
+          }
+          return null;
+        });
+  }
+
+  /** Removes every record. */
+  public void clear() {
+    write(
+        () -> {
+          clearLocked();
+          return null;
+        });
+  }
+
+  private void clearLocked() {
+    gardens.clear();
+    users.clear();
+    plants.clear();
+    indexes.clear();
+    lastId = 0;
+  }
+
+  private void putGarden(Garden garden) {
+    gardens.put(garden.getId(), garden);
+    indexes.addGarden(garden.getId(), garden.getAdminId(), garden.getZipCode());
+  }
+
+  private void putPlant(long gardenId, Plant plant) {
+    plants.put(plant.getId(), plant);
+    indexes.addPlant(gardenId, plant.getId());
+  }
+
+  private boolean removePlant(long gardenId, long plantId) {
+    if (!indexes.removePlant(gardenId, plantId)) {
+      return false;
+    }
+    plants.remove(plantId);
+    return true;
+  }
+
+  private <T> T read(Supplier<T> call) {
+    lock.readLock().lock();
+    try {
+      return call.get();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private <T> T write(Supplier<T> call) {
+    lock.writeLock().lock();
+    try {
+      return call.get();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+}
@@ -0,0 +1,58 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.storage;
+
+import com.google.growpod.data.Garden;
+import com.google.growpod.data.Plant;
+import com.google.growpod.data.User;
+
+/** Copies of records, so storages never hand out an instance that another caller holds. */
+final class Records {
+
+  private Records() {}
+
+  static Garden copy(Garden garden) {
+    if (garden == null) {
+      return null;
+    }
+    return new Garden(
+        garden.getId(),
+        garden.getName(),
+        garden.getDescription(),
+        garden.getLat(),
+        garden.getLng(),
+        garden.getZipCode(),
+        garden.getAdminId());
+  }
+
+  static User copy(User user) {
+    if (user == null) {
+      return null;
+    }
+    return new User(
+        user.getId(),
+        user.getEmail(),
+        user.getPreferredName(),
+        user.getBiography(),
+        user.getZipCode());
+  }
+
+  static Plant copy(Plant plant) {
+    if (plant == null) {
+      return null;
+    }
+    return new Plant(plant.getId(), plant.getNickname(), plant.getCount(), plant.getPlantTypeId());
+  }
+}
@@ -0,0 +1,177 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.storage;
+
+import com.google.growpod.data.GardenCounts;
+import com.google.growpod.util.AdjacencyIndex;
+import com.google.growpod.util.LongObjectMap;
+import com.google.growpod.util.SortedLongSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Secondary indexes of the embedded backends: from each garden to its members and plants, from each
+ * user to their gardens, from each admin to the gardens they administer, and from each zip code to
+ * its gardens. Entries are sorted id sets, so membership checks are binary searches and counts are
+ * set sizes. Not thread-safe; the backends lock around it.
+ */
+final class RelationIndexes {
+
+  private static final long[] NONE = new long[0];
+
+  /** Memberships, from gardens to users. */
+  private final AdjacencyIndex members = new AdjacencyIndex();
+
+  private final LongObjectMap<SortedLongSet> gardenPlants = new LongObjectMap<SortedLongSet>();
+  private final LongObjectMap<SortedLongSet> adminGardens = new LongObjectMap<SortedLongSet>();
+  private final Map<String, SortedLongSet> zipCodeGardens = new HashMap<String, SortedLongSet>();
+
+  /** Indexes a new garden by admin and zip code. */
+  void addGarden(long gardenId, long adminId, String zipCode) {
+    index(adminGardens, adminId).add(gardenId);
+    if (zipCode != null) {
+      zipCodeGardens.computeIfAbsent(zipCode, key -> new SortedLongSet()).add(gardenId);
+    }
+  }
+
+  /** Records that a garden contains a plant. */
+  void addPlant(long gardenId, long plantId) {
+    index(gardenPlants, gardenId).add(plantId);
+  }
+
+  /** Returns whether a garden contains a plant. */
+  boolean containsPlant(long gardenId, long plantId) {
+    SortedLongSet plantIds = gardenPlants.get(gardenId);
+    return plantIds != null && plantIds.contains(plantId);
+  }
+
+  /** Removes a plant from a garden, returning whether it was there. */
+  boolean removePlant(long gardenId, long plantId) {
+    SortedLongSet plantIds = gardenPlants.get(gardenId);
+    return plantIds != null && plantIds.remove(plantId);
+  }
+
+  /** Records a membership in both directions, returning whether it is new. */
+  boolean addMember(long gardenId, long userId) {
+    return members.add(gardenId, userId);
+  }
+
+  /** Removes a membership in both directions, returning whether it existed. */
+  boolean removeMember(long gardenId, long userId) {
+    return members.remove(gardenId, userId);
+  }
+
+  /**
+   * Removes a garden's entries: its admin and zip code entries, its memberships and its plants.
+   *
+   * @return the ids of the garden's plants.
+   */
+  long[] removeGarden(long gardenId, long adminId, String zipCode) {
+    SortedLongSet administered = adminGardens.get(adminId);
+    if (administered != null) {
+      administered.remove(gardenId);
+    }
+    SortedLongSet zipCodeIds = zipCode == null ? null : zipCodeGardens.get(zipCode);
+    if (zipCodeIds != null) {
+      zipCodeIds.remove(gardenId);
+    }
+    for (long userId : members.forward(gardenId)) {
+      members.remove(gardenId, userId);
+    }
+    SortedLongSet plantIds = gardenPlants.remove(gardenId);
+    return plantIds == null ? NONE : plantIds.toArray();
+  }
+
+  /**
+   * Removes a user's memberships.
+   *
+   * @return the ids of the gardens the user was a member of.
+   */
+  long[] removeUser(long userId) {
+    long[] gardenIds = members.backward(userId);
+    for (long gardenId : gardenIds) {
+      members.remove(gardenId, userId);
+    }
+    return gardenIds;
+  }
+
+  /** Returns whether a user is a member of a garden. */
+  boolean isMember(long gardenId, long userId) {
+    return members.contains(gardenId, userId);
+  }
+
+  long[] members(long gardenId) {
+    return members.forward(gardenId);
+  }
+
+  long[] gardensOf(long userId) {
+    return members.backward(userId);
+  }
+
+  long[] plants(long gardenId) {
+    return ids(gardenPlants, gardenId);
+  }
+
+  long[] administeredBy(long userId) {
+    return ids(adminGardens, userId);
+  }
+
+  long[] gardensIn(String zipCode) {
+    SortedLongSet ids = zipCodeGardens.get(zipCode);
+    return ids == null ? NONE : ids.toArray();
+  }
+
+  /** Returns the ids of every garden with members. */
+  long[] gardensWithMembers() {
+    return members.forwardIds();
+  }
+
+  /** Returns the ids of every garden with plants. */
+  long[] gardensWithPlants() {
+    return gardenPlants.keys();
+  }
+
+  /** Returns the number of memberships. */
+  long memberships() {
+    return members.size();
+  }
+
+  GardenCounts counts(long gardenId) {
+    SortedLongSet plantIds = gardenPlants.get(gardenId);
+    return new GardenCounts(
+        members.forwardDegree(gardenId), plantIds == null ? 0 : plantIds.size());
+  }
+
+  void clear() {
+    members.clear();
+    gardenPlants.clear();
+    adminGardens.clear();
+    zipCodeGardens.clear();
+  }
+
+  private static SortedLongSet index(LongObjectMap<SortedLongSet> index, long id) {
+    SortedLongSet ids = index.get(id);
+    if (ids == null) {
+      ids = new SortedLongSet();
+      index.put(id, ids);
+    }
+    return ids;
+  }
+
+  private static long[] ids(LongObjectMap<SortedLongSet> index, long id) {
+    SortedLongSet ids = index.get(id);
+    return ids == null ? NONE : ids.toArray();
+  }
+}
@@ -0,0 +1,305 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.storage;
+
+import com.google.growpod.data.BatchItemStatus;
+import com.google.growpod.data.DeleteJob;
+import com.google.growpod.data.FieldSet;
+import com.google.growpod.data.Garden;
+import com.google.growpod.data.GardenCounts;
+import com.google.growpod.data.Plant;
+import com.google.growpod.data.User;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Storage backend of the data access objects.
+ *
+ * <p>The DAOs keep the logic shared by every backend, such as existence checks and search indexing,
+ * and call a Storage for reads and writes. Relation queries here do not check that the garden or
+ * user exists; that is up to the caller. Writes that touch more than one record, such as a plant
+ * and its relation to a garden, are atomic. Records returned are copies, so callers may modify
+ * them.
+ */
+public interface Storage {
+
+  /**
+   * Retrieves a garden.
+   *
+   * @param id the garden's id
+   * @return the garden, or null if it does not exist.
+   */
+  Garden getGarden(long id);
+
+  /**
+   * Retrieves many gardens. Gardens that do not exist are skipped.
+   *
+   * @param ids the gardens' ids
+   * @return the gardens, in the order of ids.
+   */
+  List<Garden> getGardens(long[] ids);
+
+  /**
+   * Retrieves every garden.
+   *
+   * @return all gardens, in no particular order.
+   */
+  List<Garden> getAllGardens();
+
+  /**
+   * Retrieves a few gardens, for sampling rather than listing.
+   *
+   * @param limit the most gardens to return.
+   * @return at most limit gardens, in no particular order.
+   */
+  List<Garden> getSomeGardens(int limit);
+
+  /**
+   * Retrieves the gardens with a given zip code.
+   *
+   * @param zipCode the zip code
+   * @return the matching gardens, in no particular order.
+   */
+  List<Garden> getGardensByZipCode(String zipCode);
+
+  /**
+   * Retrieves the gardens with a given zip code, reading at least the given fields. The others may
+   * be left at their defaults, so the gardens must not be written back or cached as whole.
+   *
+   * @param zipCode the zip code
+   * @param fields the fields the caller needs.
+   * @return the matching gardens, in no particular order.
+   */
+  List<Garden> getGardensByZipCode(String zipCode, FieldSet fields);
+
+  /**
+   * Retrieves the ids of the gardens a user administers.
+   *
+   * @param userId the user's id
+   * @return the gardens' ids.
+   */
+  long[] getAdminGardenIds(long userId);
+
+  /**
+   * Retrieves a user.
+   *
+   * @param id the user's id
+   * @return the user, or null if it does not exist.
+   */
+  User getUser(long id);
+
+  /**
+   * Retrieves a plant.
+   *
+   * @param id the plant's id
+   * @return the plant, or null if it does not exist.
+   */
+  Plant getPlant(long id);
+
+  /**
+   * Retrieves many plants. Plants that do not exist are skipped.
+   *
+   * @param ids the plants' ids
+   * @return the plants, in no particular order.
+   */
+  List<Plant> getPlants(long[] ids);
+
+  /**
+   * Checks whether a user is a member of a garden.
+   *
+   * @param gardenId the garden's id
+   * @param userId the user's id
+   * @return whether the user is a member.
+   */
+  boolean isMember(long gardenId, long userId);
+
+  /**
+   * Retrieves the ids of a garden's members.
+   *
+   * @param gardenId the garden's id
+   * @return the users' ids.
+   */
+  long[] getGardenMemberIds(long gardenId);
+
+  /**
+   * Retrieves the ids of the gardens a user is a member of.
+   *
+   * @param userId the user's id
+   * @return the gardens' ids.
+   */
+  long[] getUserGardenIds(long userId);
+
+  /**
+   * Retrieves the ids of a garden's plants.
+   *
+   * @param gardenId the garden's id
+   * @return the plants' ids.
+   */
+  long[] getGardenPlantIds(long gardenId);
+
+  /**
+   * Retrieves the number of members and plants of a garden.
+   *
+   * @param gardenId the garden's id
+   * @return the garden's counts, or null if they are unavailable.
+   */
+  GardenCounts getGardenCounts(long gardenId);
+
+  /**
+   * Retrieves the number of members and plants of many gardens.
+   *
+   * @param gardenIds the gardens' ids
+   * @return the counts of each garden keyed by id, or null if they are unavailable.
+   */
+  Map<Long, GardenCounts> getGardenCounts(long[] gardenIds);
+
+  /**
+   * Rebuilds every garden's member and plant counts from its relations, for example after relations
+   * were written without going through the DAOs.
+   *
+   * @return the number of gardens whose counts were rebuilt.
+   */
+  int rebuildCounts();
+
+  /**
+   * Adds a garden, giving it a new id.
+   *
+   * @param garden the garden, whose id is set
+   * @return the garden's id.
+   */
+  long addGarden(Garden garden);
+
+  /**
+   * Adds a user, giving it a new id.
+   *
+   * @param user the user, whose id is set
+   * @return the user's id.
+   */
+  long addUser(User user);
+
+  /**
+   * Adds a plant to a garden, along with its relation, giving it a new id.
+   *
+   * @param gardenId the garden's id
+   * @param plant the plant, whose id is set
+   * @return the plant's id.
+   */
+  long addPlant(long gardenId, Plant plant);
+
+  /**
+   * Adds many plants to a garden. Null plants are rejected with 400 BAD REQUEST, and plants that
+   * could not be written are reported with 500 INTERNAL SERVER ERROR.
+   *
+   * @param gardenId the garden's id
+   * @param plants the plants, whose ids are set
+   * @return the status of each plant, in request order.
+   */
+  List<BatchItemStatus> addPlants(long gardenId, List<Plant> plants);
+
+  /**
+   * Deletes a plant of a garden, along with its relation.
+   *
+   * @param gardenId the garden's id
+   * @param plantId the plant's id
+   * @return whether the plant was in the garden.
+   */
+  boolean deletePlant(long gardenId, long plantId);
+
+  /**
+   * Deletes many plants of a garden, along with their relations. Malformed ids (Ids.INVALID) are
+   * reported with 400 BAD REQUEST, and plants not in the garden, or repeated, with 404 NOT FOUND.
+   *
+   * @param gardenId the garden's id
+   * @param plantIds the plants' ids
+   * @return the status of each plant, in request order.
+   */
+  List<BatchItemStatus> deletePlants(long gardenId, long[] plantIds);
+
+  /**
+   * Makes a user a member of a garden. Adding a membership twice, even concurrently, records one.
+   *
+   * @param gardenId the garden's id
+   * @param userId the user's id
+   */
+  void addMember(long gardenId, long userId);
+
+  /**
+   * Ends a user's membership of a garden.
+   *
+   * @param gardenId the garden's id
+   * @param userId the user's id
+   * @return whether the user was a member.
+   */
+  boolean removeMember(long gardenId, long userId);
+
+  /**
+   * Deletes the next page of a garden's cascading delete: first the garden itself, so it is gone at
+   * once, then its memberships, and its plants with their relations. Calling it again after a
+   * failure picks up where the last call stopped.
+   *
+   * @param gardenId the garden's id
+   * @param limit roughly how many records to delete in this call
+   * @param executor runs independent deletes in parallel
+   * @return the number of records deleted, or 0 once nothing of the garden is left.
+   */
+  int deleteGardenPage(long gardenId, int limit, Executor executor);
+
+  /**
+   * Deletes the next page of a user's cascading delete: first the user, then their memberships.
+   * Gardens the user administers are not deleted here. Calling it again after a failure picks up
+   * where the last call stopped.
+   *
+   * @param userId the user's id
+   * @param limit roughly how many records to delete in this call
+   * @param executor runs independent deletes in parallel
+   * @return the number of records deleted, or 0 once nothing of the user is left.
+   */
+  int deleteUserPage(long userId, int limit, Executor executor);
+
+  /**
+   * Stores a delete job, giving it an id first if it has none (0).
+   *
+   * @param job the job, as of its latest checkpoint
+   * @return the job's id.
+   */
+  long putDeleteJob(DeleteJob job);
+
+  /**
+   * Stores a delete job if its owner may run it, atomically: the stored job has not finished, and
+   * either it has no owner, or the same owner, or its lease ran out by nowMillis. Claims the job
+   * for a new owner, and renews or checkpoints it for the current one.
+   *
+   * @param job the job, with its owner and lease
+   * @param nowMillis the current time, in milliseconds since the epoch
+   * @return whether the job was stored; false if it is gone, finished or leased to another owner.
+   */
+  boolean leaseDeleteJob(DeleteJob job, long nowMillis);
+
+  /**
+   * Retrieves a delete job.
+   *
+   * @param id the job's id
+   * @return the job as of its latest checkpoint, or null if it does not exist.
+   */
+  DeleteJob getDeleteJob(long id);
+
+  /**
+   * Retrieves every delete job that has not finished, for example to resume them after a restart.
+   *
+   * @return the jobs.
+   */
+  List<DeleteJob> getUnfinishedDeleteJobs();
+}
@@ -0,0 +1,120 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.util;
+
+/**
+ * A many-to-many relation between primitive long ids, such as gardens and their members, indexed in
+ * both directions. Each id's neighbours are a {@link SortedLongSet}, so checking for an edge is a
+ * hash lookup and a binary search, and listing an id's neighbours copies one array. Not
+ * thread-safe; callers synchronize access.
+ */
+public final class AdjacencyIndex {
+
+  private static final long[] NONE = new long[0];
+
+  private final LongObjectMap<SortedLongSet> forward = new LongObjectMap<SortedLongSet>();
+  private final LongObjectMap<SortedLongSet> backward = new LongObjectMap<SortedLongSet>();
+  private long edges;
+
+  /**
+   * Adds an edge.
+   *
+   * @param from the id on the forward side, for example a garden.
+   * @param to the id on the backward side, for example a user.
+   * @return whether the edge is new.
+   */
+  public boolean add(long from, long to) {
+    if (!neighbours(forward, from).add(to)) {
+      return false;
+    }
+    neighbours(backward, to).add(from);
+    edges++;
+    return true;
+  }
+
+  /**
+   * Removes an edge.
+   *
+   * @param from the id on the forward side.
+   * @param to the id on the backward side.
+   * @return whether the edge existed.
+   */
+  public boolean remove(long from, long to) {
+    SortedLongSet targets = forward.get(from);
+    if (targets == null || !targets.remove(to)) {
+      return false;
+    }
+    if (targets.isEmpty()) {
+      forward.remove(from);
+    }
+    SortedLongSet sources = backward.get(to);
+    sources.remove(from);
+    if (sources.isEmpty()) {
+      backward.remove(to);
+    }
+    edges--;
+    return true;
+  }
+
+  /** Returns whether the edge from, to exists. */
+  public boolean contains(long from, long to) {
+    SortedLongSet targets = forward.get(from);
+    return targets != null && targets.contains(to);
+  }
+
+  /** Returns the ids from has edges to, in ascending order. */
+  public long[] forward(long from) {
+    SortedLongSet targets = forward.get(from);
+    return targets == null ? NONE : targets.toArray();
+  }
+
+  /** Returns the ids with edges to to, in ascending order. */
+  public long[] backward(long to) {
+    SortedLongSet sources = backward.get(to);
+    return sources == null ? NONE : sources.toArray();
+  }
+
+  /** Returns the number of edges from an id. */
+  public int forwardDegree(long from) {
+    SortedLongSet targets = forward.get(from);
+    return targets == null ? 0 : targets.size();
+  }
+
+  /** Returns the ids with at least one edge on the forward side. */
+  public long[] forwardIds() {
+    return forward.keys();
+  }
+
+  /** Returns the number of edges. */
+  public long size() {
+    return edges;
+  }
+
+  /** Removes every edge. */
+  public void clear() {
+    forward.clear();
+    backward.clear();
+    edges = 0;
+  }
+
+  private static SortedLongSet neighbours(LongObjectMap<SortedLongSet> side, long id) {
+    SortedLongSet ids = side.get(id);
+    if (ids == null) {
+      ids = new SortedLongSet();
+      side.put(id, ids);
+    }
+    return ids;
+  }
+}
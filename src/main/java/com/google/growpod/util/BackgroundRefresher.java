@@ -0,0 +1,167 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Rebuilds a node-local structure, such as an index built by a full scan, on a background thread
+ * once it is older than a maximum age, so requests never pay for the scan. Readers keep using the
+ * old structure until the new one is swapped in by the rebuild.
+ *
+ * <p>At most one rebuild of a structure runs at once; requests asking meanwhile share it. A failed
+ * rebuild is logged and retried no sooner than {@link #RETRY_MILLIS} later. Readers with no
+ * fallback for a structure never built wait for its first build with {@link #ensureBuilt}.
+ *
+ * <p>Rebuilds run on daemon threads started by requests, which App Engine may pause between
+ * requests; a paused rebuild resumes with the next request, and readers meanwhile keep the old
+ * structure. Runs and failures are counted under "refresh.{name}".
+ */
+public final class BackgroundRefresher {
+
+  /** Least time between a failed rebuild and the next attempt. */
+  static final long RETRY_MILLIS = 5000;
+
+  /** Longest wait for a first build. */
+  private static final long MAX_WAIT_MILLIS = 10000;
+
+  private static final Logger logger = Logger.getLogger(BackgroundRefresher.class.getName());
+
+  private static final AtomicInteger threads = new AtomicInteger();
+
+  private static final ExecutorService executor =
+      Executors.newCachedThreadPool(
+          runnable -> {
+            Thread thread = new Thread(runnable, "refresher-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  private final String name;
+  private final long maxAgeMillis;
+  private final LongSupplier ageMillis;
+  private final Runnable rebuild;
+  private final LongAdder runs;
+  private final LongAdder failures;
+
+  /** The rebuild running, or null. */
+  private final AtomicReference<CompletableFuture<Void>> running =
+      new AtomicReference<CompletableFuture<Void>>();
+
+  private volatile long failedAtMillis;
+
+  /**
+   * Initializes a refresher.
+   *
+   * @param name the structure's name, for logs and metrics.
+   * @param maxAgeMillis the age after which the structure is rebuilt.
+   * @param ageMillis returns the structure's age, or Long.MAX_VALUE if it was never built.
+   * @param rebuild rebuilds the structure and swaps it in; any exception is a failed rebuild.
+   */
+  public BackgroundRefresher(
+      String name, long maxAgeMillis, LongSupplier ageMillis, Runnable rebuild) {
+    this.name = name;
+    this.maxAgeMillis = maxAgeMillis;
+    this.ageMillis = ageMillis;
+    this.rebuild = rebuild;
+    this.runs = Metrics.counter("refresh." + name + ".runs");
+    this.failures = Metrics.counter("refresh." + name + ".failures");
+  }
+
+  /**
+   * Starts a rebuild in the background if the structure is older than its maximum age, unless one
+   * is running or the last failed too recently. Returns at once.
+   */
+  public void refresh() {
+    start();
+  }
+
+  /**
+   * Refreshes as {@link #refresh} does, except that a structure never built is waited for, within
+   * the current request's budget, since there is nothing to read before its first build.
+   *
+   * @throws ServiceUnavailableException if the structure is still not built.
+   */
+  public void ensureBuilt() {
+    if (ageMillis.getAsLong() != Long.MAX_VALUE) {
+      start();
+      return;
+    }
+    CompletableFuture<Void> rebuilding = start();
+    if (rebuilding != null) {
+      try {
+        rebuilding.get(
+            Math.min(RequestContext.remainingMillis(), MAX_WAIT_MILLIS), TimeUnit.MILLISECONDS);
+      } catch (TimeoutException | ExecutionException e) {
+        // Reported below, as the structure is still not built.
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (ageMillis.getAsLong() == Long.MAX_VALUE) {
+      throw new ServiceUnavailableException(name + " is not built yet, try again later");
+    }
+  }
+
+  /** Returns the rebuild running, starting one if due, or null if none is. */
+  private CompletableFuture<Void> start() {
+    CompletableFuture<Void> current = running.get();
+    if (current != null
+        || ageMillis.getAsLong() <= maxAgeMillis
+        || System.currentTimeMillis() - failedAtMillis < RETRY_MILLIS) {
+      return current;
+    }
+    CompletableFuture<Void> started = new CompletableFuture<Void>();
+    if (!running.compareAndSet(null, started)) {
+      return running.get();
+    }
+    try {
+      executor.execute(() -> run(started));
+    } catch (RejectedExecutionException e) {
+      running.set(null);
+      started.complete(null);
+    }
+    return started;
+  }
+
+  private void run(CompletableFuture<Void> started) {
+    runs.increment();
+    try {
+      // Another refresh may have finished between the age check and this run.
+      if (ageMillis.getAsLong() > maxAgeMillis) {
+        rebuild.run();
+      }
+    } catch (RuntimeException e) {
+      failedAtMillis = System.currentTimeMillis();
+      failures.increment();
+      logger.log(Level.WARNING, "Could not rebuild " + name, e);
+    } finally {
+      running.set(null);
+      started.complete(null);
+    }
+  }
+}
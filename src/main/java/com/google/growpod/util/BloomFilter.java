@@ -0,0 +1,120 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bloom filter over longs: answers whether a value might have been added, with no false negatives
+ * and a tunable rate of false positives.
+ *
+ * <p>Bits are set with compare-and-set, so adds and lookups run concurrently without locks. Each
+ * value is mixed once into 64 bits, and its positions derived by double hashing.
+ */
+public final class BloomFilter {
+
+  private final AtomicLongArray words;
+  private final long bits;
+  private final int hashes;
+  private final LongAdder entries = new LongAdder();
+
+  private BloomFilter(long bits, int hashes) {
+    this.words = new AtomicLongArray((int) ((bits + 63) / 64));
+    this.bits = words.length() * 64L;
+    this.hashes = hashes;
+  }
+
+  /**
+   * Creates a filter sized for an expected number of values.
+   *
+   * @param expected the number of values the filter will hold.
+   * @param falsePositiveRate the desired false positive rate at that size, for example 0.01.
+   * @return an empty filter.
+   */
+  public static BloomFilter create(long expected, double falsePositiveRate) {
+    long n = Math.max(expected, 1);
+    long bits = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+    int hashes = Math.max(1, (int) Math.round((double) bits / n * Math.log(2)));
+    return new BloomFilter(Math.max(bits, 64), hashes);
+  }
+
+  /** Adds a value. */
+  public void add(long value) {
+    long hash = mix(value);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for (int i = 1; i <= hashes; i++) {
+      long bit = position(h1 + i * h2);
+      int word = (int) (bit >>> 6);
+      long mask = 1L << bit;
+      long current = words.get(word);
+      while ((current & mask) == 0 && !words.compareAndSet(word, current, current | mask)) {
+        current = words.get(word);
+      }
+    }
+    entries.increment();
+  }
+
+  /** Whether a value might have been added; false means it definitely was not. */
+  public boolean mightContain(long value) {
+    long hash = mix(value);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for (int i = 1; i <= hashes; i++) {
+      long bit = position(h1 + i * h2);
+      if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Number of bits. */
+  public long getBits() {
+    return bits;
+  }
+
+  /** Number of hash functions. */
+  public int getHashes() {
+    return hashes;
+  }
+
+  /** Number of values added, counting repeats. */
+  public long getEntries() {
+    return entries.sum();
+  }
+
+  /** Expected false positive rate given the bits set so far. */
+  public double expectedFalsePositiveRate() {
+    long set = 0;
+    for (int i = 0; i < words.length(); i++) {
+      set += Long.bitCount(words.get(i));
+    }
+    return Math.pow((double) set / bits, hashes);
+  }
+
+  private long position(int combined) {
+    return (combined < 0 ? ~combined : combined) % bits;
+  }
+
+  /** SplitMix64 finalizer, so that sequential ids spread over the whole filter. */
+  private static long mix(long value) {
+    long z = value + 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+}
@@ -0,0 +1,111 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Circuit breaker around calls to a dependency that may go down.
+ *
+ * <p>The breaker opens after `failureThreshold` consecutive failures; while open, callers are
+ * refused without trying. Once it has been open for `openMillis`, a single trial call is let
+ * through: its success closes the breaker, and its failure keeps it open for another `openMillis`.
+ * Closing runs the onClose callback, for example to refresh data served while the dependency was
+ * down. Checking a closed breaker only reads a volatile field, so it is free on the hot path.
+ */
+public final class CircuitBreaker {
+
+  /** State of a breaker. */
+  public enum State {
+    /** Calls go through. */
+    CLOSED,
+    /** Calls are refused, except for an occasional trial. */
+    OPEN
+  }
+
+  private final int failureThreshold;
+  private final long openNanos;
+  private final Runnable onClose;
+  private final AtomicInteger consecutiveFailures = new AtomicInteger();
+  private final AtomicBoolean trialInFlight = new AtomicBoolean();
+  private volatile State state = State.CLOSED;
+  private volatile long openedAtNanos;
+
+  /**
+   * Creates a closed breaker.
+   *
+   * @param failureThreshold consecutive failures that open the breaker.
+   * @param openMillis how long the breaker stays open before a trial call.
+   * @param onClose run, on the thread closing it, whenever the breaker closes.
+   */
+  public CircuitBreaker(int failureThreshold, long openMillis, Runnable onClose) {
+    this.failureThreshold = failureThreshold;
+    this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+    this.onClose = onClose;
+  }
+
+  /**
+   * Decides whether a call may go through. When this returns true for an open breaker, the call is
+   * its trial, and must report back with recordSuccess, recordFailure or recordIgnored.
+   */
+  public boolean allowRequest() {
+    if (state == State.CLOSED) {
+      return true;
+    }
+    return System.nanoTime() - openedAtNanos >= openNanos
+        && trialInFlight.compareAndSet(false, true);
+  }
+
+  /** Records a successful call, closing the breaker if it was open. */
+  public void recordSuccess() {
+    if (consecutiveFailures.get() != 0) {
+      consecutiveFailures.set(0);
+    }
+    if (state == State.OPEN) {
+      synchronized (this) {
+        if (state != State.OPEN) {
+          return;
+        }
+        state = State.CLOSED;
+        trialInFlight.set(false);
+      }
+      onClose.run();
+    }
+  }
+
+  /** Records a failed call, opening the breaker once failures reach the threshold. */
+  public synchronized void recordFailure() {
+    if (state == State.OPEN || consecutiveFailures.incrementAndGet() >= failureThreshold) {
+      state = State.OPEN;
+      openedAtNanos = System.nanoTime();
+      trialInFlight.set(false);
+    }
+  }
+
+  /** Records a call that neither succeeded nor failed, such as a rejected argument. */
+  public void recordIgnored() {
+    trialInFlight.set(false);
+  }
+
+  public State getState() {
+    return state;
+  }
+
+  public boolean isOpen() {
+    return state == State.OPEN;
+  }
+}
@@ -0,0 +1,25 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.util;
+
+/** Thrown when a request's latency budget runs out before an operation starts or finishes. */
+public class DeadlineExceededException extends ServiceUnavailableException {
+
+  static final long serialVersionUID = 1L;
+
+  public DeadlineExceededException(String route) {
+    super("Deadline exceeded for " + route);
+  }
+}
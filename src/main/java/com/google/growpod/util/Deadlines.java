@@ -0,0 +1,117 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.util;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Bounds blocking calls, such as Datastore lookups and queries, by the current request's budget.
+ *
+ * <p>Inside a request, a call runs on a shared pool with the request's context attached, and the
+ * request waits for it no longer than its remaining budget, then fails with {@link
+ * DeadlineExceededException}; the call is interrupted and its result ignored. Calls made from the
+ * pool, and outside requests, run directly. When {@link #MAX_THREADS} calls are already running,
+ * further ones fail with {@link ServiceUnavailableException} rather than run unbounded. Calls cut
+ * off are counted under "deadline.cutoff".
+ */
+public final class Deadlines {
+
+  /** Most calls running on the pool at once. */
+  static final int MAX_THREADS = 64;
+
+  private static final AtomicInteger threads = new AtomicInteger();
+
+  private static final ThreadLocal<Boolean> onPool = new ThreadLocal<Boolean>();
+
+  private static final ThreadPoolExecutor executor =
+      new ThreadPoolExecutor(
+          0,
+          MAX_THREADS,
+          60,
+          TimeUnit.SECONDS,
+          new SynchronousQueue<Runnable>(),
+          runnable -> {
+            Thread thread = new Thread(runnable, "deadline-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  private static final LongAdder cutoff = Metrics.counter("deadline.cutoff");
+
+  private Deadlines() {}
+
+  /**
+   * Runs a call, waiting for it no longer than the current request's remaining budget.
+   *
+   * @param call the call.
+   * @return the call's result.
+   * @throws DeadlineExceededException if the budget runs out first.
+   * @throws ServiceUnavailableException if too many calls are running.
+   */
+  public static <T> T call(Supplier<T> call) {
+    RequestContext context = RequestContext.current();
+    if (context == null || onPool.get() != null) {
+      return call.get();
+    }
+    if (context.remainingNanos() <= 0) {
+      throw context.exceeded();
+    }
+    Future<T> future;
+    try {
+      future = executor.submit(() -> run(context, call));
+    } catch (RejectedExecutionException e) {
+      throw new ServiceUnavailableException("Too many calls in flight, try again later", e);
+    }
+    try {
+      return future.get(context.remainingNanos(), TimeUnit.NANOSECONDS);
+    } catch (TimeoutException e) {
+      future.cancel(true);
+      cutoff.increment();
+      throw context.exceeded();
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted waiting for a call", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  private static <T> T run(RequestContext context, Supplier<T> call) {
+    RequestContext.attach(context);
+    onPool.set(Boolean.TRUE);
+    try {
+      return call.get();
+    } finally {
+      onPool.remove();
+      RequestContext.end();
+    }
+  }
+}
@@ -0,0 +1,98 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongFunction;
+
+/**
+ * Records loaded during one request, by kind and id, so each is loaded at most once per request and
+ * every reader in the request sees the same data. Records known not to exist are remembered too, as
+ * are writes, so later reads in the request see them. Held by the {@link RequestContext}, and so
+ * used only by the request's own thread; not thread-safe.
+ *
+ * <p>Hits and misses are counted under "identitymap".
+ */
+public final class IdentityMap {
+
+  /** Stands for a record known not to exist. */
+  private static final Object MISSING = new Object();
+
+  private static final LongAdder hits = Metrics.counter("identitymap.hits");
+  private static final LongAdder misses = Metrics.counter("identitymap.misses");
+
+  private final Map<String, LongObjectMap<Object>> kinds =
+      new HashMap<String, LongObjectMap<Object>>();
+
+  /**
+   * Returns the record of a kind with an id, loading it on first use.
+   *
+   * @param kind the record's kind, for example "Garden".
+   * @param id the record's id.
+   * @param loader loads the record, or returns null if it does not exist.
+   * @return the record, or null if it does not exist.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T get(String kind, long id, LongFunction<T> loader) {
+    LongObjectMap<Object> records = records(kind);
+    Object record = records.get(id);
+    if (record != null) {
+      hits.increment();
+      return record == MISSING ? null : (T) record;
+    }
+    misses.increment();
+    T loaded = loader.apply(id);
+    records.put(id, loaded == null ? MISSING : loaded);
+    return loaded;
+  }
+
+  /**
+   * Returns whether the record of a kind with an id has been loaded or written in this request.
+   *
+   * @param kind the record's kind.
+   * @param id the record's id.
+   * @return whether it is known, including known not to exist.
+   */
+  public boolean contains(String kind, long id) {
+    return records(kind).get(id) != null;
+  }
+
+  /**
+   * Records a record written in this request, or, if record is null, deleted.
+   *
+   * @param kind the record's kind.
+   * @param id the record's id.
+   * @param record the record as written, or null.
+   */
+  public void put(String kind, long id, Object record) {
+    records(kind).put(id, record == null ? MISSING : record);
+  }
+
+  /**
+   * Forgets a record, so the next read loads it again.
+   *
+   * @param kind the record's kind.
+   * @param id the record's id.
+   */
+  public void evict(String kind, long id) {
+    records(kind).remove(id);
+  }
+
+  private LongObjectMap<Object> records(String kind) {
+    return kinds.computeIfAbsent(kind, key -> new LongObjectMap<Object>());
+  }
+}
@@ -0,0 +1,78 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.util;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Estimates a latency percentile over the most recent samples.
+ *
+ * <p>Samples go to a ring buffer without locking. The percentile is recomputed by sorting a copy of
+ * the ring once every {@link #RECOMPUTE_EVERY} samples, so reading it is cheap and it follows
+ * changes in latency within a few hundred calls.
+ */
+public final class LatencyTracker {
+
+  /** Samples recorded between recomputations of the percentile. */
+  static final int RECOMPUTE_EVERY = 128;
+
+  private final AtomicLongArray samples;
+  private final AtomicLong recorded = new AtomicLong();
+  private final double percentile;
+  private final int minSamples;
+  private volatile long percentileNanos = -1;
+  private volatile long computedAt;
+
+  /**
+   * Creates a tracker.
+   *
+   * @param size how many recent samples are kept.
+   * @param percentile the percentile estimated, between 0 and 1, for example 0.95.
+   * @param minSamples samples needed before an estimate is given.
+   */
+  public LatencyTracker(int size, double percentile, int minSamples) {
+    this.samples = new AtomicLongArray(size);
+    this.percentile = percentile;
+    this.minSamples = Math.min(size, minSamples);
+  }
+
+  /** Records the latency of one call. */
+  public void record(long nanos) {
+    long index = recorded.getAndIncrement();
+    samples.set((int) (index % samples.length()), nanos);
+  }
+
+  /** The estimated percentile, or -1 until enough samples have been recorded. */
+  public long getPercentileNanos() {
+    long count = recorded.get();
+    if (count < minSamples) {
+      return -1;
+    }
+    if (percentileNanos < 0 || count - computedAt >= RECOMPUTE_EVERY) {
+      // Racing recomputations give near-identical answers, so none is lost.
+      computedAt = count;
+      int size = (int) Math.min(count, samples.length());
+      long[] sorted = new long[size];
+      for (int i = 0; i < size; i++) {
+        sorted[i] = samples.get(i);
+      }
+      Arrays.sort(sorted);
+      percentileNanos = sorted[Math.min(size - 1, (int) (size * percentile))];
+    }
+    return percentileNanos;
+  }
+}
@@ -0,0 +1,69 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.util;
+
+import java.util.Arrays;
+
+/** A growable list of primitive longs, used to collect ids without boxing. */
+public final class LongList {
+
+  private long[] values;
+  private int size;
+
+  /** Creates an empty list. */
+  public LongList() {
+    this(8);
+  }
+
+  /**
+   * Creates an empty list.
+   *
+   * @param capacity the initial capacity.
+   */
+  public LongList(int capacity) {
+    values = new long[Math.max(capacity, 1)];
+  }
+
+  /** Appends a value. */
+  public void add(long value) {
+    if (size == values.length) {
+      values = Arrays.copyOf(values, size * 2);
+    }
+    values[size++] = value;
+  }
+
+  /** Returns the value at index. */
+  public long get(int index) {
+    if (index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+    }
+    return values[index];
+  }
+
+  /** Returns the number of values. */
+  public int size() {
+    return size;
+  }
+
+  /** Returns whether the list is empty. */
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /** Returns a copy of the values, trimmed to size. */
+  public long[] toArray() {
+    return Arrays.copyOf(values, size);
+  }
+}
@@ -0,0 +1,158 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.util;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from primitive longs to primitive longs, with open addressing and linear probing.
+ * Values must not be negative; -1 stands for a missing key. Not thread-safe; callers synchronize
+ * access.
+ */
+public final class LongLongMap {
+
+  /** Returned for missing keys. */
+  public static final long MISSING = -1;
+
+  /** Load factor above which the table doubles. */
+  private static final double MAX_LOAD = 0.5;
+
+  private long[] keys;
+  private long[] values;
+  private int size;
+  private int mask;
+
+  /** Creates an empty map. */
+  public LongLongMap() {
+    keys = new long[16];
+    values = new long[16];
+    Arrays.fill(values, MISSING);
+    mask = 15;
+  }
+
+  /** Returns the value of key, or MISSING. */
+  public long get(long key) {
+    for (int slot = slot(key); values[slot] != MISSING; slot = (slot + 1) & mask) {
+      if (keys[slot] == key) {
+        return values[slot];
+      }
+    }
+    return MISSING;
+  }
+
+  /**
+   * Maps key to value.
+   *
+   * @param key the key.
+   * @param value the value, which must not be negative.
+   */
+  public void put(long key, long value) {
+    if (value < 0) {
+      throw new IllegalArgumentException("Negative value for key " + key + ": " + value);
+    }
+    int slot = slot(key);
+    for (; values[slot] != MISSING; slot = (slot + 1) & mask) {
+      if (keys[slot] == key) {
+        values[slot] = value;
+        return;
+      }
+    }
+    keys[slot] = key;
+    values[slot] = value;
+    if (++size > values.length * MAX_LOAD) {
+      resize(values.length * 2);
+    }
+  }
+
+  /**
+   * Removes key's mapping.
+   *
+   * @param key the key.
+   * @return the removed value, or MISSING.
+   */
+  public long remove(long key) {
+    int slot = slot(key);
+    for (; values[slot] != MISSING; slot = (slot + 1) & mask) {
+      if (keys[slot] == key) {
+        break;
+      }
+    }
+    long removed = values[slot];
+    if (removed == MISSING) {
+      return MISSING;
+    }
+    // Shifts later entries of the probe run back, so lookups never stop at a hole.
+    int hole = slot;
+    for (int next = (hole + 1) & mask; values[next] != MISSING; next = (next + 1) & mask) {
+      int home = slot(keys[next]);
+      if (((next - home) & mask) >= ((next - hole) & mask)) {
+        keys[hole] = keys[next];
+        values[hole] = values[next];
+        hole = next;
+      }
+    }
+    values[hole] = MISSING;
+    size--;
+    return removed;
+  }
+
+  /** Returns the number of entries. */
+  public int size() {
+    return size;
+  }
+
+  /** Returns the keys, in no particular order. */
+  public long[] keys() {
+    long[] result = new long[size];
+    int next = 0;
+    for (int slot = 0; slot < values.length; slot++) {
+      if (values[slot] != MISSING) {
+        result[next++] = keys[slot];
+      }
+    }
+    return result;
+  }
+
+  /** Removes every entry. */
+  public void clear() {
+    Arrays.fill(values, MISSING);
+    size = 0;
+  }
+
+  private void resize(int tableSize) {
+    long[] oldKeys = keys;
+    long[] oldValues = values;
+    keys = new long[tableSize];
+    values = new long[tableSize];
+    Arrays.fill(values, MISSING);
+    mask = tableSize - 1;
+    for (int slot = 0; slot < oldValues.length; slot++) {
+      if (oldValues[slot] != MISSING) {
+        int newSlot = slot(oldKeys[slot]);
+        while (values[newSlot] != MISSING) {
+          newSlot = (newSlot + 1) & mask;
+        }
+        keys[newSlot] = oldKeys[slot];
+        values[newSlot] = oldValues[slot];
+      }
+    }
+  }
+
+  /** Spreads ids, which are often sequential or share low bits, over the table. */
+  private int slot(long key) {
+    long hash = key * 0x9e3779b97f4a7c15L;
+    return (int) (hash ^ (hash >>> 32)) & mask;
+  }
+}
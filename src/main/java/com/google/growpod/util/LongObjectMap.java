@@ -0,0 +1,184 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A hash map from primitive longs to objects, with open addressing and linear probing, so keys are
+ * never boxed. Not thread-safe; callers synchronize access.
+ *
+ * @param <V> the type of values.
+ */
+public final class LongObjectMap<V> {
+
+  /** Load factor above which the table doubles. */
+  private static final double MAX_LOAD = 0.5;
+
+  private long[] keys;
+  private Object[] values;
+  private int size;
+  private int mask;
+
+  /** Creates an empty map. */
+  public LongObjectMap() {
+    this(16);
+  }
+
+  /**
+   * Creates an empty map.
+   *
+   * @param capacity the number of entries to make room for.
+   */
+  public LongObjectMap(int capacity) {
+    int tableSize = Integer.highestOneBit(Math.max(4, (int) (capacity / MAX_LOAD)) - 1) << 1;
+    keys = new long[tableSize];
+    values = new Object[tableSize];
+    mask = tableSize - 1;
+  }
+
+  /** Returns the value of key, or null if there is none. */
+  @SuppressWarnings("unchecked")
+  public V get(long key) {
+    for (int slot = slot(key); values[slot] != null; slot = (slot + 1) & mask) {
+      if (keys[slot] == key) {
+        return (V) values[slot];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Maps key to value.
+   *
+   * @param key the key.
+   * @param value the value, which must not be null.
+   * @return the previous value of key, or null.
+   */
+  @SuppressWarnings("unchecked")
+  public V put(long key, V value) {
+    if (value == null) {
+      throw new NullPointerException("Null value for key " + key);
+    }
+    int slot = slot(key);
+    for (; values[slot] != null; slot = (slot + 1) & mask) {
+      if (keys[slot] == key) {
+        V previous = (V) values[slot];
+        values[slot] = value;
+        return previous;
+      }
+    }
+    keys[slot] = key;
+    values[slot] = value;
+    if (++size > values.length * MAX_LOAD) {
+      resize(values.length * 2);
+    }
+    return null;
+  }
+
+  /**
+   * Removes key's mapping.
+   *
+   * @param key the key.
+   * @return the removed value, or null if there was none.
+   */
+  @SuppressWarnings("unchecked")
+  public V remove(long key) {
+    int slot = slot(key);
+    for (; values[slot] != null; slot = (slot + 1) & mask) {
+      if (keys[slot] == key) {
+        break;
+      }
+    }
+    V removed = (V) values[slot];
+    if (removed == null) {
+      return null;
+    }
+    // Shifts later entries of the probe run back, so lookups never stop at a hole.
+    int hole = slot;
+    for (int next = (hole + 1) & mask; values[next] != null; next = (next + 1) & mask) {
+      int home = slot(keys[next]);
+      if (((next - home) & mask) >= ((next - hole) & mask)) {
+        keys[hole] = keys[next];
+        values[hole] = values[next];
+        hole = next;
+      }
+    }
+    values[hole] = null;
+    size--;
+    return removed;
+  }
+
+  /** Returns the number of entries. */
+  public int size() {
+    return size;
+  }
+
+  /** Returns the keys, in no particular order. */
+  public long[] keys() {
+    long[] result = new long[size];
+    int next = 0;
+    for (int slot = 0; slot < values.length; slot++) {
+      if (values[slot] != null) {
+        result[next++] = keys[slot];
+      }
+    }
+    return result;
+  }
+
+  /** Returns the values, in no particular order. */
+  @SuppressWarnings("unchecked")
+  public List<V> values() {
+    List<V> result = new ArrayList<V>(size);
+    for (Object value : values) {
+      if (value != null) {
+        result.add((V) value);
+      }
+    }
+    return result;
+  }
+
+  /** Removes every entry. */
+  public void clear() {
+    Arrays.fill(values, null);
+    size = 0;
+  }
+
+  private void resize(int tableSize) {
+    long[] oldKeys = keys;
+    Object[] oldValues = values;
+    keys = new long[tableSize];
+    values = new Object[tableSize];
+    mask = tableSize - 1;
+    for (int slot = 0; slot < oldValues.length; slot++) {
+      if (oldValues[slot] != null) {
+        int newSlot = slot(oldKeys[slot]);
+        while (values[newSlot] != null) {
+          newSlot = (newSlot + 1) & mask;
+        }
+        keys[newSlot] = oldKeys[slot];
+        values[newSlot] = oldValues[slot];
+      }
+    }
+  }
+
+  /** Spreads ids, which are often sequential or share low bits, over the table. */
+  private int slot(long key) {
+    long hash = key * 0x9e3779b97f4a7c15L;
+    return (int) (hash ^ (hash >>> 32)) & mask;
+  }
+}
@@ -0,0 +1,88 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide registry of named counters, served by /metrics.
+ *
+ * <p>Counters are LongAdders, so hot paths increment them without contention. Components with
+ * structured statistics, such as per-key tables, register a section instead, which is rendered when
+ * the metrics are read.
+ */
+public final class Metrics {
+
+  /** Maximum number of distinct counters; later names share {@link #OVERFLOW}. */
+  private static final int MAX_COUNTERS = 10000;
+
+  /** Name of the counter shared by names beyond MAX_COUNTERS. */
+  public static final String OVERFLOW = "metrics.overflow";
+
+  private static final Map<String, LongAdder> counters = new ConcurrentHashMap<String, LongAdder>();
+  private static final Map<String, Supplier<Object>> sections =
+      new ConcurrentHashMap<String, Supplier<Object>>();
+
+  private Metrics() {}
+
+  /**
+   * Returns the counter with a name, creating it on first use.
+   *
+   * @param name the counter's name, dot separated, for example "singleflight.reads.shared".
+   * @return the counter.
+   */
+  public static LongAdder counter(String name) {
+    LongAdder counter = counters.get(name);
+    if (counter != null) {
+      return counter;
+    }
+    if (counters.size() >= MAX_COUNTERS) {
+      return counters.computeIfAbsent(OVERFLOW, overflow -> new LongAdder());
+    }
+    return counters.computeIfAbsent(name, created -> new LongAdder());
+  }
+
+  /**
+   * Registers a section of structured statistics, replacing any section with the same name.
+   *
+   * @param name the section's name.
+   * @param section returns the section's current statistics, serializable by Gson.
+   */
+  public static void register(String name, Supplier<Object> section) {
+    sections.put(name, section);
+  }
+
+  /** Current value of every counter, by name. */
+  public static Map<String, Long> counters() {
+    Map<String, Long> snapshot = new TreeMap<String, Long>();
+    for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+      snapshot.put(entry.getKey(), entry.getValue().sum());
+    }
+    return snapshot;
+  }
+
+  /** Current statistics of every registered section, by name. */
+  public static Map<String, Object> sections() {
+    Map<String, Object> snapshot = new TreeMap<String, Object>();
+    for (Map.Entry<String, Supplier<Object>> entry : sections.entrySet()) {
+      snapshot.put(entry.getKey(), entry.getValue().get());
+    }
+    return snapshot;
+  }
+}
@@ -0,0 +1,201 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.util;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A user's recent membership and plant writes, merged into the relation lists they read, so users
+ * see their own writes even where the query behind a list has not caught up with them yet.
+ *
+ * <p>Writes are kept for {@link #TTL_MILLIS}, longer than a list read anywhere may lag behind a
+ * write: another instance's membership index answers lists for up to {@code
+ * MembershipIndex.MAX_AGE_MILLIS} after its scan started, and queries reflect writes within
+ * seconds. At most {@link #MAX_WRITES} writes are kept. The overlay lives in the user's session, so
+ * it follows the user to whichever instance serves the next request; the {@link RequestContext}
+ * holds it during a request. Reads changed by an overlay are counted under "recentwrites.merged".
+ */
+public final class RecentWrites implements Serializable {
+
+  static final long serialVersionUID = 1L;
+
+  /** How long a write stays in the overlay. */
+  public static final long TTL_MILLIS = 3 * 60 * 1000;
+
+  /** Maximum writes kept; older ones are dropped first. */
+  static final int MAX_WRITES = 64;
+
+  private static final LongAdder merged = Metrics.counter("recentwrites.merged");
+
+  /** The relation lists an overlay applies to. */
+  public enum Relation {
+    /** Users of a garden, by garden id. */
+    GARDEN_MEMBERS,
+    /** Gardens of a user, by user id. */
+    USER_GARDENS,
+    /** Plants of a garden, by garden id. */
+    GARDEN_PLANTS
+  }
+
+  /** One write: id was added to or removed from the owner's list. */
+  private static final class Write implements Serializable {
+    static final long serialVersionUID = 1L;
+
+    final Relation relation;
+    final long ownerId;
+    final long id;
+    final boolean added;
+    final long atMillis;
+
+    Write(Relation relation, long ownerId, long id, boolean added, long atMillis) {
+      this.relation = relation;
+      this.ownerId = ownerId;
+      this.id = id;
+      this.added = added;
+      this.atMillis = atMillis;
+    }
+  }
+
+  /** Writes, oldest first. */
+  private final ArrayDeque<Write> writes = new ArrayDeque<Write>();
+
+  private transient boolean dirty;
+
+  /**
+   * Records a write by the current request's user, if the request has an overlay.
+   *
+   * @param relation the list written.
+   * @param ownerId the id of the list's owner, such as the garden of GARDEN_PLANTS.
+   * @param id the id added or removed.
+   * @param added true if id was added, false if it was removed.
+   */
+  public static void recorded(Relation relation, long ownerId, long id, boolean added) {
+    RecentWrites overlay = RequestContext.recentWrites();
+    if (overlay != null) {
+      overlay.record(relation, ownerId, id, added, System.currentTimeMillis());
+    }
+  }
+
+  /**
+   * Merges the current request's user's recent writes, if any, into a list they read.
+   *
+   * @param relation the list read.
+   * @param ownerId the id of the list's owner.
+   * @param ids the ids read, or null if the owner does not exist.
+   * @return the ids with recent additions and without recent removals, or null.
+   */
+  public static long[] mergedInto(Relation relation, long ownerId, long[] ids) {
+    RecentWrites overlay = RequestContext.recentWrites();
+    if (overlay == null || ids == null) {
+      return ids;
+    }
+    return overlay.merge(relation, ownerId, ids, System.currentTimeMillis());
+  }
+
+  /**
+   * Records a write, replacing any earlier write of the same id to the same list.
+   *
+   * @param relation the list written.
+   * @param ownerId the id of the list's owner.
+   * @param id the id added or removed.
+   * @param added true if id was added, false if it was removed.
+   * @param nowMillis the current time.
+   */
+  public synchronized void record(
+      Relation relation, long ownerId, long id, boolean added, long nowMillis) {
+    expire(nowMillis);
+    Iterator<Write> iterator = writes.iterator();
+    while (iterator.hasNext()) {
+      Write write = iterator.next();
+      if (write.relation == relation && write.ownerId == ownerId && write.id == id) {
+        iterator.remove();
+      }
+    }
+    writes.addLast(new Write(relation, ownerId, id, added, nowMillis));
+    if (writes.size() > MAX_WRITES) {
+      writes.removeFirst();
+    }
+    dirty = true;
+  }
+
+  /**
+   * Applies the recent writes to a list.
+   *
+   * @param relation the list read.
+   * @param ownerId the id of the list's owner.
+   * @param ids the ids read; not modified.
+   * @param nowMillis the current time.
+   * @return ids with recent additions appended and recent removals left out.
+   */
+  public synchronized long[] merge(Relation relation, long ownerId, long[] ids, long nowMillis) {
+    expire(nowMillis);
+    long[] result = ids;
+    for (Write write : writes) {
+      if (write.relation != relation || write.ownerId != ownerId) {
+        continue;
+      }
+      int index = indexOf(result, write.id);
+      if (write.added && index < 0) {
+        result = Arrays.copyOf(result, result.length + 1);
+        result[result.length - 1] = write.id;
+      } else if (!write.added && index >= 0) {
+        long[] shorter = new long[result.length - 1];
+        System.arraycopy(result, 0, shorter, 0, index);
+        System.arraycopy(result, index + 1, shorter, index, shorter.length - index);
+        result = shorter;
+      }
+    }
+    if (result != ids) {
+      merged.increment();
+    }
+    return result;
+  }
+
+  /** Whether writes were recorded since the overlay was loaded, so it must be saved. */
+  public synchronized boolean isDirty() {
+    return dirty;
+  }
+
+  /** Notes that the overlay was saved, so it needs saving again only once it changes again. */
+  public synchronized void markSaved() {
+    dirty = false;
+  }
+
+  /** Number of writes kept. */
+  public synchronized int size() {
+    return writes.size();
+  }
+
+  /** Drops writes older than TTL_MILLIS. */
+  private void expire(long nowMillis) {
+    while (!writes.isEmpty() && writes.peekFirst().atMillis <= nowMillis - TTL_MILLIS) {
+      writes.removeFirst();
+      dirty = true;
+    }
+  }
+
+  private static int indexOf(long[] ids, long id) {
+    for (int i = 0; i < ids.length; i++) {
+      if (ids[i] == id) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
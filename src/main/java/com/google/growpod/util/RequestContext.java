@@ -0,0 +1,203 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * State of the request being handled by the current thread, set up by a filter before the servlet
+ * runs and cleared after it returns.
+ *
+ * <p>Each request has a latency budget, counted from when it began; DAOs check it before every
+ * Datastore call, and wait for reads no longer than what is left of it through {@link Deadlines},
+ * so once it runs out calls fail fast with {@link DeadlineExceededException} instead of holding the
+ * request open. Code running outside a request, such as tools and tests, has no context and no
+ * deadline.
+ *
+ * <p>Data served from a fallback copy instead of Datastore marks the request stale, so the response
+ * can say so.
+ *
+ * <p>Requests on routes that tolerate stale data read with eventual consistency, which Datastore
+ * serves faster; all others read strongly, so they see every write that completed before them.
+ *
+ * <p>Each request has an {@link IdentityMap}, shared by every DAO it uses, so a record is loaded at
+ * most once per request and reads see the request's own earlier writes. Requests from a user with a
+ * session also carry the user's {@link RecentWrites}, so relation lists, which Datastore queries
+ * eventually, include the user's own recent joins, leaves and plantings.
+ */
+public final class RequestContext {
+
+  private static final ThreadLocal<RequestContext> current = new ThreadLocal<RequestContext>();
+
+  private static final LongAdder exceeded = Metrics.counter("deadline.exceeded");
+
+  private final String route;
+  private final long deadlineNanos;
+  private final boolean hedgeReads;
+  private final boolean eventualReads;
+  private long staleAgeMillis = -1;
+  private IdentityMap identityMap;
+  private RecentWrites recentWrites;
+
+  private RequestContext(
+      String route, long deadlineNanos, boolean hedgeReads, boolean eventualReads) {
+    this.route = route;
+    this.deadlineNanos = deadlineNanos;
+    this.hedgeReads = hedgeReads;
+    this.eventualReads = eventualReads;
+  }
+
+  /**
+   * Begins a request on the current thread.
+   *
+   * @param route the route handling the request, for example "/garden".
+   * @param budgetMillis how long the request may take.
+   * @param hedgeReads whether single-entity reads may be hedged.
+   * @return the request's context.
+   */
+  public static RequestContext begin(String route, long budgetMillis, boolean hedgeReads) {
+    return begin(route, budgetMillis, hedgeReads, false);
+  }
+
+  /**
+   * Begins a request on the current thread.
+   *
+   * @param route the route handling the request, for example "/garden".
+   * @param budgetMillis how long the request may take.
+   * @param hedgeReads whether single-entity reads may be hedged.
+   * @param eventualReads whether reads may be eventually consistent.
+   * @return the request's context.
+   */
+  public static RequestContext begin(
+      String route, long budgetMillis, boolean hedgeReads, boolean eventualReads) {
+    long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+    RequestContext context = new RequestContext(route, deadlineNanos, hedgeReads, eventualReads);
+    current.set(context);
+    return context;
+  }
+
+  /**
+   * Continues a request on the current thread, for example a pool thread doing part of its work.
+   * End it with {@link #end} when done.
+   *
+   * @param context the request's context.
+   */
+  public static void attach(RequestContext context) {
+    current.set(context);
+  }
+
+  /** Ends the current thread's request. */
+  public static void end() {
+    current.remove();
+  }
+
+  /** The current thread's request, or null outside requests. */
+  public static RequestContext current() {
+    return current.get();
+  }
+
+  /**
+   * Fails if the current request's budget has run out.
+   *
+   * @throws DeadlineExceededException if it has.
+   */
+  public static void checkDeadline() {
+    RequestContext context = current.get();
+    if (context != null && context.remainingNanos() <= 0) {
+      throw context.exceeded();
+    }
+  }
+
+  /** Time left of the current request's budget, or Long.MAX_VALUE outside requests. */
+  public static long remainingMillis() {
+    RequestContext context = current.get();
+    return context == null
+        ? Long.MAX_VALUE
+        : TimeUnit.NANOSECONDS.toMillis(Math.max(0, context.remainingNanos()));
+  }
+
+  /** Time left of this request's budget, negative once it has run out. */
+  public long remainingNanos() {
+    return deadlineNanos - System.nanoTime();
+  }
+
+  /** Counts and returns the exception reporting that this request's budget ran out. */
+  public DeadlineExceededException exceeded() {
+    exceeded.increment();
+    return new DeadlineExceededException(route);
+  }
+
+  /**
+   * Marks the current request, if any, as served partly from a copy of data this old.
+   *
+   * @param ageMillis how long ago the copy was read from Datastore.
+   */
+  public static void markStale(long ageMillis) {
+    RequestContext context = current.get();
+    if (context != null) {
+      context.staleAgeMillis = Math.max(context.staleAgeMillis, ageMillis);
+    }
+  }
+
+  /** Whether the current thread's request may read with eventual consistency; false outside. */
+  public static boolean eventualReads() {
+    RequestContext context = current.get();
+    return context != null && context.eventualReads;
+  }
+
+  /** The current thread's request's identity map, or null outside requests. */
+  public static IdentityMap identityMap() {
+    RequestContext context = current.get();
+    if (context == null) {
+      return null;
+    }
+    if (context.identityMap == null) {
+      context.identityMap = new IdentityMap();
+    }
+    return context.identityMap;
+  }
+
+  /** The current thread's request's user's recent writes, or null without a session. */
+  public static RecentWrites recentWrites() {
+    RequestContext context = current.get();
+    return context == null ? null : context.recentWrites;
+  }
+
+  /** Age of the oldest stale copy this request served, or -1 if it served none. */
+  public long getStaleAgeMillis() {
+    return staleAgeMillis;
+  }
+
+  public String getRoute() {
+    return route;
+  }
+
+  public boolean isHedgeReads() {
+    return hedgeReads;
+  }
+
+  public boolean isEventualReads() {
+    return eventualReads;
+  }
+
+  public RecentWrites getRecentWrites() {
+    return recentWrites;
+  }
+
+  public void setRecentWrites(RecentWrites recentWrites) {
+    this.recentWrites = recentWrites;
+  }
+}
@@ -0,0 +1,32 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.util;
+
+/**
+ * Thrown when a request cannot be served right now, but may succeed if retried shortly, for example
+ * while Datastore is unavailable. Answered with 503 SERVICE UNAVAILABLE.
+ */
+public class ServiceUnavailableException extends RuntimeException {
+
+  static final long serialVersionUID = 1L;
+
+  public ServiceUnavailableException(String message) {
+    super(message);
+  }
+
+  public ServiceUnavailableException(String message, Throwable cause) {
+    super(message, cause);
+  }
+}
@@ -0,0 +1,158 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.util;
+
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Coalesces concurrent identical calls, so that only one runs and its result is handed to all
+ * callers.
+ *
+ * <p>The first caller for a key runs the call; callers arriving while it is in flight wait for its
+ * result instead of making their own. The entry is removed as soon as the call completes, so no
+ * result outlives its call: a caller arriving afterwards always gets a fresh one. Waiting is
+ * bounded; a caller that waits longer than maxWaitMillis, or than its request's remaining budget,
+ * gives up and makes its own call. Results are shared between threads, so calls should return
+ * immutable values.
+ *
+ * <p>Counters are kept per group ("singleflight.{group}.calls", ".shared" and ".timeouts"), and per
+ * key for the {@link #MAX_TRACKED_KEYS} most recently called keys, served by /metrics. A key that
+ * goes quiet is dropped for newer ones, so a key that turns hot late is still counted.
+ */
+public final class SingleFlight {
+
+  /** Maximum number of keys with statistics; the least recently called are dropped beyond it. */
+  static final int MAX_TRACKED_KEYS = 1000;
+
+  /** Number of keys shown in /metrics, busiest first. */
+  private static final int REPORTED_KEYS = 20;
+
+  /** Statistics of one key. */
+  private static final class KeyStats {
+    final LongAdder calls = new LongAdder();
+    final LongAdder shared = new LongAdder();
+    final LongAdder timeouts = new LongAdder();
+  }
+
+  private final long maxWaitMillis;
+  private final Map<String, CompletableFuture<Object>> inFlight =
+      new ConcurrentHashMap<String, CompletableFuture<Object>>();
+  private final StripedLruCache<String, KeyStats> keyStats =
+      new StripedLruCache<String, KeyStats>(MAX_TRACKED_KEYS);
+  private final LongAdder calls;
+  private final LongAdder shared;
+  private final LongAdder timeouts;
+
+  /**
+   * Creates a group of coalesced calls, and registers its statistics with Metrics.
+   *
+   * @param group the group's name in metrics.
+   * @param maxWaitMillis how long a caller waits for another's call before making its own.
+   */
+  public SingleFlight(String group, long maxWaitMillis) {
+    this.maxWaitMillis = maxWaitMillis;
+    this.calls = Metrics.counter("singleflight." + group + ".calls");
+    this.shared = Metrics.counter("singleflight." + group + ".shared");
+    this.timeouts = Metrics.counter("singleflight." + group + ".timeouts");
+    Metrics.register("singleflight." + group, this::busiestKeys);
+  }
+
+  /**
+   * Runs call, unless an identical call is in flight, in which case waits for its result.
+   *
+   * @param key identifies identical calls.
+   * @param call the call to run.
+   * @return the call's result.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T execute(String key, Supplier<T> call) {
+    KeyStats stats = keyStats.computeIfAbsent(key, created -> new KeyStats());
+    calls.increment();
+    stats.calls.increment();
+
+    CompletableFuture<Object> future = new CompletableFuture<Object>();
+    CompletableFuture<Object> existing = inFlight.putIfAbsent(key, future);
+    if (existing == null) {
+      return (T) lead(key, future, call);
+    }
+
+    shared.increment();
+    stats.shared.increment();
+    try {
+      long waitMillis = Math.min(maxWaitMillis, RequestContext.remainingMillis());
+      return (T) existing.get(waitMillis, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      timeouts.increment();
+      stats.timeouts.increment();
+      return call.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted waiting for " + key, e);
+    } catch (ExecutionException e) {
+      // The leader's failure is every waiter's failure.
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /** Runs call for every caller of key, then hands out its result. */
+  private Object lead(String key, CompletableFuture<Object> future, Supplier<?> call) {
+    Object result;
+    try {
+      result = call.get();
+    } catch (RuntimeException | Error e) {
+      inFlight.remove(key, future);
+      future.completeExceptionally(e);
+      throw e;
+    }
+    // Removed before completing, so later callers never see a finished call.
+    inFlight.remove(key, future);
+    future.complete(result);
+    return result;
+  }
+
+  /** Statistics of the keys with the most calls. */
+  private Object busiestKeys() {
+    List<Map.Entry<String, KeyStats>> busiest =
+        keyStats.entries().stream()
+            .sorted(
+                Comparator.comparingLong(
+                    (Map.Entry<String, KeyStats> entry) -> -entry.getValue().calls.sum()))
+            .limit(REPORTED_KEYS)
+            .collect(Collectors.toList());
+    Map<String, Map<String, Long>> report = new LinkedHashMap<String, Map<String, Long>>();
+    for (Map.Entry<String, KeyStats> entry : busiest) {
+      Map<String, Long> stats = new LinkedHashMap<String, Long>();
+      stats.put("calls", entry.getValue().calls.sum());
+      stats.put("shared", entry.getValue().shared.sum());
+      stats.put("timeouts", entry.getValue().timeouts.sum());
+      report.put(entry.getKey(), stats);
+    }
+    return report;
+  }
+}
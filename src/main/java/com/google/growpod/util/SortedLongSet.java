@@ -0,0 +1,87 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.util;
+
+import java.util.Arrays;
+
+/**
+ * A set of primitive longs kept in a sorted array. Lookups are binary searches; inserts and removes
+ * shift the array, which is cheap for the small sets it is meant for, such as a garden's members.
+ * Not thread-safe; callers synchronize access.
+ */
+public final class SortedLongSet {
+
+  private static final long[] EMPTY = new long[0];
+
+  private long[] values = EMPTY;
+  private int size;
+
+  /** Returns whether value is in the set. */
+  public boolean contains(long value) {
+    return Arrays.binarySearch(values, 0, size, value) >= 0;
+  }
+
+  /**
+   * Adds a value.
+   *
+   * @param value the value to add.
+   * @return whether the set changed.
+   */
+  public boolean add(long value) {
+    int index = Arrays.binarySearch(values, 0, size, value);
+    if (index >= 0) {
+      return false;
+    }
+    index = -index - 1;
+    if (size == values.length) {
+      values = Arrays.copyOf(values, Math.max(4, size * 2));
+    }
+    System.arraycopy(values, index, values, index + 1, size - index);
+    values[index] = value;
+    size++;
+    return true;
+  }
+
+  /**
+   * Removes a value.
+   *
+   * @param value the value to remove.
+   * @return whether the set changed.
+   */
+  public boolean remove(long value) {
+    int index = Arrays.binarySearch(values, 0, size, value);
+    if (index < 0) {
+      return false;
+    }
+    System.arraycopy(values, index + 1, values, index, size - index - 1);
+    size--;
+    return true;
+  }
+
+  /** Returns the number of values. */
+  public int size() {
+    return size;
+  }
+
+  /** Returns whether the set is empty. */
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /** Returns a copy of the values, in ascending order. */
+  public long[] toArray() {
+    return Arrays.copyOf(values, size);
+  }
+}
@@ -0,0 +1,171 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.util;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * A bounded map that drops its least recently used entries, split into stripes by key hash so that
+ * threads using different keys rarely wait on each other. Each stripe is an access-ordered map
+ * under its own lock, holding an equal share of the capacity, so eviction is least recently used
+ * within a stripe rather than across the whole map. Thread-safe.
+ *
+ * @param <K> the type of keys.
+ * @param <V> the type of values.
+ */
+public final class StripedLruCache<K, V> {
+
+  /** Stripes, a power of two so a stripe is picked with a mask. */
+  private static final int STRIPES = 16;
+
+  private final Stripe<K, V>[] stripes;
+
+  /** An access-ordered map that drops its eldest entry beyond a capacity. */
+  private static final class Stripe<K, V> extends LinkedHashMap<K, V> {
+    private static final long serialVersionUID = 1L;
+
+    private final int capacity;
+
+    Stripe(int capacity) {
+      super(16, 0.75f, true);
+      this.capacity = capacity;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+      return size() > capacity;
+    }
+  }
+
+  /**
+   * Creates an empty cache.
+   *
+   * @param maxEntries the most entries kept, rounded up to a multiple of the stripe count.
+   */
+  @SuppressWarnings("unchecked")
+  public StripedLruCache(int maxEntries) {
+    int perStripe = Math.max(1, (maxEntries + STRIPES - 1) / STRIPES);
+    stripes = new Stripe[STRIPES];
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Stripe<K, V>(perStripe);
+    }
+  }
+
+  /** Returns the value of key, marking it recently used, or null if there is none. */
+  public V get(K key) {
+    Stripe<K, V> stripe = stripe(key);
+    synchronized (stripe) {
+      return stripe.get(key);
+    }
+  }
+
+  /** Sets the value of key, dropping the least recently used entry of its stripe if full. */
+  public void put(K key, V value) {
+    Stripe<K, V> stripe = stripe(key);
+    synchronized (stripe) {
+      stripe.put(key, value);
+    }
+  }
+
+  /**
+   * Returns the value of key, marking it recently used, or stores and returns a new one if there is
+   * none.
+   *
+   * @param key the key.
+   * @param create creates the value of a key with none; called under the stripe's lock.
+   * @return the value.
+   */
+  public V computeIfAbsent(K key, Function<K, V> create) {
+    Stripe<K, V> stripe = stripe(key);
+    synchronized (stripe) {
+      return stripe.computeIfAbsent(key, create);
+    }
+  }
+
+  /**
+   * Sets the value of key only if it is still expected, so a value computed from a stale read does
+   * not overwrite a newer one.
+   *
+   * @return whether the value was replaced.
+   */
+  public boolean replace(K key, V expected, V value) {
+    Stripe<K, V> stripe = stripe(key);
+    synchronized (stripe) {
+      if (stripe.get(key) != expected) {
+        return false;
+      }
+      stripe.put(key, value);
+      return true;
+    }
+  }
+
+  /** Removes key, returning its value or null if there was none. */
+  public V remove(K key) {
+    Stripe<K, V> stripe = stripe(key);
+    synchronized (stripe) {
+      return stripe.remove(key);
+    }
+  }
+
+  /**
+   * Removes key only if its value is still expected.
+   *
+   * @return whether it was removed.
+   */
+  public boolean remove(K key, V expected) {
+    Stripe<K, V> stripe = stripe(key);
+    synchronized (stripe) {
+      if (stripe.get(key) != expected) {
+        return false;
+      }
+      stripe.remove(key);
+      return true;
+    }
+  }
+
+  /** Returns the number of entries. */
+  public int size() {
+    int size = 0;
+    for (Stripe<K, V> stripe : stripes) {
+      synchronized (stripe) {
+        size += stripe.size();
+      }
+    }
+    return size;
+  }
+
+  /** Returns a copy of the entries, taken a stripe at a time, without marking them used. */
+  public List<Map.Entry<K, V>> entries() {
+    List<Map.Entry<K, V>> entries = new ArrayList<Map.Entry<K, V>>();
+    for (Stripe<K, V> stripe : stripes) {
+      synchronized (stripe) {
+        for (Map.Entry<K, V> entry : stripe.entrySet()) {
+          entries.add(new SimpleImmutableEntry<K, V>(entry.getKey(), entry.getValue()));
+        }
+      }
+    }
+    return entries;
+  }
+
+  private Stripe<K, V> stripe(K key) {
+    int hash = key.hashCode();
+    return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+  }
+}
@@ -0,0 +1,68 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket, refilled at a steady rate up to a burst size.
+ *
+ * <p>The bucket's whole state is one long, the time at which it will be full again (the generic
+ * cell rate algorithm), so taking a token is a single compare-and-set.
+ */
+public final class TokenBucket {
+
+  private final long intervalNanos;
+  private final long burstNanos;
+  private final AtomicLong fullAtNanos;
+
+  /**
+   * Creates a full bucket.
+   *
+   * @param perSecond tokens added per second.
+   * @param burst the bucket's capacity.
+   * @param nowNanos the current System.nanoTime().
+   */
+  public TokenBucket(double perSecond, int burst, long nowNanos) {
+    this.intervalNanos = (long) (1e9 / perSecond);
+    this.burstNanos = (burst - 1) * intervalNanos;
+    this.fullAtNanos = new AtomicLong(nowNanos);
+  }
+
+  /**
+   * Takes a token if one is available.
+   *
+   * @param nowNanos the current System.nanoTime().
+   * @return 0 if a token was taken, otherwise how many nanoseconds until one is available.
+   */
+  public long tryAcquire(long nowNanos) {
+    while (true) {
+      long fullAt = fullAtNanos.get();
+      long start = fullAt - nowNanos > 0 ? fullAt : nowNanos;
+      long wait = start - nowNanos - burstNanos;
+      if (wait > 0) {
+        return wait;
+      }
+      if (fullAtNanos.compareAndSet(fullAt, start + intervalNanos)) {
+        return 0;
+      }
+    }
+  }
+
+  /** Whether the bucket is full, so forgetting it changes nothing. */
+  public boolean isFull(long nowNanos) {
+    return fullAtNanos.get() - nowNanos <= 0;
+  }
+}
@@ -24,4 +24,6 @@ export interface Garden {
   lng: number;
   zipCode: string;
   adminId: string;
+  memberCount?: number;
+  plantCount?: number;
 }
@@ -12,6 +12,8 @@
 // See the License for the specific language governing permissions and
 // limitations under the License.
 
+import {PlantType} from './plant-type.model';
+
 /**
  * Plant interface that corresponds with design doc specs.
  *
@@ -21,4 +23,5 @@ export interface Plant {
   nickname: string;
   count: number;
   plantTypeId: string;
+  plantType?: PlantType;
 }
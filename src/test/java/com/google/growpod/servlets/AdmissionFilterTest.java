@@ -0,0 +1,163 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.google.growpod.filters.AdmissionFilter;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.junit.jupiter.api.*;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockFilterConfig;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/** Tests Admission filter responses, based on request rates and server load. */
+public final class AdmissionFilterTest {
+
+  private AdmissionFilter filter; // Class to test
+
+  /** Initializes the filter with low thresholds. */
+  @BeforeEach
+  public void initTest() throws ServletException {
+    filter = new AdmissionFilter();
+    MockFilterConfig config = new MockFilterConfig();
+    config.addInitParameter("ipPerSecond", "0.001");
+    config.addInitParameter("ipBurst", "3");
+    config.addInitParameter("userPerSecond", "0.001");
+    config.addInitParameter("userBurst", "2");
+    config.addInitParameter("maxInFlight", "1");
+    config.addInitParameter("maxQueued", "0");
+    filter.init(config);
+  }
+
+  /** Tests that requests beyond an IP's burst get 429 with Retry-After. */
+  @Test
+  public void doFilter_ipBurstExceeded_returns429() throws IOException, ServletException {
+    for (int i = 0; i < 3; i++) {
+      MockHttpServletResponse response = send(request("10.0.0.1"));
+      assertEquals(MockHttpServletResponse.SC_OK, response.getStatus());
+    }
+
+    MockHttpServletResponse response = send(request("10.0.0.1"));
+
+    assertEquals(429, response.getStatus());
+    assertNotNull(response.getHeader("Retry-After"));
+    // Other clients are unaffected.
+    assertEquals(MockHttpServletResponse.SC_OK, send(request("10.0.0.2")).getStatus());
+  }
+
+  /** Tests that a session beyond its burst gets 429, even from fresh IPs. */
+  @Test
+  public void doFilter_userBurstExceeded_returns429() throws IOException, ServletException {
+    MockHttpServletRequest first = request("10.0.1.1");
+    first.getSession(true);
+    assertEquals(MockHttpServletResponse.SC_OK, send(first).getStatus());
+    MockHttpServletRequest second = request("10.0.1.2");
+    second.setSession(first.getSession());
+    assertEquals(MockHttpServletResponse.SC_OK, send(second).getStatus());
+
+    MockHttpServletRequest third = request("10.0.1.3");
+    third.setSession(first.getSession());
+    assertEquals(429, send(third).getStatus());
+  }
+
+  /** Tests that requests beyond the in-flight limit get 503 when the queue is full. */
+  @Test
+  public void doFilter_overloaded_returns503() throws Exception {
+    CountDownLatch inChain = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    FilterChain slowChain =
+        (request, response) -> {
+          inChain.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        };
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    Future<?> slow =
+        executor.submit(
+            () -> {
+              filter.doFilter(request("10.0.2.1"), new MockHttpServletResponse(), slowChain);
+              return null;
+            });
+    inChain.await();
+
+    MockHttpServletResponse response = send(request("10.0.2.2"));
+    release.countDown();
+    slow.get(10, TimeUnit.SECONDS);
+    executor.shutdown();
+
+    assertEquals(MockHttpServletResponse.SC_SERVICE_UNAVAILABLE, response.getStatus());
+    // The slot is free again.
+    assertEquals(MockHttpServletResponse.SC_OK, send(request("10.0.2.3")).getStatus());
+  }
+
+  /** Tests that web.xml runs admission control before the request context, on the same routes. */
+  @Test
+  public void webXml_admissionMappedBeforeRequestContext() throws Exception {
+    Document webXml =
+        DocumentBuilderFactory.newInstance()
+            .newDocumentBuilder()
+            .parse(new File("src/main/webapp/src/WEB-INF/web.xml"));
+    NodeList mappings = webXml.getElementsByTagName("filter-mapping");
+    List<String> names = new ArrayList<String>();
+    List<String> patterns = new ArrayList<String>();
+    for (int i = 0; i < mappings.getLength(); i++) {
+      Element mapping = (Element) mappings.item(i);
+      names.add(mapping.getElementsByTagName("filter-name").item(0).getTextContent());
+      NodeList urls = mapping.getElementsByTagName("url-pattern");
+      StringBuilder urlList = new StringBuilder();
+      for (int j = 0; j < urls.getLength(); j++) {
+        urlList.append(urls.item(j).getTextContent()).append(' ');
+      }
+      patterns.add(urlList.toString());
+    }
+
+    assertEquals(Arrays.asList("AdmissionFilter", "RequestContextFilter"), names);
+    assertEquals(patterns.get(0), patterns.get(1));
+  }
+
+  private MockHttpServletRequest request(String remoteAddr) {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/garden/1");
+    request.setRemoteAddr(remoteAddr);
+    return request;
+  }
+
+  private MockHttpServletResponse send(MockHttpServletRequest request)
+      throws IOException, ServletException {
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    filter.doFilter(request, response, new MockFilterChain());
+    return response;
+  }
+}
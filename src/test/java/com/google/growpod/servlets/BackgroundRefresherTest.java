@@ -0,0 +1,110 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.google.growpod.util.BackgroundRefresher;
+import com.google.growpod.util.ServiceUnavailableException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.*;
+
+/** Tests background rebuilds of node-local structures. */
+public final class BackgroundRefresherTest {
+
+  /** Build time of the structure under test, or 0 if it was never built. */
+  private final AtomicLong builtAtMillis = new AtomicLong();
+
+  private final AtomicInteger builds = new AtomicInteger();
+
+  private long ageMillis() {
+    long builtAt = builtAtMillis.get();
+    return builtAt == 0 ? Long.MAX_VALUE : System.currentTimeMillis() - builtAt;
+  }
+
+  /** Tests that a stale structure is rebuilt on another thread while the caller goes on. */
+  @Test
+  public void refresh_stale_rebuildsInBackground() throws InterruptedException {
+    CountDownLatch release = new CountDownLatch(1);
+    Thread caller = Thread.currentThread();
+    BackgroundRefresher refresher =
+        new BackgroundRefresher(
+            "test",
+            1000,
+            this::ageMillis,
+            () -> {
+              assertNotSame(caller, Thread.currentThread());
+              try {
+                release.await(5, TimeUnit.SECONDS);
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+              builds.incrementAndGet();
+              builtAtMillis.set(System.currentTimeMillis());
+            });
+    builtAtMillis.set(System.currentTimeMillis() - 2000);
+
+    refresher.refresh();
+    refresher.refresh();
+    assertEquals(0, builds.get());
+    release.countDown();
+    for (int i = 0; i < 500 && builds.get() == 0; i++) {
+      Thread.sleep(10);
+    }
+    refresher.refresh();
+
+    assertEquals(1, builds.get());
+  }
+
+  /** Tests that a structure never built is waited for. */
+  @Test
+  public void ensureBuilt_neverBuilt_waitsForFirstBuild() {
+    BackgroundRefresher refresher =
+        new BackgroundRefresher(
+            "test",
+            1000,
+            this::ageMillis,
+            () -> {
+              builds.incrementAndGet();
+              builtAtMillis.set(System.currentTimeMillis());
+            });
+
+    refresher.ensureBuilt();
+    refresher.ensureBuilt();
+
+    assertEquals(1, builds.get());
+  }
+
+  /** Tests that a failed first build is reported as unavailable, and not retried at once. */
+  @Test
+  public void ensureBuilt_buildFails_unavailable() {
+    BackgroundRefresher refresher =
+        new BackgroundRefresher(
+            "test",
+            1000,
+            this::ageMillis,
+            () -> {
+              builds.incrementAndGet();
+              throw new IllegalStateException("scan failed");
+            });
+
+    assertThrows(ServiceUnavailableException.class, refresher::ensureBuilt);
+    assertThrows(ServiceUnavailableException.class, refresher::ensureBuilt);
+    assertEquals(1, builds.get());
+  }
+}
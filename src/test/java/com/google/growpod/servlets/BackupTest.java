@@ -0,0 +1,238 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.tests;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import com.google.cloud.datastore.Cursor;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.datastore.DatastoreOptions;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.EntityQuery;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.QueryResults;
+import com.google.datastore.v1.QueryResultBatch.MoreResultsType;
+import com.google.growpod.backup.Exporter;
+import com.google.growpod.backup.Importer;
+import com.google.growpod.data.ContainsPlant;
+import com.google.growpod.data.Garden;
+import com.google.growpod.data.HasMember;
+import com.google.growpod.data.Plant;
+import com.google.growpod.data.User;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests exporting and importing backups, including runs interrupted part way. Datastore is replaced
+ * by an in-memory fake serving the few calls backups make.
+ */
+public final class BackupTest {
+
+  @TempDir Path directory;
+
+  /** Tests that an import restores exactly what was exported, for every kind. */
+  @Test
+  public void exportThenImport_roundTrip_restoresEveryRecord() throws Exception {
+    FakeDatastore source = new FakeDatastore();
+    addTestData(source, 3);
+    FakeDatastore target = new FakeDatastore();
+
+    new Exporter(source.options(), directory, true, 1, 2).run();
+    new Importer(target.options(), directory, 2).run();
+
+    assertEquals(source.entities, target.entities);
+  }
+
+  /**
+   * Tests that an interrupted export cannot be imported, and that resuming it writes every record
+   * exactly once.
+   */
+  @Test
+  public void export_interrupted_refusesImportThenResumes() throws Exception {
+    FakeDatastore source = new FakeDatastore();
+    addTestData(source, 1200);
+    FakeDatastore target = new FakeDatastore();
+
+    // The second page of users fails.
+    source.failOnRun = 2;
+    assertThrows(
+        IOException.class, () -> new Exporter(source.options(), directory, false, 1, 1).run());
+    assertThrows(IOException.class, () -> new Importer(target.options(), directory, 1).run());
+    assertEquals(0, target.puts);
+
+    source.failOnRun = 0;
+    new Exporter(source.options(), directory, false, 1, 1).run();
+    assertEquals(1200, Files.readAllLines(directory.resolve("User-0.ndjson"), UTF_8).size());
+    new Importer(target.options(), directory, 1).run();
+    assertEquals(source.entities, target.entities);
+  }
+
+  /** Tests that an interrupted import resumes after the last committed chunk. */
+  @Test
+  public void import_interrupted_resumesFromCheckpoint() throws Exception {
+    FakeDatastore source = new FakeDatastore();
+    addUsers(source, 1200);
+    FakeDatastore target = new FakeDatastore();
+    new Exporter(source.options(), directory, false, 1, 1).run();
+
+    // Users are imported in chunks of 500, and the second chunk fails.
+    target.failOnPut = 2;
+    assertThrows(IOException.class, () -> new Importer(target.options(), directory, 1).run());
+    assertEquals(500, target.entities.get(User.KIND).size());
+
+    target.failOnPut = 0;
+    target.puts = 0;
+    new Importer(target.options(), directory, 1).run();
+
+    assertEquals(2, target.puts);
+    assertEquals(source.entities, target.entities);
+  }
+
+  private static void addTestData(FakeDatastore datastore, int users) {
+    addUsers(datastore, users);
+    datastore.add(
+        new Garden(11, "g", "d", 1.0, 2.0, "11201", 1).toEntity(datastore.keys(Garden.KIND)));
+    datastore.add(new Plant(21, "p", 3, "7").toEntity(datastore.keys(Plant.KIND)));
+    datastore.add(new HasMember(31, 11, 2).toEntity(datastore.keys(HasMember.KIND)));
+    datastore.add(new ContainsPlant(41, 11, 21).toEntity(datastore.keys(ContainsPlant.KIND)));
+  }
+
+  private static void addUsers(FakeDatastore datastore, int users) {
+    for (int i = 1; i <= users; i++) {
+      User user = new User(i, "u" + i + "@example.com", "User " + i, "", "11201");
+      datastore.add(user.toEntity(datastore.keys(User.KIND)));
+    }
+  }
+
+  /**
+   * Serves entity queries by kind, paged by offset cursors, batched puts and id reservations from
+   * memory. failOnRun and failOnPut make the given call (counting from 1) fail.
+   */
+  private static final class FakeDatastore {
+    final Map<String, TreeMap<Long, Entity>> entities =
+        new HashMap<String, TreeMap<Long, Entity>>();
+    final Map<String, Integer> cursors = new HashMap<String, Integer>();
+    int runs;
+    int puts;
+    int failOnRun;
+    int failOnPut;
+
+    KeyFactory keys(String kind) {
+      return new KeyFactory("test-project").setKind(kind);
+    }
+
+    void add(Entity entity) {
+      entities
+          .computeIfAbsent(entity.getKey().getKind(), kind -> new TreeMap<Long, Entity>())
+          .put(entity.getKey().getId(), entity);
+    }
+
+    DatastoreOptions options() {
+      Datastore datastore =
+          (Datastore)
+              Proxy.newProxyInstance(
+                  Datastore.class.getClassLoader(),
+                  new Class<?>[] {Datastore.class},
+                  (proxy, method, args) -> {
+                    switch (method.getName()) {
+                      case "newKeyFactory":
+                        return new KeyFactory("test-project");
+                      case "run":
+                        return run((EntityQuery) args[0]);
+                      case "reserveIds":
+                        return new ArrayList<Object>();
+                      case "put":
+                        return put((Entity[]) args[0]);
+                      default:
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                  });
+      DatastoreOptions options = mock(DatastoreOptions.class);
+      when(options.getService()).thenReturn(datastore);
+      return options;
+    }
+
+    private synchronized QueryResults<Entity> run(EntityQuery query) {
+      if (++runs == failOnRun) {
+        throw new DatastoreException(14, "Injected failure", "UNAVAILABLE");
+      }
+      assertNull(query.getFilter());
+      int start =
+          query.getStartCursor() == null ? 0 : cursors.get(query.getStartCursor().toUrlSafe());
+      List<Entity> all =
+          new ArrayList<Entity>(
+              entities.getOrDefault(query.getKind(), new TreeMap<Long, Entity>()).values());
+      int end = Math.min(all.size(), start + query.getLimit());
+      Cursor cursorAfter = Cursor.copyFrom(Integer.toString(end).getBytes(UTF_8));
+      cursors.put(cursorAfter.toUrlSafe(), end);
+      Iterator<Entity> page = all.subList(start, end).iterator();
+      return new QueryResults<Entity>() {
+        @Override
+        public boolean hasNext() {
+          return page.hasNext();
+        }
+
+        @Override
+        public Entity next() {
+          return page.next();
+        }
+
+        @Override
+        public Class<?> getResultClass() {
+          return Entity.class;
+        }
+
+        @Override
+        public Cursor getCursorAfter() {
+          return cursorAfter;
+        }
+
+        @Override
+        public int getSkippedResults() {
+          return 0;
+        }
+
+        @Override
+        public MoreResultsType getMoreResults() {
+          return MoreResultsType.MORE_RESULTS_TYPE_UNSPECIFIED;
+        }
+      };
+    }
+
+    private synchronized List<Entity> put(Entity[] batch) {
+      if (++puts == failOnPut) {
+        throw new DatastoreException(14, "Injected failure", "UNAVAILABLE");
+      }
+      for (Entity entity : batch) {
+        add(entity);
+      }
+      return Arrays.asList(batch);
+    }
+  }
+}
@@ -0,0 +1,58 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.google.growpod.util.BloomFilter;
+import org.junit.jupiter.api.*;
+
+/** Tests Bloom filter answers, which decide whether id lookups reach Datastore. */
+public final class BloomFilterTest {
+
+  private static final int SIZE = 10000;
+
+  /** Tests that every added id is reported, since a false negative would 404 a real entity. */
+  @Test
+  public void mightContain_addedIds_noFalseNegatives() {
+    BloomFilter filter = BloomFilter.create(SIZE, 0.01);
+    for (long id = 1; id <= SIZE; id++) {
+      filter.add(id * 7919);
+    }
+
+    for (long id = 1; id <= SIZE; id++) {
+      assertTrue(filter.mightContain(id * 7919));
+    }
+    assertEquals(SIZE, filter.getEntries());
+  }
+
+  /** Tests that the false positive rate stays near the rate the filter was sized for. */
+  @Test
+  public void mightContain_missingIds_fewFalsePositives() {
+    BloomFilter filter = BloomFilter.create(SIZE, 0.01);
+    for (long id = 1; id <= SIZE; id++) {
+      filter.add(id);
+    }
+
+    int falsePositives = 0;
+    for (long id = SIZE + 1; id <= SIZE * 11; id++) {
+      if (filter.mightContain(id)) {
+        falsePositives++;
+      }
+    }
+    assertTrue(falsePositives < SIZE * 10 * 0.02, "false positives: " + falsePositives);
+    assertTrue(filter.expectedFalsePositiveRate() < 0.02);
+  }
+}
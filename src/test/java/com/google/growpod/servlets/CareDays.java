@@ -0,0 +1,38 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.tests;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * Moves days of early 2020, in which the task tests were written, into the scheduling horizon. The
+ * default rules repeat every 3 and 28 days, so tasks repeat every 84 days and the same tasks fall
+ * on any day moved by whole cycles of 84.
+ */
+final class CareDays {
+
+  private static final LocalDate BASE = LocalDate.of(2020, 1, 1);
+  private static final long CYCLE_DAYS = 84;
+
+  private CareDays() {}
+
+  /** Returns a day of early 2020 moved forward by whole cycles to within a cycle before today. */
+  static String recent(String day) {
+    long cycles = ChronoUnit.DAYS.between(BASE, LocalDate.now(ZoneOffset.UTC)) / CYCLE_DAYS;
+    return LocalDate.parse(day).plusDays(cycles * CYCLE_DAYS).toString();
+  }
+}
@@ -0,0 +1,94 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.google.growpod.data.Plant;
+import com.google.growpod.encoding.CborEncoders;
+import com.google.growpod.encoding.CborWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import org.junit.jupiter.api.*;
+
+/** Tests CBOR encoding against the examples of RFC 8949, Appendix A. */
+public final class CborWriterTest {
+
+  private ByteArrayOutputStream bytes;
+  private CborWriter out;
+
+  @BeforeEach
+  public void initTest() {
+    bytes = new ByteArrayOutputStream();
+    out = new CborWriter(bytes);
+  }
+
+  /** Tests integers at each argument width, and negative integers. */
+  @Test
+  public void value_integers_shortestForm() throws IOException {
+    out.value(0).value(23).value(24).value(1000).value(1000000).value(1000000000000L);
+    out.value(-1).value(-100).value(Long.MIN_VALUE);
+
+    assertEquals(
+        "00"
+            + "17"
+            + "1818"
+            + "1903e8"
+            + "1a000f4240"
+            + "1b000000e8d4a51000"
+            + "20"
+            + "3863"
+            + "3b7fffffffffffffff",
+        hex());
+  }
+
+  /** Tests text strings, doubles, booleans and null. */
+  @Test
+  public void value_simpleValues_rfcEncodings() throws IOException {
+    out.value("").value("IETF").value("ü").value(1.1).value(false).value(true).nullValue();
+    out.value((String) null);
+
+    assertEquals("60" + "6449455446" + "62c3bc" + "fb3ff199999999999a" + "f4f5f6f6", hex());
+  }
+
+  /** Tests map and array headers, and a plant written as a map. */
+  @Test
+  public void writePlant_map_sameKeysAsJson() throws IOException {
+    out.beginArray(0).beginMap(0);
+    CborEncoders.writePlant(out, new Plant(5, null, 2, "tomato"));
+
+    assertEquals(
+        "80"
+            + "a0"
+            + "a4"
+            + "626964"
+            + "6135"
+            + "686e69636b6e616d65"
+            + "f6"
+            + "65636f756e74"
+            + "02"
+            + "6b706c616e74547970654964"
+            + "66746f6d61746f",
+        hex());
+  }
+
+  private String hex() {
+    StringBuilder hex = new StringBuilder();
+    for (byte b : bytes.toByteArray()) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+}
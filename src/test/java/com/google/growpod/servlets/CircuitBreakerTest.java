@@ -0,0 +1,85 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.google.growpod.util.CircuitBreaker;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.*;
+
+/** Tests Circuit breaker transitions, which decide when Datastore calls are refused. */
+public final class CircuitBreakerTest {
+
+  private static final int THRESHOLD = 3;
+
+  private AtomicInteger closes;
+  private CircuitBreaker breaker; // Class to test
+
+  @BeforeEach
+  public void initTest() {
+    closes = new AtomicInteger();
+    breaker = new CircuitBreaker(THRESHOLD, 20, closes::incrementAndGet);
+  }
+
+  /** Tests that only consecutive failures open the breaker. */
+  @Test
+  public void recordFailure_consecutiveFailures_opens() {
+    breaker.recordFailure();
+    breaker.recordFailure();
+    breaker.recordSuccess();
+    breaker.recordFailure();
+    breaker.recordFailure();
+    assertFalse(breaker.isOpen());
+
+    breaker.recordFailure();
+
+    assertTrue(breaker.isOpen());
+    assertFalse(breaker.allowRequest());
+  }
+
+  /** Tests that an open breaker lets one trial through, and closes on its success. */
+  @Test
+  public void allowRequest_afterOpenTime_allowsOneTrial() throws InterruptedException {
+    for (int i = 0; i < THRESHOLD; i++) {
+      breaker.recordFailure();
+    }
+    Thread.sleep(40);
+
+    assertTrue(breaker.allowRequest());
+    assertFalse(breaker.allowRequest());
+    breaker.recordSuccess();
+
+    assertFalse(breaker.isOpen());
+    assertTrue(breaker.allowRequest());
+    assertEquals(1, closes.get());
+  }
+
+  /** Tests that a failed trial keeps the breaker open for another period. */
+  @Test
+  public void recordFailure_failedTrial_staysOpen() throws InterruptedException {
+    for (int i = 0; i < THRESHOLD; i++) {
+      breaker.recordFailure();
+    }
+    Thread.sleep(40);
+    assertTrue(breaker.allowRequest());
+
+    breaker.recordFailure();
+
+    assertTrue(breaker.isOpen());
+    assertFalse(breaker.allowRequest());
+    assertEquals(0, closes.get());
+  }
+}
@@ -0,0 +1,168 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.datastore.DatastoreOptions;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.growpod.controllers.GardenDao;
+import com.google.growpod.controllers.UserDao;
+import com.google.growpod.data.ContainsPlant;
+import com.google.growpod.data.Garden;
+import com.google.growpod.data.GardenCounts;
+import com.google.growpod.data.HasMember;
+import com.google.growpod.data.Ids;
+import com.google.growpod.data.Plant;
+import com.google.growpod.data.User;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+
+/**
+ * Stress tests the DAOs with concurrent joins, leaves, plant adds and plant deletes, then checks
+ * that relations and counters still agree. Runs against the Datastore emulator only, in a fresh
+ * namespace; start it with `gcloud beta emulators datastore start --consistency=1.0` and export
+ * DATASTORE_EMULATOR_HOST, otherwise this test is skipped.
+ */
+@EnabledIfEnvironmentVariable(named = "DATASTORE_EMULATOR_HOST", matches = ".+")
+public final class ConcurrencyStressTest {
+
+  private static final int THREADS = 16;
+  private static final int OPERATIONS_PER_THREAD = 100;
+  private static final int GARDENS = 2;
+  private static final int USERS = 8;
+
+  private Datastore datastore;
+  private GardenDao gardenDao;
+  private UserDao userDao;
+  private long[] gardenIds;
+  private long[] userIds;
+
+  @BeforeEach
+  public void initTest() {
+    DatastoreOptions datastoreInstance =
+        DatastoreOptions.getDefaultInstance()
+            .toBuilder()
+            .setNamespace("stress-" + System.currentTimeMillis())
+            .build();
+    datastore = datastoreInstance.getService();
+    gardenDao = new GardenDao(datastoreInstance);
+    userDao = new UserDao(datastoreInstance);
+
+    userIds = new long[USERS];
+    for (int i = 0; i < USERS; i++) {
+      User user = new User(0, "user" + i + "@example.com", "User " + i, "", "10001");
+      userDao.addToDatastore(user);
+      userIds[i] = user.getId();
+    }
+    gardenIds = new long[GARDENS];
+    for (int i = 0; i < GARDENS; i++) {
+      gardenIds[i] =
+          gardenDao.addGarden(new Garden(0, "Garden " + i, "", 40.7, -74.0, "10001", userIds[0]));
+    }
+  }
+
+  /** Tests that concurrent writes keep counters, memberships and plants consistent. */
+  @Test
+  public void concurrentWrites_keepInvariants() throws Exception {
+    AtomicInteger contended = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    Future<?>[] futures = new Future<?>[THREADS];
+    for (int i = 0; i < THREADS; i++) {
+      futures[i] =
+          executor.submit(
+              () -> {
+                for (int j = 0; j < OPERATIONS_PER_THREAD; j++) {
+                  try {
+                    randomOperation();
+                  } catch (DatastoreException e) {
+                    // Transactions that lose to a concurrent one are rejected whole.
+                    contended.incrementAndGet();
+                  }
+                }
+              });
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(5, TimeUnit.MINUTES));
+    for (Future<?> future : futures) {
+      future.get();
+    }
+
+    for (long gardenId : gardenIds) {
+      GardenCounts counts = gardenDao.getGardenCounts(gardenId);
+
+      Set<Long> members = new HashSet<Long>();
+      for (Entity relation : relations(HasMember.KIND, gardenId)) {
+        assertTrue(members.add(Ids.get(relation, "user-id")), "duplicate membership");
+      }
+      assertEquals(members.size(), counts.getMemberCount());
+
+      int plants = 0;
+      for (Entity relation : relations(ContainsPlant.KIND, gardenId)) {
+        long plantId = Ids.get(relation, "plant-id");
+        assertNotNull(datastore.get(datastore.newKeyFactory().setKind(Plant.KIND).newKey(plantId)));
+        plants++;
+      }
+      assertEquals(plants, counts.getPlantCount());
+    }
+    assertTrue(contended.get() < THREADS * OPERATIONS_PER_THREAD, "every operation contended");
+  }
+
+  /** Joins, leaves, adds a plant to or deletes a plant from a random garden. */
+  private void randomOperation() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    long gardenId = gardenIds[random.nextInt(GARDENS)];
+    long userId = userIds[random.nextInt(USERS)];
+    switch (random.nextInt(4)) {
+      case 0:
+        assertTrue(userDao.addGarden(userId, gardenId));
+        break;
+      case 1:
+        userDao.deleteFromUserGardenList(userId, gardenId);
+        break;
+      case 2:
+        assertNotEquals(0, gardenDao.addPlant(gardenId, new Plant(0, "Tomato", 1, "5")));
+        break;
+      default:
+        long[] plantIds = gardenDao.getGardenPlantListById(gardenId);
+        if (plantIds.length > 0) {
+          gardenDao.deletePlant(gardenId, plantIds[random.nextInt(plantIds.length)]);
+        }
+        break;
+    }
+  }
+
+  private Iterable<Entity> relations(String kind, long gardenId) {
+    QueryResults<Entity> results =
+        datastore.run(
+            Query.newEntityQueryBuilder()
+                .setKind(kind)
+                .setFilter(Ids.eq("garden-id", gardenId))
+                .build());
+    return () -> results;
+  }
+}
@@ -0,0 +1,82 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.google.growpod.util.DeadlineExceededException;
+import com.google.growpod.util.Deadlines;
+import com.google.growpod.util.RequestContext;
+import org.junit.jupiter.api.*;
+
+/** Tests bounding calls by the request's budget. */
+public final class DeadlinesTest {
+
+  @AfterEach
+  public void endRequest() {
+    RequestContext.end();
+  }
+
+  /** Tests that a call slower than the request's budget is cut off when the budget runs out. */
+  @Test
+  public void call_slowerThanBudget_cutOff() {
+    RequestContext.begin("/garden", 50, false);
+    long start = System.nanoTime();
+
+    assertThrows(
+        DeadlineExceededException.class,
+        () ->
+            Deadlines.call(
+                () -> {
+                  try {
+                    Thread.sleep(5000);
+                  } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                  }
+                  return null;
+                }));
+
+    assertTrue(System.nanoTime() - start < 2_000_000_000L);
+  }
+
+  /** Tests that a call inside a request sees the request's context, and returns its result. */
+  @Test
+  public void call_inRequest_seesContext() {
+    RequestContext context = RequestContext.begin("/garden", 5000, false);
+
+    assertSame(context, Deadlines.call(RequestContext::current));
+    assertSame(context, RequestContext.current());
+  }
+
+  /** Tests that a call outside requests runs directly on the caller's thread. */
+  @Test
+  public void call_outsideRequest_runsOnCaller() {
+    assertSame(Thread.currentThread(), Deadlines.call(Thread::currentThread));
+  }
+
+  /** Tests that a call's exception reaches the caller. */
+  @Test
+  public void call_throws_rethrown() {
+    RequestContext.begin("/garden", 5000, false);
+
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            Deadlines.call(
+                () -> {
+                  throw new IllegalArgumentException("bad");
+                }));
+  }
+}
@@ -0,0 +1,235 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.google.growpod.data.DeleteJob;
+import com.google.growpod.data.Garden;
+import com.google.growpod.data.GardenCounts;
+import com.google.growpod.data.Plant;
+import com.google.growpod.data.User;
+import com.google.growpod.jobs.DeleteJobs;
+import com.google.growpod.schedule.CareRules;
+import com.google.growpod.schedule.CareScheduler;
+import com.google.growpod.storage.MemoryStorage;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import org.junit.jupiter.api.*;
+
+/** Tests cascading deletes run as background jobs. */
+public final class DeleteJobsTest {
+
+  private FlakyStorage storage;
+  private DeleteJobs deleteJobs;
+
+  private long adminId;
+  private long memberId;
+  private long gardenId;
+  private long otherGardenId;
+
+  /** Creates two gardens administered by one user, with another user a member of both. */
+  @BeforeEach
+  public void initTest() {
+    storage = new FlakyStorage();
+    deleteJobs = new DeleteJobs(storage, 2, 2);
+
+    adminId = storage.addUser(new User(0, "a@example.com", "A", "", "11201"));
+    memberId = storage.addUser(new User(0, "b@example.com", "B", "", "11201"));
+    gardenId = storage.addGarden(new Garden(0, "x", "y", 1.0, 2.0, "11201", adminId));
+    otherGardenId = storage.addGarden(new Garden(0, "z", "w", 1.0, 2.0, "11201", memberId));
+    storage.addMember(gardenId, memberId);
+    storage.addMember(otherGardenId, memberId);
+    storage.addMember(otherGardenId, adminId);
+    storage.addPlant(gardenId, new Plant(0, "p", 1, "1"));
+  }
+
+  @AfterEach
+  public void shutdown() {
+    deleteJobs.shutdown();
+  }
+
+  /** Tests that deleting a garden removes its memberships and plants, and finishes the job. */
+  @Test
+  public void deleteGarden_withRelations_everythingGone() throws InterruptedException {
+    long plantId = storage.getGardenPlantIds(gardenId)[0];
+
+    DeleteJob job = deleteJobs.deleteGarden(gardenId);
+    DeleteJob finished = awaitFinished(job.getId());
+
+    assertEquals(DeleteJob.DONE, finished.getState());
+    assertEquals(4, finished.getDeletedCount());
+    assertNull(storage.getGarden(gardenId));
+    assertNull(storage.getPlant(plantId));
+    assertArrayEquals(new long[] {otherGardenId}, storage.getUserGardenIds(memberId));
+    assertNotNull(storage.getGarden(otherGardenId));
+  }
+
+  /** Tests that deleting a garden drops its cached care schedule. */
+  @Test
+  public void deleteGarden_cachedSchedule_dropped() throws InterruptedException {
+    CareScheduler scheduler =
+        new CareScheduler(
+            id -> storage.getGarden(id) == null ? null : Arrays.asList(new Plant(1, "p", 1, "1")),
+            CareRules.loadBundled());
+    deleteJobs.setScheduler(scheduler);
+    LocalDate today = LocalDate.now(ZoneOffset.UTC);
+    assertNotNull(scheduler.getGardenTasks(gardenId, today, today));
+
+    awaitFinished(deleteJobs.deleteGarden(gardenId).getId());
+
+    assertNull(scheduler.getGardenTasks(gardenId, today, today));
+  }
+
+  /** Tests that deleting a user also deletes the gardens they administer, as jobs of their own. */
+  @Test
+  public void deleteUser_administersGarden_gardenDeletedToo() throws InterruptedException {
+    DeleteJob job = deleteJobs.deleteUser(adminId);
+    assertEquals(DeleteJob.DONE, awaitFinished(job.getId()).getState());
+    for (int i = 0; i < 100 && storage.getGarden(gardenId) != null; i++) {
+      Thread.sleep(10);
+    }
+
+    assertNull(storage.getUser(adminId));
+    assertNull(storage.getGarden(gardenId));
+    assertArrayEquals(new long[] {memberId}, storage.getGardenMemberIds(otherGardenId));
+    assertEquals(new GardenCounts(1, 0), storage.getGardenCounts(otherGardenId));
+    assertNotNull(storage.getUser(memberId));
+  }
+
+  /** Tests that unfinished jobs found in storage are run by resume, as after a restart. */
+  @Test
+  public void resume_pendingJob_runsIt() throws InterruptedException {
+    DeleteJob pending =
+        new DeleteJob(0, Garden.KIND, gardenId, DeleteJob.RUNNING, 0, null, 0, null, 0, 0);
+    storage.putDeleteJob(pending);
+
+    deleteJobs.resume();
+
+    assertEquals(DeleteJob.DONE, awaitFinished(pending.getId()).getState());
+    assertNull(storage.getGarden(gardenId));
+    assertTrue(storage.getUnfinishedDeleteJobs().isEmpty());
+  }
+
+  /** Tests that resume leaves alone jobs leased to another live instance. */
+  @Test
+  public void resume_leasedElsewhere_leftAlone() throws InterruptedException {
+    long leaseExpires = System.currentTimeMillis() + 60000;
+    DeleteJob running =
+        new DeleteJob(
+            0, Garden.KIND, gardenId, DeleteJob.RUNNING, 0, null, 0, "other", leaseExpires, 0);
+    storage.putDeleteJob(running);
+
+    deleteJobs.resume();
+    Thread.sleep(100);
+
+    assertEquals("other", storage.getDeleteJob(running.getId()).getOwner());
+    assertNotNull(storage.getGarden(gardenId));
+  }
+
+  /** Tests that resume takes over jobs whose owner's lease ran out. */
+  @Test
+  public void resume_leaseRunOut_takenOver() throws InterruptedException {
+    long leaseExpires = System.currentTimeMillis() - 1;
+    DeleteJob running =
+        new DeleteJob(
+            0, Garden.KIND, gardenId, DeleteJob.RUNNING, 0, null, 0, "other", leaseExpires, 0);
+    storage.putDeleteJob(running);
+
+    deleteJobs.resume();
+
+    DeleteJob finished = awaitFinished(running.getId());
+    assertEquals(DeleteJob.DONE, finished.getState());
+    assertNotEquals("other", finished.getOwner());
+    assertNull(storage.getGarden(gardenId));
+  }
+
+  /** Tests that a job whose pages keep failing is left pending, leased until it is due a rerun. */
+  @Test
+  public void deleteGarden_pagesKeepFailing_rerunLater() throws InterruptedException {
+    storage.failing = true;
+    deleteJobs.setRetryDelayMillis(1);
+
+    DeleteJob job = deleteJobs.deleteGarden(gardenId);
+    DeleteJob stopped = storage.getDeleteJob(job.getId());
+    for (int i = 0; i < 500 && stopped.getFailedRuns() == 0; i++) {
+      Thread.sleep(10);
+      stopped = storage.getDeleteJob(job.getId());
+    }
+
+    assertEquals(1, stopped.getFailedRuns());
+    assertEquals(DeleteJob.PENDING, stopped.getState());
+    assertEquals("page failed", stopped.getError());
+    assertTrue(stopped.getLeaseExpiresMillis() > System.currentTimeMillis());
+
+    storage.failing = false;
+    deleteJobs.resume();
+    assertEquals(DeleteJob.PENDING, storage.getDeleteJob(job.getId()).getState());
+    stopped.setLeaseExpiresMillis(0);
+    storage.putDeleteJob(stopped);
+    deleteJobs.resume();
+
+    assertEquals(DeleteJob.DONE, awaitFinished(job.getId()).getState());
+    assertNull(storage.getGarden(gardenId));
+  }
+
+  /** Tests that a job is only stored for an owner that may run it, and never once finished. */
+  @Test
+  public void leaseDeleteJob_ownerAndExpiry_decideClaim() {
+    long now = System.currentTimeMillis();
+    DeleteJob job =
+        new DeleteJob(0, Garden.KIND, gardenId, DeleteJob.RUNNING, 0, null, 0, "a", now + 1000, 0);
+    storage.putDeleteJob(job);
+
+    job.setOwner("b");
+    job.setLeaseExpiresMillis(now + 2000);
+    assertFalse(storage.leaseDeleteJob(job, now));
+    assertTrue(storage.leaseDeleteJob(job, now + 1000));
+    job.setOwner("a");
+    assertFalse(storage.leaseDeleteJob(job, now + 1000));
+    job.setOwner("b");
+    job.setState(DeleteJob.DONE);
+    assertTrue(storage.leaseDeleteJob(job, now + 1000));
+    assertFalse(storage.leaseDeleteJob(job, now + 1000));
+  }
+
+  private DeleteJob awaitFinished(long jobId) throws InterruptedException {
+    for (int i = 0; i < 500; i++) {
+      DeleteJob job = deleteJobs.getJob(jobId);
+      if (job.isFinished()) {
+        return job;
+      }
+      Thread.sleep(10);
+    }
+    fail("Job " + jobId + " did not finish");
+    return null;
+  }
+
+  /** Memory storage whose garden pages fail while failing is set. */
+  private static final class FlakyStorage extends MemoryStorage {
+
+    volatile boolean failing;
+
+    @Override
+    public int deleteGardenPage(long gardenId, int limit, Executor executor) {
+      if (failing) {
+        throw new IllegalStateException("page failed");
+      }
+      return super.deleteGardenPage(gardenId, limit, executor);
+    }
+  }
+}
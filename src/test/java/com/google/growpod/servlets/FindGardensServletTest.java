@@ -18,14 +18,29 @@ import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
 
 import com.google.growpod.controllers.FindGardensDao;
+import com.google.growpod.data.FieldSet;
 import com.google.growpod.data.Garden;
+import com.google.growpod.data.GardenCounts;
+import com.google.growpod.encoding.CborEncoders;
+import com.google.growpod.encoding.CborWriter;
+import com.google.growpod.search.GardenQuadtree;
 import com.google.growpod.servlets.FindGardensServlet;
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.google.gson.reflect.TypeToken;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.lang.reflect.Type;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import org.junit.jupiter.api.*;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
@@ -43,7 +58,7 @@ public final class FindGardensServletTest {
   @Mock private FindGardensDao dao;
 
   /** Test values. */
-  private final Garden TEST_GARDEN = new Garden("0", "x", "y", 0.0, 0.0, "0", "0");
+  private final Garden TEST_GARDEN = new Garden(1, "x", "y", 0.0, 0.0, "0", 1);
 
   private final List<Garden> TEST_GARDEN_LIST = Arrays.asList(TEST_GARDEN);
 
@@ -65,7 +80,7 @@ public final class FindGardensServletTest {
 
     // RIGHT NOW, THIS TEST RELIES ON A CONSTANT VALUE IN SOURCE CODE
     // TODO(Issue #34): Replace value once oauth works
-    when(dao.getNearbyGardens("11201")).thenReturn(TEST_GARDEN_LIST);
+    when(dao.getNearbyGardens("11201", FieldSet.ALL)).thenReturn(TEST_GARDEN_LIST);
 
     servlet.doGet(request, response);
 
@@ -84,7 +99,7 @@ public final class FindGardensServletTest {
     request.addParameter("zip-code", "12345");
     MockHttpServletResponse response = new MockHttpServletResponse();
 
-    when(dao.getNearbyGardens("12345")).thenReturn(TEST_GARDEN_LIST);
+    when(dao.getNearbyGardens("12345", FieldSet.ALL)).thenReturn(TEST_GARDEN_LIST);
 
     servlet.doGet(request, response);
 
@@ -92,4 +107,288 @@ public final class FindGardensServletTest {
     Type listType = new TypeToken<List<Garden>>() {}.getType();
     assertEquals(TEST_GARDEN_LIST, new Gson().fromJson(response.getContentAsString(), listType));
   }
+
+  /** Tests that GET: /find-gardens embeds each garden's member and plant counts. */
+  @Test
+  public void doGet_successfulQuery_includesCounts() throws IOException {
+    String testUrl = "/find-gardens";
+
+    // Mocks
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", testUrl);
+    request.addParameter("zip-code", "12345");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    when(dao.getNearbyGardens("12345", FieldSet.ALL)).thenReturn(TEST_GARDEN_LIST);
+    when(dao.getGardenCounts(new long[] {1}))
+        .thenReturn(Collections.singletonMap(1L, new GardenCounts(2, 4)));
+
+    servlet.doGet(request, response);
+
+    JsonObject json =
+        JsonParser.parseString(response.getContentAsString())
+            .getAsJsonArray()
+            .get(0)
+            .getAsJsonObject();
+    assertEquals(2, json.get("memberCount").getAsLong());
+    assertEquals(4, json.get("plantCount").getAsLong());
+  }
+
+  /** Tests that GET: /find-gardens answers in CBOR when the client accepts it. */
+  @Test
+  public void doGet_acceptsCbor_cborResult() throws IOException {
+    String testUrl = "/find-gardens";
+
+    // Mocks
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", testUrl);
+    request.addParameter("zip-code", "12345");
+    request.addHeader("Accept", "application/cbor, application/json;q=0.5");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    Map<Long, GardenCounts> counts = Collections.singletonMap(1L, new GardenCounts(2, 4));
+    when(dao.getNearbyGardens("12345", FieldSet.ALL)).thenReturn(TEST_GARDEN_LIST);
+    when(dao.getGardenCounts(new long[] {1})).thenReturn(counts);
+
+    servlet.doGet(request, response);
+
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    CborEncoders.writeGardens(new CborWriter(expected), TEST_GARDEN_LIST, counts);
+    assertEquals("application/cbor", response.getContentType());
+    assertEquals("Accept", response.getHeader("Vary"));
+    assertArrayEquals(expected.toByteArray(), response.getContentAsByteArray());
+  }
+
+  /** Tests that GET: /find-gardens?fields= reads only the requested fields, without counts. */
+  @Test
+  public void doGet_fieldsQuery_readsOnlyFields() throws IOException {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/find-gardens");
+    request.addParameter("zip-code", "12345");
+    request.addParameter("fields", "id,name,lat,lng");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    when(dao.getNearbyGardens(
+            eq("12345"),
+            argThat(fields -> fields.includes("lat") && !fields.includes("description"))))
+        .thenReturn(TEST_GARDEN_LIST);
+
+    servlet.doGet(request, response);
+
+    JsonObject json =
+        JsonParser.parseString(response.getContentAsString())
+            .getAsJsonArray()
+            .get(0)
+            .getAsJsonObject();
+    assertEquals(4, json.size());
+    assertFalse(json.has("description"));
+    verify(dao, never()).getGardenCounts(any());
+  }
+
+  /** Tests that GET: /find-gardens?bbox= at a low zoom returns one cluster per group of gardens. */
+  @Test
+  public void doGet_lowZoomViewport_returnsClusters() throws IOException {
+    List<Garden> gardens = new ArrayList<Garden>();
+    for (int i = 0; i < 40; i++) {
+      gardens.add(new Garden(i + 1, "x", "y", 40.67 + i / 1000.0, -73.94, "11201", 1));
+    }
+    gardens.add(new Garden(100, "x", "y", 48.85, 2.35, "75001", 1));
+    GardenQuadtree quadtree = new GardenQuadtree();
+    quadtree.rebuild(gardens);
+    servlet.setQuadtree(quadtree);
+
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/find-gardens");
+    request.addParameter("bbox", "-80,-170,80,170");
+    request.addParameter("zoom", "2");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    servlet.doGet(request, response);
+
+    JsonArray clusters =
+        JsonParser.parseString(response.getContentAsString())
+            .getAsJsonObject()
+            .getAsJsonArray("clusters");
+    assertEquals(2, clusters.size());
+    for (JsonElement element : clusters) {
+      JsonObject cluster = element.getAsJsonObject();
+      if (cluster.get("count").getAsLong() == 1) {
+        assertEquals("100", cluster.get("gardenId").getAsString());
+        assertEquals(48.85, cluster.get("lat").getAsDouble(), 1e-9);
+      } else {
+        assertEquals(40, cluster.get("count").getAsLong());
+        assertFalse(cluster.has("gardenId"));
+        assertEquals(40.6895, cluster.get("lat").getAsDouble(), 1e-9);
+      }
+    }
+  }
+
+  /** Tests that the clusters of a dense viewport stay few, whatever the zoom, and count all. */
+  @Test
+  public void doGet_denseViewport_boundsClusters() throws IOException {
+    List<Garden> gardens = new ArrayList<Garden>();
+    Random random = new Random(1);
+    for (int i = 0; i < 5000; i++) {
+      double lat = random.nextDouble() * 160 - 80;
+      double lng = random.nextDouble() * 360 - 180;
+      gardens.add(new Garden(i + 1, "x", "y", lat, lng, "0", 1));
+    }
+    GardenQuadtree quadtree = new GardenQuadtree();
+    quadtree.rebuild(gardens);
+    servlet.setQuadtree(quadtree);
+
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/find-gardens");
+    request.addParameter("bbox", "-90,-180,90,180");
+    request.addParameter("zoom", "20");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    servlet.doGet(request, response);
+
+    JsonArray clusters =
+        JsonParser.parseString(response.getContentAsString())
+            .getAsJsonObject()
+            .getAsJsonArray("clusters");
+    assertTrue(clusters.size() <= 33 * 33);
+    long total = 0;
+    for (JsonElement cluster : clusters) {
+      total += cluster.getAsJsonObject().get("count").getAsLong();
+    }
+    assertEquals(5000, total);
+  }
+
+  /** Tests that GET: /find-gardens?bbox= at a high zoom returns the gardens in view. */
+  @Test
+  public void doGet_highZoomViewport_returnsGardens() throws IOException {
+    Garden inside = new Garden(1, "x", "y", 40.6782, -73.9442, "11201", 1);
+    Garden outside = new Garden(2, "x", "y", 40.7, -73.9442, "11201", 1);
+    GardenQuadtree quadtree = new GardenQuadtree();
+    quadtree.rebuild(Arrays.asList(inside, outside));
+    servlet.setQuadtree(quadtree);
+
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/find-gardens");
+    request.addParameter("bbox", "40.67,-73.95,40.68,-73.94");
+    request.addParameter("zoom", "16");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    when(dao.getGardensById(new long[] {1})).thenReturn(Arrays.asList(inside));
+    when(dao.getGardenCounts(new long[] {1}))
+        .thenReturn(Collections.singletonMap(1L, new GardenCounts(2, 4)));
+
+    servlet.doGet(request, response);
+
+    JsonArray gardens =
+        JsonParser.parseString(response.getContentAsString())
+            .getAsJsonObject()
+            .getAsJsonArray("gardens");
+    assertEquals(1, gardens.size());
+    assertEquals("1", gardens.get(0).getAsJsonObject().get("id").getAsString());
+    assertEquals(2, gardens.get(0).getAsJsonObject().get("memberCount").getAsLong());
+  }
+
+  /** Tests that writes reach the clusters without rebuilding the quadtree. */
+  @Test
+  public void doGet_afterPutAndRemove_updatesClusters() throws IOException {
+    GardenQuadtree quadtree = new GardenQuadtree();
+    quadtree.rebuild(new ArrayList<Garden>());
+    servlet.setQuadtree(quadtree);
+    for (int i = 0; i < 100; i++) {
+      quadtree.put(new Garden(i + 1, "x", "y", 40.67 + i / 10000.0, -73.94, "11201", 1));
+    }
+    // Moves one garden away, then removes all others.
+    quadtree.put(new Garden(1, "x", "y", -33.86, 151.2, "2000", 1));
+    for (int i = 1; i < 100; i++) {
+      quadtree.remove(i + 1);
+    }
+
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/find-gardens");
+    request.addParameter("bbox", "-90,-180,90,180");
+    request.addParameter("zoom", "0");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    servlet.doGet(request, response);
+
+    JsonArray clusters =
+        JsonParser.parseString(response.getContentAsString())
+            .getAsJsonObject()
+            .getAsJsonArray("clusters");
+    assertEquals(1, clusters.size());
+    assertEquals("1", clusters.get(0).getAsJsonObject().get("gardenId").getAsString());
+    assertEquals(-33.86, clusters.get(0).getAsJsonObject().get("lat").getAsDouble(), 1e-9);
+    assertEquals(1, quadtree.size());
+  }
+
+  /** Tests that a viewport crossing the antimeridian finds gardens on both sides. */
+  @Test
+  public void doGet_viewportAcrossAntimeridian_findsBothSides() throws IOException {
+    GardenQuadtree quadtree = new GardenQuadtree();
+    quadtree.rebuild(
+        Arrays.asList(
+            new Garden(1, "x", "y", -17.7, 178.0, "0", 1),
+            new Garden(2, "x", "y", -14.3, -170.7, "0", 1),
+            new Garden(3, "x", "y", 40.6, -73.9, "0", 1)));
+    servlet.setQuadtree(quadtree);
+
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/find-gardens");
+    request.addParameter("bbox", "-30,170,0,-165");
+    request.addParameter("zoom", "5");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    servlet.doGet(request, response);
+
+    JsonArray clusters =
+        JsonParser.parseString(response.getContentAsString())
+            .getAsJsonObject()
+            .getAsJsonArray("clusters");
+    assertEquals(2, clusters.size());
+  }
+
+  /** Tests that GET: /find-gardens?bbox= rejects malformed viewports. */
+  @Test
+  public void doGet_malformedViewport_returns400() throws IOException {
+    String[][] cases = {{"1,2,3", "5"}, {"a,b,c,d", "5"}, {"10,0,-10,5", "5"}, {"0,0,1,1", "30"}};
+    for (String[] params : cases) {
+      MockHttpServletRequest request = new MockHttpServletRequest("GET", "/find-gardens");
+      request.addParameter("bbox", params[0]);
+      request.addParameter("zoom", params[1]);
+      MockHttpServletResponse response = new MockHttpServletResponse();
+
+      servlet.doGet(request, response);
+
+      assertEquals(400, response.getStatus());
+    }
+  }
+
+  /** Tests that CBOR responses of GET: /find-gardens are smaller than the same JSON responses. */
+  @Test
+  public void doGet_cbor_smallerThanJson() throws IOException {
+    List<Garden> gardens = new ArrayList<Garden>();
+    Map<Long, GardenCounts> counts = new HashMap<Long, GardenCounts>();
+    long[] gardenIds = new long[100];
+    for (int i = 0; i < gardenIds.length; i++) {
+      long id = 5629499534213120L + i * 1031L;
+      gardenIds[i] = id;
+      gardens.add(
+          new Garden(
+              id,
+              "Community Garden " + i,
+              "A shared plot with raised beds, compost and a tool shed.",
+              40.6782 + i / 1000.0,
+              -73.9442 - i / 1000.0,
+              "11201",
+              4785074604081152L + i));
+      counts.put(id, new GardenCounts(i % 40, i * 3));
+    }
+    when(dao.getNearbyGardens("11201", FieldSet.ALL)).thenReturn(gardens);
+    when(dao.getGardenCounts(gardenIds)).thenReturn(counts);
+
+    int[] sizes = new int[2];
+    String[] accepts = {"application/json", "application/cbor"};
+    for (int i = 0; i < accepts.length; i++) {
+      MockHttpServletRequest request = new MockHttpServletRequest("GET", "/find-gardens");
+      request.addHeader("Accept", accepts[i]);
+      MockHttpServletResponse response = new MockHttpServletResponse();
+
+      servlet.doGet(request, response);
+
+      assertEquals(200, response.getStatus());
+      sizes[i] = response.getContentAsByteArray().length;
+    }
+    assertTrue(sizes[1] < sizes[0], "CBOR " + sizes[1] + " bytes, JSON " + sizes[0] + " bytes");
+  }
 }
@@ -18,12 +18,30 @@ import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
 
 import com.google.growpod.controllers.GardenDao;
+import com.google.growpod.data.BatchItemStatus;
+import com.google.growpod.data.BatchItemStatus.Outcome;
+import com.google.growpod.data.CareTask;
+import com.google.growpod.data.DeleteJob;
 import com.google.growpod.data.Garden;
+import com.google.growpod.data.GardenCounts;
+import com.google.growpod.data.Ids;
 import com.google.growpod.data.Plant;
+import com.google.growpod.encoding.CborWriter;
+import com.google.growpod.jobs.DeleteJobs;
+import com.google.growpod.schedule.CareRules;
+import com.google.growpod.schedule.CareScheduler;
 import com.google.growpod.servlets.GardenServlet;
 import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.lang.reflect.Type;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import org.junit.jupiter.api.*;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -41,32 +59,36 @@ public final class GardenServletTest {
   /** Mock services. */
   @Mock private GardenDao dao;
 
+  @Mock private DeleteJobs deleteJobs;
+
   /** Test values. */
-  private final Garden TEST_GARDEN = new Garden("0", "x", "y", 0.0, 0.0, "0", "0");
+  private final Garden TEST_GARDEN = new Garden(1, "x", "y", 0.0, 0.0, "0", 1);
 
-  private final Plant TEST_PLANT = new Plant("0", "x", 1, "y");
+  private final Plant TEST_PLANT = new Plant(1, "x", 1, "y");
   /** Separate lists in case I change the type each query returns */
-  private final List<String> TEST_USER_LIST = Arrays.asList("0");
+  private final long[] TEST_USER_LIST = {1};
 
-  private final List<String> TEST_PLANT_LIST = Arrays.asList("0");
+  private final long[] TEST_PLANT_LIST = {1};
 
   /** Initializes servlet object and mock dao. */
   @BeforeEach
   public void initTest() {
     servlet = new GardenServlet();
     servlet.setDao(dao);
+    servlet.setScheduler(new CareScheduler(dao::getGardenPlantsById, CareRules.loadBundled()));
+    servlet.setDeleteJobs(deleteJobs);
   }
 
   /** Tests successful query for GET: /garden/{id} method. */
   @Test
   public void doGet_successfulGardenQuery_successfulResult() throws IOException {
-    String testUrl = "/garden/0";
+    String testUrl = "/garden/1";
 
     // Mocks
     MockHttpServletRequest request = new MockHttpServletRequest("GET", testUrl);
     MockHttpServletResponse response = new MockHttpServletResponse();
 
-    when(dao.getGardenById("0")).thenReturn(TEST_GARDEN);
+    when(dao.getGardenById(1L)).thenReturn(TEST_GARDEN);
 
     servlet.doGet(request, response);
 
@@ -74,49 +96,247 @@ public final class GardenServletTest {
     assertEquals(TEST_GARDEN, new Gson().fromJson(response.getContentAsString(), Garden.class));
   }
 
+  /** Tests that GET: /garden/{id} embeds the garden's member and plant counts. */
+  @Test
+  public void doGet_gardenQuery_includesCounts() throws IOException {
+    String testUrl = "/garden/1";
+
+    // Mocks
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", testUrl);
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    when(dao.getGardenById(1L)).thenReturn(TEST_GARDEN);
+    when(dao.getGardenCounts(1L)).thenReturn(new GardenCounts(3, 5));
+
+    servlet.doGet(request, response);
+
+    JsonObject json = JsonParser.parseString(response.getContentAsString()).getAsJsonObject();
+    assertEquals(3, json.get("memberCount").getAsLong());
+    assertEquals(5, json.get("plantCount").getAsLong());
+    assertEquals(TEST_GARDEN, new Gson().fromJson(json, Garden.class));
+  }
+
+  /** Tests that GET: /garden/{id}?fields= returns only those fields, and skips unneeded counts. */
+  @Test
+  public void doGet_gardenQueryWithFields_returnsOnlyFields() throws IOException {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/garden/1");
+    request.addParameter("fields", "id,name,lat,lng");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    when(dao.getGardenById(1L)).thenReturn(TEST_GARDEN);
+
+    servlet.doGet(request, response);
+
+    JsonObject json = JsonParser.parseString(response.getContentAsString()).getAsJsonObject();
+    assertEquals(new HashSet<String>(Arrays.asList("id", "name", "lat", "lng")), json.keySet());
+    assertEquals("1", json.get("id").getAsString());
+    verify(dao, never()).getGardenCounts(anyLong());
+  }
+
+  /** Tests that GET: /garden/{id}?fields= also trims CBOR responses. */
+  @Test
+  public void doGet_gardenQueryWithFieldsCbor_returnsOnlyFields() throws IOException {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/garden/1");
+    request.addParameter("fields", "name,memberCount");
+    request.addHeader("Accept", "application/cbor");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    when(dao.getGardenById(1L)).thenReturn(TEST_GARDEN);
+    when(dao.getGardenCounts(1L)).thenReturn(new GardenCounts(3, 5));
+
+    servlet.doGet(request, response);
+
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    new CborWriter(expected)
+        .beginMap(2)
+        .entry("name", TEST_GARDEN.getName())
+        .entry("memberCount", 3)
+        .flush();
+    assertArrayEquals(expected.toByteArray(), response.getContentAsByteArray());
+  }
+
+  /** Tests that GET: /garden/{id}?fields= rejects fields a garden does not have. */
+  @Test
+  public void doGet_gardenQueryWithUnknownField_returns400() throws IOException {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/garden/1");
+    request.addParameter("fields", "id,password");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    servlet.doGet(request, response);
+
+    assertEquals(MockHttpServletResponse.SC_BAD_REQUEST, response.getStatus());
+    verify(dao, never()).getGardenById(anyLong());
+  }
+
+  /** Tests successful query for GET: /garden/{id}/tasks method. */
+  @Test
+  public void doGet_successfulTasksQuery_successfulResult() throws IOException {
+    String testUrl = "/garden/1/tasks";
+
+    // Mocks
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", testUrl);
+    request.addParameter("from", CareDays.recent("2020-01-01"));
+    request.addParameter("to", CareDays.recent("2020-01-07"));
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    // Plant type "y" has no rules, so the defaults apply: water every 3 days, fertilize every 28.
+    when(dao.getGardenPlantsById(1L)).thenReturn(Arrays.asList(TEST_PLANT));
+
+    servlet.doGet(request, response);
+
+    assertEquals("application/json;", response.getContentType());
+    Type listType = new TypeToken<List<CareTask>>() {}.getType();
+    List<CareTask> tasks = new Gson().fromJson(response.getContentAsString(), listType);
+    assertEquals(
+        Arrays.asList(
+            new CareTask(
+                1, 1, "fertilize", CareDays.recent("2019-12-27"), CareDays.recent("2020-01-02")),
+            new CareTask(
+                1, 1, "water", CareDays.recent("2020-01-01"), CareDays.recent("2020-01-01")),
+            new CareTask(
+                1, 1, "water", CareDays.recent("2020-01-04"), CareDays.recent("2020-01-04")),
+            new CareTask(
+                1, 1, "water", CareDays.recent("2020-01-07"), CareDays.recent("2020-01-07"))),
+        tasks);
+  }
+
+  /** Tests that plant writes refresh the schedule of GET: /garden/{id}/tasks. */
+  @Test
+  public void doGet_tasksAfterPlantAdded_reloadsPlants() throws IOException {
+    when(dao.getGardenPlantsById(1L)).thenReturn(Arrays.asList(TEST_PLANT));
+    when(dao.getGardenById(1L)).thenReturn(TEST_GARDEN);
+
+    servlet.doGet(
+        new MockHttpServletRequest("GET", "/garden/1/tasks"), new MockHttpServletResponse());
+    servlet.doGet(
+        new MockHttpServletRequest("GET", "/garden/1/tasks"), new MockHttpServletResponse());
+    MockHttpServletRequest post = new MockHttpServletRequest("POST", "/garden/1/plant-list");
+    post.setContent(new Gson().toJson(TEST_PLANT).getBytes());
+    servlet.doPost(post, new MockHttpServletResponse());
+    servlet.doGet(
+        new MockHttpServletRequest("GET", "/garden/1/tasks"), new MockHttpServletResponse());
+
+    verify(dao, times(2)).getGardenPlantsById(1L);
+  }
+
+  /** Tests invalid garden id response for GET: /garden/{id}/tasks */
+  @Test
+  public void doGet_invalidIdTasksQuery_returns404() throws IOException {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/garden/1/tasks");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    when(dao.getGardenPlantsById(1L)).thenReturn(null);
+
+    servlet.doGet(request, response);
+
+    assertEquals(MockHttpServletResponse.SC_NOT_FOUND, response.getStatus());
+  }
+
+  /** Tests reversed date range response for GET: /garden/{id}/tasks */
+  @Test
+  public void doGet_reversedRangeTasksQuery_returns400() throws IOException {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/garden/1/tasks");
+    request.addParameter("from", "2020-01-07");
+    request.addParameter("to", "2020-01-01");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    servlet.doGet(request, response);
+
+    assertEquals(MockHttpServletResponse.SC_BAD_REQUEST, response.getStatus());
+  }
+
+  /** Tests out of horizon date range response for GET: /garden/{id}/tasks */
+  @Test
+  public void doGet_farFutureTasksQuery_returns400() throws IOException {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/garden/1/tasks");
+    request.addParameter("from", "9999-01-01");
+    request.addParameter("to", "9999-01-07");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    servlet.doGet(request, response);
+
+    assertEquals(MockHttpServletResponse.SC_BAD_REQUEST, response.getStatus());
+    verify(dao, never()).getGardenPlantsById(anyLong());
+  }
+
+  /** Tests that ranges far from today leave the cached schedule of GET: /garden/{id}/tasks. */
+  @Test
+  public void doGet_tasksFarFromToday_keepsCachedSchedule() throws IOException {
+    when(dao.getGardenPlantsById(1L)).thenReturn(Arrays.asList(TEST_PLANT));
+    MockHttpServletRequest past = new MockHttpServletRequest("GET", "/garden/1/tasks");
+    past.addParameter("from", LocalDate.now(ZoneOffset.UTC).minusDays(365).toString());
+
+    servlet.doGet(
+        new MockHttpServletRequest("GET", "/garden/1/tasks"), new MockHttpServletResponse());
+    MockHttpServletResponse pastResponse = new MockHttpServletResponse();
+    servlet.doGet(past, pastResponse);
+    servlet.doGet(
+        new MockHttpServletRequest("GET", "/garden/1/tasks"), new MockHttpServletResponse());
+
+    assertEquals(MockHttpServletResponse.SC_OK, pastResponse.getStatus());
+    // One load for the cached schedule, one for the past range; the last query is cached.
+    verify(dao, times(2)).getGardenPlantsById(1L);
+  }
+
   /** Tests failed query for GET: /garden/{id} method. */
   @Test
   public void doGet_invalidIdGardenQuery_returns404() throws IOException {
-    String testUrl = "/garden/0";
+    String testUrl = "/garden/1";
 
     // Mocks
     MockHttpServletRequest request = new MockHttpServletRequest("GET", testUrl);
     MockHttpServletResponse response = new MockHttpServletResponse();
 
-    when(dao.getGardenById("0")).thenReturn(null);
+    when(dao.getGardenById(1L)).thenReturn(null);
 
     servlet.doGet(request, response);
 
     assertEquals(MockHttpServletResponse.SC_NOT_FOUND, response.getStatus());
   }
 
+  /** Tests malformed id for GET: /garden/{id} method. */
+  @Test
+  public void doGet_malformedIdGardenQuery_returns400() throws IOException {
+    String testUrl = "/garden/12ab";
+
+    // Mocks
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", testUrl);
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    servlet.doGet(request, response);
+
+    assertEquals(MockHttpServletResponse.SC_BAD_REQUEST, response.getStatus());
+    verifyNoInteractions(dao);
+  }
+
   /** Tests successful query for GET: /garden/{id}/user-list method. */
   @Test
   public void doGet_successfulUserListQuery_successfulResult() throws IOException {
-    String testUrl = "/garden/0/user-list";
+    String testUrl = "/garden/1/user-list";
 
     // Mocks
     MockHttpServletRequest request = new MockHttpServletRequest("GET", testUrl);
     MockHttpServletResponse response = new MockHttpServletResponse();
 
-    when(dao.getGardenUserListById("0")).thenReturn(TEST_USER_LIST);
+    when(dao.getGardenUserListById(1L)).thenReturn(TEST_USER_LIST);
 
     servlet.doGet(request, response);
 
     assertEquals("application/json;", response.getContentType());
-    assertEquals(TEST_USER_LIST, new Gson().fromJson(response.getContentAsString(), List.class));
+    assertEquals(
+        Arrays.asList("1"), new Gson().fromJson(response.getContentAsString(), List.class));
   }
 
   /** Tests failed query for GET: /garden/{id}/user-list method. */
   @Test
   public void doGet_invalidIdUserListQuery_returns404() throws IOException {
-    String testUrl = "/garden/0/user-list";
+    String testUrl = "/garden/1/user-list";
 
     // Mocks
     MockHttpServletRequest request = new MockHttpServletRequest("GET", testUrl);
     MockHttpServletResponse response = new MockHttpServletResponse();
 
-    when(dao.getGardenUserListById("0")).thenReturn(null);
+    when(dao.getGardenUserListById(1L)).thenReturn(null);
 
     servlet.doGet(request, response);
 
@@ -126,30 +346,31 @@ public final class GardenServletTest {
   /** Tests successful query for GET: /garden/{id}/plant-list method. */
   @Test
   public void doGet_successfulPlantListQuery_successfulResult() throws IOException {
-    String testUrl = "/garden/0/plant-list";
+    String testUrl = "/garden/1/plant-list";
 
     // Mocks
     MockHttpServletRequest request = new MockHttpServletRequest("GET", testUrl);
     MockHttpServletResponse response = new MockHttpServletResponse();
 
-    when(dao.getGardenPlantListById("0")).thenReturn(TEST_PLANT_LIST);
+    when(dao.getGardenPlantListById(1L)).thenReturn(TEST_PLANT_LIST);
 
     servlet.doGet(request, response);
 
     assertEquals("application/json;", response.getContentType());
-    assertEquals(TEST_PLANT_LIST, new Gson().fromJson(response.getContentAsString(), List.class));
+    assertEquals(
+        Arrays.asList("1"), new Gson().fromJson(response.getContentAsString(), List.class));
   }
 
   /** Tests failed query for GET: /garden/{id}/plant-list method. */
   @Test
   public void doGet_invalidIdPlantListQuery_returns404() throws IOException {
-    String testUrl = "/garden/0/plant-list";
+    String testUrl = "/garden/1/plant-list";
 
     // Mocks
     MockHttpServletRequest request = new MockHttpServletRequest("GET", testUrl);
     MockHttpServletResponse response = new MockHttpServletResponse();
 
-    when(dao.getGardenPlantListById("0")).thenReturn(null);
+    when(dao.getGardenPlantListById(1L)).thenReturn(null);
 
     servlet.doGet(request, response);
 
@@ -170,17 +391,51 @@ public final class GardenServletTest {
     assertEquals(MockHttpServletResponse.SC_METHOD_NOT_ALLOWED, response.getStatus());
   }
 
+  /** Tests successful query for POST: /garden */
+  @Test
+  public void doPost_successfulGardenQuery_successfulResult() throws IOException {
+    String testUrl = "/garden";
+
+    // Mocks
+    MockHttpServletRequest request = new MockHttpServletRequest("POST", testUrl);
+    request.setContent(new Gson().toJson(TEST_GARDEN).getBytes());
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    when(dao.addGarden(TEST_GARDEN)).thenReturn(1L);
+
+    servlet.doPost(request, response);
+
+    assertEquals(MockHttpServletResponse.SC_CREATED, response.getStatus());
+    assertEquals("{\"id\":1}", response.getContentAsString().trim());
+  }
+
+  /** Tests garden without a name for POST: /garden */
+  @Test
+  public void doPost_namelessGardenQuery_returns400() throws IOException {
+    String testUrl = "/garden";
+
+    // Mocks
+    MockHttpServletRequest request = new MockHttpServletRequest("POST", testUrl);
+    request.setContent("{\"description\": \"y\"}".getBytes());
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    servlet.doPost(request, response);
+
+    assertEquals(MockHttpServletResponse.SC_BAD_REQUEST, response.getStatus());
+    verify(dao, never()).addGarden(any());
+  }
+
   /** Tests invalid garden id response for POST: /garden/{gid}/plant-list */
   @Test
   public void doPost_invalidGidPlantListQuery_returns404() throws IOException {
-    String testUrl = "/garden/0/plant-list";
+    String testUrl = "/garden/1/plant-list";
 
     // Mocks
     MockHttpServletRequest request = new MockHttpServletRequest("POST", testUrl);
     request.setContent(new Gson().toJson(TEST_PLANT).getBytes());
     MockHttpServletResponse response = new MockHttpServletResponse();
 
-    when(dao.getGardenById("0")).thenReturn(null);
+    when(dao.getGardenById(1L)).thenReturn(null);
 
     servlet.doPost(request, response);
 
@@ -190,38 +445,121 @@ public final class GardenServletTest {
   /** Tests invalid request body response for POST: /garden/{gid}/plant-list */
   @Test
   public void doPost_invalidRequestBodyPlantListQuery_returns400() throws IOException {
-    String testUrl = "/garden/0/plant-list";
+    String testUrl = "/garden/1/plant-list";
 
     // Mocks
     MockHttpServletRequest request = new MockHttpServletRequest("POST", testUrl);
-    request.setContent(new Gson().toJson(TEST_PLANT).getBytes());
+    request.setContent("{\"count\": [".getBytes());
     MockHttpServletResponse response = new MockHttpServletResponse();
 
-    when(dao.addPlant("0", TEST_PLANT)).thenReturn(null);
-    when(dao.getGardenById("0")).thenReturn(TEST_GARDEN);
-
     servlet.doPost(request, response);
 
     assertEquals(MockHttpServletResponse.SC_BAD_REQUEST, response.getStatus());
+    verify(dao, never()).addPlant(anyLong(), any());
   }
 
   /** Tests successful query for POST: /garden/{gid}/plant-list posting */
   @Test
   public void doPost_successfulPlantListQuery_successfulResult() throws IOException {
-    String testUrl = "/garden/0/plant-list";
+    String testUrl = "/garden/1/plant-list";
+
+    // Mocks
+    MockHttpServletRequest request = new MockHttpServletRequest("POST", testUrl);
+    request.setContent(new Gson().toJson(TEST_PLANT).getBytes());
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    when(dao.addPlant(1L, TEST_PLANT)).thenReturn(1L);
+    when(dao.getGardenById(1L)).thenReturn(TEST_GARDEN);
+
+    servlet.doPost(request, response);
+
+    assertEquals("application/json;", response.getContentType());
+    assertEquals("{\"id\":1}", response.getContentAsString().trim());
+  }
+
+  /** Tests successful query for POST: /garden/{gid}/plant-list:batch */
+  @Test
+  public void doPost_successfulPlantListBatchQuery_successfulResult() throws IOException {
+    String testUrl = "/garden/1/plant-list:batch";
+
+    // Mocks
+    MockHttpServletRequest request = new MockHttpServletRequest("POST", testUrl);
+    request.setContent(new Gson().toJson(Arrays.asList(TEST_PLANT, null)).getBytes());
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    List<BatchItemStatus> statuses =
+        Arrays.asList(
+            new BatchItemStatus(0, 1L, Outcome.CREATED),
+            new BatchItemStatus(1, null, Outcome.INVALID));
+    when(dao.getGardenById(1L)).thenReturn(TEST_GARDEN);
+    when(dao.addPlants(1L, Arrays.asList(TEST_PLANT, null))).thenReturn(statuses);
+
+    servlet.doPost(request, response);
+
+    assertEquals("application/json;", response.getContentType());
+    assertEquals(
+        "[{\"index\":0,\"id\":\"1\",\"status\":201},{\"index\":1,\"status\":400}]",
+        response.getContentAsString().trim());
+  }
+
+  /** Tests non-array request body response for POST: /garden/{gid}/plant-list:batch */
+  @Test
+  public void doPost_invalidRequestBodyPlantListBatchQuery_returns400() throws IOException {
+    String testUrl = "/garden/1/plant-list:batch";
 
     // Mocks
     MockHttpServletRequest request = new MockHttpServletRequest("POST", testUrl);
     request.setContent(new Gson().toJson(TEST_PLANT).getBytes());
     MockHttpServletResponse response = new MockHttpServletResponse();
 
-    when(dao.addPlant("0", TEST_PLANT)).thenReturn("0");
-    when(dao.getGardenById("0")).thenReturn(TEST_GARDEN);
+    servlet.doPost(request, response);
+
+    assertEquals(MockHttpServletResponse.SC_BAD_REQUEST, response.getStatus());
+    verifyNoInteractions(dao);
+  }
+
+  /** Tests successful query for POST: /garden/{gid}/plant-list:batchDelete */
+  @Test
+  public void doPost_successfulPlantListBatchDeleteQuery_successfulResult() throws IOException {
+    String testUrl = "/garden/1/plant-list:batchDelete";
+
+    // Mocks
+    MockHttpServletRequest request = new MockHttpServletRequest("POST", testUrl);
+    request.setContent("[\"1\", 2, \"x\"]".getBytes());
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    List<BatchItemStatus> statuses =
+        Arrays.asList(
+            new BatchItemStatus(0, 1L, Outcome.DELETED),
+            new BatchItemStatus(1, 2L, Outcome.NOT_FOUND),
+            new BatchItemStatus(2, null, Outcome.INVALID));
+    when(dao.deletePlants(1L, new long[] {1, 2, Ids.INVALID})).thenReturn(statuses);
 
     servlet.doPost(request, response);
 
     assertEquals("application/json;", response.getContentType());
-    assertEquals("{\"id\":0}", response.getContentAsString().trim());
+    assertEquals(
+        "[{\"index\":0,\"id\":\"1\",\"status\":200},"
+            + "{\"index\":1,\"id\":\"2\",\"status\":404},"
+            + "{\"index\":2,\"status\":400}]",
+        response.getContentAsString().trim());
+  }
+
+  /** Tests invalid garden id response for POST: /garden/{gid}/plant-list:batchDelete */
+  @Test
+  public void doPost_invalidGidPlantListBatchDeleteQuery_returns404() throws IOException {
+    String testUrl = "/garden/1/plant-list:batchDelete";
+
+    // Mocks
+    MockHttpServletRequest request = new MockHttpServletRequest("POST", testUrl);
+    request.setContent("[1]".getBytes());
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    when(dao.deletePlants(1L, new long[] {1})).thenReturn(null);
+
+    servlet.doPost(request, response);
+
+    assertEquals(MockHttpServletResponse.SC_NOT_FOUND, response.getStatus());
   }
 
   /** Tests invalid method on POST. */
@@ -238,66 +576,137 @@ public final class GardenServletTest {
     assertEquals(MockHttpServletResponse.SC_METHOD_NOT_ALLOWED, response.getStatus());
   }
 
+  /** Tests that DELETE: /garden/{id} starts a job and answers 202 with its location. */
+  @Test
+  public void doDelete_existingGarden_acceptedWithJob() throws IOException {
+    String testUrl = "/garden/1";
+
+    // Mocks
+    MockHttpServletRequest request = new MockHttpServletRequest("DELETE", testUrl);
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    when(dao.getGardenById(1L)).thenReturn(TEST_GARDEN);
+    when(deleteJobs.deleteGarden(1L))
+        .thenReturn(new DeleteJob(7, Garden.KIND, 1, DeleteJob.PENDING, 0, null, 0, null, 0, 0));
+
+    servlet.doDelete(request, response);
+
+    assertEquals(MockHttpServletResponse.SC_ACCEPTED, response.getStatus());
+    assertEquals("/delete-job/7", response.getHeader("Location"));
+    JsonObject json = JsonParser.parseString(response.getContentAsString()).getAsJsonObject();
+    assertEquals("7", json.get("id").getAsString());
+    assertEquals(DeleteJob.PENDING, json.get("state").getAsString());
+  }
+
+  /** Tests that DELETE: /garden/{id} of a garden administered by someone else starts no job. */
+  @Test
+  public void doDelete_otherAdminsGarden_returns403() throws IOException {
+    String testUrl = "/garden/1";
+
+    // Mocks
+    MockHttpServletRequest request = new MockHttpServletRequest("DELETE", testUrl);
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    when(dao.getGardenById(1L)).thenReturn(new Garden(1, "x", "y", 0.0, 0.0, "0", 2));
+
+    servlet.doDelete(request, response);
+
+    assertEquals(MockHttpServletResponse.SC_FORBIDDEN, response.getStatus());
+    verifyNoInteractions(deleteJobs);
+  }
+
+  /** Tests that DELETE: /garden/{id} of a missing garden starts no job. */
+  @Test
+  public void doDelete_missingGarden_returns404() throws IOException {
+    String testUrl = "/garden/1";
+
+    // Mocks
+    MockHttpServletRequest request = new MockHttpServletRequest("DELETE", testUrl);
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    when(dao.getGardenById(1L)).thenReturn(null);
+
+    servlet.doDelete(request, response);
+
+    assertEquals(MockHttpServletResponse.SC_NOT_FOUND, response.getStatus());
+    verifyNoInteractions(deleteJobs);
+  }
+
   /** Tests successful query for DELETE: /garden/{gid}/user-list/{uid}. */
   @Test
   public void doDelete_successfulUserListQuery_successfulResult() throws IOException {
-    String testUrl = "/garden/0/user-list/0";
+    String testUrl = "/garden/1/user-list/1";
 
     // Mocks
     MockHttpServletRequest request = new MockHttpServletRequest("DELETE", testUrl);
     MockHttpServletResponse response = new MockHttpServletResponse();
 
-    when(dao.deleteUser("0", "0")).thenReturn(true);
+    when(dao.deleteUser(1L, 1L)).thenReturn(true);
 
     servlet.doDelete(request, response);
 
     assertEquals("application/json;", response.getContentType());
-    assertEquals("{\"id\":0}", response.getContentAsString().trim());
+    assertEquals("{\"id\":1}", response.getContentAsString().trim());
   }
 
   /** Tests failed query for DELETE: /garden/{gid}/user-list/{uid} */
   @Test
   public void doPost_invalidGidOrPidUserListQuery_returns404() throws IOException {
-    String testUrl = "/garden/0/user-list/0";
+    String testUrl = "/garden/1/user-list/1";
 
     // Mocks
     MockHttpServletRequest request = new MockHttpServletRequest("DELETE", testUrl);
     MockHttpServletResponse response = new MockHttpServletResponse();
 
-    when(dao.deleteUser("0", "0")).thenReturn(false);
+    when(dao.deleteUser(1L, 1L)).thenReturn(false);
 
     servlet.doDelete(request, response);
 
     assertEquals(MockHttpServletResponse.SC_NOT_FOUND, response.getStatus());
   }
 
+  /** Tests malformed plant id for DELETE: /garden/{gid}/plant-list/{pid}. */
+  @Test
+  public void doDelete_malformedPidPlantListQuery_returns400() throws IOException {
+    String testUrl = "/garden/1/plant-list/99999999999999999999";
+
+    // Mocks
+    MockHttpServletRequest request = new MockHttpServletRequest("DELETE", testUrl);
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    servlet.doDelete(request, response);
+
+    assertEquals(MockHttpServletResponse.SC_BAD_REQUEST, response.getStatus());
+    verifyNoInteractions(dao);
+  }
+
   /** Tests successful query for DELETE: /garden/{gid}/plant-list/{pid}. */
   @Test
   public void doDelete_successfulPlantListQuery_successfulResult() throws IOException {
-    String testUrl = "/garden/0/plant-list/0";
+    String testUrl = "/garden/1/plant-list/1";
 
     // Mocks
     MockHttpServletRequest request = new MockHttpServletRequest("DELETE", testUrl);
     MockHttpServletResponse response = new MockHttpServletResponse();
 
-    when(dao.deletePlant("0", "0")).thenReturn(true);
+    when(dao.deletePlant(1L, 1L)).thenReturn(true);
 
     servlet.doDelete(request, response);
 
     assertEquals("application/json;", response.getContentType());
-    assertEquals("{\"id\":0}", response.getContentAsString().trim());
+    assertEquals("{\"id\":1}", response.getContentAsString().trim());
   }
 
   /** Tests failed query for DELETE: /garden/{gid}/plant-list/{pid} */
   @Test
   public void doPost_invalidGidOrPidPlantListQuery_returns404() throws IOException {
-    String testUrl = "/garden/0/plant-list/0";
+    String testUrl = "/garden/1/plant-list/1";
 
     // Mocks
     MockHttpServletRequest request = new MockHttpServletRequest("DELETE", testUrl);
     MockHttpServletResponse response = new MockHttpServletResponse();
 
-    when(dao.deletePlant("0", "0")).thenReturn(false);
+    when(dao.deletePlant(1L, 1L)).thenReturn(false);
 
     servlet.doDelete(request, response);
 
@@ -0,0 +1,94 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+import com.google.growpod.data.ContainsPlant;
+import com.google.growpod.data.Garden;
+import com.google.growpod.data.HasMember;
+import com.google.growpod.data.Ids;
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import org.junit.jupiter.api.*;
+
+/** Tests how ids are stored in and read back from Datastore entities. */
+public final class IdsTest {
+
+  private final KeyFactory keyFactory = new KeyFactory("test-project");
+  private final Gson gson = new Gson();
+
+  /** Tests that relation and admin ids are stored as strings, the type existing data holds. */
+  @Test
+  public void toEntity_idProperties_storedAsStrings() {
+    Entity garden =
+        new Garden(1, "g", "d", 1.0, 2.0, "11201", 2).toEntity(keyFactory.setKind(Garden.KIND));
+    Entity member = new HasMember(3, 1, 2).toEntity(keyFactory.setKind(HasMember.KIND));
+    Entity plant = new ContainsPlant(4, 1, 5).toEntity(keyFactory.setKind(ContainsPlant.KIND));
+
+    assertEquals("2", garden.getString("admin-id"));
+    assertEquals("1", member.getString("garden-id"));
+    assertEquals("2", member.getString("user-id"));
+    assertEquals("5", plant.getString("plant-id"));
+    assertEquals(PropertyFilter.eq("garden-id", "1"), Ids.eq("garden-id", 1));
+  }
+
+  /** Tests that ids are read whether they were stored as strings or as integers. */
+  @Test
+  public void from_stringOrIntegerIds_read() {
+    Entity strings =
+        Entity.newBuilder(keyFactory.setKind(HasMember.KIND).newKey(3))
+            .set("garden-id", "1")
+            .set("user-id", "2")
+            .build();
+    Entity integers =
+        Entity.newBuilder(keyFactory.setKind(HasMember.KIND).newKey(3))
+            .set("garden-id", 1)
+            .set("user-id", 2)
+            .build();
+
+    assertEquals(new HasMember(3, 1, 2), HasMember.from(strings));
+    assertEquals(new HasMember(3, 1, 2), HasMember.from(integers));
+  }
+
+  /** Tests that JSON ids are read whether they are strings or numbers. */
+  @Test
+  public void adapter_stringOrNumberIds_read() {
+    Garden strings = gson.fromJson("{\"id\":\"1\",\"adminId\":\"2\"}", Garden.class);
+    Garden numbers = gson.fromJson("{\"id\":1,\"adminId\":2}", Garden.class);
+
+    assertEquals(1, strings.getId());
+    assertEquals(2, strings.getAdminId());
+    assertEquals(1, numbers.getId());
+    assertEquals(2, numbers.getAdminId());
+  }
+
+  /** Tests that ids which are not positive integers are rejected in either form. */
+  @Test
+  public void adapter_invalidIds_rejected() {
+    String[] invalid = {
+      "-5", "0", "1.5", "1e3", "99999999999999999999", "\"-5\"", "\"0\"", "\"1.5\"", "\"x\""
+    };
+    for (String id : invalid) {
+      assertThrows(
+          JsonSyntaxException.class,
+          () -> gson.fromJson("{\"adminId\":" + id + "}", Garden.class),
+          id);
+    }
+  }
+}
@@ -0,0 +1,161 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.google.growpod.data.Garden;
+import com.google.growpod.data.GardenCounts;
+import com.google.growpod.data.Plant;
+import com.google.growpod.data.User;
+import com.google.growpod.storage.LogStorage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Tests log storage across restarts, crashes and compaction. */
+public final class LogStorageTest {
+
+  @TempDir Path directory;
+
+  /** Tests that every write is found again after reopening the log. */
+  @Test
+  public void open_afterWrites_sameState() throws IOException {
+    LogStorage storage = LogStorage.open(directory);
+    long userId = storage.addUser(new User(0, "a@example.com", "A", "", "11201"));
+    long gardenId = storage.addGarden(new Garden(0, "x", "y", 1.0, 2.0, "11201", userId));
+    storage.addMember(gardenId, userId);
+    long plantId = storage.addPlant(gardenId, new Plant(0, "p", 1, "1"));
+    long deletedId = storage.addPlant(gardenId, new Plant(0, "q", 2, "2"));
+    assertTrue(storage.deletePlant(gardenId, deletedId));
+    storage.close();
+
+    LogStorage reopened = LogStorage.open(directory);
+
+    assertEquals(
+        new Garden(gardenId, "x", "y", 1.0, 2.0, "11201", userId), reopened.getGarden(gardenId));
+    assertEquals("a@example.com", reopened.getUser(userId).getEmail());
+    assertArrayEquals(new long[] {userId}, reopened.getGardenMemberIds(gardenId));
+    assertArrayEquals(new long[] {plantId}, reopened.getGardenPlantIds(gardenId));
+    assertNull(reopened.getPlant(deletedId));
+    assertEquals(new GardenCounts(1, 1), reopened.getGardenCounts(gardenId));
+    assertTrue(reopened.addUser(new User(0, "b@example.com", "B", "", "11201")) > deletedId);
+  }
+
+  /** Tests that a cascading garden delete survives reopening the log. */
+  @Test
+  public void deleteGardenPage_afterReopen_stillDeleted() throws IOException {
+    LogStorage storage = LogStorage.open(directory);
+    long userId = storage.addUser(new User(0, "a@example.com", "A", "", "11201"));
+    long gardenId = storage.addGarden(new Garden(0, "x", "y", 1.0, 2.0, "11201", userId));
+    storage.addMember(gardenId, userId);
+    long plantId = storage.addPlant(gardenId, new Plant(0, "p", 1, "1"));
+
+    assertEquals(4, storage.deleteGardenPage(gardenId, 100, Runnable::run));
+    assertEquals(0, storage.deleteGardenPage(gardenId, 100, Runnable::run));
+    storage.close();
+
+    LogStorage reopened = LogStorage.open(directory);
+    assertNull(reopened.getGarden(gardenId));
+    assertNull(reopened.getPlant(plantId));
+    assertArrayEquals(new long[0], reopened.getUserGardenIds(userId));
+    assertArrayEquals(new long[0], reopened.getAdminGardenIds(userId));
+    assertTrue(reopened.getGardensByZipCode("11201").isEmpty());
+  }
+
+  /** Tests that a record torn by a crash is dropped, and the records before it are kept. */
+  @Test
+  public void open_tornLastRecord_dropped() throws IOException {
+    LogStorage storage = LogStorage.open(directory);
+    long userId = storage.addUser(new User(0, "a@example.com", "A", "", "11201"));
+    long gardenId = storage.addGarden(new Garden(0, "x", "y", 1.0, 2.0, "11201", userId));
+    storage.close();
+
+    // Flips the last byte of the garden's record, as if the crash hit midway.
+    Path segment = segments().get(0);
+    byte[] bytes = Files.readAllBytes(segment);
+    int last = bytes.length - 1;
+    while (bytes[last] == 0) {
+      last--;
+    }
+    try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+      channel.write(ByteBuffer.wrap(new byte[] {(byte) ~bytes[last]}), last);
+    }
+
+    LogStorage reopened = LogStorage.open(directory);
+
+    assertNotNull(reopened.getUser(userId));
+    assertNull(reopened.getGarden(gardenId));
+    long nextId = reopened.addGarden(new Garden(0, "z", "w", 1.0, 2.0, "11201", userId));
+    reopened.close();
+    assertNotNull(LogStorage.open(directory).getGarden(nextId));
+  }
+
+  /** Tests that compaction drops garbage segments and keeps the live state. */
+  @Test
+  public void compact_manySegments_fewerSegmentsSameState() throws IOException {
+    LogStorage storage = LogStorage.open(directory, 4096);
+    long userId = storage.addUser(new User(0, "a@example.com", "A", "", "11201"));
+    long gardenId = storage.addGarden(new Garden(0, "x", "y", 1.0, 2.0, "11201", userId));
+    long keptId = storage.addPlant(gardenId, new Plant(0, "kept", 1, "1"));
+    for (int i = 0; i < 500; i++) {
+      storage.deletePlant(gardenId, storage.addPlant(gardenId, new Plant(0, "p" + i, 1, "1")));
+    }
+    int before = storage.segmentCount();
+
+    storage.compact();
+
+    assertTrue(storage.segmentCount() < before);
+    assertEquals(storage.segmentCount(), segments().size());
+    assertArrayEquals(new long[] {keptId}, storage.getGardenPlantIds(gardenId));
+    storage.close();
+
+    LogStorage reopened = LogStorage.open(directory, 4096);
+    assertEquals("kept", reopened.getPlant(keptId).getNickname());
+    assertEquals(new GardenCounts(0, 1), reopened.getGardenCounts(gardenId));
+  }
+
+  /** Tests that loading replaces everything, in a single compacted log. */
+  @Test
+  public void load_afterWrites_replacesState() throws IOException {
+    LogStorage storage = LogStorage.open(directory);
+    long oldId = storage.addUser(new User(0, "a@example.com", "A", "", "11201"));
+    List<User> users = new ArrayList<User>();
+    users.add(new User(7, "b@example.com", "B", "", "11201"));
+
+    storage.load(users, new ArrayList<>(), new ArrayList<>(), new ArrayList<>(), new ArrayList<>());
+    storage.close();
+
+    LogStorage reopened = LogStorage.open(directory);
+    assertNull(reopened.getUser(oldId));
+    assertEquals("b@example.com", reopened.getUser(7).getEmail());
+    assertTrue(reopened.addUser(new User(0, "c@example.com", "C", "", "11201")) > 7);
+  }
+
+  private List<Path> segments() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.sorted().collect(Collectors.toList());
+    }
+  }
+}
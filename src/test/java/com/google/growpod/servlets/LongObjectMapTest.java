@@ -0,0 +1,105 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.google.growpod.util.AdjacencyIndex;
+import com.google.growpod.util.LongObjectMap;
+import com.google.growpod.util.SortedLongSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import org.junit.jupiter.api.*;
+
+/** Tests the primitive collections against their java.util counterparts. */
+public final class LongObjectMapTest {
+
+  /** Tests random puts and removes, which exercise resizing and probe run repair. */
+  @Test
+  public void putAndRemove_random_matchesHashMap() {
+    Random random = new Random(42);
+    LongObjectMap<Long> map = new LongObjectMap<Long>(4);
+    Map<Long, Long> expected = new HashMap<Long, Long>();
+    for (int i = 0; i < 100000; i++) {
+      long key = random.nextInt(2000);
+      if (random.nextBoolean()) {
+        assertEquals(expected.put(key, (long) i), map.put(key, (long) i));
+      } else {
+        assertEquals(expected.remove(key), map.remove(key));
+      }
+    }
+
+    assertEquals(expected.size(), map.size());
+    for (long key = 0; key < 2000; key++) {
+      assertEquals(expected.get(key), map.get(key));
+    }
+  }
+
+  /** Tests random adds and removes, keeping values sorted. */
+  @Test
+  public void addAndRemove_random_matchesTreeSet() {
+    Random random = new Random(42);
+    SortedLongSet set = new SortedLongSet();
+    TreeSet<Long> expected = new TreeSet<Long>();
+    for (int i = 0; i < 10000; i++) {
+      long value = random.nextInt(500) - 250;
+      if (random.nextBoolean()) {
+        assertEquals(expected.add(value), set.add(value));
+      } else {
+        assertEquals(expected.remove(value), set.remove(value));
+      }
+    }
+
+    long[] values = set.toArray();
+    assertEquals(expected.size(), values.length);
+    int i = 0;
+    for (long value : expected) {
+      assertEquals(value, values[i++]);
+      assertTrue(set.contains(value));
+    }
+  }
+
+  /** Tests random edge adds and removes, answered the same from both sides. */
+  @Test
+  public void adjacency_random_matchesSetOfPairs() {
+    Random random = new Random(42);
+    AdjacencyIndex index = new AdjacencyIndex();
+    Set<String> expected = new HashSet<String>();
+    for (int i = 0; i < 10000; i++) {
+      long from = random.nextInt(30);
+      long to = random.nextInt(30);
+      if (random.nextBoolean()) {
+        assertEquals(expected.add(from + "/" + to), index.add(from, to));
+      } else {
+        assertEquals(expected.remove(from + "/" + to), index.remove(from, to));
+      }
+    }
+
+    assertEquals(expected.size(), index.size());
+    for (long from = 0; from < 30; from++) {
+      for (long to = 0; to < 30; to++) {
+        boolean edge = expected.contains(from + "/" + to);
+        assertEquals(edge, index.contains(from, to));
+        assertEquals(edge, Arrays.binarySearch(index.forward(from), to) >= 0);
+        assertEquals(edge, Arrays.binarySearch(index.backward(to), from) >= 0);
+      }
+    }
+  }
+}
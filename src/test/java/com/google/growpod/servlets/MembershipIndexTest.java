@@ -0,0 +1,209 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.google.growpod.controllers.MembershipIndex;
+import com.google.growpod.util.AdjacencyIndex;
+import com.google.growpod.util.RecentWrites;
+import com.google.growpod.util.RecentWrites.Relation;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.junit.jupiter.api.*;
+
+/** Tests the node-local membership index against a stand-in for the stored relations. */
+public final class MembershipIndexTest {
+
+  /** Memberships as stored, written by any instance, as {gardenId, userId}. */
+  private final List<long[]> stored = Collections.synchronizedList(new ArrayList<long[]>());
+
+  private MembershipIndex index;
+
+  /** Stores garden 1 with members 10 and 11, and builds an index over them. */
+  @BeforeEach
+  public void initTest() throws InterruptedException {
+    stored.add(new long[] {1, 10});
+    stored.add(new long[] {1, 11});
+    index = new MembershipIndex(this::scan, 60 * 1000, 120 * 1000);
+    awaitMembers(1);
+  }
+
+  /** Tests that the index is built in the background, answering nothing until then. */
+  @Test
+  public void members_notBuilt_nullUntilFirstBuild() throws InterruptedException {
+    CountDownLatch release = new CountDownLatch(1);
+    MembershipIndex fresh =
+        new MembershipIndex(
+            () -> {
+              try {
+                release.await(5, TimeUnit.SECONDS);
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+              return scan();
+            },
+            60 * 1000,
+            120 * 1000);
+
+    assertNull(fresh.members(1));
+    assertNull(fresh.gardensOf(10));
+    release.countDown();
+    for (int i = 0; i < 500 && fresh.members(1) == null; i++) {
+      Thread.sleep(10);
+    }
+    assertArrayEquals(new long[] {10, 11}, fresh.members(1));
+  }
+
+  /** Tests that a join through this instance shows at once, in both directions. */
+  @Test
+  public void added_join_visibleAtOnce() {
+    index.added(1, 12);
+
+    assertArrayEquals(new long[] {10, 11, 12}, index.members(1));
+    assertArrayEquals(new long[] {1}, index.gardensOf(12));
+  }
+
+  /** Tests that a leave through this instance shows at once, in both directions. */
+  @Test
+  public void removed_leave_goneAtOnce() {
+    index.removed(1, 10);
+
+    assertArrayEquals(new long[] {11}, index.members(1));
+    assertArrayEquals(new long[0], index.gardensOf(10));
+  }
+
+  /** Tests that another instance's join stays unknown until the index is rebuilt. */
+  @Test
+  public void members_remoteJoin_staleUntilRebuild() throws InterruptedException {
+    stored.add(new long[] {1, 12});
+
+    assertArrayEquals(new long[] {10, 11}, index.members(1));
+    index.invalidate();
+    long[] members = index.members(1);
+    for (int i = 0; i < 500 && (members == null || members.length != 3); i++) {
+      Thread.sleep(10);
+      members = index.members(1);
+    }
+    assertArrayEquals(new long[] {10, 11, 12}, members);
+  }
+
+  /** Tests that changes written while a rebuild scans are replayed onto the new index. */
+  @Test
+  public void rebuild_joinDuringScan_kept() throws InterruptedException {
+    CountDownLatch scanning = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Supplier<AdjacencyIndex> slowScan =
+        () -> {
+          AdjacencyIndex scanned = scan();
+          scanning.countDown();
+          try {
+            release.await(5, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          return scanned;
+        };
+    MembershipIndex slow = new MembershipIndex(slowScan, 60 * 1000, 120 * 1000);
+
+    assertNull(slow.members(1));
+    assertTrue(scanning.await(5, TimeUnit.SECONDS));
+    slow.added(1, 12);
+    release.countDown();
+    long[] members = slow.members(1);
+    for (int i = 0; i < 500 && members == null; i++) {
+      Thread.sleep(10);
+      members = slow.members(1);
+    }
+    assertArrayEquals(new long[] {10, 11, 12}, members);
+  }
+
+  /** Tests that an index older than its maximum age stops answering until it is rebuilt. */
+  @Test
+  public void members_olderThanMaxAge_nullUntilRebuilt() throws InterruptedException {
+    AtomicInteger scans = new AtomicInteger();
+    CountDownLatch release = new CountDownLatch(1);
+    MembershipIndex aging =
+        new MembershipIndex(
+            () -> {
+              if (scans.incrementAndGet() > 1) {
+                try {
+                  release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                }
+              }
+              return scan();
+            },
+            100,
+            200);
+    aging.members(1);
+    for (int i = 0; i < 500 && scans.get() == 0; i++) {
+      Thread.sleep(10);
+    }
+
+    Thread.sleep(300);
+    assertNull(aging.members(1));
+    release.countDown();
+    long[] members = aging.members(1);
+    for (int i = 0; i < 500 && members == null; i++) {
+      Thread.sleep(10);
+      members = aging.members(1);
+    }
+    assertArrayEquals(new long[] {10, 11}, members);
+  }
+
+  /**
+   * Tests that a user's join through another instance stays in their own list for as long as this
+   * instance's index may answer without it.
+   */
+  @Test
+  public void gardensOf_rebuiltBeforeRemoteJoin_overlayKeepsJoin() {
+    RecentWrites overlay = new RecentWrites();
+    long joinedAtMillis = System.currentTimeMillis();
+    overlay.record(Relation.USER_GARDENS, 12, 1, true, joinedAtMillis);
+
+    long[] stale = index.gardensOf(12);
+    long[] merged =
+        overlay.merge(
+            Relation.USER_GARDENS, 12, stale, joinedAtMillis + MembershipIndex.MAX_AGE_MILLIS);
+
+    assertArrayEquals(new long[0], stale);
+    assertArrayEquals(new long[] {1}, merged);
+    assertTrue(MembershipIndex.MAX_AGE_MILLIS < RecentWrites.TTL_MILLIS);
+  }
+
+  private AdjacencyIndex scan() {
+    AdjacencyIndex scanned = new AdjacencyIndex();
+    synchronized (stored) {
+      for (long[] membership : stored) {
+        scanned.add(membership[0], membership[1]);
+      }
+    }
+    return scanned;
+  }
+
+  private void awaitMembers(long gardenId) throws InterruptedException {
+    for (int i = 0; i < 500 && index.members(gardenId) == null; i++) {
+      Thread.sleep(10);
+    }
+    assertNotNull(index.members(gardenId));
+  }
+}
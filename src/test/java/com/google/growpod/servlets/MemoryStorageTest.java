@@ -0,0 +1,225 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import com.google.growpod.controllers.FindGardensDao;
+import com.google.growpod.controllers.GardenDao;
+import com.google.growpod.controllers.PlantDao;
+import com.google.growpod.controllers.UserDao;
+import com.google.growpod.data.BatchItemStatus;
+import com.google.growpod.data.BatchItemStatus.Outcome;
+import com.google.growpod.data.Garden;
+import com.google.growpod.data.GardenCounts;
+import com.google.growpod.data.Ids;
+import com.google.growpod.data.Plant;
+import com.google.growpod.data.User;
+import com.google.growpod.servlets.RepairCountsServlet;
+import com.google.growpod.storage.MemoryStorage;
+import com.google.growpod.util.RequestContext;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import javax.servlet.ServletException;
+import org.junit.jupiter.api.*;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/** Tests the DAOs running on memory storage. */
+public final class MemoryStorageTest {
+
+  private MemoryStorage storage;
+  private GardenDao gardenDao;
+  private UserDao userDao;
+  private FindGardensDao findGardensDao;
+
+  private long userId;
+  private long gardenId;
+
+  /** Creates a user administering a garden. */
+  @BeforeEach
+  public void initTest() {
+    storage = new MemoryStorage();
+    gardenDao = new GardenDao(storage);
+    userDao = new UserDao(storage);
+    findGardensDao = new FindGardensDao(storage);
+
+    User user = new User(0, "a@example.com", "A", "", "11201");
+    userDao.addToDatastore(user);
+    userId = user.getId();
+    gardenId = gardenDao.addGarden(new Garden(0, "x", "y", 1.0, 2.0, "11201", userId));
+  }
+
+  /** Tests that records are found by id and by their secondary indexes. */
+  @Test
+  public void gardens_afterAdd_foundByIdZipCodeAndAdmin() {
+    Garden garden = gardenDao.getGardenById(gardenId);
+
+    assertEquals(new Garden(gardenId, "x", "y", 1.0, 2.0, "11201", userId), garden);
+    assertEquals(Arrays.asList(garden), findGardensDao.getNearbyGardens("11201"));
+    assertTrue(findGardensDao.getNearbyGardens("10001").isEmpty());
+    assertArrayEquals(new long[] {gardenId}, userDao.getUserGardenAdminListById(userId));
+    assertNull(gardenDao.getGardenById(gardenId + 100));
+    assertNull(userDao.getUserGardenAdminListById(userId + 100));
+  }
+
+  /** Tests that a sample of gardens stops at its limit. */
+  @Test
+  public void getSomeGardens_limit_atMostLimit() {
+    gardenDao.addGarden(new Garden(0, "z", "w", 1.0, 2.0, "11201", userId));
+
+    assertEquals(1, findGardensDao.getSomeGardens(1).size());
+    assertEquals(2, findGardensDao.getSomeGardens(5).size());
+  }
+
+  /** Tests that a membership is recorded once, in both directions, and counted. */
+  @Test
+  public void addGarden_twice_oneMembership() {
+    assertTrue(userDao.addGarden(userId, gardenId));
+    assertTrue(userDao.addGarden(userId, gardenId));
+    assertFalse(userDao.addGarden(userId, gardenId + 100));
+
+    assertArrayEquals(new long[] {userId}, gardenDao.getGardenUserListById(gardenId));
+    assertArrayEquals(new long[] {gardenId}, userDao.getUserGardenListById(userId));
+    assertEquals(new GardenCounts(1, 0), gardenDao.getGardenCounts(gardenId));
+    assertTrue(gardenDao.isMember(gardenId, userId));
+
+    assertTrue(gardenDao.deleteUser(gardenId, userId));
+    assertFalse(userDao.deleteFromUserGardenList(userId, gardenId));
+    assertArrayEquals(new long[0], userDao.getUserGardenListById(userId));
+    assertEquals(new GardenCounts(0, 0), gardenDao.getGardenCounts(gardenId));
+    assertFalse(gardenDao.isMember(gardenId, userId));
+  }
+
+  /** Tests adding and deleting plants, singly and in batches, with their statuses. */
+  @Test
+  public void plants_addAndDelete_statusesAndCounts() {
+    long plantId = gardenDao.addPlant(gardenId, new Plant(0, "p", 1, "1"));
+    List<BatchItemStatus> added =
+        gardenDao.addPlants(gardenId, Arrays.asList(new Plant(0, "q", 2, "2"), null));
+
+    assertEquals(Outcome.CREATED, added.get(0).getStatus());
+    assertEquals(Outcome.INVALID, added.get(1).getStatus());
+    long otherId = added.get(0).getId();
+    assertEquals(2, gardenDao.getGardenPlantsById(gardenId).size());
+    assertEquals(new GardenCounts(0, 2), gardenDao.getGardenCounts(gardenId));
+
+    List<BatchItemStatus> deleted =
+        gardenDao.deletePlants(gardenId, new long[] {otherId, otherId, Ids.INVALID});
+    assertEquals(Outcome.DELETED, deleted.get(0).getStatus());
+    assertEquals(Outcome.NOT_FOUND, deleted.get(1).getStatus());
+    assertEquals(Outcome.INVALID, deleted.get(2).getStatus());
+
+    assertFalse(gardenDao.deletePlant(gardenId + 100, plantId));
+    assertTrue(gardenDao.deletePlant(gardenId, plantId));
+    assertFalse(gardenDao.deletePlant(gardenId, plantId));
+    assertArrayEquals(new long[0], gardenDao.getGardenPlantListById(gardenId));
+    assertEquals(new GardenCounts(0, 0), gardenDao.getGardenCounts(gardenId));
+  }
+
+  /** Tests that callers cannot change stored records through the objects they hold. */
+  @Test
+  public void getGardenById_modifiedCopy_storedGardenUnchanged() {
+    gardenDao.getGardenById(gardenId).setName("changed");
+
+    assertEquals("x", gardenDao.getGardenById(gardenId).getName());
+  }
+
+  /** Tests that POST: /repair-counts runs on the configured storage rather than on Datastore. */
+  @Test
+  public void repairCounts_memoryStorage_usesStorage() throws IOException, ServletException {
+    RepairCountsServlet servlet = new RepairCountsServlet();
+    servlet.setStorage(storage);
+    MockHttpServletRequest request = new MockHttpServletRequest("POST", "/repair-counts");
+    request.addUserRole("admin");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    servlet.doPost(request, response);
+
+    assertEquals("{\"gardens\":1}", response.getContentAsString().trim());
+  }
+
+  /** Tests that /repair-counts rebuilds nothing for a GET, or for a caller who is not an admin. */
+  @Test
+  public void repairCounts_notAdminPost_refused() throws IOException, ServletException {
+    MemoryStorage spied = spy(storage);
+    RepairCountsServlet servlet = new RepairCountsServlet();
+    servlet.setStorage(spied);
+    MockHttpServletRequest get = new MockHttpServletRequest("GET", "/repair-counts");
+    get.addUserRole("admin");
+    MockHttpServletResponse getResponse = new MockHttpServletResponse();
+    MockHttpServletResponse postResponse = new MockHttpServletResponse();
+
+    servlet.service(get, getResponse);
+    servlet.doPost(new MockHttpServletRequest("POST", "/repair-counts"), postResponse);
+
+    assertEquals(MockHttpServletResponse.SC_METHOD_NOT_ALLOWED, getResponse.getStatus());
+    assertEquals(MockHttpServletResponse.SC_FORBIDDEN, postResponse.getStatus());
+    verify(spied, never()).rebuildCounts();
+  }
+
+  /** Tests that a caller modifying a record in a request changes no other reader's copy. */
+  @Test
+  public void request_modifiedRecord_otherReadersUnchanged() {
+    MemoryStorage spied = spy(storage);
+    GardenDao requestGardenDao = new GardenDao(spied);
+    PlantDao requestPlantDao = new PlantDao(spied);
+    RequestContext.begin("/garden", 10000, false);
+    try {
+      Plant added = new Plant(0, "p", 1, "1");
+      long plantId = requestGardenDao.addPlant(gardenId, added);
+      added.setNickname("changed after adding");
+      requestGardenDao.getGardenById(gardenId).setName("changed");
+      requestPlantDao.getPlantById(plantId).setCount(99);
+
+      assertEquals("x", new GardenDao(spied).getGardenById(gardenId).getName());
+      assertEquals("p", requestPlantDao.getPlantById(plantId).getNickname());
+      assertEquals(1, requestPlantDao.getPlantById(plantId).getCount());
+      verify(spied, times(1)).getGarden(gardenId);
+    } finally {
+      RequestContext.end();
+    }
+  }
+
+  /** Tests that a request loads each record once, across DAOs, and reads its own writes. */
+  @Test
+  public void request_repeatedReads_loadedOnceAndSeeWrites() {
+    MemoryStorage spied = spy(storage);
+    GardenDao requestGardenDao = new GardenDao(spied);
+    PlantDao requestPlantDao = new PlantDao(spied);
+    RequestContext.begin("/garden", 10000, false);
+    try {
+      Garden garden = requestGardenDao.getGardenById(gardenId);
+      long plantId = requestGardenDao.addPlant(gardenId, new Plant(0, "p", 1, "1"));
+
+      assertEquals(garden, new GardenDao(spied).getGardenById(gardenId));
+      assertArrayEquals(new long[] {plantId}, requestGardenDao.getGardenPlantListById(gardenId));
+      assertEquals("p", requestPlantDao.getPlantById(plantId).getNickname());
+      assertTrue(requestGardenDao.deletePlant(gardenId, plantId));
+      assertNull(requestPlantDao.getPlantById(plantId));
+      assertArrayEquals(new long[0], requestGardenDao.getGardenPlantListById(gardenId));
+
+      verify(spied, times(1)).getGarden(gardenId);
+      verify(spied, never()).getPlant(plantId);
+    } finally {
+      RequestContext.end();
+    }
+    // Outside the request, every read goes to storage again.
+    requestGardenDao.getGardenById(gardenId);
+    verify(spied, times(2)).getGarden(gardenId);
+  }
+}
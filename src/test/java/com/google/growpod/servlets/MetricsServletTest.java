@@ -0,0 +1,179 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.google.growpod.servlets.MetricsServlet;
+import com.google.growpod.util.SingleFlight;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.*;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/** Tests Metrics servlet response behavior, as single-flight groups record calls. */
+public final class MetricsServletTest {
+
+  private MetricsServlet servlet; // Class to test
+
+  private static final int CALLERS = 8;
+
+  /** Initializes servlet object. */
+  @BeforeEach
+  public void initTest() {
+    servlet = new MetricsServlet();
+  }
+
+  /** Tests that concurrent identical calls share one call, and show up in GET: /metrics. */
+  @Test
+  public void doGet_coalescedCalls_reportsSharedCalls() throws Exception {
+    SingleFlight flights = new SingleFlight("test-shared", 10000);
+    AtomicInteger runs = new AtomicInteger();
+    CountDownLatch release = new CountDownLatch(1);
+
+    ExecutorService executor = Executors.newFixedThreadPool(CALLERS);
+    List<Future<String>> results = new ArrayList<Future<String>>();
+    results.add(
+        executor.submit(
+            () ->
+                flights.execute(
+                    "Garden/1",
+                    () -> {
+                      runs.incrementAndGet();
+                      await(release);
+                      return "garden";
+                    })));
+    // Waits for the first call to be in flight before the others arrive.
+    while (runs.get() == 0) {
+      Thread.sleep(1);
+    }
+    for (int i = 1; i < CALLERS; i++) {
+      results.add(
+          executor.submit(
+              () ->
+                  flights.execute(
+                      "Garden/1",
+                      () -> {
+                        runs.incrementAndGet();
+                        return "garden";
+                      })));
+    }
+    JsonObject shared = readMetrics().getAsJsonObject("counters");
+    while (shared.get("singleflight.test-shared.shared").getAsLong() < CALLERS - 1) {
+      Thread.sleep(1);
+      shared = readMetrics().getAsJsonObject("counters");
+    }
+    release.countDown();
+    for (Future<String> result : results) {
+      assertEquals("garden", result.get(10, TimeUnit.SECONDS));
+    }
+    executor.shutdown();
+
+    assertEquals(1, runs.get());
+    JsonObject json = readMetrics();
+    assertEquals(
+        CALLERS,
+        json.getAsJsonObject("counters").get("singleflight.test-shared.calls").getAsLong());
+    JsonObject keyStats =
+        json.getAsJsonObject("sections")
+            .getAsJsonObject("singleflight.test-shared")
+            .getAsJsonObject("Garden/1");
+    assertEquals(CALLERS - 1, keyStats.get("shared").getAsLong());
+  }
+
+  /** Tests that a caller waiting longer than the bound makes its own call. */
+  @Test
+  public void doGet_slowCall_reportsTimeout() throws Exception {
+    SingleFlight flights = new SingleFlight("test-timeout", 10);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    Future<String> slow =
+        executor.submit(
+            () ->
+                flights.execute(
+                    "Plant/1",
+                    () -> {
+                      started.countDown();
+                      await(release);
+                      return "slow";
+                    }));
+    started.await();
+    assertEquals("fast", flights.execute("Plant/1", () -> "fast"));
+    release.countDown();
+    assertEquals("slow", slow.get(10, TimeUnit.SECONDS));
+    executor.shutdown();
+
+    JsonObject counters = readMetrics().getAsJsonObject("counters");
+    assertEquals(1, counters.get("singleflight.test-timeout.timeouts").getAsLong());
+  }
+
+  /** Tests that a key turning hot after many others have been called is still reported. */
+  @Test
+  public void doGet_keyHotAfterManyOthers_reportedByName() throws IOException {
+    SingleFlight flights = new SingleFlight("test-late", 10000);
+    for (int i = 0; i < 5000; i++) {
+      flights.execute("Garden/" + i, () -> "cold");
+    }
+    for (int i = 0; i < 5; i++) {
+      flights.execute("Garden/hot", () -> "hot");
+    }
+
+    JsonObject keyStats =
+        readMetrics()
+            .getAsJsonObject("sections")
+            .getAsJsonObject("singleflight.test-late")
+            .getAsJsonObject("Garden/hot");
+    assertEquals(5, keyStats.get("calls").getAsLong());
+  }
+
+  /** Tests that a completed call's result is not reused. */
+  @Test
+  public void doGet_sequentialCalls_reportsNoSharing() throws IOException {
+    SingleFlight flights = new SingleFlight("test-sequential", 10000);
+    assertEquals("first", flights.execute("User/1", () -> "first"));
+    assertEquals("second", flights.execute("User/1", () -> "second"));
+
+    JsonObject counters = readMetrics().getAsJsonObject("counters");
+    assertEquals(0, counters.get("singleflight.test-sequential.shared").getAsLong());
+  }
+
+  private JsonObject readMetrics() throws IOException {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/metrics");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    servlet.doGet(request, response);
+    assertEquals("application/json;", response.getContentType());
+    return JsonParser.parseString(response.getContentAsString()).getAsJsonObject();
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
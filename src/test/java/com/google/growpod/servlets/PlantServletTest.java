@@ -17,10 +17,14 @@ package com.google.growpod.tests;
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
 
+import com.google.growpod.catalog.PlantTypeCatalog;
 import com.google.growpod.controllers.PlantDao;
 import com.google.growpod.data.Plant;
+import com.google.growpod.data.PlantType;
 import com.google.growpod.servlets.PlantServlet;
 import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import java.io.IOException;
 import org.junit.jupiter.api.*;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -39,7 +43,7 @@ public final class PlantServletTest {
   @Mock private PlantDao dao;
 
   /** Test values. */
-  private final Plant TEST_PLANT = new Plant("0", "x", 0, "0");
+  private final Plant TEST_PLANT = new Plant(1, "x", 0, "0");
 
   /** Initializes servlet object and mock dao. */
   @BeforeEach
@@ -51,13 +55,13 @@ public final class PlantServletTest {
   /** Tests successful query for GET: /plant/{id} method. */
   @Test
   public void doGet_successfulPlantQuery_successfulResult() throws IOException {
-    String testUrl = "/plant/0";
+    String testUrl = "/plant/1";
 
     // Mocks
     MockHttpServletRequest request = new MockHttpServletRequest("GET", testUrl);
     MockHttpServletResponse response = new MockHttpServletResponse();
 
-    when(dao.getPlantById("0")).thenReturn(TEST_PLANT);
+    when(dao.getPlantById(1L)).thenReturn(TEST_PLANT);
 
     servlet.doGet(request, response);
 
@@ -65,22 +69,59 @@ public final class PlantServletTest {
     assertEquals(TEST_PLANT, new Gson().fromJson(response.getContentAsString(), Plant.class));
   }
 
+  /** Tests GET: /plant/{id}?expand=plant-type includes the plant's catalog entry. */
+  @Test
+  public void doGet_expandPlantType_includesPlantType() throws IOException {
+    String testUrl = "/plant/1";
+
+    // Mocks
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", testUrl);
+    request.addParameter("expand", "plant-type");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    Plant plant = new Plant(1, "x", 1, "5");
+    when(dao.getPlantById(1L)).thenReturn(plant);
+
+    servlet.doGet(request, response);
+
+    JsonObject json = JsonParser.parseString(response.getContentAsString()).getAsJsonObject();
+    assertEquals(plant, new Gson().fromJson(json, Plant.class));
+    assertEquals(
+        PlantTypeCatalog.getInstance().get("5"),
+        new Gson().fromJson(json.get("plantType"), PlantType.class));
+  }
+
   /** Tests failed query for GET: /plant/{id} method. */
   @Test
   public void doGet_invalidIdPlantQuery_returns404() throws IOException {
-    String testUrl = "/plant/0";
+    String testUrl = "/plant/1";
 
     // Mocks
     MockHttpServletRequest request = new MockHttpServletRequest("GET", testUrl);
     MockHttpServletResponse response = new MockHttpServletResponse();
 
-    when(dao.getPlantById("0")).thenReturn(null);
+    when(dao.getPlantById(1L)).thenReturn(null);
 
     servlet.doGet(request, response);
 
     assertEquals(MockHttpServletResponse.SC_NOT_FOUND, response.getStatus());
   }
 
+  /** Tests malformed id for GET: /plant/{id} method. */
+  @Test
+  public void doGet_malformedIdPlantQuery_returns400() throws IOException {
+    String testUrl = "/plant/0";
+
+    // Mocks
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", testUrl);
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    servlet.doGet(request, response);
+
+    assertEquals(MockHttpServletResponse.SC_BAD_REQUEST, response.getStatus());
+    verifyNoInteractions(dao);
+  }
+
   /** Tests invalid method on GET. */
   @Test
   public void doGet_invalidUrlQuery_returns405() throws IOException {
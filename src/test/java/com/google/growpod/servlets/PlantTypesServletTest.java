@@ -0,0 +1,155 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.google.growpod.catalog.PlantTypeCatalog;
+import com.google.growpod.data.PlantType;
+import com.google.growpod.servlets.PlantTypesServlet;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.*;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/** Tests Plant types servlet response behavior, based on different request URL and catalogs. */
+public final class PlantTypesServletTest {
+
+  private PlantTypesServlet servlet; // Class to test
+
+  /** Test values. */
+  private final PlantType TOMATO = new PlantType("1", "Tomato", "Solanum lycopersicum");
+
+  private final PlantType CHERRY_TOMATO =
+      new PlantType("2", "Cherry Tomato", "Solanum lycopersicum var. cerasiforme");
+
+  private final PlantType THYME = new PlantType("3", "Thyme", "Thymus vulgaris");
+
+  private final Type LIST_TYPE = new TypeToken<List<PlantType>>() {}.getType();
+
+  /** Initializes servlet object and test catalog. */
+  @BeforeEach
+  public void initTest() throws IOException {
+    servlet = new PlantTypesServlet();
+    String catalog =
+        "# test catalog\n"
+            + "1\tTomato\tSolanum lycopersicum\n"
+            + "2\tCherry Tomato\tSolanum lycopersicum var. cerasiforme\n"
+            + "3\tThyme\tThymus vulgaris\n";
+    PlantTypeCatalog.setInstance(PlantTypeCatalog.parse(new StringReader(catalog)));
+  }
+
+  /** Restores the bundled catalog. */
+  @AfterEach
+  public void cleanUp() {
+    PlantTypeCatalog.setInstance(null);
+  }
+
+  /** Tests GET: /plant-types?prefix= matches name words case-insensitively. */
+  @Test
+  public void doGet_prefixQuery_returnsMatches() throws IOException {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/plant-types");
+    request.addParameter("prefix", "TOM");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    servlet.doGet(request, response);
+
+    assertEquals("application/json;", response.getContentType());
+    List<PlantType> matches = new Gson().fromJson(response.getContentAsString(), LIST_TYPE);
+    assertEquals(2, matches.size());
+    assertTrue(matches.containsAll(Arrays.asList(TOMATO, CHERRY_TOMATO)));
+  }
+
+  /** Tests GET: /plant-types?prefix= matches scientific names, each type once. */
+  @Test
+  public void doGet_scientificNamePrefix_returnsEachTypeOnce() throws IOException {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/plant-types");
+    request.addParameter("prefix", "solanum");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    servlet.doGet(request, response);
+
+    List<PlantType> matches = new Gson().fromJson(response.getContentAsString(), LIST_TYPE);
+    assertEquals(Arrays.asList(TOMATO, CHERRY_TOMATO), matches);
+  }
+
+  /** Tests GET: /plant-types?limit= caps the number of matches. */
+  @Test
+  public void doGet_limit_capsMatches() throws IOException {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/plant-types");
+    request.addParameter("prefix", "t");
+    request.addParameter("limit", "1");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    servlet.doGet(request, response);
+
+    List<PlantType> matches = new Gson().fromJson(response.getContentAsString(), LIST_TYPE);
+    assertEquals(1, matches.size());
+  }
+
+  /** Tests GET: /plant-types with a malformed limit. */
+  @Test
+  public void doGet_malformedLimit_returns400() throws IOException {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/plant-types");
+    request.addParameter("limit", "0");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    servlet.doGet(request, response);
+
+    assertEquals(MockHttpServletResponse.SC_BAD_REQUEST, response.getStatus());
+  }
+
+  /** Tests GET: /plant-types/{id} method. */
+  @Test
+  public void doGet_plantTypeQuery_successfulResult() throws IOException {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/plant-types/3");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    servlet.doGet(request, response);
+
+    assertEquals(THYME, new Gson().fromJson(response.getContentAsString(), PlantType.class));
+  }
+
+  /** Tests GET: /plant-types/{id} with an unknown id. */
+  @Test
+  public void doGet_unknownPlantType_returns404() throws IOException {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/plant-types/99");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    servlet.doGet(request, response);
+
+    assertEquals(MockHttpServletResponse.SC_NOT_FOUND, response.getStatus());
+  }
+
+  /** Tests POST: /plant-types/reload swaps in the bundled catalog. */
+  @Test
+  public void doPost_reload_swapsCatalog() throws IOException {
+    MockHttpServletRequest request = new MockHttpServletRequest("POST", "/plant-types/reload");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    servlet.doPost(request, response);
+
+    assertTrue(PlantTypeCatalog.getInstance().size() > 3);
+    assertEquals(
+        "{\"size\":" + PlantTypeCatalog.getInstance().size() + "}",
+        response.getContentAsString().trim());
+  }
+}
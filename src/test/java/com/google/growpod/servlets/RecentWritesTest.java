@@ -0,0 +1,158 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import com.google.growpod.controllers.GardenDao;
+import com.google.growpod.controllers.UserDao;
+import com.google.growpod.data.Garden;
+import com.google.growpod.data.User;
+import com.google.growpod.filters.RequestContextFilter;
+import com.google.growpod.storage.Storage;
+import com.google.growpod.util.RecentWrites;
+import com.google.growpod.util.RecentWrites.Relation;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import org.junit.jupiter.api.*;
+import org.springframework.mock.web.MockFilterConfig;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockHttpSession;
+
+/** Tests the read-your-writes overlay of relation lists. */
+public final class RecentWritesTest {
+
+  /** Tests that recent additions are appended and recent removals left out. */
+  @Test
+  public void merge_recentWrites_adjustsList() {
+    RecentWrites overlay = new RecentWrites();
+    overlay.record(Relation.GARDEN_PLANTS, 1, 7, true, 0);
+    overlay.record(Relation.GARDEN_PLANTS, 1, 2, false, 0);
+    overlay.record(Relation.GARDEN_PLANTS, 9, 8, true, 0);
+
+    assertArrayEquals(
+        new long[] {1, 3, 7}, overlay.merge(Relation.GARDEN_PLANTS, 1, new long[] {1, 2, 3}, 1));
+    assertArrayEquals(new long[] {2}, overlay.merge(Relation.GARDEN_MEMBERS, 1, new long[] {2}, 1));
+  }
+
+  /** Tests that a list already reflecting the writes is returned as is. */
+  @Test
+  public void merge_caughtUp_returnsSameList() {
+    RecentWrites overlay = new RecentWrites();
+    overlay.record(Relation.USER_GARDENS, 1, 5, true, 0);
+    long[] ids = {5};
+
+    assertSame(ids, overlay.merge(Relation.USER_GARDENS, 1, ids, 1));
+  }
+
+  /** Tests that a later write of the same id replaces an earlier one. */
+  @Test
+  public void record_sameId_keepsLatest() {
+    RecentWrites overlay = new RecentWrites();
+    overlay.record(Relation.GARDEN_MEMBERS, 1, 5, true, 0);
+    overlay.record(Relation.GARDEN_MEMBERS, 1, 5, false, 1);
+
+    assertEquals(1, overlay.size());
+    assertArrayEquals(new long[0], overlay.merge(Relation.GARDEN_MEMBERS, 1, new long[] {5}, 2));
+  }
+
+  /** Tests that writes drop out of the overlay once they expire. */
+  @Test
+  public void merge_expiredWrites_ignored() {
+    RecentWrites overlay = new RecentWrites();
+    overlay.record(Relation.GARDEN_PLANTS, 1, 7, true, 0);
+
+    assertArrayEquals(
+        new long[0],
+        overlay.merge(Relation.GARDEN_PLANTS, 1, new long[0], RecentWrites.TTL_MILLIS));
+    assertEquals(0, overlay.size());
+  }
+
+  /**
+   * Tests that a join made in one request shows in the next request of the same session, while the
+   * query still misses it, and not in another session's.
+   */
+  @Test
+  public void doFilter_joinThenList_readsOwnWrite() throws IOException, ServletException {
+    Storage storage = mock(Storage.class);
+    when(storage.getUser(1)).thenReturn(mock(User.class));
+    when(storage.getGarden(5)).thenReturn(mock(Garden.class));
+    when(storage.getUserGardenIds(1)).thenReturn(new long[0]);
+    when(storage.getGardenMemberIds(5)).thenReturn(new long[0]);
+    UserDao userDao = new UserDao(storage);
+    GardenDao gardenDao = new GardenDao(storage);
+    RequestContextFilter filter = new RequestContextFilter();
+    filter.init(new MockFilterConfig());
+    MockHttpSession session = new MockHttpSession();
+    AtomicReference<long[]> gardens = new AtomicReference<long[]>();
+    AtomicReference<long[]> members = new AtomicReference<long[]>();
+
+    send(filter, "POST", session, (request, response) -> userDao.addGarden(1, 5));
+    FilterChain list =
+        (request, response) -> {
+          gardens.set(userDao.getUserGardenListById(1));
+          members.set(gardenDao.getGardenUserListById(5));
+        };
+    send(filter, "GET", session, list);
+
+    assertArrayEquals(new long[] {5}, gardens.get());
+    assertArrayEquals(new long[] {1}, members.get());
+    send(filter, "GET", new MockHttpSession(), list);
+    assertArrayEquals(new long[0], gardens.get());
+  }
+
+  /** Tests that the overlay is saved to the session after a write, and not on later reads. */
+  @Test
+  public void doFilter_afterSave_notSavedAgain() throws IOException, ServletException {
+    Storage storage = mock(Storage.class);
+    when(storage.getUser(1)).thenReturn(mock(User.class));
+    when(storage.getGarden(5)).thenReturn(mock(Garden.class));
+    when(storage.getUserGardenIds(1)).thenReturn(new long[0]);
+    UserDao userDao = new UserDao(storage);
+    RequestContextFilter filter = new RequestContextFilter();
+    filter.init(new MockFilterConfig());
+    AtomicInteger saves = new AtomicInteger();
+    MockHttpSession session =
+        new MockHttpSession() {
+          @Override
+          public void setAttribute(String name, Object value) {
+            saves.incrementAndGet();
+            super.setAttribute(name, value);
+          }
+        };
+
+    send(filter, "POST", session, (request, response) -> userDao.addGarden(1, 5));
+    assertEquals(1, saves.get());
+    send(filter, "GET", session, (request, response) -> userDao.getUserGardenListById(1));
+    send(filter, "GET", session, (request, response) -> userDao.getUserGardenListById(1));
+
+    assertEquals(1, saves.get());
+  }
+
+  private static void send(
+      RequestContextFilter filter, String method, MockHttpSession session, FilterChain chain)
+      throws IOException, ServletException {
+    MockHttpServletRequest request = new MockHttpServletRequest(method, "/user/1/garden-list");
+    request.setServletPath("/user");
+    request.setPathInfo("/1/garden-list");
+    request.setSession(session);
+    filter.doFilter(request, new MockHttpServletResponse(), chain);
+  }
+}
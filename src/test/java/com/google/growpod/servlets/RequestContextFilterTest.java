@@ -0,0 +1,181 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.google.growpod.filters.RequestContextFilter;
+import com.google.growpod.util.Metrics;
+import com.google.growpod.util.RequestContext;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import org.junit.jupiter.api.*;
+import org.springframework.mock.web.MockFilterConfig;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/**
+ * Tests Request context filter budgets and consistency, and responses once a budget runs out or
+ * data is stale.
+ */
+public final class RequestContextFilterTest {
+
+  private RequestContextFilter filter; // Class to test
+
+  /** Initializes the filter with an exhausted budget for /garden. */
+  @BeforeEach
+  public void initTest() throws ServletException {
+    filter = new RequestContextFilter();
+    MockFilterConfig config = new MockFilterConfig();
+    config.addInitParameter("defaultBudgetMillis", "60000");
+    config.addInitParameter("routeBudgets", "/garden=0,/find-gardens=2000");
+    filter.init(config);
+  }
+
+  /** Tests that a request gets its route's budget, and that it ends with the request. */
+  @Test
+  public void doFilter_routeBudget_setsDeadline() throws IOException, ServletException {
+    AtomicLong remaining = new AtomicLong();
+    FilterChain chain = (request, response) -> remaining.set(RequestContext.remainingMillis());
+
+    MockHttpServletResponse response = send("/find-gardens", chain);
+
+    assertEquals(MockHttpServletResponse.SC_OK, response.getStatus());
+    assertTrue(remaining.get() > 1000 && remaining.get() <= 2000, "remaining: " + remaining);
+    assertNull(RequestContext.current());
+  }
+
+  /** Tests that routes without a budget of their own get the default one. */
+  @Test
+  public void doFilter_noRouteBudget_usesDefault() throws IOException, ServletException {
+    AtomicLong remaining = new AtomicLong();
+    FilterChain chain = (request, response) -> remaining.set(RequestContext.remainingMillis());
+
+    send("/user", chain);
+
+    assertTrue(remaining.get() > 59000, "remaining: " + remaining);
+  }
+
+  /** Tests that work checking an exhausted budget fails fast with 503. */
+  @Test
+  public void doFilter_budgetExhausted_returns503() throws IOException, ServletException {
+    FilterChain chain =
+        (request, response) -> {
+          RequestContext.checkDeadline();
+          fail("Deadline not enforced");
+        };
+
+    MockHttpServletResponse response = send("/garden", chain);
+
+    assertEquals(MockHttpServletResponse.SC_SERVICE_UNAVAILABLE, response.getStatus());
+    assertNull(RequestContext.current());
+  }
+
+  /** Tests that responses built from stale data say so. */
+  @Test
+  public void doFilter_staleData_addsWarning() throws IOException, ServletException {
+    FilterChain chain =
+        (request, response) -> {
+          RequestContext.markStale(125000);
+          response.getWriter().println("{}");
+        };
+
+    MockHttpServletResponse response = send("/user", chain);
+
+    assertEquals(MockHttpServletResponse.SC_OK, response.getStatus());
+    assertEquals("110 - \"Response is Stale\"", response.getHeader("Warning"));
+    assertEquals("125", response.getHeader("Age"));
+  }
+
+  /** Tests that fresh responses carry no warning. */
+  @Test
+  public void doFilter_freshData_noWarning() throws IOException, ServletException {
+    FilterChain chain = (request, response) -> response.getWriter().println("{}");
+
+    MockHttpServletResponse response = send("/user", chain);
+
+    assertNull(response.getHeader("Warning"));
+  }
+
+  /** Tests that only GETs on latency-tolerant paths read with eventual consistency. */
+  @Test
+  public void doFilter_routeConsistency_choosesMode() throws IOException, ServletException {
+    AtomicBoolean eventual = new AtomicBoolean();
+    FilterChain chain = (request, response) -> eventual.set(RequestContext.eventualReads());
+    String[][] cases = {
+      {"GET", "/find-gardens", null, "true"},
+      {"GET", "/user", "/5", "true"},
+      {"GET", "/user", "/current", "false"},
+      {"GET", "/user", "/current/garden-list", "false"},
+      {"GET", "/user", "/5/garden-list", "false"},
+      {"GET", "/garden", "/5", "false"},
+      {"POST", "/user", "/5", "false"}
+    };
+    for (String[] params : cases) {
+      MockHttpServletRequest request = new MockHttpServletRequest(params[0], params[1]);
+      request.setServletPath(params[1]);
+      request.setPathInfo(params[2]);
+
+      filter.doFilter(request, new MockHttpServletResponse(), chain);
+
+      assertEquals(
+          Boolean.parseBoolean(params[3]), eventual.get(), params[0] + " " + params[1] + params[2]);
+    }
+    assertFalse(RequestContext.eventualReads());
+  }
+
+  /** Tests that the consistency table can be reconfigured, and that it is reported. */
+  @Test
+  public void init_routeConsistency_overridesTable() throws IOException, ServletException {
+    MockFilterConfig config = new MockFilterConfig();
+    config.addInitParameter("routeConsistency", "/garden/*=eventual");
+    filter.init(config);
+    AtomicBoolean eventual = new AtomicBoolean();
+    FilterChain chain = (request, response) -> eventual.set(RequestContext.eventualReads());
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/garden/5");
+    request.setServletPath("/garden");
+    request.setPathInfo("/5");
+
+    filter.doFilter(request, new MockHttpServletResponse(), chain);
+
+    assertTrue(eventual.get());
+    send("/find-gardens", chain);
+    assertFalse(eventual.get());
+    Map<?, ?> report = (Map<?, ?>) Metrics.sections().get("consistency");
+    assertEquals("eventual", report.get("/garden/*"));
+  }
+
+  /** Tests that an unknown consistency mode fails the filter's initialization. */
+  @Test
+  public void init_unknownConsistency_fails() {
+    MockFilterConfig config = new MockFilterConfig();
+    config.addInitParameter("routeConsistency", "/garden=sometimes");
+
+    assertThrows(ServletException.class, () -> new RequestContextFilter().init(config));
+  }
+
+  private MockHttpServletResponse send(String route, FilterChain chain)
+      throws IOException, ServletException {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", route);
+    request.setServletPath(route);
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    filter.doFilter(request, response, chain);
+    return response;
+  }
+}
@@ -0,0 +1,168 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import com.google.growpod.controllers.FindGardensDao;
+import com.google.growpod.data.Garden;
+import com.google.growpod.search.GardenSearchIndex;
+import com.google.growpod.servlets.SearchGardensServlet;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/** Tests Search gardens servlet response behavior, based on different queries and dao responses. */
+@ExtendWith(MockitoExtension.class)
+public final class SearchGardensServletTest {
+
+  private SearchGardensServlet servlet; // Class to test
+
+  /** Mock services. */
+  @Mock private FindGardensDao dao;
+
+  /** Test values. */
+  private final Garden TOMATO_GARDEN =
+      new Garden(1, "Tomato Garden", "Heirloom tomatoes and basil", 0.0, 0.0, "11201", 1);
+
+  private final Garden HERB_GARDEN =
+      new Garden(2, "Herb Corner", "Basil, mint and a few tomato plants", 0.0, 0.0, "11201", 1);
+
+  private final Garden FLOWER_GARDEN =
+      new Garden(3, "Flower Patch", "Sunflowers and tomato seedlings", 0.0, 0.0, "10001", 1);
+
+  private final List<Garden> ALL_GARDENS = Arrays.asList(TOMATO_GARDEN, HERB_GARDEN, FLOWER_GARDEN);
+
+  /** Initializes servlet object, mock dao and an index of the test gardens. */
+  @BeforeEach
+  public void initTest() {
+    servlet = new SearchGardensServlet();
+    servlet.setDao(dao);
+    GardenSearchIndex index = new GardenSearchIndex();
+    index.rebuild(ALL_GARDENS);
+    servlet.setIndex(index);
+  }
+
+  /** Tests GET: /search-gardens?q= ranks name matches first. */
+  @Test
+  public void doGet_textQuery_ranksNameMatchesFirst() throws IOException {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/search-gardens");
+    request.addParameter("q", "tomato");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    // Returns the gardens in the order the servlet asks for them.
+    when(dao.getGardensById(any()))
+        .thenAnswer(
+            invocation -> {
+              List<Garden> gardens = new ArrayList<Garden>();
+              for (long id : invocation.<long[]>getArgument(0)) {
+                gardens.add(ALL_GARDENS.get((int) id - 1));
+              }
+              return gardens;
+            });
+
+    servlet.doGet(request, response);
+
+    assertEquals("application/json;", response.getContentType());
+    JsonObject json = JsonParser.parseString(response.getContentAsString()).getAsJsonObject();
+    assertEquals(3, json.get("total").getAsInt());
+    JsonArray gardens = json.getAsJsonArray("gardens");
+    assertEquals(TOMATO_GARDEN, new Gson().fromJson(gardens.get(0), Garden.class));
+  }
+
+  /** Tests GET: /search-gardens?q=&zip= only returns gardens in that zip code. */
+  @Test
+  public void doGet_zipQuery_filtersByZip() throws IOException {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/search-gardens");
+    request.addParameter("q", "tomato");
+    request.addParameter("zip", "10001");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    when(dao.getGardensById(new long[] {3})).thenReturn(Arrays.asList(FLOWER_GARDEN));
+
+    servlet.doGet(request, response);
+
+    JsonObject json = JsonParser.parseString(response.getContentAsString()).getAsJsonObject();
+    assertEquals(1, json.get("total").getAsInt());
+  }
+
+  /** Tests GET: /search-gardens?q=&offset=&limit= pages through the ranking. */
+  @Test
+  public void doGet_pagedQuery_returnsPage() throws IOException {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/search-gardens");
+    request.addParameter("q", "basil");
+    request.addParameter("offset", "1");
+    request.addParameter("limit", "1");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    when(dao.getGardensById(any())).thenReturn(Arrays.asList(HERB_GARDEN));
+
+    servlet.doGet(request, response);
+
+    JsonObject json = JsonParser.parseString(response.getContentAsString()).getAsJsonObject();
+    assertEquals(2, json.get("total").getAsInt());
+    assertEquals(1, json.getAsJsonArray("gardens").size());
+  }
+
+  /** Tests GET: /search-gardens with no matches does not query Datastore. */
+  @Test
+  public void doGet_noMatches_returnsEmptyPage() throws IOException {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/search-gardens");
+    request.addParameter("q", "cactus");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    servlet.doGet(request, response);
+
+    JsonObject json = JsonParser.parseString(response.getContentAsString()).getAsJsonObject();
+    assertEquals(0, json.get("total").getAsInt());
+    verify(dao, never()).getGardensById(any());
+  }
+
+  /** Tests GET: /search-gardens without a query. */
+  @Test
+  public void doGet_missingQuery_returns400() throws IOException {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/search-gardens");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    servlet.doGet(request, response);
+
+    assertEquals(MockHttpServletResponse.SC_BAD_REQUEST, response.getStatus());
+  }
+
+  /** Tests that garden writes are searchable without a rebuild. */
+  @Test
+  public void doGet_afterPut_findsNewGarden() throws IOException {
+    GardenSearchIndex index = new GardenSearchIndex();
+    index.rebuild(ALL_GARDENS);
+    index.put(new Garden(4, "Cactus Club", "Desert plants", 0.0, 0.0, "11201", 1));
+    index.remove(1);
+    servlet.setIndex(index);
+
+    assertEquals(4, index.search("cactus", null, 0, 10).getHits().get(0).getGardenId());
+    assertEquals(2, index.search("tomato", null, 0, 10).getTotal());
+  }
+}
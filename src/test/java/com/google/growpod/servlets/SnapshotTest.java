@@ -0,0 +1,109 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.google.growpod.data.Garden;
+import com.google.growpod.data.Plant;
+import com.google.growpod.data.User;
+import com.google.growpod.snapshot.Snapshot;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Tests Snapshot files, which new instances serve reads from before reaching Datastore. */
+public final class SnapshotTest {
+
+  private static final Garden GARDEN =
+      new Garden(1, "Community Garden", null, 40.7, -74.0, "10001", 3);
+  private static final Plant PLANT = new Plant(2, "Tomatoes", 4, "5");
+  private static final User USER = new User(3, "grower@example.com", "Grower", "Bio ☘", "10001");
+
+  @TempDir Path directory;
+
+  private Snapshot snapshot;
+
+  @BeforeEach
+  public void initTest() {
+    Map<Long, long[]> members = new HashMap<Long, long[]>();
+    members.put(1L, new long[] {3});
+    Map<Long, long[]> plants = new HashMap<Long, long[]>();
+    plants.put(1L, new long[] {2});
+    Map<Long, long[]> gardens = new HashMap<Long, long[]>();
+    gardens.put(3L, new long[] {1});
+    gardens.put(4L, new long[0]);
+    snapshot =
+        new Snapshot(
+            123456789L,
+            Arrays.asList(GARDEN),
+            Arrays.asList(PLANT),
+            Arrays.asList(USER),
+            members,
+            plants,
+            gardens);
+  }
+
+  /** Tests that every record and list survives a write and a read. */
+  @Test
+  public void read_writtenSnapshot_returnsSameData() throws IOException {
+    Path file = directory.resolve("snapshot.bin");
+    snapshot.write(file);
+
+    Snapshot read = Snapshot.read(file);
+
+    assertEquals(123456789L, read.getCreatedAtMillis());
+    assertEquals(Arrays.asList(GARDEN), read.getGardens());
+    assertEquals(Arrays.asList(PLANT), read.getPlants());
+    assertEquals(Arrays.asList(USER), read.getUsers());
+    assertArrayEquals(new long[] {3}, read.getGardenMembers().get(1L));
+    assertArrayEquals(new long[] {2}, read.getGardenPlants().get(1L));
+    assertArrayEquals(new long[] {1}, read.getUserGardens().get(3L));
+    assertArrayEquals(new long[0], read.getUserGardens().get(4L));
+  }
+
+  /** Tests that a corrupted byte fails the checksum. */
+  @Test
+  public void read_corruptedSnapshot_throws() throws IOException {
+    Path file = directory.resolve("snapshot.bin");
+    snapshot.write(file);
+    try (RandomAccessFile raw = new RandomAccessFile(file.toFile(), "rw")) {
+      raw.seek(30);
+      int value = raw.read();
+      raw.seek(30);
+      raw.write(value ^ 0xff);
+    }
+
+    IOException e = assertThrows(IOException.class, () -> Snapshot.read(file));
+    assertTrue(e.getMessage().startsWith("Checksum mismatch"));
+  }
+
+  /** Tests that files that are not snapshots, or cut short, are rejected. */
+  @Test
+  public void read_truncatedSnapshot_throws() throws IOException {
+    Path file = directory.resolve("snapshot.bin");
+    snapshot.write(file);
+    try (RandomAccessFile raw = new RandomAccessFile(file.toFile(), "rw")) {
+      raw.setLength(raw.length() - 20);
+    }
+
+    assertThrows(IOException.class, () -> Snapshot.read(file));
+  }
+}
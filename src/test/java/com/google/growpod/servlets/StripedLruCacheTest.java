@@ -0,0 +1,55 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.google.growpod.util.StripedLruCache;
+import org.junit.jupiter.api.*;
+
+/** Tests the bounded, striped cache. */
+public final class StripedLruCacheTest {
+
+  /** Tests that the cache stays bounded while a key used throughout is kept. */
+  @Test
+  public void put_beyondCapacity_dropsLeastRecentlyUsed() {
+    StripedLruCache<String, Integer> cache = new StripedLruCache<String, Integer>(160);
+    cache.put("hot", -1);
+    for (int i = 0; i < 10000; i++) {
+      cache.put("key" + i, i);
+      assertEquals(-1, cache.get("hot"));
+    }
+
+    assertTrue(cache.size() <= 160);
+    assertNull(cache.get("key0"));
+    assertEquals(9999, cache.get("key9999"));
+  }
+
+  /** Tests that replace and remove only act on the expected value. */
+  @Test
+  public void replaceAndRemove_expectedValue_onlyThenChanged() {
+    StripedLruCache<String, Integer> cache = new StripedLruCache<String, Integer>(16);
+    Integer first = 1000;
+    Integer second = 2000;
+    cache.put("key", first);
+
+    assertFalse(cache.replace("key", second, 3));
+    assertTrue(cache.replace("key", first, second));
+    assertFalse(cache.remove("key", first));
+    assertEquals(second, cache.get("key"));
+    assertTrue(cache.remove("key", second));
+    assertNull(cache.get("key"));
+  }
+}
@@ -18,10 +18,20 @@ import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
 
 import com.google.growpod.controllers.UserDao;
+import com.google.growpod.data.CareTask;
+import com.google.growpod.data.DeleteJob;
+import com.google.growpod.data.Plant;
 import com.google.growpod.data.User;
+import com.google.growpod.jobs.DeleteJobs;
+import com.google.growpod.schedule.CareRules;
+import com.google.growpod.schedule.CareScheduler;
 import com.google.growpod.servlets.UserServlet;
 import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
 import java.io.IOException;
+import java.lang.reflect.Type;
 import java.util.Arrays;
 import java.util.List;
 import org.junit.jupiter.api.*;
@@ -40,29 +50,66 @@ public final class UserServletTest {
   /** Mock services. */
   @Mock private UserDao dao;
 
+  @Mock private DeleteJobs deleteJobs;
+
   /** Test values. */
-  private final User TEST_USER = new User("0", "x", "y", "z", "aa");
+  private final User TEST_USER = new User(1, "x", "y", "z", "aa");
 
-  private final List<String> TEST_GARDEN_LIST = Arrays.asList("0");
+  private final long[] TEST_GARDEN_LIST = {1};
 
   /** Initializes servlet object and mock dao. */
   @BeforeEach
   public void initTest() {
     servlet = new UserServlet();
     servlet.setDao(dao);
+    servlet.setDeleteJobs(deleteJobs);
+    servlet.setScheduler(
+        new CareScheduler(
+            gardenId -> Arrays.asList(new Plant(gardenId, "x", 1, "y")), CareRules.loadBundled()));
+  }
+
+  /** Tests successful query for GET: /user/{id}/tasks method. */
+  @Test
+  public void doGet_successfulTasksQuery_successfulResult() throws IOException {
+    String testUrl = "/user/1/tasks";
+
+    // Mocks
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", testUrl);
+    request.addParameter("from", CareDays.recent("2020-01-01"));
+    request.addParameter("to", CareDays.recent("2020-01-02"));
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    when(dao.getUserGardenListById(1L)).thenReturn(new long[] {1, 2});
+
+    servlet.doGet(request, response);
+
+    Type listType = new TypeToken<List<CareTask>>() {}.getType();
+    List<CareTask> tasks = new Gson().fromJson(response.getContentAsString(), listType);
+    // Tasks of both gardens, merged by due day.
+    assertEquals(
+        Arrays.asList(
+            new CareTask(
+                1, 1, "fertilize", CareDays.recent("2019-12-27"), CareDays.recent("2020-01-02")),
+            new CareTask(
+                2, 2, "fertilize", CareDays.recent("2019-12-28"), CareDays.recent("2020-01-03")),
+            new CareTask(
+                1, 1, "water", CareDays.recent("2020-01-01"), CareDays.recent("2020-01-01")),
+            new CareTask(
+                2, 2, "water", CareDays.recent("2020-01-02"), CareDays.recent("2020-01-02"))),
+        tasks);
   }
 
   /** Tests successful query for GET: /user/{id} method. */
   @Test
   public void doGet_successfulUserQuery_successfulResult() throws IOException {
-    String testUrl = "/user/0";
+    String testUrl = "/user/1";
 
     // Mocks
 
     MockHttpServletRequest request = new MockHttpServletRequest("GET", testUrl);
     MockHttpServletResponse response = new MockHttpServletResponse();
 
-    when(dao.getUserById("0")).thenReturn(TEST_USER);
+    when(dao.getUserById(1L)).thenReturn(TEST_USER);
 
     servlet.doGet(request, response);
 
@@ -70,51 +117,83 @@ public final class UserServletTest {
     assertEquals(TEST_USER, new Gson().fromJson(response.getContentAsString(), User.class));
   }
 
+  /** Tests that GET: /user/{id}?fields= returns only those fields. */
+  @Test
+  public void doGet_userQueryWithFields_returnsOnlyFields() throws IOException {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/user/1");
+    request.addParameter("fields", "id,preferredName");
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    when(dao.getUserById(1L)).thenReturn(TEST_USER);
+
+    servlet.doGet(request, response);
+
+    JsonObject json = JsonParser.parseString(response.getContentAsString()).getAsJsonObject();
+    assertEquals(2, json.size());
+    assertEquals(TEST_USER.getPreferredName(), json.get("preferredName").getAsString());
+  }
+
   /** Tests failed query for GET: /user/{id} method. */
   @Test
   public void doGet_invalidIdUserQuery_returns404() throws IOException {
-    String testUrl = "/user/0";
+    String testUrl = "/user/1";
 
     // Mocks
 
     MockHttpServletRequest request = new MockHttpServletRequest("GET", testUrl);
     MockHttpServletResponse response = new MockHttpServletResponse();
 
-    when(dao.getUserById("0")).thenReturn(null);
+    when(dao.getUserById(1L)).thenReturn(null);
 
     servlet.doGet(request, response);
 
     assertEquals(MockHttpServletResponse.SC_NOT_FOUND, response.getStatus());
   }
 
+  /** Tests malformed id for GET: /user/{id} method. */
+  @Test
+  public void doGet_malformedIdUserQuery_returns400() throws IOException {
+    String testUrl = "/user/-1";
+
+    // Mocks
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", testUrl);
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    servlet.doGet(request, response);
+
+    assertEquals(MockHttpServletResponse.SC_BAD_REQUEST, response.getStatus());
+    verifyNoInteractions(dao);
+  }
+
   /** Tests successful query for GET: /user/{id}/garden-list method. */
   @Test
   public void doGet_successfulGardenListQuery_successfulResult() throws IOException {
-    String testUrl = "/user/0/garden-list";
+    String testUrl = "/user/1/garden-list";
 
     // Mocks
 
     MockHttpServletRequest request = new MockHttpServletRequest("GET", testUrl);
     MockHttpServletResponse response = new MockHttpServletResponse();
 
-    when(dao.getUserGardenListById("0")).thenReturn(TEST_GARDEN_LIST);
+    when(dao.getUserGardenListById(1L)).thenReturn(TEST_GARDEN_LIST);
 
     servlet.doGet(request, response);
 
     assertEquals("application/json;", response.getContentType());
-    assertEquals(TEST_GARDEN_LIST, new Gson().fromJson(response.getContentAsString(), List.class));
+    assertEquals(
+        Arrays.asList("1"), new Gson().fromJson(response.getContentAsString(), List.class));
   }
 
   /** Tests failed query for GET: /user/{id}/garden-list method. */
   @Test
   public void doGet_invalidIdGardenListQuery_returns404() throws IOException {
-    String testUrl = "/user/0/garden-list";
+    String testUrl = "/user/1/garden-list";
 
     // Mocks
     MockHttpServletRequest request = new MockHttpServletRequest("GET", testUrl);
     MockHttpServletResponse response = new MockHttpServletResponse();
 
-    when(dao.getUserGardenListById("0")).thenReturn(null);
+    when(dao.getUserGardenListById(1L)).thenReturn(null);
 
     servlet.doGet(request, response);
 
@@ -139,18 +218,18 @@ public final class UserServletTest {
   /** Tests successful query for POST: /user/{uid}/garden-list/{gid} posting */
   @Test
   public void doPost_successfulPlantListQuery_successfulResult() throws IOException {
-    String testUrl = "/user/0/garden-list/0";
+    String testUrl = "/user/1/garden-list/1";
 
     // Mocks
     MockHttpServletRequest request = new MockHttpServletRequest("POST", testUrl);
     MockHttpServletResponse response = new MockHttpServletResponse();
 
-    when(dao.addGarden("0", "0")).thenReturn(true);
+    when(dao.addGarden(1L, 1L)).thenReturn(true);
 
     servlet.doPost(request, response);
 
     assertEquals("application/json;", response.getContentType());
-    assertEquals("{\"id\":0}", response.getContentAsString().trim());
+    assertEquals("{\"id\":1}", response.getContentAsString().trim());
   }
 
   /** Tests invalid method on POST. */
@@ -167,33 +246,67 @@ public final class UserServletTest {
     assertEquals(MockHttpServletResponse.SC_METHOD_NOT_ALLOWED, response.getStatus());
   }
 
+  /** Tests that DELETE: /user/current starts a job and answers 202 with its location. */
+  @Test
+  public void doDelete_currentUser_acceptedWithJob() throws IOException {
+    String testUrl = "/user/current";
+
+    // Mocks
+    MockHttpServletRequest request = new MockHttpServletRequest("DELETE", testUrl);
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    when(dao.getUserById(1L)).thenReturn(TEST_USER);
+    when(deleteJobs.deleteUser(1L))
+        .thenReturn(new DeleteJob(7, User.KIND, 1, DeleteJob.PENDING, 0, null, 0, null, 0, 0));
+
+    servlet.doDelete(request, response);
+
+    assertEquals(MockHttpServletResponse.SC_ACCEPTED, response.getStatus());
+    assertEquals("/delete-job/7", response.getHeader("Location"));
+  }
+
+  /** Tests that DELETE: /user/{id} of another user starts no job. */
+  @Test
+  public void doDelete_otherUser_returns403() throws IOException {
+    String testUrl = "/user/2";
+
+    // Mocks
+    MockHttpServletRequest request = new MockHttpServletRequest("DELETE", testUrl);
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    servlet.doDelete(request, response);
+
+    assertEquals(MockHttpServletResponse.SC_FORBIDDEN, response.getStatus());
+    verifyNoInteractions(deleteJobs);
+  }
+
   /** Tests successful query for DELETE: /user/{uid}/garden-list/{gid}. */
   @Test
   public void doDelete_successfulGardenListQuery_successfulResult() throws IOException {
-    String testUrl = "/user/0/garden-list/0";
+    String testUrl = "/user/1/garden-list/1";
 
     // Mocks
     MockHttpServletRequest request = new MockHttpServletRequest("DELETE", testUrl);
     MockHttpServletResponse response = new MockHttpServletResponse();
 
-    when(dao.deleteFromUserGardenList("0", "0")).thenReturn(true);
+    when(dao.deleteFromUserGardenList(1L, 1L)).thenReturn(true);
 
     servlet.doDelete(request, response);
 
     assertEquals("application/json;", response.getContentType());
-    assertEquals("{\"id\":0}", response.getContentAsString().trim());
+    assertEquals("{\"id\":1}", response.getContentAsString().trim());
   }
 
   /** Tests failed query for DELETE: /user/{uid}/garden-list/{gid}. */
   @Test
   public void doPost_invalidUidOrGidGardenListQuery_returns404() throws IOException {
-    String testUrl = "/user/0/garden-list/0";
+    String testUrl = "/user/1/garden-list/1";
 
     // Mocks
     MockHttpServletRequest request = new MockHttpServletRequest("DELETE", testUrl);
     MockHttpServletResponse response = new MockHttpServletResponse();
 
-    when(dao.deleteFromUserGardenList("0", "0")).thenReturn(false);
+    when(dao.deleteFromUserGardenList(1L, 1L)).thenReturn(false);
 
     servlet.doDelete(request, response);
 
@@ -0,0 +1,157 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.growpod.tests;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import com.google.growpod.controllers.FindGardensDao;
+import com.google.growpod.controllers.GardenDao;
+import com.google.growpod.data.Garden;
+import com.google.growpod.data.GardenCounts;
+import com.google.growpod.servlets.FindGardensServlet;
+import com.google.growpod.servlets.GardenServlet;
+import com.google.growpod.servlets.PlantServlet;
+import com.google.growpod.servlets.UserServlet;
+import com.google.growpod.servlets.WarmupServlet;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockServletContext;
+
+/** Tests Warmup servlet dispatches, based on the gardens in Datastore. */
+@ExtendWith(MockitoExtension.class)
+public final class WarmupServletTest {
+
+  private WarmupServlet servlet; // Class to test
+
+  /** Mock services. */
+  @Mock private FindGardensDao findGardensDao;
+
+  @Mock private GardenDao gardenDao;
+
+  /** Test values. */
+  private final Garden QUIET_GARDEN = new Garden(1, "x", "y", 0.0, 0.0, "10001", 3);
+
+  private final Garden BUSY_GARDEN = new Garden(2, "x", "y", 0.0, 0.0, "10002", 4);
+
+  /** Requests seen by the servlets, as "uri?zip-code". */
+  private final List<String> dispatched = Collections.synchronizedList(new ArrayList<String>());
+
+  /** Initializes servlet object, mock daos and recording dispatchers. */
+  @BeforeEach
+  public void initTest() {
+    MockServletContext context = new MockServletContext();
+    for (Class<?> target :
+        Arrays.asList(
+            GardenServlet.class, UserServlet.class, PlantServlet.class, FindGardensServlet.class)) {
+      context.registerNamedDispatcher(target.getName(), new RecordingDispatcher());
+    }
+    servlet =
+        new WarmupServlet() {
+          static final long serialVersionUID = 1L;
+
+          @Override
+          public ServletContext getServletContext() {
+            return context;
+          }
+        };
+    servlet.setDaos(findGardensDao, gardenDao);
+  }
+
+  /** Tests that warmup primes the most joined gardens first, and reports what it did. */
+  @Test
+  public void doGet_gardens_dispatchesReadsOfBusiestFirst() throws IOException, ServletException {
+    when(findGardensDao.getSomeGardens(anyInt()))
+        .thenReturn(Arrays.asList(QUIET_GARDEN, BUSY_GARDEN));
+    Map<Long, GardenCounts> counts = new HashMap<Long, GardenCounts>();
+    counts.put(1L, new GardenCounts(1, 0));
+    counts.put(2L, new GardenCounts(5, 0));
+    when(findGardensDao.getGardenCounts(any())).thenReturn(counts);
+    when(gardenDao.getGardenPlantListById(1)).thenReturn(new long[0]);
+    when(gardenDao.getGardenPlantListById(2)).thenReturn(new long[] {7});
+
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    servlet.doGet(new MockHttpServletRequest("GET", "/_ah/warmup"), response);
+
+    assertEquals(
+        Arrays.asList(
+            "/garden/2?null",
+            "/garden/2/user-list?null",
+            "/garden/2/plant-list?null",
+            "/user/4?null",
+            "/user/4/garden-list?null",
+            "/plant/7?null",
+            "/garden/1?null"),
+        dispatched.subList(0, 7));
+    assertTrue(dispatched.contains("/find-gardens?10001"));
+    assertTrue(dispatched.contains("/find-gardens?10002"));
+
+    JsonObject json = JsonParser.parseString(response.getContentAsString()).getAsJsonObject();
+    assertEquals(2, json.get("gardens").getAsInt());
+    assertEquals(2, json.get("zipCodes").getAsInt());
+    assertEquals(dispatched.size(), json.get("dispatches").getAsInt());
+    int rounds = json.get("rounds").getAsInt();
+    assertTrue(rounds >= 50 && rounds <= 200);
+  }
+
+  /** Tests that warmup of an empty Datastore dispatches nothing. */
+  @Test
+  public void doGet_noGardens_dispatchesNothing() throws IOException, ServletException {
+    when(findGardensDao.getSomeGardens(anyInt())).thenReturn(new ArrayList<Garden>());
+
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    servlet.doGet(new MockHttpServletRequest("GET", "/_ah/warmup"), response);
+
+    assertTrue(dispatched.isEmpty());
+    JsonObject json = JsonParser.parseString(response.getContentAsString()).getAsJsonObject();
+    assertEquals(0, json.get("dispatches").getAsInt());
+  }
+
+  /** Records the requests dispatched to a servlet, and writes a response to discard. */
+  private final class RecordingDispatcher implements RequestDispatcher {
+
+    @Override
+    public void forward(ServletRequest request, ServletResponse response) {
+      fail("Warmup must not forward");
+    }
+
+    @Override
+    public void include(ServletRequest request, ServletResponse response) throws IOException {
+      HttpServletRequest httpRequest = (HttpServletRequest) request;
+      assertEquals("GET", httpRequest.getMethod());
+      dispatched.add(httpRequest.getRequestURI() + "?" + httpRequest.getParameter("zip-code"));
+      response.getWriter().println("{\"discarded\": true}");
+    }
+  }
+}